@@ -36,6 +36,7 @@ CFLAGS := -Werror
 LOCAL_C_INCLUDES := \
 		$(LOCAL_PATH)/ \
 		$(LOCAL_PATH)/../ \
+		$(LOCAL_PATH)/pipeline \
 		$(LOCAL_PATH)/../rapidjson/include \
 
 LOCAL_CFLAGS := $(LOCAL_C_INCLUDES:%=-I%)
@@ -57,10 +58,29 @@ LOCAL_SRC_FILES := \
 		utilbase.cpp \
 		UVCCamera.cpp \
 		UVCPreview.cpp \
+		MJPEGDecoderPool.cpp \
+		FramePool.cpp \
+		H264Parser.cpp \
+		MJPEGRecorder.cpp \
+		TimeShiftBuffer.cpp \
+		SharedFrameRing.cpp \
+		CallbackBufferPool.cpp \
+		FrameCallback.cpp \
 		UVCButtonCallback.cpp \
 		UVCStatusCallback.cpp \
 		Parameters.cpp \
-		serenegiant_usb_UVCCamera.cpp
+		serenegiant_usb_UVCCamera.cpp \
+		pipeline/IPipeline.cpp \
+		pipeline/AbstractBufferedPipeline.cpp \
+		pipeline/SimpleBufferedPipeline.cpp \
+		pipeline/ConvertPipeline.cpp \
+		pipeline/DistributePipeline.cpp \
+		pipeline/CaptureBasePipeline.cpp \
+		pipeline/CallbackPipeline.cpp \
+		pipeline/PreviewPipeline.cpp \
+		pipeline/TimeShiftPipeline.cpp \
+		pipeline/PublisherPipeline.cpp \
+		pipeline/pipeline_helper.cpp
 
 LOCAL_MODULE    := UVCCamera
 include $(BUILD_SHARED_LIBRARY)
@@ -0,0 +1,273 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: CallbackBufferPool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <pthread.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "CallbackBufferPool.h"
+
+#define	LOCAL_DEBUG 0
+#define MAX_GENERATION (0x7fffffff >> CALLBACK_SLOT_BITS)	// handles are always positive
+
+// all pools that are in use or orphaned, #releaseFrame finds the pool of a handle from here
+static pthread_mutex_t pools_mutex = PTHREAD_MUTEX_INITIALIZER;
+static CallbackBufferPool *pools = NULL;
+static int32_t last_generation = 0;
+
+CallbackBufferPool::CallbackBufferPool(const int num_slots)
+:	mNextPool(NULL),
+	mGeneration(0),
+	mOrphaned(false),
+	mNumSlots(num_slots),
+	mNext(0),
+	mClear(NULL) {
+
+	ENTER();
+	memset(mSlots, 0, sizeof(mSlots));
+	EXIT();
+}
+
+CallbackBufferPool::~CallbackBufferPool() {
+	ENTER();
+	EXIT();
+}
+
+/**
+ * create new pool and register it to find with handles, frame buffers are allocated on demand
+ * @param num_slots [1, MAX_CALLBACK_BUFFERS]
+ */
+CallbackBufferPool *CallbackBufferPool::create(JNIEnv *env, int num_slots) {
+	ENTER();
+
+	if (num_slots < 1) num_slots = 1;
+	if (num_slots > MAX_CALLBACK_BUFFERS) num_slots = MAX_CALLBACK_BUFFERS;
+	CallbackBufferPool *pool = new CallbackBufferPool(num_slots);
+	if (env) {
+		jclass clazz = env->FindClass("java/nio/Buffer");
+		if (LIKELY(clazz)) {
+			pool->mClear = env->GetMethodID(clazz, "clear", "()Ljava/nio/Buffer;");
+			env->DeleteLocalRef(clazz);
+		}
+		env->ExceptionClear();
+	}
+	pthread_mutex_lock(&pools_mutex);
+	{
+		last_generation = (last_generation % MAX_GENERATION) + 1;
+		pool->mGeneration = last_generation;
+		pool->mNextPool = pools;
+		pools = pool;
+	}
+	pthread_mutex_unlock(&pools_mutex);
+
+	RETURN(pool, CallbackBufferPool *);
+}
+
+/**
+ * release the buffers that the consumer does not hold and delete this pool if it does not hold any.
+ * otherwise this pool is deleted when the consumer returns the last one with #releaseFrame,
+ * the ByteBuffers that it holds stay valid until then.
+ * the owner should not use this instance after calling this.
+ * @param env can be NULL if current thread is not attached to JavaVM, global refs leak in that case
+ */
+void CallbackBufferPool::release(JNIEnv *env) {
+	ENTER();
+
+	bool remove;
+	pthread_mutex_lock(&pools_mutex);
+	{
+		// #releaseFrame changes in_use of orphan only while holding the mutex
+		for (int i = 0; i < MAX_CALLBACK_BUFFERS; i++) {
+			if (!__atomic_load_n(&mSlots[i].in_use, __ATOMIC_ACQUIRE)) {
+				release_slot(env, &mSlots[i]);
+			}
+		}
+		const int held = num_held();
+		remove = !held;
+		if (remove) {
+			for (CallbackBufferPool **p = &pools; *p; p = &(*p)->mNextPool) {
+				if (*p == this) {
+					*p = mNextPool;
+					break;
+				}
+			}
+		} else {
+			LOGW("%d callback frames are still held, release them later", held);
+			mOrphaned = true;
+		}
+	}
+	pthread_mutex_unlock(&pools_mutex);
+	if (remove) {
+		delete this;
+	}
+
+	EXIT();
+}
+
+void CallbackBufferPool::release_slot(JNIEnv *env, slot_t *slot) {
+	if (slot->buffer && env) {
+		env->DeleteGlobalRef(slot->buffer);
+	}
+	slot->buffer = NULL;
+	slot->wrapped_data = NULL;
+	slot->wrapped_bytes = 0;
+	if (slot->frame) {
+		uvc_free_frame(slot->frame);
+		slot->frame = NULL;
+	}
+}
+
+/**
+ * @return number of slots that the consumer holds
+ */
+int CallbackBufferPool::num_held() {
+	int held = 0;
+	for (int i = 0; i < mNumSlots; i++) {
+		if (__atomic_load_n(&mSlots[i].in_use, __ATOMIC_ACQUIRE)) held++;
+	}
+	return held;
+}
+
+/**
+ * find free slot in round-robin order and mark it in use
+ * @return slot index, -1 if all slots are held by the consumer
+ */
+int CallbackBufferPool::obtain() {
+	for (int i = 0; i < mNumSlots; i++) {
+		const int ix = (mNext + i) % mNumSlots;
+		int32_t expected = 0;
+		if (__atomic_compare_exchange_n(&mSlots[ix].in_use, &expected, 1,
+			false, __ATOMIC_ACQ_REL, __ATOMIC_RELAXED)) {
+
+			mNext = ix + 1;
+			return ix;
+		}
+	}
+	return -1;
+}
+
+/**
+ * get frame of the slot to write callback frame, allocate if the slot does not have it yet
+ * @param data_bytes initial buffer size
+ */
+uvc_frame_t *CallbackBufferPool::getFrame(const int slot, const size_t data_bytes) {
+	if (UNLIKELY((slot < 0) || (slot >= mNumSlots))) return NULL;
+	slot_t *s = &mSlots[slot];
+	if (UNLIKELY(!s->frame)) {
+		s->frame = uvc_allocate_frame(data_bytes);
+	}
+	return s->frame;
+}
+
+/**
+ * get direct ByteBuffer of the slot, it is created again only when the frame buffer was reallocated
+ * @param bytes capacity of the ByteBuffer
+ * @return global ref, NULL if the frame of the slot is smaller than bytes
+ */
+jobject CallbackBufferPool::wrap(JNIEnv *env, const int slot, const size_t bytes) {
+	if (UNLIKELY((slot < 0) || (slot >= mNumSlots))) return NULL;
+	slot_t *s = &mSlots[slot];
+	if (UNLIKELY(!s->frame || (s->frame->data_bytes < bytes))) return NULL;
+	if (LIKELY(s->buffer && (s->wrapped_data == s->frame->data) && (s->wrapped_bytes == bytes))) {
+		// reset position/limit that the consumer may have changed
+		if (LIKELY(mClear)) {
+			jobject ret = env->CallObjectMethod(s->buffer, mClear);
+			env->ExceptionClear();
+			if (ret) env->DeleteLocalRef(ret);
+		}
+	} else {
+		if (s->buffer) {
+			env->DeleteGlobalRef(s->buffer);
+			s->buffer = NULL;
+		}
+		jobject buf = env->NewDirectByteBuffer(s->frame->data, bytes);
+		if (LIKELY(buf)) {
+			s->buffer = env->NewGlobalRef(buf);
+			env->DeleteLocalRef(buf);
+			s->wrapped_data = s->frame->data;
+			s->wrapped_bytes = bytes;
+		}
+		env->ExceptionClear();
+	}
+	return s->buffer;
+}
+
+/**
+ * return the slot that was not passed to the consumer, should be called from the thread that calls #obtain
+ */
+void CallbackBufferPool::recycle(const int slot) {
+	if (LIKELY((slot >= 0) && (slot < mNumSlots))) {
+		__atomic_store_n(&mSlots[slot].in_use, 0, __ATOMIC_RELEASE);
+	}
+}
+
+/**
+ * return the slot that the consumer held to its pool, the buffer of the slot is freed
+ * if the pool was already released and the pool is deleted with its last slot.
+ * @param handle value that was passed to IPooledFrameCallback#onFrame
+ * @return 0 if the slot was in use, UVC_ERROR_INVALID_PARAM if the handle is unknown, stale or already released
+ */
+int CallbackBufferPool::releaseFrame(JNIEnv *env, const int handle) {
+	const int32_t generation = handle >> CALLBACK_SLOT_BITS;
+	const int ix = handle & ((1 << CALLBACK_SLOT_BITS) - 1);
+	int result = UVC_ERROR_INVALID_PARAM;
+	CallbackBufferPool *orphan = NULL;
+	pthread_mutex_lock(&pools_mutex);
+	for (CallbackBufferPool **p = &pools; *p; p = &(*p)->mNextPool) {
+		CallbackBufferPool *pool = *p;
+		if (pool->mGeneration != generation) continue;
+		int32_t expected = 1;
+		if ((ix < pool->mNumSlots)
+			&& __atomic_compare_exchange_n(&pool->mSlots[ix].in_use, &expected, 0,
+				false, __ATOMIC_ACQ_REL, __ATOMIC_RELAXED)) {
+
+			result = 0;
+			if (UNLIKELY(pool->mOrphaned)) {
+				pool->release_slot(env, &pool->mSlots[ix]);
+				if (!pool->num_held()) {
+					*p = pool->mNextPool;
+					orphan = pool;
+				}
+			}
+		}
+		break;
+	}
+	pthread_mutex_unlock(&pools_mutex);
+	if (orphan) {
+		delete orphan;
+	}
+	return result;
+}
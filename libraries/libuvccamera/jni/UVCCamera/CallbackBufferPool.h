@@ -0,0 +1,80 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: CallbackBufferPool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef CALLBACKBUFFERPOOL_H_
+#define CALLBACKBUFFERPOOL_H_
+
+#include "libUVCCamera.h"
+
+#pragma interface
+
+#define MAX_CALLBACK_BUFFERS 16
+#define CALLBACK_SLOT_BITS 8		// low bits of a handle are slot index, high bits are generation of the pool
+
+/**
+ * ring of frame buffers for IFrameCallback/IPooledFrameCallback.
+ * each slot has its own frame buffer that is wrapped only once by direct ByteBuffer(global ref)
+ * so no Java object is created while the frame size does not change.
+ * #obtain/#wrap/#recycle should be called from one thread(capture thread),
+ * #releaseFrame can be called from any thread.
+ * the consumer gets a handle that carries generation of the pool, so a handle of the pool
+ * that was already replaced never releases a slot of the current one.
+ * #release does not free the slots that the consumer still holds, the pool is kept as orphan
+ * until all of them are returned with #releaseFrame.
+ */
+class CallbackBufferPool {
+private:
+	typedef struct slot {
+		uvc_frame_t *frame;		// library owns data, the data pointer does not change while the size is same
+		jobject buffer;			// global ref of direct ByteBuffer that wraps frame->data
+		void *wrapped_data;		// data pointer that buffer wraps
+		size_t wrapped_bytes;	// capacity of buffer
+		volatile int32_t in_use;
+	} slot_t;
+
+	CallbackBufferPool *mNextPool;	// link of live pools, guarded by the mutex of pools
+	int32_t mGeneration;
+	bool mOrphaned;			// #release was called while the consumer held some slots
+	slot_t mSlots[MAX_CALLBACK_BUFFERS];
+	const int mNumSlots;
+	int mNext;				// slot index to search next, only accessed from #obtain
+	jmethodID mClear;		// Buffer#clear
+
+	CallbackBufferPool(const int num_slots);
+	~CallbackBufferPool();
+	void release_slot(JNIEnv *env, slot_t *slot);
+	int num_held();
+public:
+	static CallbackBufferPool *create(JNIEnv *env, int num_slots);
+	static int releaseFrame(JNIEnv *env, const int handle);
+	void release(JNIEnv *env);
+	int obtain();
+	uvc_frame_t *getFrame(const int slot, const size_t data_bytes);
+	jobject wrap(JNIEnv *env, const int slot, const size_t bytes);
+	void recycle(const int slot);
+	inline const int handle(const int slot) const { return (mGeneration << CALLBACK_SLOT_BITS) | slot; }
+	inline const int numSlots() const { return mNumSlots; }
+};
+
+#endif /* CALLBACKBUFFERPOOL_H_ */
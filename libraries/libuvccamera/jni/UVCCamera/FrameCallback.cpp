@@ -0,0 +1,220 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FrameCallback.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "UVCPreview.h"
+#include "FrameCallback.h"
+
+#define	LOCAL_DEBUG 0
+
+/**
+ * create new instance with reference count 1
+ * @param callback_obj global ref of IFrameCallback/IPooledFrameCallback, this is deleted if failed
+ * @param num_buffers 0 for IFrameCallback, number of buffers that IPooledFrameCallback can hold otherwise
+ * @return NULL if callback_obj is NULL or it does not have onFrame method
+ */
+// static
+FrameCallback *FrameCallback::create(JNIEnv *env, jobject callback_obj, int pixel_format, int num_buffers) {
+	ENTER();
+
+	if (!callback_obj) {
+		RETURN(NULL, FrameCallback *);
+	}
+	const bool pooled = num_buffers > 0;
+	jmethodID on_frame = NULL;
+	// get method IDs of Java object for callback,
+	// the overloads with capture time are default methods that call the original ones
+	jclass clazz = env->GetObjectClass(callback_obj);
+	if (LIKELY(clazz)) {
+		on_frame = env->GetMethodID(clazz,
+			"onFrame",	pooled ? "(Ljava/nio/ByteBuffer;IJ)V" : "(Ljava/nio/ByteBuffer;J)V");
+		env->DeleteLocalRef(clazz);
+	} else {
+		LOGW("failed to get object class");
+	}
+	env->ExceptionClear();
+	if (!on_frame) {
+		LOGE("Can't find %s#onFrame", pooled ? "IPooledFrameCallback" : "IFrameCallback");
+		env->DeleteGlobalRef(callback_obj);
+		RETURN(NULL, FrameCallback *);
+	}
+	FrameCallback *callback = new FrameCallback(callback_obj, pooled);
+	callback->mOnFrame = on_frame;
+	callback->setPixelFormat(pixel_format);
+	// IFrameCallback uses only one buffer that is released when #onFrame returns
+	callback->mBuffers = CallbackBufferPool::create(env, pooled ? num_buffers : 1);
+
+	RETURN(callback, FrameCallback *);
+}
+
+FrameCallback::FrameCallback(jobject callback_obj, const bool pooled)
+:	mRefCount(1),
+	mCallbackObj(callback_obj),
+	mOnFrame(NULL),
+	mPooled(pooled),
+	mConvertFunc(NULL),
+	mFormat(UVC_FRAME_FORMAT_UNKNOWN),
+	mDecodeFormat(UVC_FRAME_FORMAT_YUYV),
+	mBitsPerPixel(16),
+	mBuffers(NULL) {
+}
+
+FrameCallback::~FrameCallback() {
+}
+
+/**
+ * decrement reference count and delete this instance if it becomes 0
+ * @param env the global ref of callback object leaks if NULL
+ */
+void FrameCallback::unref(JNIEnv *env) {
+	ENTER();
+
+	if (!__atomic_sub_fetch(&mRefCount, 1, __ATOMIC_ACQ_REL)) {
+		// the buffers that the consumer of IPooledFrameCallback still holds are freed when it releases them
+		if (mBuffers) {
+			mBuffers->release(env);
+			mBuffers = NULL;
+		}
+		if (mCallbackObj && env) {
+			env->DeleteGlobalRef(mCallbackObj);
+		}
+		mCallbackObj = NULL;
+		delete this;
+	}
+
+	EXIT();
+}
+
+void FrameCallback::setPixelFormat(const int pixel_format) {
+	switch (pixel_format) {
+	  case PIXEL_FORMAT_RAW:
+		LOGI("PIXEL_FORMAT_RAW:");
+		mBitsPerPixel = 16;
+		break;
+	  case PIXEL_FORMAT_YUV:
+		LOGI("PIXEL_FORMAT_YUV:");
+		mBitsPerPixel = 16;
+		break;
+	  case PIXEL_FORMAT_RGB565:
+		LOGI("PIXEL_FORMAT_RGB565:");
+		mConvertFunc = uvc_any2rgb565;
+		mBitsPerPixel = 16;
+		break;
+	  case PIXEL_FORMAT_RGBX:
+		LOGI("PIXEL_FORMAT_RGBX:");
+		mConvertFunc = uvc_any2rgbx;
+		mBitsPerPixel = 32;
+		break;
+	  case PIXEL_FORMAT_YUV20SP:
+		LOGI("PIXEL_FORMAT_YUV20SP:");
+		mConvertFunc = uvc_yuyv2iyuv420SP;	// this actually generates NV21(Y + VU)
+		mFormat = mDecodeFormat = UVC_FRAME_FORMAT_NV21;
+		mBitsPerPixel = 12;
+		break;
+	  case PIXEL_FORMAT_NV21:
+		LOGI("PIXEL_FORMAT_NV21:");
+		mConvertFunc = uvc_yuyv2yuv420SP;	// this actually generates NV12(Y + UV)
+		mFormat = mDecodeFormat = UVC_FRAME_FORMAT_NV12;
+		mBitsPerPixel = 12;
+		break;
+	  case PIXEL_FORMAT_NV12:
+		LOGI("PIXEL_FORMAT_NV12:");
+		// MJPEG frames are decoded into NV12 directly, YUYV frames are converted
+		mConvertFunc = uvc_yuyv2yuv420SP;	// this actually generates NV12(Y + UV)
+		mFormat = mDecodeFormat = UVC_FRAME_FORMAT_NV12;
+		mBitsPerPixel = 12;
+		break;
+	  case PIXEL_FORMAT_I420:
+		LOGI("PIXEL_FORMAT_I420:");
+		mConvertFunc = uvc_yuyv2i420;
+		mFormat = mDecodeFormat = UVC_FRAME_FORMAT_I420;
+		mBitsPerPixel = 12;
+		break;
+	}
+}
+
+/**
+ * convert/copy the frame into one of the buffers and call IFrameCallback#onFrame/IPooledFrameCallback#onFrame.
+ * this should be called from capture thread without holding any lock,
+ * the caller should keep the reference while calling this.
+ * @param frame this is not recycled here
+ * @return 0 if the frame was passed to Java, 1 if dropped because all buffers are held, negative value on error
+ */
+int FrameCallback::onFrame(JNIEnv *env, uvc_frame_t *frame) {
+	// frames are converted/copied into buffers of mBuffers
+	// and passed with the ByteBuffers that were created for them, no Java object is created here
+	const int slot = mBuffers->obtain();
+	if (UNLIKELY(slot < 0)) {
+		// drop this frame if the consumer still holds all buffers
+		return 1;
+	}
+	const size_t bytes = ((size_t)frame->width * frame->height * mBitsPerPixel) / 8;
+	uvc_frame_t *callback_frame = mBuffers->getFrame(slot, bytes);
+	int result = UVC_ERROR_NO_MEM;
+	if (LIKELY(callback_frame)) {
+		if (mConvertFunc && (frame->frame_format != mFormat)) {
+			result = mConvertFunc(frame, callback_frame);
+		} else {
+			result = uvc_duplicate_frame(frame, callback_frame);
+		}
+	}
+	jobject buf = LIKELY(!result) ? mBuffers->wrap(env, slot, bytes) : NULL;
+	bool release = !mPooled;
+	if (LIKELY(buf)) {
+		// capture time in CLOCK_MONOTONIC, same clock as System#nanoTime
+		const jlong timestamp_ns = frame->capture_time_ns;
+		if (mPooled) {
+			env->CallVoidMethod(mCallbackObj, mOnFrame, buf, mBuffers->handle(slot), timestamp_ns);
+		} else {
+			env->CallVoidMethod(mCallbackObj, mOnFrame, buf, timestamp_ns);
+		}
+		if (UNLIKELY(env->ExceptionCheck())) {
+			// the consumer would not release the frame
+			release = true;
+			env->ExceptionClear();
+			result = UVC_ERROR_OTHER;
+		}
+	} else {
+		LOGW("failed to convert for callback frame");
+		release = true;
+		if (!result) result = UVC_ERROR_NO_MEM;
+	}
+	if (release) {
+		mBuffers->recycle(slot);
+	}
+	return result;
+}
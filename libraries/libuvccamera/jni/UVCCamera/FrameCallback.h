@@ -0,0 +1,65 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FrameCallback.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef FRAMECALLBACK_H_
+#define FRAMECALLBACK_H_
+
+#include "libUVCCamera.h"
+#include "CallbackBufferPool.h"
+
+#pragma interface
+
+typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+/**
+ * IFrameCallback/IPooledFrameCallback and everything to call it(method ID, conversion, buffers).
+ * this is immutable except reference count and buffers,
+ * UVCPreview swaps the current instance while capture thread may still call #onFrame of the old one,
+ * so the capture thread does not need any lock while calling Java.
+ * the last #unref deletes the instance.
+ */
+class FrameCallback {
+private:
+	volatile int32_t mRefCount;
+	jobject mCallbackObj;				// global ref of IFrameCallback/IPooledFrameCallback
+	jmethodID mOnFrame;
+	const bool mPooled;					// true if mCallbackObj is IPooledFrameCallback
+	convFunc_t mConvertFunc;
+	uvc_frame_format mFormat;			// frames already in this format are passed without conversion
+	uvc_frame_format mDecodeFormat;		// output format of MJPEG decoder that this callback prefers
+	int mBitsPerPixel;
+	CallbackBufferPool *mBuffers;		// frame buffers and their direct ByteBuffers
+
+	FrameCallback(jobject callback_obj, const bool pooled);
+	~FrameCallback();
+	void setPixelFormat(const int pixel_format);
+public:
+	static FrameCallback *create(JNIEnv *env, jobject callback_obj, int pixel_format, int num_buffers);
+	inline void ref() { __atomic_add_fetch(&mRefCount, 1, __ATOMIC_ACQ_REL); }
+	void unref(JNIEnv *env);
+	int onFrame(JNIEnv *env, uvc_frame_t *frame);
+	inline const uvc_frame_format decodeFormat() const { return mDecodeFormat; }
+};
+
+#endif /* FRAMECALLBACK_H_ */
@@ -0,0 +1,398 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FramePool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "FramePool.h"
+
+#define	LOCAL_DEBUG 0
+
+FramePool::FramePool(const int max_per_bucket)
+:	mMaxPerBucket(max_per_bucket),
+	mUnbucketed(0),
+	mRefs(1),
+	mFreeRefs(MAX_FREE_FRAME_REFS) {
+
+	ENTER();
+	memset(mBuckets, 0, sizeof(mBuckets));
+	pthread_mutex_init(&mMutex, NULL);
+	EXIT();
+}
+
+/*private*/
+FramePool::~FramePool() {
+	ENTER();
+	clear();
+	for (FrameRef *ref = mFreeRefs.last(); ref; ref = mFreeRefs.last()) {
+		delete ref;
+	}
+	pthread_mutex_destroy(&mMutex);
+	EXIT();
+}
+
+/**
+ * add a reference, FrameRef calls this so that the pool is alive until its frame is recycled
+ */
+FramePool *FramePool::acquire() {
+	__atomic_add_fetch(&mRefs, 1, __ATOMIC_RELAXED);
+	return this;
+}
+
+/**
+ * release a reference, the owner calls this instead of delete.
+ * the pool is deleted when the owner and all FrameRef of its frames released it
+ */
+void FramePool::release() {
+	if (!__atomic_sub_fetch(&mRefs, 1, __ATOMIC_ACQ_REL)) {
+		delete this;
+	}
+}
+
+/**
+ * find the bucket for the size, must be called with mMutex held
+ * @param create if true, use unused bucket or the bucket that has no frame in use
+ * @return NULL if not found
+ */
+FramePool::bucket_t *FramePool::find_bucket(const size_t bytes, const bool create) {
+	bucket_t *unused = NULL, *idle = NULL;
+	for (int i = 0; i < MAX_POOL_BUCKETS; i++) {
+		bucket_t *bucket = &mBuckets[i];
+		if (bucket->bytes == bytes) return bucket;
+		if (!bucket->bytes) {
+			if (!unused) unused = bucket;
+		} else if (!bucket->in_use) {
+			// prefer the bucket with least frames to evict
+			if (!idle || (bucket->frames->size() < idle->frames->size())) idle = bucket;
+		}
+	}
+	if (!create) return NULL;
+	bucket_t *bucket = unused ? unused : idle;
+	if (bucket) {
+		if (bucket == idle) {
+			LOGD("evict bucket:bytes=%zu", idle->bytes);
+			clear_bucket(idle);
+		}
+		if (!bucket->frames) {
+			bucket->frames = new ObjectArray<uvc_frame_t *>(mMaxPerBucket > 2 ? mMaxPerBucket : 2);
+		}
+		bucket->bytes = bytes;
+	}
+	return bucket;
+}
+
+/**
+ * free all pooled frames and mark the bucket unused, must be called with mMutex held
+ */
+void FramePool::clear_bucket(bucket_t *bucket) {
+	if (bucket->frames) {
+		const int n = bucket->frames->size();
+		for (int i = 0; i < n; i++) {
+			uvc_free_frame((*bucket->frames)[i]);
+		}
+		SAFE_DELETE(bucket->frames);
+	}
+	memset(bucket, 0, sizeof(bucket_t));
+}
+
+/**
+ * get released FrameRef handle or allocate new one
+ */
+FrameRef *FramePool::obtain_ref() {
+	FrameRef *ref;
+	pthread_mutex_lock(&mMutex);
+	{
+		ref = mFreeRefs.last();
+	}
+	pthread_mutex_unlock(&mMutex);
+	return LIKELY(ref) ? ref : new FrameRef();
+}
+
+/**
+ * keep the FrameRef handle for reuse, it is deleted if there are enough handles
+ */
+void FramePool::recycle_ref(FrameRef *ref) {
+	pthread_mutex_lock(&mMutex);
+	{
+		if (LIKELY(mFreeRefs.size() < MAX_FREE_FRAME_REFS)) {
+			mFreeRefs.put(ref);
+			ref = NULL;
+		}
+	}
+	pthread_mutex_unlock(&mMutex);
+	if (UNLIKELY(ref)) {
+		delete ref;
+	}
+}
+
+/**
+ * get frame that has data_bytes, allocate new frame if the bucket is empty
+ * @return NULL if failed to allocate
+ */
+uvc_frame_t *FramePool::obtain(const size_t data_bytes) {
+	uvc_frame_t *frame = NULL;
+	pthread_mutex_lock(&mMutex);
+	{
+		bucket_t *bucket = find_bucket(data_bytes, true);
+		if (LIKELY(bucket)) {
+			frame = bucket->frames->last();
+			if (LIKELY(frame)) {
+				bucket->hits++;
+			} else {
+				bucket->misses++;
+			}
+			if (++bucket->in_use > bucket->high_water) {
+				bucket->high_water = bucket->in_use;
+			}
+		}
+	}
+	pthread_mutex_unlock(&mMutex);
+	if (UNLIKELY(!frame)) {
+		LOGW("allocate new frame:%zu", data_bytes);
+		frame = uvc_allocate_frame(data_bytes);
+		if (UNLIKELY(!frame)) {
+			// undo in_use
+			pthread_mutex_lock(&mMutex);
+			{
+				bucket_t *bucket = find_bucket(data_bytes, false);
+				if (bucket && (bucket->in_use > 0)) bucket->in_use--;
+			}
+			pthread_mutex_unlock(&mMutex);
+		}
+	}
+	return frame;
+}
+
+/**
+ * return the frame to the bucket of its current size, the frame is freed if the bucket is full
+ */
+void FramePool::recycle(uvc_frame_t *frame) {
+	if (UNLIKELY(!frame)) return;
+	pthread_mutex_lock(&mMutex);
+	{
+		bucket_t *bucket = find_bucket(frame->data_bytes, true);
+		if (LIKELY(bucket)) {
+			if (LIKELY(bucket->in_use > 0)) bucket->in_use--;
+			if (LIKELY(bucket->frames->size() < mMaxPerBucket)) {
+				bucket->frames->put(frame);
+				frame = NULL;
+			} else {
+				bucket->freed++;
+			}
+		} else {
+			mUnbucketed++;
+		}
+	}
+	pthread_mutex_unlock(&mMutex);
+	if (UNLIKELY(frame)) {
+		uvc_free_frame(frame);
+	}
+}
+
+/**
+ * allocate frames in advance so that the frame path does not allocate after warm-up
+ * @param count number of frames that the bucket should have, limited to max frames per bucket
+ * @return number of frames in the bucket, -1 if there is no bucket for the size
+ */
+int FramePool::prewarm(const size_t data_bytes, const int count) {
+	ENTER();
+
+	int result = -1;
+	pthread_mutex_lock(&mMutex);
+	{
+		bucket_t *bucket = find_bucket(data_bytes, true);
+		if (LIKELY(bucket)) {
+			const int n = count < mMaxPerBucket ? count : mMaxPerBucket;
+			for (int i = bucket->frames->size(); i < n; i++) {
+				uvc_frame_t *frame = uvc_allocate_frame(data_bytes);
+				if (UNLIKELY(!frame)) break;
+				bucket->frames->put(frame);
+			}
+			result = bucket->frames->size();
+		}
+	}
+	pthread_mutex_unlock(&mMutex);
+
+	RETURN(result, int);
+}
+
+void FramePool::setMaxPerBucket(const int max_per_bucket) {
+	pthread_mutex_lock(&mMutex);
+	{
+		mMaxPerBucket = max_per_bucket;
+	}
+	pthread_mutex_unlock(&mMutex);
+}
+
+/**
+ * free pooled frames
+ * @param all if true, free all pooled frames, otherwise free only the frames
+ * 			that were not needed since last trim (more than high water mark) and reset high water mark
+ * @return freed bytes
+ */
+size_t FramePool::trim(const bool all) {
+	ENTER();
+
+	size_t result = 0;
+	pthread_mutex_lock(&mMutex);
+	{
+		for (int i = 0; i < MAX_POOL_BUCKETS; i++) {
+			bucket_t *bucket = &mBuckets[i];
+			if (!bucket->bytes) continue;
+			const int keep = all ? 0 : bucket->high_water - bucket->in_use;
+			for (; bucket->frames->size() > (keep > 0 ? keep : 0) ;) {
+				uvc_free_frame(bucket->frames->last());
+				result += bucket->bytes;
+			}
+			bucket->high_water = bucket->in_use;
+			if (!bucket->in_use && bucket->frames->isEmpty()) {
+				clear_bucket(bucket);
+			}
+		}
+	}
+	pthread_mutex_unlock(&mMutex);
+
+	RETURN(result, size_t);
+}
+
+/**
+ * free all pooled frames, the frames in use are freed when they are recycled unless new bucket is created
+ */
+void FramePool::clear() {
+	ENTER();
+
+	pthread_mutex_lock(&mMutex);
+	{
+		for (int i = 0; i < MAX_POOL_BUCKETS; i++) {
+			clear_bucket(&mBuckets[i]);
+		}
+	}
+	pthread_mutex_unlock(&mMutex);
+
+	EXIT();
+}
+
+/**
+ * reset counters, in_use and pooled frames are kept
+ */
+void FramePool::resetStats() {
+	pthread_mutex_lock(&mMutex);
+	{
+		for (int i = 0; i < MAX_POOL_BUCKETS; i++) {
+			bucket_t *bucket = &mBuckets[i];
+			bucket->high_water = bucket->in_use;
+			bucket->hits = bucket->misses = bucket->freed = 0;
+		}
+		mUnbucketed = 0;
+	}
+	pthread_mutex_unlock(&mMutex);
+}
+
+/**
+ * @param stats array to receive statistics of each bucket in use
+ * @param unbucketed receives number of frames that were freed because there was no bucket, can be NULL
+ * @return number of buckets written to stats
+ */
+int FramePool::getStats(frame_pool_stats_t *stats, const int max_stats, uint32_t *unbucketed) {
+	int n = 0;
+	pthread_mutex_lock(&mMutex);
+	{
+		for (int i = 0; (i < MAX_POOL_BUCKETS) && (n < max_stats); i++) {
+			const bucket_t *bucket = &mBuckets[i];
+			if (!bucket->bytes) continue;
+			stats[n].bytes = bucket->bytes;
+			stats[n].pooled = bucket->frames->size();
+			stats[n].in_use = bucket->in_use;
+			stats[n].high_water = bucket->high_water;
+			stats[n].hits = bucket->hits;
+			stats[n].misses = bucket->misses;
+			stats[n].freed = bucket->freed;
+			n++;
+		}
+		if (unbucketed) *unbucketed = mUnbucketed;
+	}
+	pthread_mutex_unlock(&mMutex);
+	return n;
+}
+
+//********************************************************************************
+//
+//********************************************************************************
+/*private*/
+FrameRef::FrameRef()
+:	mFrame(NULL),
+	mPool(NULL),
+	mRefs(0) {
+}
+
+/*private*/
+FrameRef::~FrameRef() {
+}
+
+/**
+ * wrap the frame with reference count 1, the caller owns the reference and should call #unref
+ * @param pool the frame is recycled into this pool, freed if NULL
+ * @param frame the frame is owned by returned FrameRef
+ * @return NULL if frame is NULL
+ */
+FrameRef *FrameRef::wrap(FramePool *pool, uvc_frame_t *frame) {
+	if (UNLIKELY(!frame)) return NULL;
+	FrameRef *ref = pool ? pool->obtain_ref() : new FrameRef();
+	ref->mFrame = frame;
+	ref->mPool = pool ? pool->acquire() : NULL;
+	__atomic_store_n(&ref->mRefs, 1, __ATOMIC_RELAXED);
+	return ref;
+}
+
+/**
+ * release a reference, the frame goes back to the pool when this was the last reference
+ */
+void FrameRef::unref() {
+	if (!__atomic_sub_fetch(&mRefs, 1, __ATOMIC_ACQ_REL)) {
+		FramePool *pool = mPool;
+		if (pool) {
+			pool->recycle(mFrame);
+			mFrame = NULL;
+			mPool = NULL;
+			// the handle goes back to the pool before the pool can be deleted by #release
+			pool->recycle_ref(this);
+			pool->release();
+		} else {
+			uvc_free_frame(mFrame);
+			delete this;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: FramePool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef FRAMEPOOL_H_
+#define FRAMEPOOL_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include "objectarray.h"
+
+#pragma interface
+
+#define MAX_POOL_BUCKETS 8
+#define MAX_FREE_FRAME_REFS 32	// FrameRef handles kept for reuse
+
+typedef struct frame_pool_stats {
+	size_t bytes;			// data_bytes of the frames in the bucket
+	int pooled;				// frames that are in the bucket now
+	int in_use;				// frames that were obtained from the bucket and not recycled yet
+	int high_water;			// max in_use since last #trim
+	uint32_t hits;			// #obtain returned pooled frame
+	uint32_t misses;		// #obtain allocated new frame
+	uint32_t freed;			// recycled frames freed because the bucket was full
+} frame_pool_stats_t;
+
+/**
+ * pool of uvc_frame_t that keeps frames in buckets for each data size,
+ * #obtain returns the frame that has exactly requested size so
+ * uvc_ensure_frame_size on the frame does not realloc.
+ * the pool is reference counted because FrameRef of its frames can outlive the owner of the pool,
+ * the owner calls #release instead of deleting it.
+ * all functions can be called from any thread.
+ */
+class FrameRef;
+
+class FramePool {
+	friend class FrameRef;
+private:
+	typedef struct bucket {
+		size_t bytes;		// 0 if the bucket is not used
+		ObjectArray<uvc_frame_t *> *frames;
+		int in_use;
+		int high_water;
+		uint32_t hits;
+		uint32_t misses;
+		uint32_t freed;
+	} bucket_t;
+
+	pthread_mutex_t mMutex;
+	bucket_t mBuckets[MAX_POOL_BUCKETS];
+	int mMaxPerBucket;
+	uint32_t mUnbucketed;	// recycled frames freed because there was no bucket for their size
+	int32_t mRefs;			// owner + FrameRef that are not released yet
+	ObjectArray<FrameRef *> mFreeRefs;	// released FrameRef handles, so wrapping a frame does not allocate
+
+	bucket_t *find_bucket(const size_t bytes, const bool create);
+	void clear_bucket(bucket_t *bucket);
+	FrameRef *obtain_ref();
+	void recycle_ref(FrameRef *ref);
+	~FramePool();
+public:
+	FramePool(const int max_per_bucket);
+	FramePool *acquire();
+	void release();
+
+	uvc_frame_t *obtain(const size_t data_bytes);
+	void recycle(uvc_frame_t *frame);
+	int prewarm(const size_t data_bytes, const int count);
+	void setMaxPerBucket(const int max_per_bucket);
+	inline const int maxPerBucket() const { return mMaxPerBucket; };
+	size_t trim(const bool all);
+	void clear();
+	void resetStats();
+	int getStats(frame_pool_stats_t *stats, const int max_stats, uint32_t *unbucketed);
+};
+
+/**
+ * reference counted handle of a frame so that consumers can share one frame without copying it,
+ * e.g. preview, capture Surface, frame callback and pipeline stages use same decoded frame.
+ * the frame must not be modified after it was wrapped, consumers that need other format
+ * convert it into their own frame. the frame goes back to the pool when the last reference is released.
+ * the handles of the frames from a pool are also pooled by the pool.
+ * #ref/#unref can be called from any thread.
+ */
+class FrameRef {
+	friend class FramePool;
+private:
+	uvc_frame_t *mFrame;
+	FramePool *mPool;		// NULL if the frame is freed instead of recycling
+	int32_t mRefs;
+	FrameRef();
+	~FrameRef();
+public:
+	static FrameRef *wrap(FramePool *pool, uvc_frame_t *frame);
+	inline uvc_frame_t *frame() const { return mFrame; };
+	inline FrameRef *ref() {
+		__atomic_add_fetch(&mRefs, 1, __ATOMIC_RELAXED);
+		return this;
+	};
+	void unref();
+	inline const int32_t refs() const { return __atomic_load_n(&mRefs, __ATOMIC_RELAXED); };
+};
+
+#endif /* FRAMEPOOL_H_ */
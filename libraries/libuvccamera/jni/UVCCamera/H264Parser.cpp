@@ -0,0 +1,227 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: H264Parser.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "libUVCCamera.h"
+#include "H264Parser.h"
+
+#define	LOCAL_DEBUG 0
+
+/**
+ * find next start code(00 00 01 or 00 00 00 01)
+ * @param code_bytes length of the start code that was found
+ * @return head of the start code, end if not found
+ */
+static uint8_t *find_start_code(uint8_t *p, uint8_t *end, int &code_bytes) {
+	uint8_t *const head = p;
+	for ( ; p + 3 <= end; p++) {
+		if (p[2] > 1) {
+			// p[2] can not be any byte of a start code, skip 3 bytes at once
+			p += 2;
+		} else if (!p[0] && !p[1] && (p[2] == 1)) {
+			if ((p > head) && !p[-1]) {
+				code_bytes = 4;
+				return p - 1;
+			}
+			code_bytes = 3;
+			return p;
+		}
+	}
+	code_bytes = 0;
+	return end;
+}
+
+H264Parser::H264Parser()
+:	mSps(NULL),
+	mSpsBytes(0),
+	mPps(NULL),
+	mPpsBytes(0),
+	mWaitKeyFrame(true),
+	mConfigPending(false) {
+
+	memset(&mStats, 0, sizeof(mStats));
+}
+
+H264Parser::~H264Parser() {
+	reset();
+}
+
+/**
+ * clear SPS/PPS and counters, call this before new stream starts
+ */
+void H264Parser::reset() {
+	ENTER();
+
+	if (mSps) {
+		free(mSps);
+		mSps = NULL;
+	}
+	if (mPps) {
+		free(mPps);
+		mPps = NULL;
+	}
+	mSpsBytes = mPpsBytes = 0;
+	mWaitKeyFrame = true;
+	mConfigPending = false;
+	memset(&mStats, 0, sizeof(mStats));
+
+	EXIT();
+}
+
+/**
+ * notify that one or more frames were lost before the next frame,
+ * following access units are skipped until next IDR slice
+ */
+void H264Parser::discontinuity() {
+	mStats.discontinuities++;
+	mWaitKeyFrame = true;
+}
+
+/**
+ * restart from next IDR slice and pass current SPS/PPS again with it,
+ * e.g. when the consumer changed
+ */
+void H264Parser::resync() {
+	mWaitKeyFrame = true;
+	mConfigPending = true;
+}
+
+/**
+ * keep SPS/PPS with 4 bytes start code like csd-0/csd-1 of MediaCodec
+ * @return true if changed
+ */
+bool H264Parser::updateConfig(uint8_t *&config, size_t &config_bytes, const uint8_t *nal, const size_t bytes) {
+	if (config && (config_bytes == bytes + 4) && !memcmp(config + 4, nal, bytes)) {
+		return false;
+	}
+	uint8_t *buf = (uint8_t *)realloc(config, bytes + 4);
+	if (UNLIKELY(!buf)) {
+		return false;
+	}
+	buf[0] = buf[1] = buf[2] = 0;
+	buf[3] = 1;
+	memcpy(buf + 4, nal, bytes);
+	config = buf;
+	config_bytes = bytes + 4;
+	return true;
+}
+
+/**
+ * parse one frame and remove SPS/PPS/AUD from it in place,
+ * NAL units only move forward in the buffer so no extra buffer is needed
+ * @param data frame data that libuvc assembled, this is modified
+ * @param au data/bytes points into data when this returns 0
+ * @return 0 if the access unit should be passed, H264_PARSE_SKIPPED if it should be dropped,
+ * 			negative value if the frame has no NAL unit
+ */
+int H264Parser::parse(uint8_t *data, const size_t bytes, h264_access_unit_t &au) {
+	uint8_t *const end = data + bytes;
+	uint8_t *write = data;
+	bool key_frame = false, has_slice = false;
+	int code_bytes, next_code_bytes;
+
+	au.data = data;
+	au.bytes = 0;
+	au.key_frame = au.config_changed = false;
+	// bytes before the first start code are not a part of any NAL unit
+	uint8_t *start = find_start_code(data, end, code_bytes);
+	if (UNLIKELY(start == end)) {
+		mStats.errors++;
+		return UVC_ERROR_INVALID_PARAM;
+	}
+	while (start < end) {
+		uint8_t *nal = start + code_bytes;
+		uint8_t *next = find_start_code(nal, end, next_code_bytes);
+		uint8_t *nal_end = next;
+		// trailing_zero_8bits
+		for ( ; (nal_end > nal) && !nal_end[-1]; nal_end--) {}
+		if (LIKELY(nal_end > nal)) {
+			const int type = nal[0] & 0x1f;
+			switch (type) {
+			case H264_NAL_SPS:
+				if (updateConfig(mSps, mSpsBytes, nal, nal_end - nal)) {
+					mConfigPending = true;
+					mStats.config_changes++;
+				}
+				break;
+			case H264_NAL_PPS:
+				if (updateConfig(mPps, mPpsBytes, nal, nal_end - nal)) {
+					mConfigPending = true;
+					mStats.config_changes++;
+				}
+				break;
+			case H264_NAL_AUD:
+				break;
+			default:
+				if (type == H264_NAL_IDR) {
+					key_frame = true;
+				}
+				if ((type >= H264_NAL_SLICE) && (type <= H264_NAL_IDR)) {
+					has_slice = true;
+				}
+				if (write != start) {
+					memmove(write, start, nal_end - start);
+				}
+				write += nal_end - start;
+				break;
+			}
+		}
+		start = next;
+		code_bytes = next_code_bytes;
+	}
+	if (UNLIKELY(!has_slice)) {
+		// SPS/PPS only frame, they are passed with next access unit
+		return H264_PARSE_SKIPPED;
+	}
+	if (UNLIKELY(mWaitKeyFrame)) {
+		if (!key_frame || !mSps || !mPps) {
+			mStats.skipped++;
+			return H264_PARSE_SKIPPED;
+		}
+		mWaitKeyFrame = false;
+	}
+	au.bytes = write - data;
+	au.key_frame = key_frame;
+	au.config_changed = mConfigPending;
+	mConfigPending = false;
+	mStats.access_units++;
+	if (key_frame) {
+		mStats.key_frames++;
+	}
+	return 0;
+}
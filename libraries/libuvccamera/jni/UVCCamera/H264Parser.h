@@ -0,0 +1,89 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: H264Parser.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef H264PARSER_H_
+#define H264PARSER_H_
+
+#include <stdint.h>
+#include <stddef.h>
+
+#pragma interface
+
+#define H264_NAL_SLICE 1
+#define H264_NAL_IDR 5
+#define H264_NAL_SEI 6
+#define H264_NAL_SPS 7
+#define H264_NAL_PPS 8
+#define H264_NAL_AUD 9
+
+#define H264_PARSE_SKIPPED 1	// no error but the access unit should not be passed(waiting key frame)
+
+// counters of H264Parser, only written from the thread that calls #parse
+typedef struct h264_stats {
+	uint32_t access_units;		// access units that were passed
+	uint32_t key_frames;		// access units with IDR slice in access_units
+	uint32_t skipped;			// access units skipped while waiting SPS/PPS and IDR slice
+	uint32_t discontinuities;	// frames were lost before reaching parser
+	uint32_t config_changes;	// SPS/PPS were set or changed
+	uint32_t errors;			// frames without any NAL unit
+} h264_stats_t;
+
+typedef struct h264_access_unit {
+	uint8_t *data;			// NAL units with their original start code except SPS/PPS/AUD
+	size_t bytes;
+	bool key_frame;			// has IDR slice
+	bool config_changed;	// SPS/PPS changed since the previous access unit that was passed
+} h264_access_unit_t;
+
+/**
+ * split one UVC frame of H.264(Annex B byte stream, one access unit per frame)
+ * into NAL units in place without copying the slices.
+ * SPS/PPS are kept in this instance and removed from the access unit
+ * same as the output of MediaCodec, so that they are passed only once as codec config.
+ * access units are skipped until SPS, PPS and an IDR slice were received,
+ * and again after #discontinuity until next IDR slice because the decoder can not recover from lost frames.
+ */
+class H264Parser {
+private:
+	uint8_t *mSps;			// with 4 bytes start code
+	size_t mSpsBytes;
+	uint8_t *mPps;			// with 4 bytes start code
+	size_t mPpsBytes;
+	bool mWaitKeyFrame;
+	bool mConfigPending;	// SPS/PPS changed after the last access unit that was passed
+	h264_stats_t mStats;
+	bool updateConfig(uint8_t *&config, size_t &config_bytes, const uint8_t *nal, const size_t bytes);
+public:
+	H264Parser();
+	~H264Parser();
+	void reset();
+	void discontinuity();
+	void resync();
+	int parse(uint8_t *data, const size_t bytes, h264_access_unit_t &au);
+	inline const uint8_t *sps(size_t &bytes) const { bytes = mSpsBytes; return mSps; }
+	inline const uint8_t *pps(size_t &bytes) const { bytes = mPpsBytes; return mPps; }
+	inline const h264_stats_t &stats() const { return mStats; }
+};
+
+#endif /* H264PARSER_H_ */
@@ -0,0 +1,354 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: MJPEGDecoderPool.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "MJPEGDecoderPool.h"
+#include "UVCPreview.h"
+#include "rapidjson/rapidjson.h"
+#include "rapidjson/stringbuffer.h"
+#include "rapidjson/writer.h"
+
+using namespace rapidjson;
+
+#define	LOCAL_DEBUG 0
+
+MJPEGDecoderPool::MJPEGDecoderPool(UVCPreview *preview)
+:	mPreview(preview),
+	mIsRunning(false),
+	mWorkers(NULL),
+	mNumWorkers(0),
+	mDispatchSeq(0),
+	mCollectSeq(0),
+	mDropped(0) {
+
+	ENTER();
+	pthread_mutex_init(&pool_mutex, NULL);
+	EXIT();
+}
+
+MJPEGDecoderPool::~MJPEGDecoderPool() {
+	ENTER();
+	stop();
+	release_workers();
+	pthread_mutex_destroy(&pool_mutex);
+	EXIT();
+}
+
+/**
+ * create decoders and start worker threads
+ * @param num_workers number of worker threads, [1, MAX_DECODE_THREADS]
+ * @param width, height frame size to initialize decoders
+ * @param scale_denom DCT scaling of decoded frames, see uvc_mjpeg_decoder_set_scale
+ */
+int MJPEGDecoderPool::start(int num_workers, int width, int height, int scale_denom) {
+	ENTER();
+
+	int result = 0;
+	if (num_workers < 1) num_workers = 1;
+	if (num_workers > MAX_DECODE_THREADS) num_workers = MAX_DECODE_THREADS;
+	stop();
+	pthread_mutex_lock(&pool_mutex);
+	{
+		// workers of previous session are kept until here so that #getStats can read them
+		release_workers();
+		mWorkers = new worker_t[num_workers];
+		memset(mWorkers, 0, sizeof(worker_t) * num_workers);
+		mNumWorkers = num_workers;
+		mDispatchSeq = mCollectSeq = mDropped = 0;
+		mIsRunning = true;
+		for (int i = 0; i < num_workers; i++) {
+			worker_t *worker = &mWorkers[i];
+			worker->pool = this;
+			worker->index = i;
+			worker->input = new SpscQueue<uvc_frame_t *>(DECODE_QUEUE_DEPTH);
+			worker->output = new SpscQueue<uvc_frame_t *>(DECODE_QUEUE_DEPTH);
+			worker->decoder = uvc_mjpeg_decoder_create();
+			if (UNLIKELY(!worker->decoder)) {
+				LOGE("failed to create MJPEG decoder");
+				result = UVC_ERROR_NO_MEM;
+				break;
+			}
+			uvc_mjpeg_decoder_reset(worker->decoder, width, height);
+			uvc_mjpeg_decoder_set_scale(worker->decoder, scale_denom);
+			if (UNLIKELY(pthread_create(&worker->thread, NULL, worker_thread_func, (void *)worker))) {
+				LOGE("failed to create decoder thread");
+				result = UVC_ERROR_OTHER;
+				break;
+			}
+			worker->has_thread = true;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+	if (UNLIKELY(result)) {
+		stop();
+	} else {
+		LOGI("started %d decoder threads", num_workers);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * terminate worker threads and recycle all frames in queues
+ * the producer(libusb callback) should be stopped before calling this
+ */
+void MJPEGDecoderPool::stop() {
+	ENTER();
+
+	pthread_mutex_lock(&pool_mutex);
+	{
+		mIsRunning = false;
+		for (int i = 0; i < mNumWorkers; i++) {
+			worker_t *worker = &mWorkers[i];
+			worker->input->wakeup();
+			worker->output->wakeup();
+			if (worker->has_thread) {
+				if (pthread_join(worker->thread, NULL) != EXIT_SUCCESS) {
+					LOGW("MJPEGDecoderPool::terminate decoder thread: pthread_join failed");
+				}
+				worker->has_thread = false;
+			}
+			for (uvc_frame_t *frame = worker->input->get(); frame; frame = worker->input->get()) {
+				mPreview->recycle_frame(frame);
+			}
+			for (uvc_frame_t *frame = worker->output->get(); frame; frame = worker->output->get()) {
+				mPreview->recycle_frame(frame);
+			}
+			worker->in_flight = 0;
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+
+	EXIT();
+}
+
+/**
+ * this should be called while holding pool_mutex and worker threads are not running
+ */
+void MJPEGDecoderPool::release_workers() {
+	for (int i = 0; i < mNumWorkers; i++) {
+		worker_t *worker = &mWorkers[i];
+		SAFE_DELETE(worker->input);
+		SAFE_DELETE(worker->output);
+		if (worker->decoder) {
+			uvc_mjpeg_decoder_destroy(worker->decoder);
+			worker->decoder = NULL;
+		}
+	}
+	SAFE_DELETE_ARRAY(mWorkers);
+	mNumWorkers = 0;
+}
+
+/**
+ * dispatch MJPEG frame to next worker, this is called from libusb callback thread
+ * the frame is dropped when the worker still has DECODE_QUEUE_DEPTH frames
+ * so that following frames keep their order
+ * @return false if the frame was not dispatched, the caller still owns the frame
+ */
+bool MJPEGDecoderPool::put(uvc_frame_t *frame) {
+	if (UNLIKELY(!isRunning() || !mNumWorkers)) return false;
+
+	worker_t *worker = &mWorkers[mDispatchSeq % mNumWorkers];
+	if (__atomic_load_n(&worker->in_flight, __ATOMIC_ACQUIRE) >= DECODE_QUEUE_DEPTH) {
+		__atomic_add_fetch(&mDropped, 1, __ATOMIC_RELAXED);
+		return false;
+	}
+	__atomic_add_fetch(&worker->in_flight, 1, __ATOMIC_ACQ_REL);
+	worker->input->put(frame);	// never fails because in_flight is less than the queue depth
+	mDispatchSeq++;
+	return true;
+}
+
+/**
+ * wait for the decoded frame with next sequence number, this is called from preview thread
+ * @return decoded frame, NULL if the frame failed to decode or the pool was stopped/woken up
+ */
+uvc_frame_t *MJPEGDecoderPool::wait() {
+	if (UNLIKELY(!isRunning() || !mNumWorkers)) return NULL;
+
+	worker_t *worker = &mWorkers[mCollectSeq % mNumWorkers];
+	uvc_frame_t *frame = worker->output->wait();
+	if (LIKELY(frame)) {
+		mCollectSeq++;
+		__atomic_sub_fetch(&worker->in_flight, 1, __ATOMIC_ACQ_REL);
+		if (UNLIKELY(frame->frame_format == UVC_FRAME_FORMAT_MJPEG)) {
+			// worker returns MJPEG frame itself when it failed to decode
+			mPreview->recycle_frame(frame);
+			frame = NULL;
+		} else if (UNLIKELY(!isRunning())) {
+			mPreview->recycle_frame(frame);
+			frame = NULL;
+		}
+	}
+	return frame;
+}
+
+/**
+ * wake up the preview thread blocking in #wait
+ */
+void MJPEGDecoderPool::wakeup() {
+	pthread_mutex_lock(&pool_mutex);
+	{
+		for (int i = 0; i < mNumWorkers; i++) {
+			mWorkers[i].output->wakeup();
+		}
+	}
+	pthread_mutex_unlock(&pool_mutex);
+}
+
+void *MJPEGDecoderPool::worker_thread_func(void *vptr_args) {
+	ENTER();
+	worker_t *worker = reinterpret_cast<worker_t *>(vptr_args);
+	if (LIKELY(worker)) {
+		worker->pool->do_decode(worker);
+	}
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+void MJPEGDecoderPool::do_decode(worker_t *worker) {
+	ENTER();
+
+	decode_stats_t *stats = &worker->stats;
+	for ( ; LIKELY(isRunning()) ; ) {
+		uvc_frame_t *frame_mjpeg = worker->input->wait();
+		if (UNLIKELY(!frame_mjpeg)) continue;
+		const uint64_t start = decode_time_ns();
+		uvc_frame_t *frame = mPreview->decode_mjpeg(worker->decoder, frame_mjpeg);
+		const uint64_t elapsed = decode_time_ns() - start;
+		if (LIKELY(frame)) {
+			mPreview->recycle_frame(frame_mjpeg);
+			stats->frames++;
+			stats->total_ns += elapsed;
+			stats->last_ns = elapsed;
+			if (elapsed > stats->max_ns) stats->max_ns = elapsed;
+		} else {
+			// pass MJPEG frame as is to keep the order, #wait will recycle it
+			frame = frame_mjpeg;
+			stats->errors++;
+		}
+		worker->output->put(frame);
+	}
+
+	EXIT();
+}
+
+/**
+ * per-worker decode statistics as JSON string
+ * @return the caller should free returned string
+ */
+char *MJPEGDecoderPool::getStats() {
+	ENTER();
+
+	decode_stats_t stats[MAX_DECODE_THREADS];
+	pthread_mutex_lock(&pool_mutex);
+	const int num = mNumWorkers;
+	for (int i = 0; i < num; i++) {
+		stats[i] = mWorkers[i].stats;
+	}
+	const uint32_t dropped = mDropped;
+	pthread_mutex_unlock(&pool_mutex);
+
+	RETURN(statsToJSON(stats, num, dropped), char *);
+}
+
+/**
+ * sum of decode statistics of all workers
+ * @param total frames/errors/total_ns/max_ns of all workers
+ * @param dropped number of frames dropped before decoding
+ * @return number of frames that are dispatched but not collected yet
+ */
+int MJPEGDecoderPool::getTotals(decode_stats_t *total, uint32_t *dropped) {
+	ENTER();
+
+	int in_flight = 0;
+	memset(total, 0, sizeof(decode_stats_t));
+	pthread_mutex_lock(&pool_mutex);
+	for (int i = 0; i < mNumWorkers; i++) {
+		const decode_stats_t stats = mWorkers[i].stats;
+		total->frames += stats.frames;
+		total->errors += stats.errors;
+		total->total_ns += stats.total_ns;
+		if (stats.max_ns > total->max_ns) total->max_ns = stats.max_ns;
+		in_flight += __atomic_load_n(&mWorkers[i].in_flight, __ATOMIC_ACQUIRE);
+	}
+	*dropped = mDropped;
+	pthread_mutex_unlock(&pool_mutex);
+
+	RETURN(in_flight, int);
+}
+
+/**
+ * @param stats array of decode statistics of each decoder thread
+ * @param num number of decoder threads
+ * @param dropped number of frames dropped before decoding
+ * @return the caller should free returned string
+ */
+char *MJPEGDecoderPool::statsToJSON(const decode_stats_t *stats, const int num, const uint32_t dropped) {
+	StringBuffer buffer;
+	Writer<StringBuffer> writer(buffer);
+
+	writer.StartObject();
+	{
+		writer.String("threads");
+		writer.Int(num);
+		writer.String("dropped");
+		writer.Uint(dropped);
+		writer.String("workers");
+		writer.StartArray();
+		for (int i = 0; i < num; i++) {
+			writer.StartObject();
+			writer.String("index");
+			writer.Int(i);
+			writer.String("frames");
+			writer.Uint(stats[i].frames);
+			writer.String("errors");
+			writer.Uint(stats[i].errors);
+			writer.String("avg_us");
+			writer.Uint64(stats[i].frames ? (stats[i].total_ns / stats[i].frames) / 1000 : 0);
+			writer.String("max_us");
+			writer.Uint64(stats[i].max_ns / 1000);
+			writer.String("last_us");
+			writer.Uint64(stats[i].last_ns / 1000);
+			writer.EndObject();
+		}
+		writer.EndArray();
+	}
+	writer.EndObject();
+	return strdup(buffer.GetString());
+}
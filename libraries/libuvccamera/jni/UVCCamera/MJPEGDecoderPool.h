@@ -0,0 +1,103 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: MJPEGDecoderPool.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef MJPEGDECODERPOOL_H_
+#define MJPEGDECODERPOOL_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+#include <time.h>
+#include "spscqueue.h"
+
+#pragma interface
+
+#define MAX_DECODE_THREADS 8
+#define DECODE_QUEUE_DEPTH 2	// max number of frames in flight for each worker
+
+class UVCPreview;
+
+typedef struct decode_stats {
+	uint32_t frames;		// number of decoded frames
+	uint32_t errors;		// number of frames failed to decode
+	uint64_t total_ns;		// sum of decode time
+	uint64_t max_ns;		// max decode time
+	uint64_t last_ns;		// decode time of last frame
+} decode_stats_t;
+
+static inline uint64_t decode_time_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+/**
+ * decodes MJPEG frames on multiple worker threads.
+ * frames are dispatched to workers in round-robin with sequence number
+ * and #wait returns decoded frames in same order as #put,
+ * each worker has its own input/output SpscQueue so there is no lock on the hot path.
+ * #put should be called from one thread(libusb callback thread) and
+ * #wait should be called from one thread(preview thread)
+ */
+class MJPEGDecoderPool {
+private:
+	typedef struct worker {
+		MJPEGDecoderPool *pool;
+		int index;
+		pthread_t thread;
+		bool has_thread;
+		uvc_mjpeg_decoder_t *decoder;
+		SpscQueue<uvc_frame_t *> *input;	// libusb callback thread => worker
+		SpscQueue<uvc_frame_t *> *output;	// worker => preview thread
+		volatile int32_t in_flight;			// dispatched but not collected yet
+		decode_stats_t stats;
+	} worker_t;
+
+	UVCPreview *mPreview;
+	pthread_mutex_t pool_mutex;
+	volatile bool mIsRunning;
+	worker_t *mWorkers;
+	int mNumWorkers;
+	uint32_t mDispatchSeq;		// sequence number of next dispatched frame, only accessed from #put
+	uint32_t mCollectSeq;		// sequence number of next collected frame, only accessed from #wait
+	volatile uint32_t mDropped;	// number of frames dropped because the worker was busy
+
+	void release_workers();
+	static void *worker_thread_func(void *vptr_args);
+	void do_decode(worker_t *worker);
+public:
+	MJPEGDecoderPool(UVCPreview *preview);
+	~MJPEGDecoderPool();
+
+	inline const bool isRunning() const { return mIsRunning; }
+	int start(int num_workers, int width, int height, int scale_denom = 1);
+	void stop();
+	bool put(uvc_frame_t *frame);
+	uvc_frame_t *wait();
+	void wakeup();
+	char *getStats();
+	int getTotals(decode_stats_t *total, uint32_t *dropped);
+	static char *statsToJSON(const decode_stats_t *stats, const int num, const uint32_t dropped);
+};
+
+#endif /* MJPEGDECODERPOOL_H_ */
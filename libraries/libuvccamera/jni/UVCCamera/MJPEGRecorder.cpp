@@ -0,0 +1,481 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: MJPEGRecorder.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <time.h>
+#include <sys/time.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "MJPEGRecorder.h"
+
+#define	LOCAL_DEBUG 0
+
+// RIFF/hdrl/strl/movi headers before the first frame chunk, see #write_header
+#define AVI_HEADER_BYTES 224
+#define AVI_CHUNK_HEADER_BYTES 8
+#define AVI_INDEX_ENTRY_BYTES 16
+// AVI 1.0 readers treat RIFF size as signed 32 bits
+#define AVI_MAX_FILE_BYTES 0x7fffffffULL
+#define AVIF_HASINDEX 0x10
+#define AVIIF_KEYFRAME 0x10
+#define INDEX_CHUNK_ENTRIES 4096
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static inline uint8_t *put_fourcc(uint8_t *p, const char *fourcc) {
+	memcpy(p, fourcc, 4);
+	return p + 4;
+}
+
+static inline uint8_t *put_u32(uint8_t *p, const uint32_t v) {
+	p[0] = (uint8_t)v;
+	p[1] = (uint8_t)(v >> 8);
+	p[2] = (uint8_t)(v >> 16);
+	p[3] = (uint8_t)(v >> 24);
+	return p + 4;
+}
+
+static inline uint8_t *put_u16(uint8_t *p, const uint16_t v) {
+	p[0] = (uint8_t)v;
+	p[1] = (uint8_t)(v >> 8);
+	return p + 2;
+}
+
+MJPEGRecorder::MJPEGRecorder()
+:	mFd(-1),
+	mWidth(0),
+	mHeight(0),
+	mFps(0.0f),
+	mRing(NULL),
+	mHead(0),
+	mTail(0),
+	mMoviBytes(0),
+	mIndex(NULL),
+	mIndexCapacity(0),
+	mMaxFrameBytes(0),
+	mFirstNs(0),
+	mLastNs(0),
+	mStopped(false),
+	mIsRunning(false) {
+
+	ENTER();
+	memset(&mStats, 0, sizeof(mStats));
+	pthread_mutex_init(&io_mutex, NULL);
+	pthread_cond_init(&io_sync, NULL);
+	EXIT();
+}
+
+MJPEGRecorder::~MJPEGRecorder() {
+	ENTER();
+	stop();
+	pthread_cond_destroy(&io_sync);
+	pthread_mutex_destroy(&io_mutex);
+	EXIT();
+}
+
+/**
+ * create the file and start I/O thread
+ * @param fps nominal frame rate, the frame rate in the file is measured from capture time of frames
+ */
+int MJPEGRecorder::start(const char *path, const int width, const int height, const float fps) {
+	ENTER();
+
+	if (UNLIKELY(mIsRunning || !path)) {
+		RETURN(UVC_ERROR_BUSY, int);
+	}
+	mFd = open(path, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0644);
+	if (UNLIKELY(mFd < 0)) {
+		LOGE("failed to open %s:errno=%d", path, errno);
+		RETURN(UVC_ERROR_ACCESS, int);
+	}
+	mRing = (uint8_t *)malloc(RECORD_RING_BYTES);
+	if (UNLIKELY(!mRing)) {
+		close(mFd);
+		mFd = -1;
+		RETURN(UVC_ERROR_NO_MEM, int);
+	}
+	mWidth = width;
+	mHeight = height;
+	mFps = fps > 0.0f ? fps : 30.0f;
+	mHead = mTail = mMoviBytes = 0;
+	mMaxFrameBytes = 0;
+	mFirstNs = mLastNs = 0;
+	mStopped = false;
+	memset(&mStats, 0, sizeof(mStats));
+	// placeholder, counts and sizes are written again on #stop
+	int result = write_header(0, 0);
+	if (LIKELY(!result)) {
+		mIsRunning = true;
+		if (UNLIKELY(pthread_create(&io_thread, NULL, io_thread_func, (void *)this))) {
+			mIsRunning = false;
+			result = UVC_ERROR_OTHER;
+		}
+	}
+	if (UNLIKELY(result)) {
+		close(mFd);
+		mFd = -1;
+		free(mRing);
+		mRing = NULL;
+	}
+	RETURN(result, int);
+}
+
+/**
+ * queue one MJPEG frame, this only copies the frame into the ring buffer.
+ * called from libuvc callback thread so this never waits for storage
+ */
+void MJPEGRecorder::write(const uvc_frame_t *frame) {
+	if (UNLIKELY(!mIsRunning || mStopped)) {
+		mStats.dropped_stopped++;
+		return;
+	}
+	const size_t bytes = frame->actual_bytes;
+	// chunks are padded to even size
+	const size_t chunk = AVI_CHUNK_HEADER_BYTES + ((bytes + 1) & ~1);
+	const uint32_t frames = mStats.frames;
+	if (UNLIKELY(AVI_HEADER_BYTES + mMoviBytes + chunk
+		+ AVI_CHUNK_HEADER_BYTES + (uint64_t)(frames + 1) * AVI_INDEX_ENTRY_BYTES > AVI_MAX_FILE_BYTES)) {
+
+		LOGW("reached AVI size limit, stop recording");
+		mStopped = true;
+		mStats.dropped_stopped++;
+		return;
+	}
+	const uint64_t head = mHead;
+	const size_t pending = head - __atomic_load_n(&mTail, __ATOMIC_ACQUIRE);
+	if (UNLIKELY(pending + chunk > RECORD_RING_BYTES)) {
+		mStats.dropped_full++;
+		return;
+	}
+	if (UNLIKELY(frames >= mIndexCapacity)) {
+		const uint32_t capacity = mIndexCapacity ? mIndexCapacity * 2 : 4096;
+		index_entry_t *index = (index_entry_t *)realloc(mIndex, capacity * sizeof(index_entry_t));
+		if (UNLIKELY(!index)) {
+			mStats.dropped_full++;
+			return;
+		}
+		mIndex = index;
+		mIndexCapacity = capacity;
+	}
+	uint8_t header[AVI_CHUNK_HEADER_BYTES];
+	put_u32(put_fourcc(header, "00dc"), (uint32_t)bytes);
+	size_t pos = head % RECORD_RING_BYTES;
+	const uint8_t *src[3] = { header, (const uint8_t *)frame->data, (const uint8_t *)"\0" };
+	const size_t len[3] = { AVI_CHUNK_HEADER_BYTES, bytes, bytes & 1 };
+	for (int i = 0; i < 3; i++) {
+		// copy with wrap around
+		const size_t first = len[i] < RECORD_RING_BYTES - pos ? len[i] : RECORD_RING_BYTES - pos;
+		memcpy(mRing + pos, src[i], first);
+		if (first < len[i]) {
+			memcpy(mRing, src[i] + first, len[i] - first);
+		}
+		pos = (pos + len[i]) % RECORD_RING_BYTES;
+	}
+	__atomic_store_n(&mHead, head + chunk, __ATOMIC_RELEASE);
+	mIndex[frames].offset = (uint32_t)(4 + mMoviBytes);
+	mIndex[frames].bytes = (uint32_t)bytes;
+	mMoviBytes += chunk;
+	if (bytes > mMaxFrameBytes) mMaxFrameBytes = (uint32_t)bytes;
+	if (!frames) mFirstNs = frame->capture_time_ns;
+	mLastNs = frame->capture_time_ns;
+	mStats.frames = frames + 1;
+	if (pending + chunk > mStats.ring_high_water) mStats.ring_high_water = pending + chunk;
+	if ((pending < RECORD_WRITE_BYTES) && (pending + chunk >= RECORD_WRITE_BYTES)) {
+		pthread_mutex_lock(&io_mutex);
+		pthread_cond_signal(&io_sync);
+		pthread_mutex_unlock(&io_mutex);
+	}
+}
+
+/**
+ * wait for I/O thread to write all queued frames, append index and finish the file.
+ * the caller must make sure that #write is not called anymore
+ */
+int MJPEGRecorder::stop() {
+	ENTER();
+
+	int result = 0;
+	if (mIsRunning) {
+		pthread_mutex_lock(&io_mutex);
+		{
+			mIsRunning = false;
+			pthread_cond_signal(&io_sync);
+		}
+		pthread_mutex_unlock(&io_mutex);
+		if (pthread_join(io_thread, NULL) != EXIT_SUCCESS) {
+			LOGW("MJPEGRecorder::terminate I/O thread: pthread_join failed");
+		}
+		if (LIKELY(!mStats.error)) {
+			const uint32_t frames = mStats.frames;
+			result = write_index();
+			if (LIKELY(!result)) {
+				result = write_header(frames, (uint64_t)(mLastNs - mFirstNs));
+			}
+			if (LIKELY(!result) && fdatasync(mFd)) {
+				result = UVC_ERROR_IO;
+			}
+		} else {
+			result = UVC_ERROR_IO;
+		}
+		if (close(mFd) && !result) {
+			result = UVC_ERROR_IO;
+		}
+		mFd = -1;
+	}
+	if (mRing) {
+		free(mRing);
+		mRing = NULL;
+	}
+	if (mIndex) {
+		free(mIndex);
+		mIndex = NULL;
+		mIndexCapacity = 0;
+	}
+	RETURN(result, int);
+}
+
+/**
+ * copy counters, this can be called from any thread
+ */
+void MJPEGRecorder::getStats(record_stats_t &stats) {
+	stats = mStats;
+}
+
+void *MJPEGRecorder::io_thread_func(void *vptr_args) {
+	MJPEGRecorder *recorder = reinterpret_cast<MJPEGRecorder *>(vptr_args);
+	ENTER();
+	recorder->do_io();
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+/**
+ * write ring buffer into the file until #stop is called.
+ * waits until RECORD_WRITE_BYTES is pending so that each write is large and sequential,
+ * wakes up every 200ms anyway so that a slow stream is not kept in memory too long
+ */
+void MJPEGRecorder::do_io() {
+	ENTER();
+
+	uint64_t synced = 0;
+	for ( ; ; ) {
+		bool running;
+		pthread_mutex_lock(&io_mutex);
+		{
+			running = mIsRunning;
+			if (running && (__atomic_load_n(&mHead, __ATOMIC_ACQUIRE) - mTail < RECORD_WRITE_BYTES)) {
+				struct timespec ts;
+				clock_gettime(CLOCK_REALTIME, &ts);
+				ts.tv_nsec += 200000000;
+				if (ts.tv_nsec >= 1000000000) {
+					ts.tv_sec++;
+					ts.tv_nsec -= 1000000000;
+				}
+				pthread_cond_timedwait(&io_sync, &io_mutex, &ts);
+			}
+		}
+		pthread_mutex_unlock(&io_mutex);
+		const uint64_t head = __atomic_load_n(&mHead, __ATOMIC_ACQUIRE);
+		for (uint64_t tail = mTail; tail < head; ) {
+			const size_t pos = tail % RECORD_RING_BYTES;
+			const size_t bytes = head - tail < RECORD_RING_BYTES - pos ? head - tail : RECORD_RING_BYTES - pos;
+			if (LIKELY(!mStats.error)) {
+				const uint64_t start = now_ns();
+				if (UNLIKELY(write_fully(mRing + pos, bytes))) {
+					mStats.error = errno ? errno : EIO;
+					mStopped = true;
+					LOGE("failed to write:errno=%d", mStats.error);
+				} else {
+					mStats.bytes += bytes;
+					mStats.writes++;
+					if (mStats.bytes - synced >= RECORD_SYNC_BYTES) {
+						fdatasync(mFd);
+						synced = mStats.bytes;
+					}
+				}
+				const uint64_t elapsed = now_ns() - start;
+				mStats.write_ns += elapsed;
+				if (elapsed > mStats.max_write_ns) mStats.max_write_ns = elapsed;
+			}
+			// after an error, queued frames are discarded
+			tail += bytes;
+			__atomic_store_n(&mTail, tail, __ATOMIC_RELEASE);
+		}
+		if (!running) break;
+	}
+
+	EXIT();
+}
+
+int MJPEGRecorder::write_fully(const uint8_t *data, size_t bytes) {
+	while (bytes > 0) {
+		const ssize_t n = ::write(mFd, data, bytes);
+		if (UNLIKELY(n < 0)) {
+			if (errno == EINTR) continue;
+			return -1;
+		}
+		data += n;
+		bytes -= n;
+	}
+	return 0;
+}
+
+/**
+ * write RIFF/hdrl/strl/movi headers at the head of the file
+ * @param frames total frames in the file, 0 for the placeholder
+ * @param duration_ns capture time of last frame - first frame
+ */
+int MJPEGRecorder::write_header(const uint32_t frames, const uint64_t duration_ns) {
+	ENTER();
+
+	// use measured frame rate so that playback speed matches capture
+	double fps = mFps;
+	if ((frames > 1) && (duration_ns > 0)) {
+		fps = (frames - 1) * 1000000000.0 / duration_ns;
+	}
+	const uint32_t rate = (uint32_t)(fps * 1000.0 + 0.5);
+	const uint32_t usec_per_frame = (uint32_t)(1000000.0 / fps + 0.5);
+	const uint32_t index_bytes = frames * AVI_INDEX_ENTRY_BYTES;
+	const uint64_t file_bytes = AVI_HEADER_BYTES + mMoviBytes + AVI_CHUNK_HEADER_BYTES + index_bytes;
+	const uint32_t buffer_bytes = mMaxFrameBytes + AVI_CHUNK_HEADER_BYTES;
+
+	uint8_t header[AVI_HEADER_BYTES];
+	memset(header, 0, sizeof(header));
+	uint8_t *p = header;
+	p = put_fourcc(p, "RIFF");
+	p = put_u32(p, (uint32_t)(file_bytes - 8));
+	p = put_fourcc(p, "AVI ");
+	p = put_fourcc(p, "LIST");
+	p = put_u32(p, 192);								// hdrl
+	p = put_fourcc(p, "hdrl");
+	p = put_fourcc(p, "avih");
+	p = put_u32(p, 56);
+	p = put_u32(p, usec_per_frame);						// dwMicroSecPerFrame
+	p = put_u32(p, (uint32_t)(buffer_bytes * fps));		// dwMaxBytesPerSec
+	p = put_u32(p, 0);									// dwPaddingGranularity
+	p = put_u32(p, AVIF_HASINDEX);						// dwFlags
+	p = put_u32(p, frames);								// dwTotalFrames
+	p = put_u32(p, 0);									// dwInitialFrames
+	p = put_u32(p, 1);									// dwStreams
+	p = put_u32(p, buffer_bytes);						// dwSuggestedBufferSize
+	p = put_u32(p, mWidth);
+	p = put_u32(p, mHeight);
+	p += 16;											// dwReserved[4]
+	p = put_fourcc(p, "LIST");
+	p = put_u32(p, 116);								// strl
+	p = put_fourcc(p, "strl");
+	p = put_fourcc(p, "strh");
+	p = put_u32(p, 56);
+	p = put_fourcc(p, "vids");
+	p = put_fourcc(p, "MJPG");
+	p = put_u32(p, 0);									// dwFlags
+	p = put_u16(p, 0);									// wPriority
+	p = put_u16(p, 0);									// wLanguage
+	p = put_u32(p, 0);									// dwInitialFrames
+	p = put_u32(p, 1000);								// dwScale
+	p = put_u32(p, rate);								// dwRate, frame rate = dwRate / dwScale
+	p = put_u32(p, 0);									// dwStart
+	p = put_u32(p, frames);								// dwLength
+	p = put_u32(p, buffer_bytes);						// dwSuggestedBufferSize
+	p = put_u32(p, 0xffffffff);							// dwQuality
+	p = put_u32(p, 0);									// dwSampleSize
+	p = put_u16(p, 0);									// rcFrame
+	p = put_u16(p, 0);
+	p = put_u16(p, (uint16_t)mWidth);
+	p = put_u16(p, (uint16_t)mHeight);
+	p = put_fourcc(p, "strf");
+	p = put_u32(p, 40);									// BITMAPINFOHEADER
+	p = put_u32(p, 40);									// biSize
+	p = put_u32(p, mWidth);
+	p = put_u32(p, mHeight);
+	p = put_u16(p, 1);									// biPlanes
+	p = put_u16(p, 24);									// biBitCount
+	p = put_fourcc(p, "MJPG");							// biCompression
+	p = put_u32(p, mWidth * mHeight * 3);				// biSizeImage
+	p += 16;											// biXPelsPerMeter...biClrImportant
+	p = put_fourcc(p, "LIST");
+	p = put_u32(p, (uint32_t)(4 + mMoviBytes));			// movi
+	p = put_fourcc(p, "movi");
+
+	int result = 0;
+	if (UNLIKELY(pwrite(mFd, header, sizeof(header), 0) != sizeof(header))) {
+		LOGE("failed to write header:errno=%d", errno);
+		result = UVC_ERROR_IO;
+	} else if (!frames && (lseek(mFd, sizeof(header), SEEK_SET) < 0)) {
+		result = UVC_ERROR_IO;
+	}
+	RETURN(result, int);
+}
+
+/**
+ * append idx1 after 'movi', called after I/O thread wrote all frames
+ */
+int MJPEGRecorder::write_index() {
+	ENTER();
+
+	const uint32_t frames = mStats.frames;
+	uint8_t *buf = (uint8_t *)malloc(INDEX_CHUNK_ENTRIES * AVI_INDEX_ENTRY_BYTES);
+	if (UNLIKELY(!buf)) {
+		RETURN(UVC_ERROR_NO_MEM, int);
+	}
+	uint8_t header[AVI_CHUNK_HEADER_BYTES];
+	put_u32(put_fourcc(header, "idx1"), frames * AVI_INDEX_ENTRY_BYTES);
+	int result = write_fully(header, sizeof(header));
+	for (uint32_t i = 0; !result && (i < frames); ) {
+		uint8_t *p = buf;
+		const uint32_t n = frames - i < INDEX_CHUNK_ENTRIES ? frames - i : INDEX_CHUNK_ENTRIES;
+		for (uint32_t j = 0; j < n; j++, i++) {
+			p = put_fourcc(p, "00dc");
+			p = put_u32(p, AVIIF_KEYFRAME);
+			p = put_u32(p, mIndex[i].offset);
+			p = put_u32(p, mIndex[i].bytes);
+		}
+		result = write_fully(buf, p - buf);
+	}
+	free(buf);
+	if (UNLIKELY(result)) {
+		LOGE("failed to write index:errno=%d", errno);
+		result = UVC_ERROR_IO;
+	}
+	RETURN(result, int);
+}
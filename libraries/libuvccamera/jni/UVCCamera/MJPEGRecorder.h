@@ -0,0 +1,99 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: MJPEGRecorder.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef MJPEGRECORDER_H_
+#define MJPEGRECORDER_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+#define RECORD_RING_BYTES (16 * 1024 * 1024)	// about 1 second of 1080p MJPEG
+#define RECORD_WRITE_BYTES (1024 * 1024)		// I/O thread wakes up when this is pending
+#define RECORD_SYNC_BYTES (32 * 1024 * 1024)	// fdatasync interval, limits frames lost on power failure
+
+// recording counters, each field is written from only one thread
+typedef struct record_stats {
+	uint32_t frames;			// frames that were queued to be written
+	uint32_t dropped_full;		// frames dropped because the ring buffer was full(storage is too slow)
+	uint32_t dropped_stopped;	// frames dropped after the file reached AVI size limit or write failed
+	size_t ring_high_water;		// max bytes that were waiting for I/O thread
+	uint64_t bytes;				// bytes written to the file
+	uint32_t writes;			// number of write calls
+	uint64_t write_ns;			// sum of time spent in write/fdatasync
+	uint64_t max_write_ns;
+	int error;					// errno of the first failed write, 0 if no error
+} record_stats_t;
+
+/**
+ * write MJPEG frames as they came from the camera into AVI(RIFF, MJPG codec) without decoding.
+ * #write copies a frame into a ring buffer on the calling thread and the dedicated I/O thread
+ * writes the ring buffer into the file in large sequential writes, so the caller never blocks on storage.
+ * frames are dropped instead of blocking when storage can not catch up.
+ * index(idx1) is kept in memory and appended on #stop, AVI 1.0 limits the file to 2GB.
+ * #write must be called from one thread at a time.
+ */
+class MJPEGRecorder {
+private:
+	typedef struct index_entry {
+		uint32_t offset;		// from 'movi' fourcc
+		uint32_t bytes;
+	} index_entry_t;
+
+	int mFd;
+	int mWidth, mHeight;
+	float mFps;					// nominal frame rate, used only if actual rate can not be measured
+	uint8_t *mRing;
+	uint64_t mHead;				// bytes that #write put into the ring, only written by #write
+	uint64_t mTail;				// bytes that I/O thread wrote, only written by I/O thread
+	uint64_t mMoviBytes;		// size of all chunks in 'movi'
+	index_entry_t *mIndex;
+	uint32_t mIndexCapacity;
+	uint32_t mMaxFrameBytes;
+	int64_t mFirstNs, mLastNs;	// capture time of first/last frame
+	volatile bool mStopped;		// no more frames are accepted(size limit or write error)
+	volatile bool mIsRunning;
+	pthread_t io_thread;
+	pthread_mutex_t io_mutex;
+	pthread_cond_t io_sync;
+	record_stats_t mStats;
+
+	static void *io_thread_func(void *vptr_args);
+	void do_io();
+	int write_fully(const uint8_t *data, size_t bytes);
+	int write_header(const uint32_t frames, const uint64_t duration_ns);
+	int write_index();
+public:
+	MJPEGRecorder();
+	~MJPEGRecorder();
+
+	int start(const char *path, const int width, const int height, const float fps);
+	void write(const uvc_frame_t *frame);
+	int stop();
+	inline const bool isRunning() const { return mIsRunning; };
+	void getStats(record_stats_t &stats);
+};
+
+#endif /* MJPEGRECORDER_H_ */
@@ -0,0 +1,525 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SharedFrameRing.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <stdio.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <time.h>
+#include <sys/mman.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+#if defined(__ANDROID__)
+#include <dlfcn.h>
+#include <sys/ioctl.h>
+#include <linux/ashmem.h>
+#endif
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "SharedFrameRing.h"
+
+#define	LOCAL_DEBUG 0
+
+#ifndef MFD_CLOEXEC
+	#define MFD_CLOEXEC 0x0001U
+#endif
+#ifndef MFD_ALLOW_SEALING
+	#define MFD_ALLOW_SEALING 0x0002U
+#endif
+
+// retries of a subscriber when the publisher overwrote the latest slot while it was being read
+#define SFR_MAX_RETRY 4
+// polling interval when futex can not be used on the mapping
+#define SFR_POLL_US 500
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static inline size_t align_up(const size_t v, const size_t align) {
+	return (v + align - 1) & ~(align - 1);
+}
+
+/**
+ * create anonymous shared memory, memfd if the kernel supports it(3.17 or later),
+ * otherwise ASharedMemory(API>=26) or ashmem device on Android
+ * @param is_ashmem true is set if the fd is ashmem
+ * @return fd or negative errno
+ */
+static int create_shared_memory(const char *name, const size_t bytes, bool &is_ashmem) {
+	is_ashmem = false;
+	int fd = -1;
+#if defined(__NR_memfd_create)
+	fd = (int)syscall(__NR_memfd_create, name, MFD_CLOEXEC | MFD_ALLOW_SEALING);
+	if (LIKELY(fd >= 0)) {
+		if (UNLIKELY(ftruncate(fd, bytes))) {
+			const int err = -errno;
+			::close(fd);
+			return err;
+		}
+#if defined(F_ADD_SEALS)
+		// subscribers can not shrink the memory under the mapping of the publisher(that would cause SIGBUS)
+		fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_SEAL);
+#endif
+		return fd;
+	}
+	LOGD("memfd_create failed:errno=%d", errno);
+#endif
+#if defined(__ANDROID__)
+	typedef int (*create_func_t)(const char *name, size_t size);
+	create_func_t create_func = (create_func_t)dlsym(RTLD_DEFAULT, "ASharedMemory_create");
+	if (create_func) {
+		fd = create_func(name, bytes);
+	}
+	if (fd < 0) {
+		fd = open("/dev/ashmem", O_RDWR | O_CLOEXEC);
+		if (LIKELY(fd >= 0)) {
+			char buf[ASHMEM_NAME_LEN];
+			snprintf(buf, sizeof(buf), "%s", name);
+			if (UNLIKELY((ioctl(fd, ASHMEM_SET_NAME, buf) < 0)
+				|| (ioctl(fd, ASHMEM_SET_SIZE, bytes) < 0))) {
+
+				const int err = -errno;
+				::close(fd);
+				return err;
+			}
+		}
+	}
+	if (fd >= 0) {
+		is_ashmem = true;
+		return fd;
+	}
+#endif
+	return -errno;
+}
+
+static inline int futex_wait(uint32_t *addr, const uint32_t val, const int timeout_ms) {
+	struct timespec ts;
+	ts.tv_sec = timeout_ms / 1000;
+	ts.tv_nsec = (timeout_ms % 1000) * 1000000L;
+	// not FUTEX_PRIVATE_FLAG because the waiters are in other processes
+	return (int)syscall(__NR_futex, addr, FUTEX_WAIT, val, &ts, NULL, 0);
+}
+
+static inline void futex_wake_all(uint32_t *addr) {
+	syscall(__NR_futex, addr, FUTEX_WAKE, INT32_MAX, NULL, NULL, 0);
+}
+
+SharedFrameRing::SharedFrameRing()
+:	mFd(-1),
+	mMap(NULL),
+	mMapBytes(0),
+	mIsPublisher(false),
+	mIsAshmem(false),
+	mHeader(NULL),
+	mSlots(0),
+	mSlotBytes(0),
+	mSlotStride(0),
+	mNextRead(0),
+	mFutexWorks(true) {
+
+	ENTER();
+	memset(&mStats, 0, sizeof(mStats));
+	EXIT();
+}
+
+SharedFrameRing::~SharedFrameRing() {
+	ENTER();
+	close();
+	EXIT();
+}
+
+/*private*/
+int SharedFrameRing::map(const int fd, const size_t bytes, const bool writable) {
+	ENTER();
+
+	void *addr = mmap(NULL, bytes, writable ? PROT_READ | PROT_WRITE : PROT_READ, MAP_SHARED, fd, 0);
+	if (UNLIKELY(addr == MAP_FAILED)) {
+		const int err = -errno;
+		LOGE("mmap failed:errno=%d", -err);
+		RETURN(err, int);
+	}
+	mMap = (uint8_t *)addr;
+	mMapBytes = bytes;
+	mHeader = (sfr_header_t *)mMap;
+
+	RETURN(0, int);
+}
+
+/**
+ * create shared memory and map it as the publisher
+ * @param max_frame_bytes max bytes of a frame, larger frames are dropped
+ * @param slots number of frames in the ring, a subscriber can keep a frame zero-copy while slots - 1 frames
+ * 			are published after it
+ */
+int SharedFrameRing::create(const char *name, const size_t max_frame_bytes, const uint32_t slots) {
+	ENTER();
+
+	if (UNLIKELY(isOpened())) {
+		RETURN(-EBUSY, int);
+	}
+	if (UNLIKELY(!max_frame_bytes || (slots < SFR_MIN_SLOTS) || (slots > SFR_MAX_SLOTS))) {
+		RETURN(-EINVAL, int);
+	}
+	const size_t page_size = (size_t)sysconf(_SC_PAGESIZE);
+	// 64 bytes aligned payload, and each slot starts at page boundary so that slots never share a page
+	const size_t slot_bytes = align_up(max_frame_bytes, 64);
+	const size_t stride = align_up(SFR_SLOT_HEADER_BYTES + slot_bytes, page_size);
+	const size_t total = SFR_HEADER_BYTES + stride * slots;
+	bool is_ashmem;
+	const int fd = create_shared_memory(name ? name : "UVCCamera", total, is_ashmem);
+	if (UNLIKELY(fd < 0)) {
+		LOGE("failed to create shared memory:err=%d", fd);
+		RETURN(fd, int);
+	}
+	int result = map(fd, total, true);
+	if (UNLIKELY(result)) {
+		::close(fd);
+		RETURN(result, int);
+	}
+	mFd = fd;
+	mIsPublisher = true;
+	mIsAshmem = is_ashmem;
+	mSlots = slots;
+	mSlotBytes = slot_bytes;
+	mSlotStride = stride;
+	memset(&mStats, 0, sizeof(mStats));
+	// the memory is zero filled, so all slots are seq=0(not written)
+	mHeader->header_bytes = SFR_HEADER_BYTES;
+	mHeader->slots = slots;
+	mHeader->slot_bytes = slot_bytes;
+	mHeader->slot_stride = stride;
+	// magic is written last so that a subscriber never sees a half initialized header
+	__atomic_thread_fence(__ATOMIC_RELEASE);
+	memcpy(mHeader->magic, SFR_MAGIC, sizeof(mHeader->magic));
+
+	RETURN(0, int);
+}
+
+/**
+ * get new read only file descriptor to pass to a subscriber, the caller should close it
+ * @return fd or negative errno
+ */
+int SharedFrameRing::dupReadOnlyFd() {
+	ENTER();
+
+	if (UNLIKELY(!mIsPublisher || (mFd < 0))) {
+		RETURN(-EINVAL, int);
+	}
+	int fd = -1;
+	if (mIsAshmem) {
+#if defined(__ANDROID__)
+		// ashmem can not be reopened, restrict the region instead, this does not affect existing mapping
+		ioctl(mFd, ASHMEM_SET_PROT_MASK, PROT_READ);
+#endif
+	} else {
+		// reopen memfd read only, so that subscriber can not map it writable
+		char path[64];
+		snprintf(path, sizeof(path), "/proc/self/fd/%d", mFd);
+		fd = open(path, O_RDONLY | O_CLOEXEC);
+	}
+	if (fd < 0) {
+		fd = fcntl(mFd, F_DUPFD_CLOEXEC, 0);
+	}
+
+	RETURN(fd >= 0 ? fd : -errno, int);
+}
+
+/**
+ * copy a frame into next slot and wake up subscribers
+ * this never waits for subscribers
+ */
+int SharedFrameRing::publish(const uvc_frame_t *frame) {
+	ENTER();
+
+	if (UNLIKELY(!mIsPublisher || !mMap || !frame)) {
+		RETURN(-EINVAL, int);
+	}
+	if (UNLIKELY(frame->actual_bytes > mSlotBytes)) {
+		mStats.too_large++;
+		RETURN(SFR_ERROR_NO_SPACE, int);
+	}
+	const uint64_t start = now_ns();
+	const uint64_t n = mHeader->write_count;	// only the publisher writes this
+	sfr_slot_t *s = slot((uint32_t)(n % mSlots));
+	const uint32_t seq = s->seq;
+	// odd seq tells subscribers that this slot is being written, and the fence keeps
+	// the odd seq visible before any byte of the new frame
+	__atomic_store_n(&s->seq, seq + 1, __ATOMIC_RELAXED);
+	__atomic_thread_fence(__ATOMIC_RELEASE);
+	s->sequence = frame->sequence;
+	s->frame_number = n;
+	s->pts_ns = frame->capture_time_ns;
+	s->bytes = (uint32_t)frame->actual_bytes;
+	s->format = frame->frame_format;
+	s->width = frame->width;
+	s->height = frame->height;
+	s->step = (uint32_t)frame->step;
+	memcpy((uint8_t *)s + SFR_SLOT_HEADER_BYTES, frame->data, frame->actual_bytes);
+	__atomic_store_n(&s->seq, seq + 2, __ATOMIC_RELEASE);
+	__atomic_store_n(&mHeader->write_count, n + 1, __ATOMIC_RELEASE);
+	wake();
+	const uint64_t elapsed = now_ns() - start;
+	mStats.published++;
+	mStats.bytes += frame->actual_bytes;
+	mStats.publish_ns += elapsed;
+	if (elapsed > mStats.max_publish_ns) mStats.max_publish_ns = elapsed;
+
+	RETURN(0, int);
+}
+
+/*private*/
+void SharedFrameRing::wake() {
+	__atomic_store_n(&mHeader->futex, (uint32_t)mHeader->write_count, __ATOMIC_RELEASE);
+	futex_wake_all(&mHeader->futex);
+}
+
+/**
+ * map the shared memory that the publisher created as a subscriber
+ * @param fd the file descriptor is dupped, the caller still owns it
+ */
+int SharedFrameRing::attach(const int fd) {
+	ENTER();
+
+	if (UNLIKELY(isOpened())) {
+		RETURN(-EBUSY, int);
+	}
+	if (UNLIKELY(fd < 0)) {
+		RETURN(-EINVAL, int);
+	}
+	int result = map(fd, SFR_HEADER_BYTES, false);
+	if (UNLIKELY(result)) {
+		RETURN(result, int);
+	}
+	const bool valid = !memcmp(mHeader->magic, SFR_MAGIC, sizeof(mHeader->magic))
+		&& (mHeader->header_bytes == SFR_HEADER_BYTES)
+		&& (mHeader->slots >= SFR_MIN_SLOTS) && (mHeader->slots <= SFR_MAX_SLOTS)
+		&& (mHeader->slot_stride >= SFR_SLOT_HEADER_BYTES + mHeader->slot_bytes);
+	const uint32_t slots = mHeader->slots;
+	const size_t slot_bytes = mHeader->slot_bytes;
+	const size_t stride = mHeader->slot_stride;
+	munmap(mMap, mMapBytes);
+	mMap = NULL;
+	mHeader = NULL;
+	if (UNLIKELY(!valid)) {
+		LOGE("not a shared frame ring");
+		RETURN(-EINVAL, int);
+	}
+	result = map(fd, SFR_HEADER_BYTES + stride * slots, false);
+	if (UNLIKELY(result)) {
+		RETURN(result, int);
+	}
+	mFd = fcntl(fd, F_DUPFD_CLOEXEC, 0);
+	mIsPublisher = false;
+	mSlots = slots;
+	mSlotBytes = slot_bytes;
+	mSlotStride = stride;
+	memset(&mStats, 0, sizeof(mStats));
+	// frames that were published before attaching are not counted as missed
+	const uint64_t n = __atomic_load_n(&mHeader->write_count, __ATOMIC_ACQUIRE);
+	mNextRead = n ? n - 1 : 0;
+
+	RETURN(0, int);
+}
+
+/**
+ * wait until a frame newer than the one acquired last is published
+ * @param timeout_ms 0 to return immediately
+ * @return 0 if a new frame is available, SFR_ERROR_NO_FRAME on timeout, SFR_ERROR_CLOSED
+ */
+int SharedFrameRing::waitFrame(const int timeout_ms) {
+	ENTER();
+
+	if (UNLIKELY(!mMap)) {
+		RETURN(-EINVAL, int);
+	}
+	const uint64_t deadline = now_ns() + (uint64_t)(timeout_ms > 0 ? timeout_ms : 0) * 1000000ULL;
+	for ( ; ; ) {
+		// read the futex word before write_count, so that a frame published between them changes the word
+		// and FUTEX_WAIT returns immediately
+		const uint32_t val = __atomic_load_n(&mHeader->futex, __ATOMIC_ACQUIRE);
+		if (__atomic_load_n(&mHeader->write_count, __ATOMIC_ACQUIRE) > mNextRead) {
+			RETURN(0, int);
+		}
+		if (UNLIKELY(__atomic_load_n(&mHeader->closed, __ATOMIC_ACQUIRE))) {
+			RETURN(SFR_ERROR_CLOSED, int);
+		}
+		const uint64_t now = now_ns();
+		if (now >= deadline) {
+			RETURN(SFR_ERROR_NO_FRAME, int);
+		}
+		const int remain_ms = (int)((deadline - now + 999999) / 1000000);
+		if (LIKELY(mFutexWorks)) {
+			if (futex_wait(&mHeader->futex, val, remain_ms) && (errno != EAGAIN)
+				&& (errno != EINTR) && (errno != ETIMEDOUT)) {
+				// some kernels/seccomp policies refuse futex on read only shared mapping
+				LOGW("futex failed:errno=%d, fall back to polling", errno);
+				mFutexWorks = false;
+			}
+		} else {
+			usleep(SFR_POLL_US);
+		}
+	}
+}
+
+/**
+ * get the latest frame without copying it
+ * data points into the shared memory and is valid until the publisher wraps around the ring to this slot,
+ * call #validate after processing to know whether the frame was intact while it was being processed
+ * @return 0, SFR_ERROR_NO_FRAME if nothing was published yet, SFR_ERROR_OVERWRITTEN
+ */
+int SharedFrameRing::acquire(sfr_frame_info_t &info, const uint8_t *&data) {
+	ENTER();
+
+	if (UNLIKELY(!mMap)) {
+		RETURN(-EINVAL, int);
+	}
+	for (int i = 0; i < SFR_MAX_RETRY; i++) {
+		const uint64_t n = __atomic_load_n(&mHeader->write_count, __ATOMIC_ACQUIRE);
+		if (UNLIKELY(!n)) {
+			RETURN(SFR_ERROR_NO_FRAME, int);
+		}
+		const uint64_t latest = n - 1;
+		const uint32_t ix = (uint32_t)(latest % mSlots);
+		const sfr_slot_t *s = slot(ix);
+		const uint32_t seq = __atomic_load_n(&s->seq, __ATOMIC_ACQUIRE);
+		if (UNLIKELY(seq & 1)) {
+			// the publisher already wrapped around to this slot
+			mStats.overwritten++;
+			continue;
+		}
+		info.frame_number = s->frame_number;
+		info.pts_ns = s->pts_ns;
+		info.sequence = s->sequence;
+		info.bytes = s->bytes;
+		info.format = s->format;
+		info.width = s->width;
+		info.height = s->height;
+		info.step = s->step;
+		info.slot = ix;
+		info.token = seq;
+		if (UNLIKELY((info.frame_number != latest) || !validate(info) || (info.bytes > mSlotBytes))) {
+			mStats.overwritten++;
+			continue;
+		}
+		data = (const uint8_t *)s + SFR_SLOT_HEADER_BYTES;
+		if (latest > mNextRead) {
+			mStats.missed += (uint32_t)(latest - mNextRead);
+		}
+		mNextRead = latest + 1;
+		mStats.received++;
+		RETURN(0, int);
+	}
+
+	RETURN(SFR_ERROR_OVERWRITTEN, int);
+}
+
+/**
+ * check whether the publisher did not start to overwrite the frame since it was acquired
+ * @return true if everything that was read from the frame before this call is intact
+ */
+bool SharedFrameRing::validate(const sfr_frame_info_t &info) const {
+	if (UNLIKELY(!mMap || (info.slot >= mSlots))) {
+		return false;
+	}
+	// keep all reads of the frame before reading seq again
+	__atomic_thread_fence(__ATOMIC_ACQUIRE);
+	return __atomic_load_n(&slot(info.slot)->seq, __ATOMIC_RELAXED) == info.token;
+}
+
+/**
+ * copy the latest frame into buf
+ * @return bytes of the frame, SFR_ERROR_NO_FRAME, SFR_ERROR_OVERWRITTEN,
+ * 			SFR_ERROR_NO_SPACE if capacity is smaller than the frame(info.bytes has the size)
+ */
+int SharedFrameRing::read(uint8_t *buf, const size_t capacity, sfr_frame_info_t &info) {
+	ENTER();
+
+	int result = SFR_ERROR_OVERWRITTEN;
+	for (int i = 0; i < SFR_MAX_RETRY; i++) {
+		const uint8_t *data;
+		result = acquire(info, data);
+		if (UNLIKELY(result)) {
+			break;
+		}
+		if (UNLIKELY(!buf || (capacity < info.bytes))) {
+			result = SFR_ERROR_NO_SPACE;
+			break;
+		}
+		memcpy(buf, data, info.bytes);
+		if (LIKELY(validate(info))) {
+			result = (int)info.bytes;
+			break;
+		}
+		// a newer frame is already in the ring because the publisher wrapped around, retry with it
+		mStats.overwritten++;
+		mStats.received--;
+		result = SFR_ERROR_OVERWRITTEN;
+	}
+
+	RETURN(result, int);
+}
+
+int SharedFrameRing::close() {
+	ENTER();
+
+	if (mMap) {
+		if (mIsPublisher) {
+			__atomic_store_n(&mHeader->closed, 1, __ATOMIC_RELEASE);
+			wake();
+		}
+		munmap(mMap, mMapBytes);
+		mMap = NULL;
+		mHeader = NULL;
+	}
+	if (mFd >= 0) {
+		::close(mFd);
+		mFd = -1;
+	}
+	mMapBytes = 0;
+	mSlots = 0;
+	mIsPublisher = false;
+	mIsAshmem = false;
+
+	RETURN(0, int);
+}
+
+void SharedFrameRing::getStats(sfr_stats_t &stats) {
+	stats = mStats;
+}
@@ -0,0 +1,147 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: SharedFrameRing.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SHAREDFRAMERING_H_
+#define SHAREDFRAMERING_H_
+
+#include "libUVCCamera.h"
+
+#pragma interface
+
+#define SFR_MAGIC "UVCSFR01"
+#define SFR_HEADER_BYTES 4096				// ring header, slots start after this
+#define SFR_SLOT_HEADER_BYTES 64			// slot header, payload starts after this
+#define SFR_MIN_SLOTS 2
+#define SFR_MAX_SLOTS 64
+
+#define SFR_ERROR_NO_FRAME -1		// no frame was published yet or no newer frame until timeout
+#define SFR_ERROR_OVERWRITTEN -2	// the publisher overwrote the frame while it was being read
+#define SFR_ERROR_NO_SPACE -3		// the frame is larger than the slot/the buffer of the caller, info.bytes has the size
+#define SFR_ERROR_CLOSED -4			// the publisher closed the ring
+
+// layout of the header page, this is shared between processes so fields must not be reordered
+typedef struct sfr_header {
+	char magic[8];
+	uint32_t header_bytes;
+	uint32_t slots;
+	uint64_t slot_bytes;		// payload capacity of a slot
+	uint64_t slot_stride;		// bytes from a slot to next slot including the slot header
+	uint64_t write_count;		// frames published, frame N is in slot N % slots
+	uint32_t futex;				// low 32 bits of write_count, subscribers wait on this
+	uint32_t closed;			// 1 after the publisher closed the ring
+} sfr_header_t;
+
+// layout of the slot header
+typedef struct sfr_slot {
+	uint32_t seq;				// odd while the publisher is writing the slot
+	uint32_t sequence;			// sequence number of the frame from libuvc
+	uint64_t frame_number;		// write_count when this frame was published
+	int64_t pts_ns;				// capture time in CLOCK_MONOTONIC
+	uint32_t bytes;
+	uint32_t format;			// uvc_frame_format
+	uint32_t width, height;
+	uint32_t step;
+} sfr_slot_t;
+
+typedef struct sfr_frame_info {
+	uint64_t frame_number;
+	int64_t pts_ns;
+	uint32_t sequence;
+	uint32_t bytes;
+	uint32_t format;
+	uint32_t width, height;
+	uint32_t step;
+	uint32_t slot;
+	uint32_t token;				// seq of the slot when the frame was acquired, see #validate
+} sfr_frame_info_t;
+
+// counters of SharedFrameRing, publisher side fields are written only from the thread that calls #publish
+// and subscriber side fields only from the thread that reads frames
+typedef struct sfr_stats {
+	uint32_t published;			// frames that were published
+	uint32_t too_large;			// frames dropped because they are larger than a slot
+	uint64_t bytes;				// payload bytes that were published
+	uint64_t publish_ns;		// sum of time spent in #publish
+	uint64_t max_publish_ns;
+	uint32_t received;			// frames that this subscriber acquired/read
+	uint32_t missed;			// frames that this subscriber skipped because newer frame was already published
+	uint32_t overwritten;		// frames that the publisher overwrote while this subscriber was reading them
+} sfr_stats_t;
+
+/**
+ * ring of frame slots in shared memory(memfd, or ashmem on old Android) to pass frames to other processes.
+ * the publisher process creates the ring with #create and sends the read only file descriptor
+ * from #dupReadOnlyFd to subscribers through Binder/UNIX domain socket, subscribers map it with #attach.
+ * each slot is guarded by a sequence counter(seqlock) so that the publisher never waits for subscribers
+ * and any number of subscribers read same frame directly from the mapping without copying it.
+ * a subscriber that is slower than the camera skips to the latest frame, and one that keeps a frame
+ * longer than #slots frames detects it with #validate instead of blocking the publisher.
+ * #publish must be called from one thread at a time, a subscriber instance is for one reader thread.
+ */
+class SharedFrameRing {
+private:
+	int mFd;
+	uint8_t *mMap;
+	size_t mMapBytes;
+	bool mIsPublisher;
+	bool mIsAshmem;
+	sfr_header_t *mHeader;
+	uint32_t mSlots;
+	size_t mSlotBytes;
+	size_t mSlotStride;
+	uint64_t mNextRead;			// subscriber: frame_number of the frame after the one that was acquired last
+	bool mFutexWorks;			// subscriber: false if waiting on the read only mapping failed
+	sfr_stats_t mStats;
+
+	inline sfr_slot_t *slot(const uint32_t ix) const {
+		return (sfr_slot_t *)(mMap + SFR_HEADER_BYTES + ix * mSlotStride);
+	};
+	int map(const int fd, const size_t bytes, const bool writable);
+	void wake();
+public:
+	SharedFrameRing();
+	~SharedFrameRing();
+
+	// publisher
+	int create(const char *name, const size_t max_frame_bytes, const uint32_t slots);
+	int dupReadOnlyFd();
+	int publish(const uvc_frame_t *frame);
+	// subscriber
+	int attach(const int fd);
+	int waitFrame(const int timeout_ms);
+	int acquire(sfr_frame_info_t &info, const uint8_t *&data);
+	bool validate(const sfr_frame_info_t &info) const;
+	int read(uint8_t *buf, const size_t capacity, sfr_frame_info_t &info);
+	// both
+	int close();
+	inline const bool isOpened() const { return mMap != NULL; };
+	inline const uint32_t slots() const { return mSlots; };
+	inline const size_t slotBytes() const { return mSlotBytes; };
+	inline const uint8_t *slotData(const uint32_t ix) const {
+		return ix < mSlots ? (const uint8_t *)slot(ix) + SFR_SLOT_HEADER_BYTES : NULL;
+	};
+	void getStats(sfr_stats_t &stats);
+};
+
+#endif /* SHAREDFRAMERING_H_ */
@@ -0,0 +1,598 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: TimeShiftBuffer.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <time.h>
+#include <sys/mman.h>
+
+#if 1	// set 1 if you don't need debug log
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// w/o LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+//	#undef NDEBUG
+#endif
+
+#include "utilbase.h"
+#include "H264Parser.h"
+#include "TimeShiftBuffer.h"
+
+#define	LOCAL_DEBUG 0
+
+#define TSB_FILE_MAGIC "UVCTSB01"
+#define TSB_RECORD_MAGIC 0x52425354		// 'TSBR'
+#define TSB_WRAP_MAGIC 0x57425354		// 'TSBW', rest of the ring is not used, next record is at the top
+#define TSB_MIN_CAPACITY (1024 * 1024)
+#define TSB_MIN_INDEX_ENTRIES 256
+
+// first bytes of the file, so that the ring can be inspected after the process died
+typedef struct tsb_file_header {
+	char magic[8];
+	uint32_t header_bytes;
+	uint32_t record_align;
+	uint64_t capacity;
+	uint64_t write_pos;			// end of the last record(not wrapped), updated after each frame
+	int64_t max_duration_ns;
+} tsb_file_header_t;
+
+// header of each frame in the ring, followed by the payload and padded to TSB_RECORD_ALIGN
+typedef struct tsb_record {
+	uint32_t magic;
+	uint32_t bytes;
+	int64_t pts_ns;
+	int64_t id;
+	uint32_t sequence;
+	uint16_t flags;
+	uint16_t format;
+	uint16_t width;
+	uint16_t height;
+	uint32_t reserved;
+} tsb_record_t;
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static inline uint64_t record_bytes(const size_t bytes) {
+	return (sizeof(tsb_record_t) + bytes + TSB_RECORD_ALIGN - 1) & ~((uint64_t)TSB_RECORD_ALIGN - 1);
+}
+
+static int write_fully(const int fd, const uint8_t *data, size_t bytes) {
+	for ( ; bytes > 0 ; ) {
+		const ssize_t n = ::write(fd, data, bytes);
+		if (UNLIKELY(n < 0)) {
+			if (errno == EINTR) continue;
+			return -errno;
+		}
+		data += n;
+		bytes -= n;
+	}
+	return 0;
+}
+
+TimeShiftBuffer::TimeShiftBuffer()
+:	mFd(-1),
+	mMap(NULL),
+	mRing(NULL),
+	mCapacity(0),
+	mMaxDurationNs(0),
+	mWritePos(0),
+	mReserved(0),
+	mIndex(NULL),
+	mIndexCapacity(0),
+	mIndexHead(0),
+	mIndexCount(0),
+	mNextId(0),
+	mSpsBytes(0),
+	mPpsBytes(0) {
+
+	ENTER();
+	memset(&mStats, 0, sizeof(mStats));
+	pthread_mutex_init(&index_mutex, NULL);
+	EXIT();
+}
+
+TimeShiftBuffer::~TimeShiftBuffer() {
+	ENTER();
+	close();
+	pthread_mutex_destroy(&index_mutex);
+	EXIT();
+}
+
+/**
+ * create the ring file and map it, existing file is truncated
+ * @param capacity_bytes size of the ring, rounded to page size
+ * @param max_duration_ns frames older than the newest frame by this are evicted even if the ring has space,
+ * 			0 to keep frames until they are overwritten
+ */
+int TimeShiftBuffer::open(const char *path, const uint64_t capacity_bytes, const int64_t max_duration_ns) {
+	ENTER();
+
+	if (UNLIKELY(mMap || !path)) {
+		RETURN(UVC_ERROR_BUSY, int);
+	}
+	const uint64_t page = (uint64_t)sysconf(_SC_PAGESIZE);
+	uint64_t capacity = capacity_bytes < TSB_MIN_CAPACITY ? TSB_MIN_CAPACITY : capacity_bytes;
+	capacity = (capacity + page - 1) / page * page;
+	const uint64_t total = TSB_HEADER_BYTES + capacity;
+	mFd = ::open(path, O_RDWR | O_CREAT | O_TRUNC | O_CLOEXEC, 0600);
+	if (UNLIKELY(mFd < 0)) {
+		LOGE("failed to open %s:errno=%d", path, errno);
+		RETURN(UVC_ERROR_ACCESS, int);
+	}
+	// allocate all blocks now, writing into a hole of the mapping would allocate them on the writer thread
+	// and SIGBUS on a full file system instead of an error here
+	int err = posix_fallocate(mFd, 0, total);
+	if (UNLIKELY(err && (err != EOPNOTSUPP) && (err != ENOSYS))) {
+		LOGE("failed to allocate %llu bytes:err=%d", (unsigned long long)total, err);
+		::close(mFd);
+		mFd = -1;
+		RETURN(err == ENOSPC ? UVC_ERROR_NO_MEM : UVC_ERROR_IO, int);
+	} else if (err && UNLIKELY(ftruncate(mFd, total))) {
+		LOGE("failed to resize file:errno=%d", errno);
+		::close(mFd);
+		mFd = -1;
+		RETURN(UVC_ERROR_IO, int);
+	}
+	void *map = mmap(NULL, total, PROT_READ | PROT_WRITE, MAP_SHARED, mFd, 0);
+	if (UNLIKELY(map == MAP_FAILED)) {
+		LOGE("mmap failed:errno=%d", errno);
+		::close(mFd);
+		mFd = -1;
+		RETURN(UVC_ERROR_NO_MEM, int);
+	}
+	mIndexCapacity = capacity / TSB_MIN_FRAME_BYTES + 1;
+	if (mIndexCapacity < TSB_MIN_INDEX_ENTRIES) mIndexCapacity = TSB_MIN_INDEX_ENTRIES;
+	mIndex = (index_entry_t *)malloc(mIndexCapacity * sizeof(index_entry_t));
+	if (UNLIKELY(!mIndex)) {
+		munmap(map, total);
+		::close(mFd);
+		mFd = -1;
+		mIndexCapacity = 0;
+		RETURN(UVC_ERROR_NO_MEM, int);
+	}
+	madvise(map, total, MADV_SEQUENTIAL);
+	mMap = (uint8_t *)map;
+	mRing = mMap + TSB_HEADER_BYTES;
+	mCapacity = capacity;
+	mMaxDurationNs = max_duration_ns > 0 ? max_duration_ns : 0;
+	mWritePos = mReserved = 0;
+	mIndexHead = mIndexCount = 0;
+	mNextId = 0;
+	mSpsBytes = mPpsBytes = 0;
+	memset(&mStats, 0, sizeof(mStats));
+	tsb_file_header_t *header = (tsb_file_header_t *)mMap;
+	memset(header, 0, sizeof(tsb_file_header_t));
+	memcpy(header->magic, TSB_FILE_MAGIC, sizeof(header->magic));
+	header->header_bytes = TSB_HEADER_BYTES;
+	header->record_align = TSB_RECORD_ALIGN;
+	header->capacity = mCapacity;
+	header->max_duration_ns = mMaxDurationNs;
+
+	RETURN(0, int);
+}
+
+/**
+ * unmap and close the file, the file is not deleted.
+ * #write and readers should not be running.
+ */
+int TimeShiftBuffer::close() {
+	ENTER();
+
+	if (mMap) {
+		munmap(mMap, TSB_HEADER_BYTES + mCapacity);
+		mMap = mRing = NULL;
+	}
+	if (mFd >= 0) {
+		::close(mFd);
+		mFd = -1;
+	}
+	pthread_mutex_lock(&index_mutex);
+	{
+		free(mIndex);
+		mIndex = NULL;
+		mIndexCapacity = mIndexHead = mIndexCount = 0;
+	}
+	pthread_mutex_unlock(&index_mutex);
+
+	RETURN(0, int);
+}
+
+/**
+ * remove entries whose records the next record overwrites and entries older than mMaxDurationNs,
+ * index_mutex should be held
+ * @param end end of next record
+ */
+void TimeShiftBuffer::evict_locked(const uint64_t end, const int64_t pts_ns) {
+	for ( ; mIndexCount ; ) {
+		const index_entry_t &oldest = mIndex[mIndexHead];
+		if ((oldest.pos + mCapacity < end)
+			|| (mMaxDurationNs && (pts_ns - oldest.pts_ns > mMaxDurationNs))
+			|| (mIndexCount >= mIndexCapacity)) {
+
+			mIndexHead = (mIndexHead + 1) % mIndexCapacity;
+			mIndexCount--;
+			mStats.evicted++;
+		} else {
+			break;
+		}
+	}
+}
+
+/**
+ * index_mutex should be held
+ * @return NULL if the frame is not in the index
+ */
+const TimeShiftBuffer::index_entry_t *TimeShiftBuffer::find_locked(const int64_t id) const {
+	const int64_t oldest_id = mNextId - mIndexCount;
+	if ((id < oldest_id) || (id >= mNextId)) {
+		return NULL;
+	}
+	return &mIndex[(mIndexHead + (uint32_t)(id - oldest_id)) % mIndexCapacity];
+}
+
+/**
+ * look for IDR slice and keep SPS/PPS, only NAL units before the first slice are checked
+ * @return TSB_FLAG_KEY_FRAME if the access unit has IDR slice
+ */
+uint16_t TimeShiftBuffer::scan_h264(const uint8_t *data, const size_t bytes) {
+	const uint8_t *nal = NULL;
+	int nal_type = 0;
+	uint16_t flags = 0;
+	for (size_t i = 0; ; ) {
+		size_t sc = i;
+		for ( ; (sc + 3 <= bytes) && !(!data[sc] && !data[sc + 1] && (data[sc + 2] == 1)); sc++) {}
+		const bool found = sc + 3 <= bytes;
+		if (nal && ((nal_type == H264_NAL_SPS) || (nal_type == H264_NAL_PPS))) {
+			// previous NAL unit ends here, trailing zero belongs to 4 bytes start code
+			const uint8_t *end = found ? data + sc : data + bytes;
+			if (found && (end > nal) && !end[-1]) end--;
+			const size_t nal_bytes = end - nal;
+			if (nal_bytes + 4 <= TSB_MAX_CONFIG_BYTES) {
+				uint8_t *dst = nal_type == H264_NAL_SPS ? mSps : mPps;
+				pthread_mutex_lock(&index_mutex);
+				{
+					dst[0] = dst[1] = dst[2] = 0;
+					dst[3] = 1;
+					memcpy(dst + 4, nal, nal_bytes);
+					(nal_type == H264_NAL_SPS ? mSpsBytes : mPpsBytes) = nal_bytes + 4;
+				}
+				pthread_mutex_unlock(&index_mutex);
+			}
+		}
+		if (!found || (sc + 3 >= bytes)) break;
+		i = sc + 3;
+		nal = data + i;
+		nal_type = nal[0] & 0x1f;
+		if (nal_type == H264_NAL_IDR) {
+			flags |= TSB_FLAG_KEY_FRAME;
+		}
+		if ((nal_type == H264_NAL_SLICE) || (nal_type == H264_NAL_IDR)) {
+			// slice data is the bulk of the access unit and SPS/PPS never follow it
+			break;
+		}
+	}
+	return flags;
+}
+
+/**
+ * copy a frame into the ring, this never blocks on readers nor on storage.
+ * the oldest frames are evicted when the ring is full.
+ * @param frame MJPEG or H.264 frame as the camera sent it
+ * @return 0 if the frame was written
+ */
+int TimeShiftBuffer::write(const uvc_frame_t *frame) {
+	if (UNLIKELY(!mMap || !frame)) {
+		return UVC_ERROR_INVALID_MODE;
+	}
+	const uint64_t start = now_ns();
+	if (UNLIKELY((frame->frame_format != UVC_FRAME_FORMAT_MJPEG) && (frame->frame_format != UVC_FRAME_FORMAT_H264))) {
+		mStats.unsupported++;
+		return UVC_ERROR_NOT_SUPPORTED;
+	}
+	const size_t bytes = frame->actual_bytes;
+	const uint64_t rec_bytes = record_bytes(bytes);
+	if (UNLIKELY(!bytes || (rec_bytes > mCapacity / 2))) {
+		mStats.too_large++;
+		return UVC_ERROR_NO_MEM;
+	}
+	const uint16_t flags = frame->frame_format == UVC_FRAME_FORMAT_MJPEG
+		? TSB_FLAG_KEY_FRAME : scan_h264((const uint8_t *)frame->data, bytes);
+	uint64_t pos = mWritePos;
+	uint64_t offset = pos % mCapacity;
+	const uint64_t wrap_offset = offset;
+	const bool wrap = offset + rec_bytes > mCapacity;
+	if (wrap) {
+		// records never wrap, rest of the ring is skipped
+		pos += mCapacity - offset;
+		offset = 0;
+		mStats.wraps++;
+	}
+	const uint64_t end = pos + rec_bytes;
+	pthread_mutex_lock(&index_mutex);
+	{
+		evict_locked(end, frame->capture_time_ns);
+		// readers that copied from this range see this after their copy and discard what they copied
+		__atomic_store_n(&mReserved, end, __ATOMIC_RELAXED);
+		__atomic_thread_fence(__ATOMIC_SEQ_CST);
+	}
+	pthread_mutex_unlock(&index_mutex);
+
+	if (wrap) {
+		*(uint32_t *)(mRing + wrap_offset) = TSB_WRAP_MAGIC;
+	}
+	tsb_record_t *record = (tsb_record_t *)(mRing + offset);
+	record->magic = TSB_RECORD_MAGIC;
+	record->bytes = (uint32_t)bytes;
+	record->pts_ns = frame->capture_time_ns;
+	record->id = mNextId;
+	record->sequence = frame->sequence;
+	record->flags = flags;
+	record->format = (uint16_t)frame->frame_format;
+	record->width = (uint16_t)frame->width;
+	record->height = (uint16_t)frame->height;
+	record->reserved = 0;
+	memcpy(record + 1, frame->data, bytes);
+
+	pthread_mutex_lock(&index_mutex);
+	{
+		index_entry_t &entry = mIndex[(mIndexHead + mIndexCount) % mIndexCapacity];
+		entry.pos = pos;
+		entry.pts_ns = frame->capture_time_ns;
+		entry.sequence = frame->sequence;
+		entry.bytes = (uint32_t)bytes;
+		entry.flags = flags;
+		entry.format = (uint16_t)frame->frame_format;
+		entry.width = (uint16_t)frame->width;
+		entry.height = (uint16_t)frame->height;
+		mIndexCount++;
+		mNextId++;
+		mWritePos = end;
+	}
+	pthread_mutex_unlock(&index_mutex);
+	((tsb_file_header_t *)mMap)->write_pos = end;
+
+	mStats.frames++;
+	mStats.bytes += bytes;
+	const uint64_t elapsed = now_ns() - start;
+	mStats.write_ns += elapsed;
+	if (elapsed > mStats.max_write_ns) mStats.max_write_ns = elapsed;
+	return 0;
+}
+
+void TimeShiftBuffer::getRange(tsb_range_t &range) {
+	memset(&range, 0, sizeof(range));
+	range.oldest_id = range.newest_id = -1;
+	pthread_mutex_lock(&index_mutex);
+	if (mIndexCount) {
+		const index_entry_t &oldest = mIndex[mIndexHead];
+		const index_entry_t &newest = mIndex[(mIndexHead + mIndexCount - 1) % mIndexCapacity];
+		range.oldest_id = mNextId - mIndexCount;
+		range.newest_id = mNextId - 1;
+		range.oldest_pts_ns = oldest.pts_ns;
+		range.newest_pts_ns = newest.pts_ns;
+		range.frames = mIndexCount;
+		range.used_bytes = mWritePos - oldest.pos;
+	}
+	range.capacity_bytes = mCapacity;
+	pthread_mutex_unlock(&index_mutex);
+}
+
+/**
+ * find the last frame that was captured at or before pts_ns,
+ * the oldest frame is returned if pts_ns is older than all frames
+ * @param key_frame find the key frame that decoding can start from instead,
+ * 			the first key frame after pts_ns is returned if there is no key frame before it
+ * @return id of the frame, -1 if not found
+ */
+int64_t TimeShiftBuffer::seek(const int64_t pts_ns, const bool key_frame) {
+	int64_t result = -1;
+	pthread_mutex_lock(&index_mutex);
+	if (mIndexCount) {
+		// capture time increases with id, find the last entry that is not newer than pts_ns
+		uint32_t lo = 0, hi = mIndexCount;
+		for ( ; lo < hi ; ) {
+			const uint32_t mid = (lo + hi) / 2;
+			if (mIndex[(mIndexHead + mid) % mIndexCapacity].pts_ns <= pts_ns) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int32_t ix = lo ? lo - 1 : 0;
+		if (key_frame) {
+			int32_t i = ix;
+			for ( ; (i >= 0) && !(mIndex[(mIndexHead + i) % mIndexCapacity].flags & TSB_FLAG_KEY_FRAME); i--) {}
+			if (i < 0) {
+				for (i = ix + 1; ((uint32_t)i < mIndexCount)
+					&& !(mIndex[(mIndexHead + i) % mIndexCapacity].flags & TSB_FLAG_KEY_FRAME); i++) {}
+				if ((uint32_t)i >= mIndexCount) i = -1;
+			}
+			ix = i;
+		}
+		if (ix >= 0) {
+			result = mNextId - mIndexCount + ix;
+		}
+	}
+	pthread_mutex_unlock(&index_mutex);
+	return result;
+}
+
+/**
+ * copy the payload of the record, readers do not hold any lock while copying,
+ * the data is valid only if the writer did not reserve the range meanwhile
+ */
+int TimeShiftBuffer::read_entry(const index_entry_t &entry, uint8_t *buf, const size_t capacity) {
+	if (UNLIKELY(capacity < entry.bytes)) {
+		return TSB_ERROR_NO_SPACE;
+	}
+	memcpy(buf, mRing + (entry.pos % mCapacity) + sizeof(tsb_record_t), entry.bytes);
+	__atomic_thread_fence(__ATOMIC_ACQUIRE);
+	const uint64_t reserved = __atomic_load_n(&mReserved, __ATOMIC_RELAXED);
+	if (UNLIKELY(reserved > entry.pos + mCapacity)) {
+		__atomic_fetch_add(&mStats.read_overwritten, 1, __ATOMIC_RELAXED);
+		return TSB_ERROR_OVERWRITTEN;
+	}
+	__atomic_fetch_add(&mStats.reads, 1, __ATOMIC_RELAXED);
+	return (int)entry.bytes;
+}
+
+/**
+ * copy a frame out of the ring
+ * @param info the frame info is set even if the buffer was too small
+ * @return bytes of the frame or TSB_ERROR_XXX
+ */
+int TimeShiftBuffer::read(const int64_t id, uint8_t *buf, const size_t capacity, tsb_frame_info_t &info) {
+	index_entry_t entry;
+	pthread_mutex_lock(&index_mutex);
+	const index_entry_t *found = mMap ? find_locked(id) : NULL;
+	if (found) {
+		entry = *found;
+	}
+	pthread_mutex_unlock(&index_mutex);
+	if (!found) {
+		return TSB_ERROR_NOT_FOUND;
+	}
+	info.id = id;
+	info.pts_ns = entry.pts_ns;
+	info.sequence = entry.sequence;
+	info.bytes = entry.bytes;
+	info.flags = entry.flags;
+	info.format = entry.format;
+	info.width = entry.width;
+	info.height = entry.height;
+	return buf ? read_entry(entry, buf, capacity) : TSB_ERROR_NO_SPACE;
+}
+
+/**
+ * write frames that were captured between start_pts_ns and end_pts_ns into a file as elementary stream,
+ * concatenated JPEGs for MJPEG or Annex B byte stream that starts with SPS/PPS and a key frame for H.264.
+ * only frames that are in the buffer when this is called are written, this can run while writing.
+ * if the writer catches up with this, export skips to the next key frame that is still in the buffer.
+ * @return number of frames that were written, negative value if failed
+ */
+int TimeShiftBuffer::exportTo(const char *path, const int64_t start_pts_ns, const int64_t end_pts_ns) {
+	ENTER();
+
+	if (UNLIKELY(!mMap || !path)) {
+		RETURN(UVC_ERROR_INVALID_MODE, int);
+	}
+	int64_t id = seek(start_pts_ns, true);
+	tsb_range_t range;
+	getRange(range);
+	if (UNLIKELY(id < 0)) {
+		RETURN(TSB_ERROR_NOT_FOUND, int);
+	}
+	const int fd = ::open(path, O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0644);
+	if (UNLIKELY(fd < 0)) {
+		LOGE("failed to open %s:errno=%d", path, errno);
+		RETURN(UVC_ERROR_ACCESS, int);
+	}
+	size_t buf_bytes = 512 * 1024;
+	uint8_t *buf = (uint8_t *)malloc(buf_bytes);
+	int result = 0, frames = 0;
+	bool need_config = true;
+	tsb_frame_info_t info;
+	for ( ; buf && (id <= range.newest_id) && !result ; ) {
+		int bytes = read(id, buf, buf_bytes, info);
+		if (bytes == TSB_ERROR_NO_SPACE) {
+			uint8_t *new_buf = (uint8_t *)realloc(buf, info.bytes);
+			if (UNLIKELY(!new_buf)) {
+				result = UVC_ERROR_NO_MEM;
+				break;
+			}
+			buf = new_buf;
+			buf_bytes = info.bytes;
+			continue;
+		}
+		if (UNLIKELY(bytes < 0)) {
+			// the writer evicted/overwrote the frame, continue from the oldest key frame
+			const int64_t next = seek(0, true);
+			if ((next < 0) || (next <= id)) break;
+			id = next;
+			continue;
+		}
+		if (info.pts_ns > end_pts_ns) break;
+		if ((info.format == UVC_FRAME_FORMAT_H264) && need_config) {
+			uint8_t config[TSB_MAX_CONFIG_BYTES * 2];
+			size_t config_bytes = 0;
+			pthread_mutex_lock(&index_mutex);
+			{
+				memcpy(config, mSps, mSpsBytes);
+				memcpy(config + mSpsBytes, mPps, mPpsBytes);
+				config_bytes = mSpsBytes + mPpsBytes;
+			}
+			pthread_mutex_unlock(&index_mutex);
+			result = write_fully(fd, config, config_bytes);
+		}
+		need_config = false;
+		if (LIKELY(!result)) {
+			result = write_fully(fd, buf, bytes);
+		}
+		if (LIKELY(!result)) {
+			frames++;
+		}
+		id++;
+	}
+	if (UNLIKELY(!buf)) {
+		result = UVC_ERROR_NO_MEM;
+	}
+	free(buf);
+	if (UNLIKELY(::close(fd) && !result)) {
+		result = -errno;
+	}
+	if (UNLIKELY(result)) {
+		LOGE("export failed:%d", result);
+		RETURN(UVC_ERROR_IO, int);
+	}
+
+	RETURN(frames, int);
+}
+
+/**
+ * remove all frames from the index, frames that are written after this are kept as usual
+ */
+void TimeShiftBuffer::clear() {
+	pthread_mutex_lock(&index_mutex);
+	{
+		mStats.evicted += mIndexCount;
+		mIndexHead = mIndexCount = 0;
+	}
+	pthread_mutex_unlock(&index_mutex);
+}
+
+void TimeShiftBuffer::getStats(tsb_stats_t &stats) {
+	pthread_mutex_lock(&index_mutex);
+	stats = mStats;
+	pthread_mutex_unlock(&index_mutex);
+}
@@ -0,0 +1,141 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: TimeShiftBuffer.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef TIMESHIFTBUFFER_H_
+#define TIMESHIFTBUFFER_H_
+
+#include "libUVCCamera.h"
+#include <pthread.h>
+
+#pragma interface
+
+#define TSB_HEADER_BYTES 4096				// file header, data region starts after this
+#define TSB_RECORD_ALIGN 32
+#define TSB_MIN_FRAME_BYTES 4096			// used to size the index, smaller frames shrink the time span
+#define TSB_MAX_CONFIG_BYTES 256			// max size of SPS/PPS that are kept for H.264
+
+#define TSB_FLAG_KEY_FRAME 0x0001
+
+#define TSB_ERROR_NOT_FOUND -1		// the frame was never written or already evicted
+#define TSB_ERROR_OVERWRITTEN -2	// the writer overwrote the frame while it was being read
+#define TSB_ERROR_NO_SPACE -3		// the buffer of the caller is too small, info.bytes has the size
+
+// counters of TimeShiftBuffer, writer side fields are written only from the thread that calls #write
+typedef struct tsb_stats {
+	uint32_t frames;			// frames that were written
+	uint32_t too_large;			// frames dropped because they are larger than half of the ring
+	uint32_t unsupported;		// frames dropped because they are not MJPEG/H.264
+	uint32_t evicted;			// frames removed from the index because they were overwritten or too old
+	uint32_t wraps;				// number of times the writer wrapped to the top of the ring
+	uint64_t bytes;				// payload bytes that were written
+	uint64_t write_ns;			// sum of time spent in #write
+	uint64_t max_write_ns;
+	uint32_t reads;				// frames that were read(#read, #exportTo)
+	uint32_t read_overwritten;	// reads that failed because the writer caught up with them
+} tsb_stats_t;
+
+typedef struct tsb_range {
+	int64_t oldest_id;			// -1 if empty
+	int64_t newest_id;
+	int64_t oldest_pts_ns;
+	int64_t newest_pts_ns;
+	uint32_t frames;
+	uint64_t used_bytes;		// bytes of the ring that the frames in the index are using
+	uint64_t capacity_bytes;
+} tsb_range_t;
+
+typedef struct tsb_frame_info {
+	int64_t id;
+	int64_t pts_ns;				// capture time in CLOCK_MONOTONIC
+	uint32_t sequence;			// sequence number of the frame from libuvc
+	uint32_t bytes;
+	uint16_t flags;
+	uint16_t format;			// uvc_frame_format
+	uint16_t width, height;
+} tsb_frame_info_t;
+
+/**
+ * time-shift buffer that keeps last N seconds of compressed frames(MJPEG or H.264) in a fixed size
+ * ring file that is mapped into memory, so that recent frames can be replayed or saved on a trigger
+ * e.g. instant replay or evidence capture, without recording all the time.
+ * #write copies a frame into the mapped ring on the calling thread, there is no I/O on that thread and
+ * the kernel writes dirty pages back in background. the file is allocated on #open so that
+ * writing never allocates blocks of the file system.
+ * frames are found with a small in-memory index by id(monotonic counter) or capture time.
+ * readers copy frames out without holding any lock while the writer is running,
+ * they only detect and report a frame that the writer overwrote meanwhile, so reading never slows down writing.
+ * #write must be called from one thread at a time, #read/#seek/#exportTo can be called from any thread.
+ */
+class TimeShiftBuffer {
+private:
+	typedef struct index_entry {
+		uint64_t pos;				// position of the record in the ring(not wrapped)
+		int64_t pts_ns;
+		uint32_t sequence;
+		uint32_t bytes;				// payload bytes
+		uint16_t flags;
+		uint16_t format;
+		uint16_t width, height;
+	} index_entry_t;
+
+	int mFd;
+	uint8_t *mMap;				// header + ring
+	uint8_t *mRing;
+	uint64_t mCapacity;			// bytes of the ring
+	int64_t mMaxDurationNs;		// frames older than newest frame by this are evicted, 0 to use whole ring
+	uint64_t mWritePos;			// end of the last record, only written by #write
+	uint64_t mReserved;			// end of the record that is being written, readers check this after copying
+	pthread_mutex_t index_mutex;	// guards index, never held while copying frame data
+	index_entry_t *mIndex;
+	uint32_t mIndexCapacity;
+	uint32_t mIndexHead;		// oldest entry
+	uint32_t mIndexCount;
+	int64_t mNextId;			// id of next frame, id of oldest entry is mNextId - mIndexCount
+	uint8_t mSps[TSB_MAX_CONFIG_BYTES];	// latest SPS/PPS with start code, guarded by index_mutex
+	size_t mSpsBytes;
+	uint8_t mPps[TSB_MAX_CONFIG_BYTES];
+	size_t mPpsBytes;
+	tsb_stats_t mStats;
+
+	void evict_locked(const uint64_t end, const int64_t pts_ns);
+	const index_entry_t *find_locked(const int64_t id) const;
+	uint16_t scan_h264(const uint8_t *data, const size_t bytes);
+	int read_entry(const index_entry_t &entry, uint8_t *buf, const size_t capacity);
+public:
+	TimeShiftBuffer();
+	~TimeShiftBuffer();
+
+	int open(const char *path, const uint64_t capacity_bytes, const int64_t max_duration_ns);
+	int close();
+	inline const bool isOpened() const { return mMap != NULL; };
+	int write(const uvc_frame_t *frame);
+	void getRange(tsb_range_t &range);
+	int64_t seek(const int64_t pts_ns, const bool key_frame);
+	int read(const int64_t id, uint8_t *buf, const size_t capacity, tsb_frame_info_t &info);
+	int exportTo(const char *path, const int64_t start_pts_ns, const int64_t end_pts_ns);
+	void clear();
+	void getStats(tsb_stats_t &stats);
+};
+
+#endif /* TIMESHIFTBUFFER_H_ */
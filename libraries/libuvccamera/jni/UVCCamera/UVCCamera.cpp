@@ -64,7 +64,8 @@ UVCCamera::UVCCamera()
 	mButtonCallback(NULL),
 	mPreview(NULL),
 	mCtrlSupports(0),
-	mPUSupports(0) {
+	mPUSupports(0),
+	mNumTransferBufs(0) {
 
 	ENTER();
 	clearCameraParams();
@@ -164,6 +165,7 @@ int UVCCamera::connect(int vid, int pid, int fd, int busnum, int devaddr, const
 				uvc_print_diag(mDeviceHandle, stderr);
 #endif
 				mFd = fd;
+				uvc_set_num_transfer_bufs(mDeviceHandle, mNumTransferBufs);
 				mStatusCallback = new UVCStatusCallback(mDeviceHandle);
 				mButtonCallback = new UVCButtonCallback(mDeviceHandle);
 				mPreview = new UVCPreview(mDeviceHandle);
@@ -264,11 +266,193 @@ int UVCCamera::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(result, int);
 }
 
-int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+int UVCCamera::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int num_buffers) {
 	ENTER();
 	int result = EXIT_FAILURE;
 	if (mPreview) {
-		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format);
+		result = mPreview->setFrameCallback(env, frame_callback_obj, pixel_format, num_buffers);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::releaseFrame(int slot) {
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->releaseFrame(slot);
+	}
+	return result;
+}
+
+int UVCCamera::setHeadless(bool headless) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setHeadless(headless);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setTargetFps(float fps) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setTargetFps(fps);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setQueuePolicy(int queue, int policy, int depth, int timeout_ms) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setQueuePolicy(queue, policy, depth, timeout_ms);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setH264Callback(JNIEnv *env, jobject h264_callback_obj) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setH264Callback(env, h264_callback_obj);
+	} else if (h264_callback_obj) {
+		env->DeleteGlobalRef(h264_callback_obj);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::startRecording(const char *path) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->startRecording(path);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::stopRecording() {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->stopRecording();
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setPipeline(IPipeline *pipeline) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setPipeline(pipeline);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setRawPipeline(IPipeline *pipeline) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setRawPipeline(pipeline);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setStreamCtrlCache(const void *data, size_t bytes) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setStreamCtrlCache(data, bytes);
+	}
+	RETURN(result, int);
+}
+
+size_t UVCCamera::getStreamCtrlCache(void *data, size_t bytes) {
+	ENTER();
+	size_t result = 0;
+	if (mPreview) {
+		result = mPreview->getStreamCtrlCache(data, bytes);
+	}
+	RETURN(result, size_t);
+}
+
+int UVCCamera::setOutputSize(int width, int height) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setOutputSize(width, height);
+	}
+	RETURN(result, int);
+}
+
+int UVCCamera::setCropRect(int x, int y, int width, int height) {
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setCropRect(x, y, width, height);
+	}
+	return result;
+}
+
+int UVCCamera::setDecodeThreads(int num_threads) {
+	ENTER();
+	int result = EXIT_FAILURE;
+	if (mPreview) {
+		result = mPreview->setDecodeThreads(num_threads);
+	}
+	RETURN(result, int);
+}
+
+char *UVCCamera::getDecodeStats() {
+	ENTER();
+	if (mPreview) {
+		RETURN(mPreview->getDecodeStats(), char *);
+	}
+	RETURN(NULL, char *);
+}
+
+char *UVCCamera::getCallbackStats() {
+	ENTER();
+	if (mPreview) {
+		RETURN(mPreview->getCallbackStats(), char *);
+	}
+	RETURN(NULL, char *);
+}
+
+char *UVCCamera::getCaptureStats() {
+	ENTER();
+	if (mPreview) {
+		RETURN(mPreview->getCaptureStats(), char *);
+	}
+	RETURN(NULL, char *);
+}
+
+/**
+ * set the number of USB transfer buffers, takes effect on next startPreview
+ * more buffers tolerate longer scheduling delay but each of them uses dwMaxPayloadTransferSize
+ * or a full isochronous transfer worth of memory
+ * @param num_buffers [1, LIBUVC_MAX_TRANSFER_BUFS], 0 to use the default
+ */
+int UVCCamera::setNumTransferBuffers(int num_buffers) {
+	ENTER();
+	if (UNLIKELY((num_buffers < 0) || (num_buffers > LIBUVC_MAX_TRANSFER_BUFS))) {
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	mNumTransferBufs = num_buffers;
+	int result = 0;
+	if (mDeviceHandle) {
+		result = uvc_set_num_transfer_bufs(mDeviceHandle, num_buffers);
+	}
+	RETURN(result, int);
+}
+
+/**
+ * release cached native memory, see UVCPreview::trimMemory
+ * @return freed kB
+ */
+int UVCCamera::trimMemory(int level) {
+	ENTER();
+	int result = 0;
+	if (mPreview) {
+		result = mPreview->trimMemory(level);
 	}
 	RETURN(result, int);
 }
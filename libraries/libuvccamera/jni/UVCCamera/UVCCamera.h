@@ -119,6 +119,7 @@ class UVCCamera {
 	UVCPreview *mPreview;
 	uint64_t mCtrlSupports;
 	uint64_t mPUSupports;
+	int mNumTransferBufs;	// number of USB transfer buffers, 0 means library default
 	control_value_t mScanningMode;
 	control_value_t mExposureMode;
 	control_value_t mExposurePriority;
@@ -190,7 +191,26 @@ public:
 	char *getSupportedSize();
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = DEFAULT_BANDWIDTH);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int num_buffers = 0);
+	int releaseFrame(int slot);
+	int setDecodeThreads(int num_threads);
+	int setHeadless(bool headless);
+	int setTargetFps(float fps);
+	int setQueuePolicy(int queue, int policy, int depth, int timeout_ms);
+	int setH264Callback(JNIEnv *env, jobject h264_callback_obj);
+	int startRecording(const char *path);
+	int stopRecording();
+	int setPipeline(IPipeline *pipeline);
+	int setRawPipeline(IPipeline *pipeline);
+	int setStreamCtrlCache(const void *data, size_t bytes);
+	size_t getStreamCtrlCache(void *data, size_t bytes);
+	int setOutputSize(int width, int height);
+	int setCropRect(int x, int y, int width, int height);
+	char *getDecodeStats();
+	char *getCallbackStats();
+	char *getCaptureStats();
+	int setNumTransferBuffers(int num_buffers);
+	int trimMemory(int level);
 	int startPreview();
 	int stopPreview();
 	int setCaptureDisplay(ANativeWindow *capture_window);
@@ -39,12 +39,59 @@
 
 #include "utilbase.h"
 #include "UVCPreview.h"
+#include "pipeline/IPipeline.h"
 #include "libuvc_internal.h"
+#include "rapidjson/rapidjson.h"
+#include "rapidjson/stringbuffer.h"
+#include "rapidjson/writer.h"
+
+using namespace rapidjson;
 
 #define	LOCAL_DEBUG 0
 #define MAX_FRAME 4
 #define PREVIEW_PIXEL_BYTES 4	// RGBA/RGBX
-#define FRAME_POOL_SZ MAX_FRAME + 2
+#define FRAME_POOL_SZ MAX_FRAME + 2	// max frames for each size in the frame pool
+#define TRIM_MEMORY_COMPLETE 80		// ComponentCallbacks2#TRIM_MEMORY_COMPLETE
+#define MJPEG_MIN_FRAME_BYTES 256	// SOI, DQT, SOF, SOS and EOI without image data are about 200 bytes
+
+/**
+ * frame format to negotiate with the camera for UVCCamera#FRAME_FORMAT_XXX
+ */
+static inline uvc_frame_format frame_format_for_mode(const int mode) {
+	switch (mode) {
+	case FRAME_FORMAT_YUYV:
+		return UVC_FRAME_FORMAT_YUYV;
+	case FRAME_FORMAT_H264:
+		return UVC_FRAME_FORMAT_H264;
+	default:
+		return UVC_FRAME_FORMAT_MJPEG;
+	}
+}
+
+/**
+ * put the frame into the queue following its policy, producer side only
+ * @param blocked incremented if the frame had to wait for space
+ * @param running false while stopping, the frame is dropped instead of waiting for space
+ * @return the frame that was dropped(obj itself or the oldest one in the queue) or NULL, the caller owns it
+ */
+template <class T>
+static T offer_frame(SpscQueue<T> &queue, const queue_policy_t &policy, T obj, uint32_t &blocked, const bool running) {
+	switch (policy.policy) {
+	case QUEUE_DROP_OLDEST:
+		return queue.replace(obj);
+	case QUEUE_BLOCK:
+		if (queue.put(obj)) {
+			return NULL;
+		}
+		if (UNLIKELY(!running)) {
+			return obj;
+		}
+		blocked++;
+		return queue.put(obj, policy.timeout_ns) ? NULL : obj;
+	default:
+		return queue.put(obj) ? NULL : obj;
+	}
+}
 
 UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 :	mPreviewWindow(NULL),
@@ -60,23 +107,74 @@ UVCPreview::UVCPreview(uvc_device_handle_t *devh)
 	frameHeight(DEFAULT_PREVIEW_HEIGHT),
 	frameBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * 2),	// YUYV
 	frameMode(0),
+	requestOutputWidth(0),
+	requestOutputHeight(0),
+	mDecodeScale(1),
+	outputWidth(DEFAULT_PREVIEW_WIDTH),
+	outputHeight(DEFAULT_PREVIEW_HEIGHT),
 	previewBytes(DEFAULT_PREVIEW_WIDTH * DEFAULT_PREVIEW_HEIGHT * PREVIEW_PIXEL_BYTES),
 	previewFormat(WINDOW_FORMAT_RGBA_8888),
+	mDecoder(NULL),
+	mDecodeFormat(UVC_FRAME_FORMAT_YUYV),
+	mDecodeThreads(1),
+	mDecoderPool(NULL),
+	mFramePool(NULL),
+	mRawPrewarmed(false),
 	mIsRunning(false),
 	mIsCapturing(false),
-	captureQueu(NULL),
-	mFrameCallbackObj(NULL),
-	mFrameCallbackFunc(NULL),
-	callbackPixelBytes(2) {
+	previewFrames(MAX_FRAME, MAX_QUEUE_DEPTH),
+	captureQueue(1, MAX_QUEUE_DEPTH),
+	mHasCallbackThread(false),
+	callbackQueue(1, MAX_QUEUE_DEPTH),
+	mFrameCallback(NULL),
+	mHeadless(false),
+	mTargetFps(0.0f),
+	mSourceIntervalNs(0),
+	mPacerIntervalNs(0),
+	mPacerDueNs(0),
+	mSeenEof(false),
+	mH264CallbackObj(NULL),
+	mOnSpsPps(NULL),
+	mOnAccessUnit(NULL),
+	mH264CallbackChanged(false),
+	mH264Sequence(0),
+	mRecorder(NULL),
+	mHasCtrlCache(false),
+	mCtrlFromCache(false),
+	mPipeline(NULL),
+	mRawPipeline(NULL) {
 
 	ENTER();
-	pthread_cond_init(&preview_sync, NULL);
+	memset(&mDecodeStats, 0, sizeof(mDecodeStats));
+	memset(&mCallbackStats, 0, sizeof(mCallbackStats));
+	memset(&mCaptureStats, 0, sizeof(mCaptureStats));
+	memset(&mCropRect, 0, sizeof(mCropRect));
+	mPreviewCropped = false;
+	memset(&mRecordStats, 0, sizeof(mRecordStats));
+	memset(&mCtrlCache, 0, sizeof(mCtrlCache));
+	memset(&mCtrlCacheStats, 0, sizeof(mCtrlCacheStats));
+	// raw frames wait in order for decoding, decoded frames keep only latest one
+	mQueuePolicy[QUEUE_PREVIEW].policy = QUEUE_DROP_NEWEST;
+	mQueuePolicy[QUEUE_PREVIEW].depth = MAX_FRAME;
+	mQueuePolicy[QUEUE_CAPTURE].policy = QUEUE_DROP_OLDEST;
+	mQueuePolicy[QUEUE_CAPTURE].depth = 1;
+	mQueuePolicy[QUEUE_CALLBACK].policy = QUEUE_DROP_OLDEST;
+	mQueuePolicy[QUEUE_CALLBACK].depth = 1;
+	for (int i = 0; i < QUEUE_NUM; i++) {
+		mQueuePolicy[i].timeout_ns = 0;
+	}
+	// create here so that stopPreview can wake up preview thread without checking existence
+	mDecoderPool = new MJPEGDecoderPool(this);
+	mFramePool = new FramePool(FRAME_POOL_SZ);
 	pthread_mutex_init(&preview_mutex, NULL);
+	pthread_mutex_init(&crop_mutex, NULL);
 //
 	pthread_cond_init(&capture_sync, NULL);
 	pthread_mutex_init(&capture_mutex, NULL);
-//	
-	pthread_mutex_init(&pool_mutex, NULL);
+	pthread_mutex_init(&callback_mutex, NULL);
+	pthread_mutex_init(&recorder_mutex, NULL);
+	pthread_mutex_init(&pipeline_mutex, NULL);
+	pthread_mutex_init(&raw_pipeline_mutex, NULL);
 	EXIT();
 }
 
@@ -91,80 +189,124 @@ UVCPreview::~UVCPreview() {
 	mCaptureWindow = NULL;
 	clearPreviewFrame();
 	clearCaptureFrame();
-	clear_pool();
+	clearCallbackFrame();
+	stopRecording();
+	if (mFrameCallback) {
+		mFrameCallback->unref(getEnv());
+		mFrameCallback = NULL;
+	}
+	if (mH264CallbackObj) {
+		getEnv()->DeleteGlobalRef(mH264CallbackObj);
+		mH264CallbackObj = NULL;
+	}
+	SAFE_DELETE(mDecoderPool);
+	// frames that pipeline stages still hold keep the pool until they are released
+	mFramePool->release();
+	mFramePool = NULL;
+	if (mDecoder) {
+		uvc_mjpeg_decoder_destroy(mDecoder);
+		mDecoder = NULL;
+	}
 	pthread_mutex_destroy(&preview_mutex);
-	pthread_cond_destroy(&preview_sync);
+	pthread_mutex_destroy(&crop_mutex);
 	pthread_mutex_destroy(&capture_mutex);
 	pthread_cond_destroy(&capture_sync);
-	pthread_mutex_destroy(&pool_mutex);
+	pthread_mutex_destroy(&callback_mutex);
+	pthread_mutex_destroy(&recorder_mutex);
+	pthread_mutex_destroy(&pipeline_mutex);
+	pthread_mutex_destroy(&raw_pipeline_mutex);
 	EXIT();
 }
 
 /**
- * get uvc_frame_t from frame pool
- * if pool is empty, create new frame
- * this function does not confirm the frame size
- * and you may need to confirm the size
+ * get uvc_frame_t that has data_bytes from frame pool
+ * if the bucket for the size is empty, create new frame
  */
 uvc_frame_t *UVCPreview::get_frame(size_t data_bytes) {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&pool_mutex);
-	{
-		if (!mFramePool.isEmpty()) {
-			frame = mFramePool.last();
-		}
-	}
-	pthread_mutex_unlock(&pool_mutex);
-	if UNLIKELY(!frame) {
-		LOGW("allocate new frame");
-		frame = uvc_allocate_frame(data_bytes);
+	uvc_frame_t *frame = mFramePool->obtain(data_bytes);
+	if (UNLIKELY(!frame)) {
+		__atomic_add_fetch(&mCaptureStats.alloc_failed, 1, __ATOMIC_RELAXED);
 	}
 	return frame;
 }
 
 void UVCPreview::recycle_frame(uvc_frame_t *frame) {
-	pthread_mutex_lock(&pool_mutex);
-	if (LIKELY(mFramePool.size() < FRAME_POOL_SZ)) {
-		mFramePool.put(frame);
-		frame = NULL;
-	}
-	pthread_mutex_unlock(&pool_mutex);
-	if (UNLIKELY(frame)) {
-		uvc_free_frame(frame);
-	}
+	mFramePool->recycle(frame);
 }
 
-
-void UVCPreview::init_pool(size_t data_bytes) {
+/**
+ * allocate frames for decoded/converted frames in advance when the frame size is fixed,
+ * raw frames are prewarmed by #prewarm_raw_pool because only libuvc knows their buffer size
+ */
+void UVCPreview::prewarm_pool() {
 	ENTER();
 
-	clear_pool();
-	pthread_mutex_lock(&pool_mutex);
-	{
-		for (int i = 0; i < FRAME_POOL_SZ; i++) {
-			mFramePool.put(uvc_allocate_frame(data_bytes));
+	const int in_flight = ((frameMode == FRAME_FORMAT_MJPEG) && (mDecodeThreads > 1)) ? mDecodeThreads * DECODE_QUEUE_DEPTH : 0;
+	// queues deeper than default hold more frames
+	int queued = 0;
+	if (mQueuePolicy[QUEUE_PREVIEW].depth > MAX_FRAME) {
+		queued += mQueuePolicy[QUEUE_PREVIEW].depth - MAX_FRAME;
+	}
+	queued += mQueuePolicy[QUEUE_CAPTURE].depth - 1;
+	queued += mQueuePolicy[QUEUE_CALLBACK].depth - 1;
+	// decoder threads need more frames in flight
+	mFramePool->setMaxPerBucket(FRAME_POOL_SZ + in_flight * 2 + queued);
+	mFramePool->resetStats();
+	mRawPrewarmed = false;
+	if (frameMode == FRAME_FORMAT_H264) {
+		// H.264 is passed through, only raw frames are used
+		EXIT();
+	}
+	if (frameMode == FRAME_FORMAT_MJPEG) {
+		// preview thread, capture queue and capture thread hold one frame each
+		switch (mDecodeFormat) {
+		case UVC_FRAME_FORMAT_NV12:
+		case UVC_FRAME_FORMAT_I420:
+		case UVC_FRAME_FORMAT_NV21:
+			mFramePool->prewarm((outputWidth * outputHeight * 3) / 2, 3 + in_flight);
+			break;
+		default:
+			mFramePool->prewarm(outputWidth * outputHeight * 2, 3 + in_flight);
+			break;
 		}
 	}
-	pthread_mutex_unlock(&pool_mutex);
+	// RGBX frame for preview window and capture window
+	mFramePool->prewarm(previewBytes, 2);
 
 	EXIT();
 }
 
-void UVCPreview::clear_pool() {
+/**
+ * allocate raw frames in advance, called with the first request from libuvc
+ */
+void UVCPreview::prewarm_raw_pool(size_t data_bytes) {
 	ENTER();
 
-	pthread_mutex_lock(&pool_mutex);
-	{
-		const int n = mFramePool.size();
-		for (int i = 0; i < n; i++) {
-			uvc_free_frame(mFramePool[i]);
-		}
-		mFramePool.clear();
+	if (!mRawPrewarmed) {
+		mRawPrewarmed = true;
+		mFramePool->prewarm(data_bytes, mFramePool->maxPerBucket());
 	}
-	pthread_mutex_unlock(&pool_mutex);
+
 	EXIT();
 }
 
+/**
+ * release pooled frames on memory pressure
+ * @param level same as ComponentCallbacks2#onTrimMemory,
+ * 			all pooled frames are released if the preview is not running or level is TRIM_MEMORY_COMPLETE,
+ * 			otherwise only frames that were not needed since last call are released
+ * @return freed kB
+ */
+int UVCPreview::trimMemory(int level) {
+	ENTER();
+
+	const bool all = !isRunning() || (level >= TRIM_MEMORY_COMPLETE);
+	const size_t freed = mFramePool->trim(all);
+	LOGI("trimMemory:level=%d,freed=%zu", level, freed);
+
+	RETURN((int)(freed / 1024), int);
+}
+
 inline const bool UVCPreview::isRunning() const {return mIsRunning; }
 
 int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth) {
@@ -181,7 +323,7 @@ int UVCPreview::setPreviewSize(int width, int height, int min_fps, int max_fps,
 
 		uvc_stream_ctrl_t ctrl;
 		result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, &ctrl,
-			!requestMode ? UVC_FRAME_FORMAT_YUYV : UVC_FRAME_FORMAT_MJPEG,
+			frame_format_for_mode(requestMode),
 			requestWidth, requestHeight, requestMinFps, requestMaxFps);
 	}
 	
@@ -198,7 +340,7 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
 			mPreviewWindow = preview_window;
 			if (LIKELY(mPreviewWindow)) {
 				ANativeWindow_setBuffersGeometry(mPreviewWindow,
-					frameWidth, frameHeight, previewFormat);
+					outputWidth, outputHeight, previewFormat);
 			}
 		}
 	}
@@ -206,83 +348,727 @@ int UVCPreview::setPreviewDisplay(ANativeWindow *preview_window) {
 	RETURN(0, int);
 }
 
-int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
+/**
+ * set or clear frame callback, this does not wait for the capture thread.
+ * the capture thread may still call the old callback once while/after this returns,
+ * the old one is deleted when the capture thread releases its reference.
+ * @param frame_callback_obj global ref of IFrameCallback or IPooledFrameCallback, NULL to clear
+ * @param num_buffers 0 for IFrameCallback, number of buffers that IPooledFrameCallback can hold otherwise
+ */
+int UVCPreview::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int num_buffers) {
 	
 	ENTER();
-	pthread_mutex_lock(&capture_mutex);
+	FrameCallback *callback = FrameCallback::create(env, frame_callback_obj, pixel_format, num_buffers);
+	FrameCallback *prev;
+	pthread_mutex_lock(&callback_mutex);
 	{
-		if (isRunning() && isCapturing()) {
-			mIsCapturing = false;
-			if (mFrameCallbackObj) {
-				pthread_cond_signal(&capture_sync);
-				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
-			}
+		prev = mFrameCallback;
+		mFrameCallback = callback;
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	mDecodeFormat = callback ? callback->decodeFormat() : UVC_FRAME_FORMAT_YUYV;
+	if (prev) {
+		prev->unref(env);
+	}
+	RETURN(0, int);
+}
+
+/**
+ * set or clear the first stage of the frame graph, decoded frames are passed to it
+ * in addition to the frame callback/capture surface.
+ * this waits until the preview thread finished queueing current frame into old pipeline,
+ * so the caller can release old pipeline after this returns.
+ * @param pipeline NULL to clear
+ */
+int UVCPreview::setPipeline(IPipeline *pipeline) {
+
+	ENTER();
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		mPipeline = pipeline;
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
+	RETURN(0, int);
+}
+
+/**
+ * set or clear the first stage of the frame graph that receives MJPEG/H.264 frames
+ * as the camera sent them, before decimation and decoding e.g. TimeShiftPipeline.
+ * frames are passed on libuvc callback thread, so the stage should not block.
+ * this waits until current frame was passed, the caller can release old pipeline after this returns.
+ * @param pipeline NULL to clear
+ */
+int UVCPreview::setRawPipeline(IPipeline *pipeline) {
+
+	ENTER();
+	pthread_mutex_lock(&raw_pipeline_mutex);
+	{
+		mRawPipeline = pipeline;
+	}
+	pthread_mutex_unlock(&raw_pipeline_mutex);
+	RETURN(0, int);
+}
+
+/**
+ * return the frame buffer that was passed to IPooledFrameCallback#onFrame
+ * the handle identifies its pool, so the buffers of the callback that was already replaced are released to their own pool
+ */
+int UVCPreview::releaseFrame(int slot) {
+	return CallbackBufferPool::releaseFrame(getEnv(), slot);
+}
+
+/**
+ * get current frame callback with incrementing its reference count
+ * @return NULL if frame callback is not set, the caller should call FrameCallback#unref otherwise
+ */
+FrameCallback *UVCPreview::acquireFrameCallback() {
+	FrameCallback *callback;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		callback = mFrameCallback;
+		if (callback) {
+			callback->ref();
 		}
-		if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
-			iframecallback_fields.onFrame = NULL;
-			if (mFrameCallbackObj) {
-				env->DeleteGlobalRef(mFrameCallbackObj);
-			}
-			mFrameCallbackObj = frame_callback_obj;
-			if (frame_callback_obj) {
-				// get method IDs of Java object for callback
-				jclass clazz = env->GetObjectClass(frame_callback_obj);
-				if (LIKELY(clazz)) {
-					iframecallback_fields.onFrame = env->GetMethodID(clazz,
-						"onFrame",	"(Ljava/nio/ByteBuffer;)V");
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	return callback;
+}
+
+/**
+ * set headless mode, this is applied on next startPreview
+ * in headless mode preview can start without preview window and
+ * frames are not converted to RGBX unless preview/capture window is set
+ */
+int UVCPreview::setHeadless(bool headless) {
+	ENTER();
+
+	mHeadless = headless;
+
+	RETURN(0, int);
+}
+
+/**
+ * set frame rate that frames are decimated to right after they are assembled by libuvc,
+ * this can be called while previewing and frames are not decimated if the camera is slower than this
+ * @param fps 0 to pass all frames
+ */
+int UVCPreview::setTargetFps(float fps) {
+	ENTER();
+
+	mTargetFps = fps > 0.0f ? fps : 0.0f;
+
+	RETURN(0, int);
+}
+
+/**
+ * set depth and what to do when it is full for one of the queues between native threads,
+ * this can be called while previewing. frame pool is sized for the depth on next startPreview.
+ * QUEUE_BLOCK makes the producer wait, for QUEUE_PREVIEW it is libusb callback thread
+ * and for QUEUE_CAPTURE/QUEUE_CALLBACK it is preview thread, so the timeout should be short.
+ * @param queue QUEUE_PREVIEW/QUEUE_CAPTURE/QUEUE_CALLBACK
+ * @param policy QUEUE_DROP_OLDEST/QUEUE_DROP_NEWEST/QUEUE_BLOCK
+ * @param depth max number of frames in the queue, 1..MAX_QUEUE_DEPTH
+ * @param timeout_ms max time to wait for space with QUEUE_BLOCK, 0..MAX_QUEUE_TIMEOUT_MS
+ */
+int UVCPreview::setQueuePolicy(int queue, int policy, int depth, int timeout_ms) {
+	ENTER();
+
+	if (UNLIKELY((queue < 0) || (queue >= QUEUE_NUM)
+		|| ((policy != QUEUE_DROP_OLDEST) && (policy != QUEUE_DROP_NEWEST) && (policy != QUEUE_BLOCK))
+		|| (depth < 1) || (depth > MAX_QUEUE_DEPTH)
+		|| (timeout_ms < 0) || (timeout_ms > MAX_QUEUE_TIMEOUT_MS))) {
+
+		RETURN(UVC_ERROR_INVALID_PARAM, int);
+	}
+	queue_policy_t &qp = mQueuePolicy[queue];
+	qp.policy = policy;
+	qp.depth = depth;
+	qp.timeout_ns = (int64_t)timeout_ms * 1000000LL;
+	switch (queue) {
+	case QUEUE_PREVIEW:
+		previewFrames.setLimit(depth);
+		break;
+	case QUEUE_CAPTURE:
+		captureQueue.setLimit(depth);
+		break;
+	default:
+		callbackQueue.setLimit(depth);
+		break;
+	}
+
+	RETURN(0, int);
+}
+
+/**
+ * set or clear IH264Callback that receives access units in H.264 mode(UVCCamera#FRAME_FORMAT_H264),
+ * new callback receives SPS/PPS first and access units from next IDR slice
+ * @param h264_callback_obj global ref of IH264Callback, NULL to clear, this is deleted if failed
+ */
+int UVCPreview::setH264Callback(JNIEnv *env, jobject h264_callback_obj) {
+	ENTER();
+
+	jmethodID on_sps_pps = NULL, on_access_unit = NULL;
+	if (h264_callback_obj) {
+		jclass clazz = env->GetObjectClass(h264_callback_obj);
+		if (LIKELY(clazz)) {
+			on_sps_pps = env->GetMethodID(clazz,
+				"onSpsPps", "(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)V");
+			on_access_unit = env->GetMethodID(clazz,
+				"onAccessUnit", "(Ljava/nio/ByteBuffer;JZ)V");
+			env->DeleteLocalRef(clazz);
+		} else {
+			LOGW("failed to get object class");
+		}
+		env->ExceptionClear();
+		if (!on_sps_pps || !on_access_unit) {
+			LOGE("Can't find IH264Callback#onSpsPps/onAccessUnit");
+			env->DeleteGlobalRef(h264_callback_obj);
+			RETURN(UVC_ERROR_INVALID_PARAM, int);
+		}
+	}
+	jobject prev;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		prev = mH264CallbackObj;
+		mH264CallbackObj = h264_callback_obj;
+		mOnSpsPps = on_sps_pps;
+		mOnAccessUnit = on_access_unit;
+		mH264CallbackChanged = true;
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	if (prev) {
+		// preview thread holds its own local ref while calling the previous one
+		env->DeleteGlobalRef(prev);
+	}
+
+	RETURN(0, int);
+}
+
+/**
+ * start writing MJPEG frames from the camera into AVI file without decoding,
+ * this can be called only while previewing in MJPEG mode and recording stops with the preview.
+ * frames are recorded before decimation with #setTargetFps, so the file has all frames the camera sent
+ * @param path file to create, existing file is overwritten
+ */
+int UVCPreview::startRecording(const char *path) {
+	ENTER();
+
+	if (UNLIKELY(!isRunning() || (frameMode != FRAME_FORMAT_MJPEG))) {
+		RETURN(UVC_ERROR_INVALID_MODE, int);
+	}
+	const float fps = mSourceIntervalNs > 0 ? 1000000000.0f / mSourceIntervalNs : requestMaxFps;
+	MJPEGRecorder *recorder = new MJPEGRecorder();
+	int result = recorder->start(path, frameWidth, frameHeight, fps);
+	if (LIKELY(!result)) {
+		MJPEGRecorder *prev;
+		pthread_mutex_lock(&recorder_mutex);
+		{
+			prev = mRecorder;
+			mRecorder = recorder;
+		}
+		pthread_mutex_unlock(&recorder_mutex);
+		if (prev) {
+			prev->stop();
+			prev->getStats(mRecordStats);
+			delete prev;
+		}
+	} else {
+		LOGE("failed to start recording:err=%d", result);
+		delete recorder;
+	}
+	RETURN(result, int);
+}
+
+/**
+ * stop recording that was started with #startRecording and finish the file,
+ * this blocks until all queued frames and index are written
+ * @return 0 if the file was finished successfully or not recording, UVC_ERROR_IO if any write failed
+ */
+int UVCPreview::stopRecording() {
+	ENTER();
+
+	int result = 0;
+	MJPEGRecorder *recorder;
+	pthread_mutex_lock(&recorder_mutex);
+	{
+		recorder = mRecorder;
+		mRecorder = NULL;
+	}
+	pthread_mutex_unlock(&recorder_mutex);
+	if (recorder) {
+		result = recorder->stop();
+		recorder->getStats(mRecordStats);
+		delete recorder;
+	}
+	RETURN(result, int);
+}
+
+/**
+ * set stream control that was committed on previous connection of the same device,
+ * next startPreview probes it directly instead of full negotiation when the same
+ * frame mode, size and fps range are requested, and falls back to full negotiation if the camera rejects it.
+ * @param data bytes that #getStreamCtrlCache returned, NULL to clear the cache
+ * @return 0 if the cache was set or cleared
+ */
+int UVCPreview::setStreamCtrlCache(const void *data, size_t bytes) {
+	ENTER();
+
+	int result = EXIT_SUCCESS;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		if (!data) {
+			mHasCtrlCache = false;
+		} else if ((bytes == sizeof(stream_ctrl_cache_t))
+			&& (((const stream_ctrl_cache_t *)data)->version == sizeof(stream_ctrl_cache_t))) {
+			memcpy(&mCtrlCache, data, sizeof(stream_ctrl_cache_t));
+			mHasCtrlCache = true;
+		} else {
+			LOGW("stream control cache of different version, ignored");
+			result = EXIT_FAILURE;
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	RETURN(result, int);
+}
+
+/**
+ * get stream control that was committed last time on this connection
+ * @param data buffer to copy into, NULL to get required size
+ * @return number of bytes, 0 if no stream control has been committed yet
+ */
+size_t UVCPreview::getStreamCtrlCache(void *data, size_t bytes) {
+	ENTER();
+
+	size_t result = 0;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		if (mHasCtrlCache) {
+			result = sizeof(stream_ctrl_cache_t);
+			if (data) {
+				if (bytes >= result) {
+					memcpy(data, &mCtrlCache, result);
 				} else {
-					LOGW("failed to get object class");
+					result = 0;
 				}
-				env->ExceptionClear();
-				if (!iframecallback_fields.onFrame) {
-					LOGE("Can't find IFrameCallback#onFrame");
-					env->DeleteGlobalRef(frame_callback_obj);
-					mFrameCallbackObj = frame_callback_obj = NULL;
+			}
+		}
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	RETURN(result, size_t);
+}
+
+/**
+ * set requested size of decoded frames, this is applied on next startPreview.
+ * when this is 1/2, 1/4 or 1/8 of the frame size or smaller, MJPEG frames are decoded
+ * into reduced size directly with DCT scaling of libjpeg and all later stages
+ * (preview window, capture window and frame callback) receive reduced size frames.
+ * the largest scale that is not smaller than this size is used, YUYV frames are never scaled.
+ * @param width, height 0 to decode at frame size
+ */
+int UVCPreview::setOutputSize(int width, int height) {
+	ENTER();
+
+	requestOutputWidth = width > 0 ? width : 0;
+	requestOutputHeight = height > 0 ? height : 0;
+
+	RETURN(0, int);
+}
+
+/**
+ * set region of interest, only this region is decoded/converted and passed to later stages
+ * (preview window, capture window and frame callback) like digital zoom.
+ * this can be changed while previewing and is applied from next frame.
+ * MJPEG frames are cropped while decoding and only iMCU rows/columns in the region are decoded,
+ * YUYV frames are cropped with strided copy before conversion.
+ * the region is aligned to even x/y, width of multiple of 16 and even height after DCT scaling.
+ * @param x, y, width, height region in frame(preview size) coordinates, width/height 0 to clear
+ */
+int UVCPreview::setCropRect(int x, int y, int width, int height) {
+	ENTER();
+
+	pthread_mutex_lock(&crop_mutex);
+	{
+		if ((width > 0) && (height > 0)) {
+			mCropRect.x = x > 0 ? x : 0;
+			mCropRect.y = y > 0 ? y : 0;
+			mCropRect.width = width;
+			mCropRect.height = height;
+		} else {
+			memset(&mCropRect, 0, sizeof(mCropRect));
+		}
+	}
+	pthread_mutex_unlock(&crop_mutex);
+
+	RETURN(0, int);
+}
+
+/**
+ * convert requested region to aligned region in output(scaled) coordinates,
+ * this is called for every frame from preview thread or decoder threads
+ * @return false if the frame should not be cropped
+ */
+bool UVCPreview::get_output_crop(crop_rect_t &rect) {
+	pthread_mutex_lock(&crop_mutex);
+	{
+		rect = mCropRect;
+	}
+	pthread_mutex_unlock(&crop_mutex);
+	if (LIKELY(!rect.width || !rect.height)) return false;
+	rect.x = (rect.x / mDecodeScale) & ~1;
+	rect.y = (rect.y / mDecodeScale) & ~1;
+	rect.width = (rect.width / mDecodeScale) & ~15;
+	rect.height = (rect.height / mDecodeScale) & ~1;
+	if (rect.width > outputWidth) rect.width = outputWidth & ~15;
+	if (rect.height > outputHeight) rect.height = outputHeight & ~1;
+	if (rect.x + rect.width > outputWidth) rect.x = (outputWidth - rect.width) & ~1;
+	if (rect.y + rect.height > outputHeight) rect.y = (outputHeight - rect.height) & ~1;
+	return (rect.width >= 16) && (rect.height >= 2)
+		&& ((rect.width < outputWidth) || (rect.height < outputHeight));
+}
+
+/**
+ * copy region of interest of YUYV frame into new frame
+ * @param frame this is recycled if the frame is cropped
+ * @return cropped frame, or original frame if the frame is not cropped or failed
+ */
+uvc_frame_t *UVCPreview::crop_frame(uvc_frame_t *frame) {
+	crop_rect_t rect;
+	if (LIKELY(!get_output_crop(rect)) || UNLIKELY(frame->frame_format != UVC_FRAME_FORMAT_YUYV)) {
+		return frame;
+	}
+	uvc_frame_t *cropped = get_frame(rect.width * rect.height * 2);
+	if (UNLIKELY(!cropped)) {
+		return frame;
+	}
+	const int src_step = frame->step ? frame->step : frame->width * 2;
+	const int dst_step = rect.width * 2;
+	const uint8_t *src = (const uint8_t *)frame->data + rect.y * src_step + rect.x * 2;
+	uint8_t *dst = (uint8_t *)cropped->data;
+	for (int i = 0; i < rect.height; i++) {
+		memcpy(dst, src, dst_step);
+		dst += dst_step; src += src_step;
+	}
+	cropped->width = rect.width;
+	cropped->height = rect.height;
+	cropped->frame_format = UVC_FRAME_FORMAT_YUYV;
+	cropped->step = dst_step;
+	cropped->actual_bytes = rect.width * rect.height * 2;
+	cropped->sequence = frame->sequence;
+	cropped->capture_time = frame->capture_time;
+	cropped->capture_time_ns = frame->capture_time_ns;
+	cropped->pts = frame->pts;
+	cropped->scr = frame->scr;
+	cropped->source = frame->source;
+	recycle_frame(frame);
+	return cropped;
+}
+
+/**
+ * set number of MJPEG decoder threads, this is applied on next startPreview
+ * @param num_threads [1, MAX_DECODE_THREADS], decode on preview thread if 1
+ */
+int UVCPreview::setDecodeThreads(int num_threads) {
+	ENTER();
+
+	if (num_threads < 1) num_threads = 1;
+	if (num_threads > MAX_DECODE_THREADS) num_threads = MAX_DECODE_THREADS;
+	mDecodeThreads = num_threads;
+
+	RETURN(0, int);
+}
+
+/**
+ * get per-thread MJPEG decode statistics of current/last preview as JSON string
+ * @return the caller should free returned string
+ */
+char *UVCPreview::getDecodeStats() {
+	ENTER();
+
+	char *result;
+	if (mDecodeThreads > 1) {
+		result = mDecoderPool->getStats();
+	} else {
+		const decode_stats_t stats = mDecodeStats;
+		result = MJPEGDecoderPool::statsToJSON(&stats, 1, 0);
+	}
+
+	RETURN(result, char *);
+}
+
+static void writeCallbackStats(Writer<StringBuffer> &writer, const callback_stats_t &stats, const uint64_t elapsed_ms) {
+	const uint32_t called = stats.delivered + stats.dropped_no_buffer + stats.errors;
+	writer.String("preview_frames");
+	writer.Uint(stats.preview_frames);
+	writer.String("preview_fps");
+	writer.Double(elapsed_ms ? stats.preview_frames * 1000.0 / elapsed_ms : 0.0);
+	writer.String("delivered");
+	writer.Uint(stats.delivered);
+	writer.String("dropped_busy");
+	writer.Uint(stats.dropped_busy);
+	writer.String("dropped_no_buffer");
+	writer.Uint(stats.dropped_no_buffer);
+	writer.String("errors");
+	writer.Uint(stats.errors);
+	writer.String("avg_us");
+	writer.Uint64(called ? (stats.total_ns / called) / 1000 : 0);
+	writer.String("max_us");
+	writer.Uint64(stats.max_ns / 1000);
+}
+
+/**
+ * get frame callback statistics of current/last preview as JSON string
+ * @return the caller should free returned string
+ */
+char *UVCPreview::getCallbackStats() {
+	ENTER();
+
+	const callback_stats_t stats = mCallbackStats;
+	const uint64_t elapsed_ms = stats.start_ns ? (decode_time_ns() - stats.start_ns) / 1000000 : 0;
+	StringBuffer buffer;
+	Writer<StringBuffer> writer(buffer);
+
+	writer.StartObject();
+	{
+		writer.String("elapsed_ms");
+		writer.Uint64(elapsed_ms);
+		writeCallbackStats(writer, stats, elapsed_ms);
+	}
+	writer.EndObject();
+
+	RETURN(strdup(buffer.GetString()), char *);
+}
+
+/**
+ * get all counters of native capture path of current/last preview as JSON string,
+ * frames dropped for each reason, current queue depths, frame pool usage, decode and callback statistics
+ * @return the caller should free returned string
+ */
+char *UVCPreview::getCaptureStats() {
+	ENTER();
+
+	const callback_stats_t callback_stats = mCallbackStats;
+	const uint64_t elapsed_ms = callback_stats.start_ns ? (decode_time_ns() - callback_stats.start_ns) / 1000000 : 0;
+	const capture_stats_t stats = mCaptureStats;
+	const ctrl_cache_stats_t ctrl_cache_stats = mCtrlCacheStats;
+	frame_pool_stats_t buckets[MAX_POOL_BUCKETS];
+	uint32_t unbucketed = 0;
+	const int num_buckets = mFramePool->getStats(buckets, MAX_POOL_BUCKETS, &unbucketed);
+	int pool_size = 0;
+	uint32_t pool_hits = 0, pool_misses = 0, pool_freed = unbucketed;
+	for (int i = 0; i < num_buckets; i++) {
+		pool_size += buckets[i].pooled;
+		pool_hits += buckets[i].hits;
+		pool_misses += buckets[i].misses;
+		pool_freed += buckets[i].freed;
+	}
+	const h264_stats_t h264_stats = mH264Parser.stats();
+	record_stats_t record_stats;
+	bool recording;
+	pthread_mutex_lock(&recorder_mutex);
+	{
+		recording = mRecorder != NULL;
+		if (recording) {
+			mRecorder->getStats(record_stats);
+		} else {
+			record_stats = mRecordStats;
+		}
+	}
+	pthread_mutex_unlock(&recorder_mutex);
+	decode_stats_t decode_stats;
+	uint32_t decoder_busy = 0;
+	int decoder_in_flight = 0;
+	if (mDecodeThreads > 1) {
+		decoder_in_flight = mDecoderPool->getTotals(&decode_stats, &decoder_busy);
+	} else {
+		decode_stats = mDecodeStats;
+	}
+	StringBuffer buffer;
+	Writer<StringBuffer> writer(buffer);
+
+	writer.StartObject();
+	{
+		writer.String("elapsed_ms");
+		writer.Uint64(elapsed_ms);
+		writer.String("running");
+		writer.Bool(isRunning());
+		writer.String("target_fps");
+		writer.Double(mTargetFps);
+		writer.String("decode_scale");
+		writer.Int(mDecodeScale);
+		writer.String("ctrl_cache");
+		writer.StartObject();
+		{
+			writer.String("hits");
+			writer.Uint(ctrl_cache_stats.hits);
+			writer.String("misses");
+			writer.Uint(ctrl_cache_stats.misses);
+			writer.String("fallbacks");
+			writer.Uint(ctrl_cache_stats.fallbacks);
+			writer.String("negotiate_ms");
+			writer.Double(ctrl_cache_stats.negotiate_ns / 1000000.0);
+		}
+		writer.EndObject();
+		writer.String("drops");
+		writer.StartObject();
+		{
+			writer.String("broken");
+			writer.Uint(stats.broken);
+			writer.String("payload_error");
+			writer.Uint(stats.payload_error);
+			writer.String("missing_eof");
+			writer.Uint(stats.missing_eof);
+			writer.String("bad_length");
+			writer.Uint(stats.bad_length);
+			writer.String("missing_soi");
+			writer.Uint(stats.missing_soi);
+			writer.String("missing_eoi");
+			writer.Uint(stats.missing_eoi);
+			writer.String("alloc_failed");
+			writer.Uint(stats.alloc_failed);
+			writer.String("preview_queue_full");
+			writer.Uint(stats.preview_queue_full);
+			writer.String("decimated");
+			writer.Uint(stats.decimated);
+			writer.String("decoder_busy");
+			writer.Uint(decoder_busy);
+			writer.String("decode_failed");
+			writer.Uint(decode_stats.errors);
+			writer.String("capture_busy");
+			writer.Uint(stats.capture_busy);
+			writer.String("callback_busy");
+			writer.Uint(callback_stats.dropped_busy);
+			writer.String("callback_no_buffer");
+			writer.Uint(callback_stats.dropped_no_buffer);
+		}
+		writer.EndObject();
+		writer.String("queues");
+		writer.StartObject();
+		{
+			writer.String("preview");
+			writer.Int(previewFrames.size());
+			writer.String("preview_max");
+			writer.Uint(previewFrames.capacity());
+			writer.String("decoder_in_flight");
+			writer.Int(decoder_in_flight);
+			writer.String("preview_blocked");
+			writer.Uint(stats.preview_blocked);
+			writer.String("capture");
+			writer.Int(captureQueue.size());
+			writer.String("capture_max");
+			writer.Uint(captureQueue.capacity());
+			writer.String("capture_blocked");
+			writer.Uint(stats.capture_blocked);
+			writer.String("callback");
+			writer.Int(callbackQueue.size());
+			writer.String("callback_max");
+			writer.Uint(callbackQueue.capacity());
+			writer.String("callback_blocked");
+			writer.Uint(stats.callback_blocked);
+			writer.String("frame_pool");
+			writer.Int(pool_size);
+			writer.String("frame_pool_max");
+			writer.Int(mFramePool->maxPerBucket());
+		}
+		writer.EndObject();
+		writer.String("pool");
+		writer.StartObject();
+		{
+			writer.String("hits");
+			writer.Uint(pool_hits);
+			writer.String("misses");
+			writer.Uint(pool_misses);
+			writer.String("freed");
+			writer.Uint(pool_freed);
+			writer.String("buckets");
+			writer.StartArray();
+			for (int i = 0; i < num_buckets; i++) {
+				writer.StartObject();
+				{
+					writer.String("bytes");
+					writer.Uint64(buckets[i].bytes);
+					writer.String("pooled");
+					writer.Int(buckets[i].pooled);
+					writer.String("in_use");
+					writer.Int(buckets[i].in_use);
+					writer.String("high_water");
+					writer.Int(buckets[i].high_water);
+					writer.String("hits");
+					writer.Uint(buckets[i].hits);
+					writer.String("misses");
+					writer.Uint(buckets[i].misses);
+					writer.String("freed");
+					writer.Uint(buckets[i].freed);
 				}
+				writer.EndObject();
 			}
+			writer.EndArray();
+		}
+		writer.EndObject();
+		writer.String("decode");
+		writer.StartObject();
+		{
+			writer.String("frames");
+			writer.Uint(decode_stats.frames);
+			writer.String("errors");
+			writer.Uint(decode_stats.errors);
+			writer.String("avg_us");
+			writer.Uint64(decode_stats.frames ? (decode_stats.total_ns / decode_stats.frames) / 1000 : 0);
+			writer.String("max_us");
+			writer.Uint64(decode_stats.max_ns / 1000);
+		}
+		writer.EndObject();
+		writer.String("callback");
+		writer.StartObject();
+		{
+			writeCallbackStats(writer, callback_stats, elapsed_ms);
+		}
+		writer.EndObject();
+		writer.String("h264");
+		writer.StartObject();
+		{
+			writer.String("access_units");
+			writer.Uint(h264_stats.access_units);
+			writer.String("key_frames");
+			writer.Uint(h264_stats.key_frames);
+			writer.String("skipped");
+			writer.Uint(h264_stats.skipped);
+			writer.String("discontinuities");
+			writer.Uint(h264_stats.discontinuities);
+			writer.String("config_changes");
+			writer.Uint(h264_stats.config_changes);
+			writer.String("errors");
+			writer.Uint(h264_stats.errors);
 		}
-		if (frame_callback_obj) {
-			mPixelFormat = pixel_format;
-			callbackPixelFormatChanged();
+		writer.EndObject();
+		writer.String("record");
+		writer.StartObject();
+		{
+			writer.String("running");
+			writer.Bool(recording);
+			writer.String("frames");
+			writer.Uint(record_stats.frames);
+			writer.String("dropped_full");
+			writer.Uint(record_stats.dropped_full);
+			writer.String("dropped_stopped");
+			writer.Uint(record_stats.dropped_stopped);
+			writer.String("bytes");
+			writer.Uint64(record_stats.bytes);
+			writer.String("ring_max_kb");
+			writer.Uint64(record_stats.ring_high_water / 1024);
+			writer.String("writes");
+			writer.Uint(record_stats.writes);
+			writer.String("avg_write_us");
+			writer.Uint64(record_stats.writes ? (record_stats.write_ns / record_stats.writes) / 1000 : 0);
+			writer.String("max_write_us");
+			writer.Uint64(record_stats.max_write_ns / 1000);
+			writer.String("error");
+			writer.Int(record_stats.error);
 		}
+		writer.EndObject();
 	}
-	pthread_mutex_unlock(&capture_mutex);
-	RETURN(0, int);
-}
+	writer.EndObject();
 
-void UVCPreview::callbackPixelFormatChanged() {
-	mFrameCallbackFunc = NULL;
-	const size_t sz = requestWidth * requestHeight;
-	switch (mPixelFormat) {
-	  case PIXEL_FORMAT_RAW:
-		LOGI("PIXEL_FORMAT_RAW:");
-		callbackPixelBytes = sz * 2;
-		break;
-	  case PIXEL_FORMAT_YUV:
-		LOGI("PIXEL_FORMAT_YUV:");
-		callbackPixelBytes = sz * 2;
-		break;
-	  case PIXEL_FORMAT_RGB565:
-		LOGI("PIXEL_FORMAT_RGB565:");
-		mFrameCallbackFunc = uvc_any2rgb565;
-		callbackPixelBytes = sz * 2;
-		break;
-	  case PIXEL_FORMAT_RGBX:
-		LOGI("PIXEL_FORMAT_RGBX:");
-		mFrameCallbackFunc = uvc_any2rgbx;
-		callbackPixelBytes = sz * 4;
-		break;
-	  case PIXEL_FORMAT_YUV20SP:
-		LOGI("PIXEL_FORMAT_YUV20SP:");
-		mFrameCallbackFunc = uvc_yuyv2iyuv420SP;
-		callbackPixelBytes = (sz * 3) / 2;
-		break;
-	  case PIXEL_FORMAT_NV21:
-		LOGI("PIXEL_FORMAT_NV21:");
-		mFrameCallbackFunc = uvc_yuyv2yuv420SP;
-		callbackPixelBytes = (sz * 3) / 2;
-		break;
-	}
+	RETURN(strdup(buffer.GetString()), char *);
 }
 
 void UVCPreview::clearDisplay() {
@@ -330,10 +1116,16 @@ int UVCPreview::startPreview() {
 
 	int result = EXIT_FAILURE;
 	if (!isRunning()) {
+		// wakeups of the last stopPreview must not stop the producers of this session
+		previewFrames.resetProducerWakeup();
+		captureQueue.resetProducerWakeup();
+		callbackQueue.resetProducerWakeup();
 		mIsRunning = true;
 		pthread_mutex_lock(&preview_mutex);
 		{
-			if (LIKELY(mPreviewWindow)) {
+			// headless mode runs without preview window, frames only go to capture surface/frame callback
+			// and H.264 mode never draws frames
+			if (LIKELY(mPreviewWindow || mHeadless || (requestMode == FRAME_FORMAT_H264))) {
 				result = pthread_create(&preview_thread, NULL, preview_thread_func, (void *)this);
 			}
 		}
@@ -341,11 +1133,7 @@ int UVCPreview::startPreview() {
 		if (UNLIKELY(result != EXIT_SUCCESS)) {
 			LOGW("UVCCamera::window does not exist/already running/could not create thread etc.");
 			mIsRunning = false;
-			pthread_mutex_lock(&preview_mutex);
-			{
-				pthread_cond_signal(&preview_sync);
-			}
-			pthread_mutex_unlock(&preview_mutex);
+			previewFrames.wakeup();
 		}
 	}
 	RETURN(result, int);
@@ -356,21 +1144,30 @@ int UVCPreview::stopPreview() {
 	bool b = isRunning();
 	if (LIKELY(b)) {
 		mIsRunning = false;
-		pthread_cond_signal(&preview_sync);
-		pthread_cond_signal(&capture_sync);
+		previewFrames.wakeup();
+		mDecoderPool->wakeup();
+		captureQueue.wakeup();
+		callbackQueue.wakeup();
 		if (mHasCaptureThread) {
-			pthread_cond_signal(&capture_sync);
 			if (pthread_join(capture_thread, NULL) != EXIT_SUCCESS) {
 				LOGW("UVCPreview::terminate capture thread: pthread_join failed");
 			}
 		}
+		if (mHasCallbackThread) {
+			if (pthread_join(callback_thread, NULL) != EXIT_SUCCESS) {
+				LOGW("UVCPreview::terminate callback thread: pthread_join failed");
+			}
+		}
 		if (pthread_join(preview_thread, NULL) != EXIT_SUCCESS) {
 			LOGW("UVCPreview::terminate preview thread: pthread_join failed");
 		}
 		clearDisplay();
 	}
+	// libuvc callback thread was already stopped, recorder writes the rest of frames and index
+	stopRecording();
 	clearPreviewFrame();
 	clearCaptureFrame();
+	clearCallbackFrame();
 	pthread_mutex_lock(&preview_mutex);
 	if (mPreviewWindow) {
 		ANativeWindow_release(mPreviewWindow);
@@ -389,74 +1186,193 @@ int UVCPreview::stopPreview() {
 //**********************************************************************
 //
 //**********************************************************************
+/**
+ * supply the frame that libuvc assembles payloads into, called from libuvc callback thread
+ */
+uvc_frame_t *UVCPreview::uvc_preview_frame_obtain(size_t data_bytes, void *vptr_args) {
+	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+	if (UNLIKELY(!preview->mRawPrewarmed)) {
+		preview->prewarm_raw_pool(data_bytes);
+	}
+	return preview->get_frame(data_bytes);
+}
+
+/**
+ * called from libuvc callback thread with the frame from uvc_preview_frame_obtain,
+ * the ownership of the frame is passed to this function
+ */
 void UVCPreview::uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args) {
 	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
-	if UNLIKELY(!preview->isRunning() || !frame || !frame->frame_format || !frame->data || !frame->data_bytes) return;
-	if (UNLIKELY(
-		((frame->frame_format != UVC_FRAME_FORMAT_MJPEG) && (frame->actual_bytes < preview->frameBytes))
+	if (UNLIKELY(!frame)) return;
+	if UNLIKELY(!preview->isRunning()) {
+		preview->recycle_frame(frame);
+		return;
+	}
+	if (UNLIKELY(frame->frame_flags & UVC_FRAME_FLAG_ERR)) {
+		preview->mCaptureStats.payload_error++;
+		preview->recycle_frame(frame);
+		return;
+	}
+	if (UNLIKELY(!frame->frame_format || !frame->data || !frame->data_bytes
+		|| ((frame->frame_format != UVC_FRAME_FORMAT_MJPEG) && (frame->frame_format != UVC_FRAME_FORMAT_H264)
+			&& (frame->actual_bytes < preview->frameBytes))
 		|| (frame->width != preview->frameWidth) || (frame->height != preview->frameHeight) )) {
 
+		preview->mCaptureStats.broken++;
+
 #if LOCAL_DEBUG
 		LOGD("broken frame!:format=%d,actual_bytes=%d/%d(%d,%d/%d,%d)",
 			frame->frame_format, frame->actual_bytes, preview->frameBytes,
 			frame->width, frame->height, preview->frameWidth, preview->frameHeight);
 #endif
+		preview->recycle_frame(frame);
 		return;
 	}
-	if (LIKELY(preview->isRunning())) {
-		uvc_frame_t *copy = preview->get_frame(frame->data_bytes);
-		if (UNLIKELY(!copy)) {
-#if LOCAL_DEBUG
-			LOGE("uvc_callback:unable to allocate duplicate frame!");
-#endif
-			return;
+	if ((preview->frameMode != FRAME_FORMAT_YUYV) && UNLIKELY(!preview->validate_frame(frame))) {
+		preview->recycle_frame(frame);
+		return;
+	}
+	if (preview->frameMode == FRAME_FORMAT_MJPEG) {
+		// recorder gets every frame as the camera sent it, before decimation and decoding
+		pthread_mutex_lock(&preview->recorder_mutex);
+		if (preview->mRecorder) {
+			preview->mRecorder->write(frame);
 		}
-		uvc_error_t ret = uvc_duplicate_frame(frame, copy);
-		if (UNLIKELY(ret)) {
-			preview->recycle_frame(copy);
-			return;
+		pthread_mutex_unlock(&preview->recorder_mutex);
+	}
+	if ((preview->frameMode == FRAME_FORMAT_MJPEG) || (preview->frameMode == FRAME_FORMAT_H264)) {
+		pthread_mutex_lock(&preview->raw_pipeline_mutex);
+		if (preview->mRawPipeline) {
+			preview->mRawPipeline->queueFrame(frame);
 		}
-		preview->addPreviewFrame(copy);
+		pthread_mutex_unlock(&preview->raw_pipeline_mutex);
+	}
+	// H.264 frames can not be dropped because following frames refer to them
+	if (UNLIKELY((preview->frameMode != FRAME_FORMAT_H264) && !preview->pace_frame(frame))) {
+		// drop before decoding, later stages never see this frame
+		preview->mCaptureStats.decimated++;
+		preview->recycle_frame(frame);
+		return;
+	}
+	preview->addPreviewFrame(frame);
+}
+
+/**
+ * cheap checks of a compressed frame before it is queued, called only from libuvc callback thread.
+ * truncated frames(e.g. isochronous packets were lost) fail to decode or decode into garbage,
+ * dropping them here keeps decoding time for the frames that can be decoded.
+ * only markers at both ends are checked, the frame is not parsed.
+ * @return true if the frame should be passed, the reason is counted in mCaptureStats if false
+ */
+bool UVCPreview::validate_frame(uvc_frame_t *frame) {
+	if (frame->frame_flags & UVC_FRAME_FLAG_EOF) {
+		mSeenEof = true;
+	} else if (mSeenEof) {
+		// the payload with EOF bit was lost and the frame was completed by FID toggle of the next frame
+		mCaptureStats.missing_eof++;
+		return false;
+	}
+	if (frameMode != FRAME_FORMAT_MJPEG) {
+		// H.264 frames are checked by H264Parser
+		return true;
+	}
+	const uint8_t *data = (const uint8_t *)frame->data;
+	size_t bytes = frame->actual_bytes;
+	if (UNLIKELY((bytes < MJPEG_MIN_FRAME_BYTES) || (bytes > (size_t)frameWidth * frameHeight * 3))) {
+		mCaptureStats.bad_length++;
+		return false;
+	}
+	if (UNLIKELY((data[0] != 0xff) || (data[1] != 0xd8))) {
+		mCaptureStats.missing_soi++;
+		return false;
+	}
+	// some cameras pad frames with zeros after EOI
+	for ( ; (bytes > 2) && !data[bytes - 1]; bytes--) {}
+	if (UNLIKELY((data[bytes - 2] != 0xff) || (data[bytes - 1] != 0xd9))) {
+		mCaptureStats.missing_eoi++;
+		return false;
+	}
+	return true;
+}
+
+/**
+ * decide whether the frame should be passed to reduce frame rate to mTargetFps,
+ * called only from libuvc callback thread.
+ * output frames are scheduled on a fixed grid of target interval from capture time
+ * so that the cadence stays even (e.g. 30->20fps passes 2 of 3 frames, not bursts)
+ * @return true if the frame should be passed
+ */
+bool UVCPreview::pace_frame(uvc_frame_t *frame) {
+	const float fps = mTargetFps;
+	const int64_t interval = fps > 0.0f ? (int64_t)(1000000000.0 / fps) : 0;
+	if (LIKELY(interval <= mSourceIntervalNs)) {
+		// decimation disabled or camera is not faster than target
+		mPacerIntervalNs = 0;
+		return true;
+	}
+	const int64_t ts = frame->capture_time_ns > 0 ? frame->capture_time_ns : (int64_t)decode_time_ns();
+	// half of camera frame interval absorbs jitter of capture time
+	const int64_t slack = mSourceIntervalNs / 2;
+	if (UNLIKELY((interval != mPacerIntervalNs)
+		|| (ts < mPacerDueNs - interval - slack)
+		|| (ts > mPacerDueNs + interval))) {
+		// target changed, capture time went backward or the camera stalled, restart the grid
+		mPacerIntervalNs = interval;
+		mPacerDueNs = ts + interval;
+		return true;
+	}
+	if (ts < mPacerDueNs - slack) {
+		return false;
 	}
+	mPacerDueNs += interval;
+	return true;
 }
 
+/**
+ * this is called from libusb callback thread(producer side of previewFrames)
+ * drop the frame if preview thread does not catch up
+ */
 void UVCPreview::addPreviewFrame(uvc_frame_t *frame) {
 
-	pthread_mutex_lock(&preview_mutex);
-	if (isRunning() && (previewFrames.size() < MAX_FRAME)) {
-		previewFrames.put(frame);
-		frame = NULL;
-		pthread_cond_signal(&preview_sync);
+	if (isRunning()) {
+		// MJPEG frames go to decoder threads directly when decoder pool is running
+		// (MJPEGDecoderPool counts frames that it dropped by itself)
+		if (mDecoderPool->isRunning()) {
+			if (mDecoderPool->put(frame)) {
+				frame = NULL;
+			}
+		} else {
+			frame = offer_frame(previewFrames, mQueuePolicy[QUEUE_PREVIEW], frame, mCaptureStats.preview_blocked, isRunning());
+			if (frame) {
+				mCaptureStats.preview_queue_full++;
+			}
+		}
 	}
-	pthread_mutex_unlock(&preview_mutex);
 	if (frame) {
 		recycle_frame(frame);
 	}
 }
 
+/**
+ * this is called from preview thread(consumer side of previewFrames)
+ * if there is no frame, block until new frame arrives or stopPreview is called
+ */
 uvc_frame_t *UVCPreview::waitPreviewFrame() {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&preview_mutex);
-	{
-		if (!previewFrames.size()) {
-			pthread_cond_wait(&preview_sync, &preview_mutex);
-		}
-		if (LIKELY(isRunning() && previewFrames.size() > 0)) {
-			frame = previewFrames.remove(0);
-		}
+	uvc_frame_t *frame = previewFrames.wait();
+	if (UNLIKELY(frame && !isRunning())) {
+		recycle_frame(frame);
+		frame = NULL;
 	}
-	pthread_mutex_unlock(&preview_mutex);
 	return frame;
 }
 
+/**
+ * this should be called from consumer side or after the producer finished
+ */
 void UVCPreview::clearPreviewFrame() {
-	pthread_mutex_lock(&preview_mutex);
-	{
-		for (int i = 0; i < previewFrames.size(); i++)
-			recycle_frame(previewFrames[i]);
-		previewFrames.clear();
+	for (uvc_frame_t *frame = previewFrames.get(); frame; frame = previewFrames.get()) {
+		recycle_frame(frame);
 	}
-	pthread_mutex_unlock(&preview_mutex);
 }
 
 void *UVCPreview::preview_thread_func(void *vptr_args) {
@@ -475,14 +1391,90 @@ void *UVCPreview::preview_thread_func(void *vptr_args) {
 	pthread_exit(NULL);
 }
 
+/**
+ * probe cached stream control of the same request instead of full negotiation,
+ * full negotiation queries GET_CUR/GET_MIN/GET_MAX twice before probing and
+ * takes most of the time to start preview on reconnect.
+ * this is called from preview thread
+ * @param ctrl stream control to use when this returns true
+ * @return true if the camera accepted cached stream control as it was
+ */
+bool UVCPreview::try_cached_ctrl(uvc_stream_ctrl_t *ctrl) {
+	ENTER();
+
+	stream_ctrl_cache_t cache;
+	bool has_cache;
+	pthread_mutex_lock(&preview_mutex);
+	{
+		has_cache = mHasCtrlCache;
+		cache = mCtrlCache;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+	if (!has_cache || (cache.mode != requestMode)
+		|| (cache.width != requestWidth) || (cache.height != requestHeight)
+		|| (cache.min_fps != requestMinFps) || (cache.max_fps != requestMaxFps)) {
+		// nothing cached or cached for other request
+		RETURN(false, bool);
+	}
+	bool result = false;
+	uvc_frame_desc_t *frame_desc;
+	// descriptors of this connection should have the frame that cached control points to
+	if (!uvc_get_frame_desc(mDeviceHandle, &cache.ctrl, &frame_desc)
+		&& (frame_desc->wWidth == requestWidth) && (frame_desc->wHeight == requestHeight)) {
+		*ctrl = cache.ctrl;
+		// the camera returns values it accepts, they should be same as last time
+		result = !uvc_probe_stream_ctrl(mDeviceHandle, ctrl)
+			&& (ctrl->bFormatIndex == cache.ctrl.bFormatIndex)
+			&& (ctrl->bFrameIndex == cache.ctrl.bFrameIndex)
+			&& (ctrl->dwFrameInterval == cache.ctrl.dwFrameInterval);
+	}
+	if (result) {
+		mCtrlCacheStats.hits++;
+	} else {
+		LOGW("cached stream control was rejected, negotiate again");
+		mCtrlCacheStats.misses++;
+	}
+	RETURN(result, bool);
+}
+
+/**
+ * keep committed stream control so that next connection can skip negotiation
+ * this is called from preview thread after streaming started
+ */
+void UVCPreview::update_ctrl_cache(const uvc_stream_ctrl_t *ctrl) {
+	ENTER();
+
+	pthread_mutex_lock(&preview_mutex);
+	{
+		mCtrlCache.version = sizeof(stream_ctrl_cache_t);
+		mCtrlCache.mode = requestMode;
+		mCtrlCache.width = requestWidth;
+		mCtrlCache.height = requestHeight;
+		mCtrlCache.min_fps = requestMinFps;
+		mCtrlCache.max_fps = requestMaxFps;
+		mCtrlCache.ctrl = *ctrl;
+		mHasCtrlCache = true;
+	}
+	pthread_mutex_unlock(&preview_mutex);
+
+	EXIT();
+}
+
 int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
 	uvc_error_t result;
 
 	ENTER();
-	result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, ctrl,
-		!requestMode ? UVC_FRAME_FORMAT_YUYV : UVC_FRAME_FORMAT_MJPEG,
-		requestWidth, requestHeight, requestMinFps, requestMaxFps
-	);
+	const uint64_t negotiate_start = decode_time_ns();
+	mCtrlFromCache = try_cached_ctrl(ctrl);
+	if (mCtrlFromCache) {
+		result = UVC_SUCCESS;
+	} else {
+		result = uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, ctrl,
+			frame_format_for_mode(requestMode),
+			requestWidth, requestHeight, requestMinFps, requestMaxFps
+		);
+	}
+	mCtrlCacheStats.negotiate_ns = decode_time_ns() - negotiate_start;
 	if (LIKELY(!result)) {
 #if LOCAL_DEBUG
 		uvc_print_stream_ctrl(ctrl, stderr);
@@ -492,20 +1484,56 @@ int UVCPreview::prepare_preview(uvc_stream_ctrl_t *ctrl) {
 		if (LIKELY(!result)) {
 			frameWidth = frame_desc->wWidth;
 			frameHeight = frame_desc->wHeight;
-			LOGI("frameSize=(%d,%d)@%s", frameWidth, frameHeight, (!requestMode ? "YUYV" : "MJPEG"));
-			pthread_mutex_lock(&preview_mutex);
-			if (LIKELY(mPreviewWindow)) {
-				ANativeWindow_setBuffersGeometry(mPreviewWindow,
-					frameWidth, frameHeight, previewFormat);
-			}
-			pthread_mutex_unlock(&preview_mutex);
+			LOGI("frameSize=(%d,%d)@%s", frameWidth, frameHeight,
+				(requestMode == FRAME_FORMAT_H264 ? "H264" : (!requestMode ? "YUYV" : "MJPEG")));
 		} else {
 			frameWidth = requestWidth;
 			frameHeight = requestHeight;
 		}
 		frameMode = requestMode;
+		mDecodeScale = 1;
+		if ((frameMode == FRAME_FORMAT_MJPEG) && requestOutputWidth && requestOutputHeight) {
+			// largest DCT scale that still keeps requested size,
+			// scaled size should be multiple of 16x2 for YUYV/YUV420 decoders
+			for (int denom = 8; denom > 1; denom >>= 1) {
+				if ((frameWidth / denom >= requestOutputWidth) && (frameHeight / denom >= requestOutputHeight)
+					&& !(frameWidth % (denom * 16)) && !(frameHeight % (denom * 2))) {
+					mDecodeScale = denom;
+					break;
+				}
+			}
+		}
+		outputWidth = frameWidth / mDecodeScale;
+		outputHeight = frameHeight / mDecodeScale;
+		LOGI("outputSize=(%d,%d),scale=1/%d", outputWidth, outputHeight, mDecodeScale);
+		pthread_mutex_lock(&preview_mutex);
+		if (LIKELY(mPreviewWindow)) {
+			ANativeWindow_setBuffersGeometry(mPreviewWindow,
+				outputWidth, outputHeight, previewFormat);
+		}
+		pthread_mutex_unlock(&preview_mutex);
+		// dwFrameInterval is in 100ns
+		mSourceIntervalNs = (int64_t)ctrl->dwFrameInterval * 100;
+		mPacerIntervalNs = 0;
 		frameBytes = frameWidth * frameHeight * (!requestMode ? 2 : 4);
-		previewBytes = frameWidth * frameHeight * PREVIEW_PIXEL_BYTES;
+		previewBytes = outputWidth * outputHeight * PREVIEW_PIXEL_BYTES;
+		if (frameMode == FRAME_FORMAT_MJPEG) {
+			// create decoder once and only reset it when the frame size changed
+			if (!mDecoder) {
+				mDecoder = uvc_mjpeg_decoder_create();
+			}
+			if (LIKELY(mDecoder)) {
+				uvc_mjpeg_decoder_reset(mDecoder, frameWidth, frameHeight);
+				uvc_mjpeg_decoder_set_scale(mDecoder, mDecodeScale);
+			} else {
+				LOGE("failed to create MJPEG decoder");
+				result = UVC_ERROR_NO_MEM;
+			}
+		}
+		if (LIKELY(!result)) {
+			// frame sizes are fixed now, allocate frames before streaming starts
+			prewarm_pool();
+		}
 	} else {
 		LOGE("could not negotiate with camera:err=%d", result);
 	}
@@ -517,32 +1545,91 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 
 	uvc_frame_t *frame = NULL;
 	uvc_frame_t *frame_mjpeg = NULL;
-	uvc_error_t result = uvc_start_streaming_bandwidth(
-		mDeviceHandle, ctrl, uvc_preview_frame_callback, (void *)this, requestBandwidth, 0);
+	memset(&mDecodeStats, 0, sizeof(mDecodeStats));
+	memset(&mCallbackStats, 0, sizeof(mCallbackStats));
+	memset(&mCaptureStats, 0, sizeof(mCaptureStats));
+	memset(&mRecordStats, 0, sizeof(mRecordStats));
+	mCallbackStats.start_ns = decode_time_ns();
+	mSeenEof = false;
+	if ((frameMode == FRAME_FORMAT_MJPEG) && (mDecodeThreads > 1)) {
+		// decoder pool should start before streaming so that all MJPEG frames go to it
+		// frame pool was already sized for decoder threads in #prewarm_pool
+		if (UNLIKELY(mDecoderPool->start(mDecodeThreads, frameWidth, frameHeight, mDecodeScale))) {
+			LOGW("failed to start decoder threads, decode on preview thread");
+		}
+	}
+	// libuvc assembles frames into pooled frames and passes them without copying
+	uvc_error_t result = uvc_start_streaming_pooled(
+		mDeviceHandle, ctrl, uvc_preview_frame_callback, uvc_preview_frame_obtain,
+		(void *)this, requestBandwidth, 0);
+	if (UNLIKELY(result && mCtrlFromCache)) {
+		// the camera accepted cached control on probe but not on commit, negotiate again.
+		// frame sizes were already decided in #prepare_preview so only the same frame can be used
+		uvc_stream_ctrl_t negotiated;
+		mCtrlFromCache = false;
+		mCtrlCacheStats.fallbacks++;
+		if (!uvc_get_stream_ctrl_format_size_fps(mDeviceHandle, &negotiated,
+				frame_format_for_mode(requestMode),
+				requestWidth, requestHeight, requestMinFps, requestMaxFps)
+			&& (negotiated.bFormatIndex == ctrl->bFormatIndex)
+			&& (negotiated.bFrameIndex == ctrl->bFrameIndex)) {
+
+			*ctrl = negotiated;
+			mSourceIntervalNs = (int64_t)ctrl->dwFrameInterval * 100;
+			result = uvc_start_streaming_pooled(
+				mDeviceHandle, ctrl, uvc_preview_frame_callback, uvc_preview_frame_obtain,
+				(void *)this, requestBandwidth, 0);
+		}
+	}
+	if (LIKELY(!result)) {
+		update_ctrl_cache(ctrl);
+	}
 
     mHasCaptureThread = false;
+	mHasCallbackThread = false;
 	if (LIKELY(!result)) {
 		clearPreviewFrame();
-		if (pthread_create(&capture_thread, NULL, capture_thread_func, (void *)this) == 0) {
-			mHasCaptureThread = true;
+		// there is no decoded frame for capture/callback thread in H.264 mode
+		if (frameMode != FRAME_FORMAT_H264) {
+			mHasCaptureThread = pthread_create(&capture_thread, NULL, capture_thread_func, (void *)this) == 0;
+			mHasCallbackThread = pthread_create(&callback_thread, NULL, callback_thread_func, (void *)this) == 0;
 		}
 
 #if LOCAL_DEBUG
 		LOGI("Streaming...");
 #endif
-		if (frameMode) {
+		if (mDecoderPool->isRunning()) {
+			// MJPEG mode, frames are decoded on decoder threads and come back in capture order
+			for ( ; LIKELY(isRunning()) ; ) {
+				frame = mDecoderPool->wait();
+				if (LIKELY(frame)) {
+					deliver_frame(frame);
+				}
+			}
+		} else if (frameMode == FRAME_FORMAT_H264) {
+			// H.264 mode, access units go to IH264Callback on this thread without decoding
+			JavaVM *vm = getVM();
+			JNIEnv *env;
+			vm->AttachCurrentThread(&env, NULL);
+			do_passthrough(env);
+			vm->DetachCurrentThread();
+		} else if (frameMode == FRAME_FORMAT_MJPEG) {
 			// MJPEG mode
 			for ( ; LIKELY(isRunning()) ; ) {
 				frame_mjpeg = waitPreviewFrame();
 				if (LIKELY(frame_mjpeg)) {
-					frame = get_frame(frame_mjpeg->width * frame_mjpeg->height * 2);
-					result = uvc_mjpeg2yuyv(frame_mjpeg, frame);   // MJPEG => yuyv
+					const uint64_t start = decode_time_ns();
+					frame = decode_mjpeg(mDecoder, frame_mjpeg);
+					const uint64_t elapsed = decode_time_ns() - start;
 					recycle_frame(frame_mjpeg);
-					if (LIKELY(!result)) {
-						frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
-						addCaptureFrame(frame);
+					if (LIKELY(frame)) {
+						mDecodeStats.frames++;
+						mDecodeStats.total_ns += elapsed;
+						mDecodeStats.last_ns = elapsed;
+						if (elapsed > mDecodeStats.max_ns) mDecodeStats.max_ns = elapsed;
+						deliver_frame(frame);
 					} else {
-						recycle_frame(frame);
+						mDecodeStats.errors++;
 					}
 				}
 			}
@@ -551,12 +1638,13 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 			for ( ; LIKELY(isRunning()) ; ) {
 				frame = waitPreviewFrame();
 				if (LIKELY(frame)) {
-					frame = draw_preview_one(frame, &mPreviewWindow, uvc_any2rgbx, 4);
-					addCaptureFrame(frame);
+					frame = crop_frame(frame);
+					deliver_frame(frame);
 				}
 			}
 		}
-		pthread_cond_signal(&capture_sync);
+		captureQueue.wakeup();
+		callbackQueue.wakeup();
 #if LOCAL_DEBUG
 		LOGI("preview_thread_func:wait for all callbacks complete");
 #endif
@@ -567,10 +1655,163 @@ void UVCPreview::do_preview(uvc_stream_ctrl_t *ctrl) {
 	} else {
 		uvc_perror(result, "failed start_streaming");
 	}
+	mDecoderPool->stop();
+	mFramePool->setMaxPerBucket(FRAME_POOL_SZ);
+
+	EXIT();
+}
+
+/**
+ * decode MJPEG frame into the format that frame callback requests(YUYV/NV12/I420)
+ * decoding into planar YUV directly skips YUYV intermediate and conversion on capture thread.
+ * this is called from preview thread or decoder threads of MJPEGDecoderPool
+ * @param decoder decoder that is only used on the calling thread
+ * @param frame_mjpeg MJPEG frame, this is not recycled here,
+ * 			decoded frame is outputWidth x outputHeight when DCT scaling is enabled,
+ * 			or size of the region when the region of interest is set
+ * @return decoded frame, NULL if failed
+ */
+uvc_frame_t *UVCPreview::decode_mjpeg(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *frame_mjpeg) {
+	uvc_frame_t *frame;
+	uvc_error_t result;
+	crop_rect_t rect;
+
+	// frames are allocated with exact size of the region so that conversions only process the region
+	if (UNLIKELY(get_output_crop(rect))) {
+		uvc_mjpeg_decoder_set_crop(decoder, rect.x, rect.y, rect.width, rect.height);
+	} else {
+		uvc_mjpeg_decoder_set_crop(decoder, 0, 0, 0, 0);
+		rect.width = outputWidth;
+		rect.height = outputHeight;
+	}
+
+	const bool planar = (mDecodeFormat == UVC_FRAME_FORMAT_NV12)
+		|| (mDecodeFormat == UVC_FRAME_FORMAT_I420)
+		|| (mDecodeFormat == UVC_FRAME_FORMAT_NV21);
+	const size_t bytes = planar
+		? (rect.width * rect.height * 3) / 2 : rect.width * rect.height * 2;
+	frame = get_frame(bytes);
+	if (UNLIKELY(!frame)) {
+		// allocation failure is counted by get_frame, drop this frame
+		return NULL;
+	}
+	switch (mDecodeFormat) {
+	case UVC_FRAME_FORMAT_NV12:
+		result = uvc_mjpeg_decode2nv12(decoder, frame_mjpeg, frame);   // MJPEG => NV12
+		break;
+	case UVC_FRAME_FORMAT_I420:
+		result = uvc_mjpeg_decode2i420(decoder, frame_mjpeg, frame);   // MJPEG => I420
+		break;
+	case UVC_FRAME_FORMAT_NV21:
+		result = uvc_mjpeg_decode2nv21(decoder, frame_mjpeg, frame);   // MJPEG => NV21
+		break;
+	default:
+		result = uvc_mjpeg_decode2yuyv(decoder, frame_mjpeg, frame);   // MJPEG => yuyv
+		break;
+	}
+	if (UNLIKELY(result)) {
+		recycle_frame(frame);
+		frame = NULL;
+	}
+	return frame;
+}
+
+/**
+ * pass H.264 access units to IH264Callback without decoding, called on preview thread.
+ * all access units should be passed in order, so this does not drop them even if the callback is slow,
+ * previewFrames gets full and libuvc callback thread drops frames then,
+ * the parser skips access units until next IDR slice when the sequence number of frames jumped.
+ */
+void UVCPreview::do_passthrough(JNIEnv *env) {
+	ENTER();
+
+	mH264Parser.reset();
+	bool first = true;
+	for ( ; LIKELY(isRunning()) ; ) {
+		uvc_frame_t *frame = waitPreviewFrame();
+		if (LIKELY(frame)) {
+			if (UNLIKELY(!first && (frame->sequence != mH264Sequence + 1))) {
+				// broken or dropped frames
+				mH264Parser.discontinuity();
+			}
+			first = false;
+			mH264Sequence = frame->sequence;
+			passthrough_frame(env, frame);
+			recycle_frame(frame);
+		}
+	}
 
 	EXIT();
 }
 
+/**
+ * parse one H.264 frame and call IH264Callback#onSpsPps/#onAccessUnit,
+ * ByteBuffers wrap the frame and SPS/PPS directly and they are valid only while the callback is running
+ * same as output buffers of MediaCodec.
+ * @param frame this is not recycled here
+ */
+void UVCPreview::passthrough_frame(JNIEnv *env, uvc_frame_t *frame) {
+	jobject callback_obj = NULL;
+	jmethodID on_sps_pps = NULL, on_access_unit = NULL;
+	bool changed;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		if (mH264CallbackObj) {
+			// keep the callback alive even if setH264Callback deletes the global ref while calling it
+			callback_obj = env->NewLocalRef(mH264CallbackObj);
+			on_sps_pps = mOnSpsPps;
+			on_access_unit = mOnAccessUnit;
+		}
+		changed = mH264CallbackChanged;
+		mH264CallbackChanged = false;
+	}
+	pthread_mutex_unlock(&callback_mutex);
+	if (UNLIKELY(changed)) {
+		mH264Parser.resync();
+	}
+	// parse even without callback to keep track of SPS/PPS
+	h264_access_unit_t au;
+	const int result = mH264Parser.parse((uint8_t *)frame->data, frame->actual_bytes, au);
+	if (UNLIKELY(result || !callback_obj)) {
+		if (callback_obj) {
+			env->DeleteLocalRef(callback_obj);
+		}
+		return;
+	}
+	mCallbackStats.preview_frames++;
+	const uint64_t start = decode_time_ns();
+	if (au.config_changed) {
+		size_t sps_bytes, pps_bytes;
+		const uint8_t *sps = mH264Parser.sps(sps_bytes);
+		const uint8_t *pps = mH264Parser.pps(pps_bytes);
+		jobject sps_buf = env->NewDirectByteBuffer((void *)sps, sps_bytes);
+		jobject pps_buf = env->NewDirectByteBuffer((void *)pps, pps_bytes);
+		if (LIKELY(sps_buf && pps_buf)) {
+			env->CallVoidMethod(callback_obj, on_sps_pps, sps_buf, pps_buf);
+		}
+		env->ExceptionClear();
+		if (sps_buf) env->DeleteLocalRef(sps_buf);
+		if (pps_buf) env->DeleteLocalRef(pps_buf);
+	}
+	// size of access units varies, so ByteBuffer is created for each of them
+	jobject buf = env->NewDirectByteBuffer(au.data, au.bytes);
+	if (LIKELY(buf)) {
+		// capture time in CLOCK_MONOTONIC, same clock as System#nanoTime
+		env->CallVoidMethod(callback_obj, on_access_unit, buf, (jlong)frame->capture_time_ns, (jboolean)au.key_frame);
+		env->DeleteLocalRef(buf);
+	}
+	if (UNLIKELY(!buf || env->ExceptionCheck())) {
+		env->ExceptionClear();
+		mCallbackStats.errors++;
+	} else {
+		mCallbackStats.delivered++;
+	}
+	const uint64_t elapsed = decode_time_ns() - start;
+	mCallbackStats.total_ns += elapsed;
+	if (elapsed > mCallbackStats.max_ns) mCallbackStats.max_ns = elapsed;
+	env->DeleteLocalRef(callback_obj);
+}
+
 static void copyFrame(const uint8_t *src, uint8_t *dest, const int width, int height, const int stride_src, const int stride_dest) {
 	const int h8 = height % 8;
 	for (int i = 0; i < h8; i++) {
@@ -599,7 +1840,9 @@ static void copyFrame(const uint8_t *src, uint8_t *dest, const int width, int he
 
 
 // transfer specific frame data to the Surface(ANativeWindow)
-int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
+// @param resize if true, change buffer size of the window to the frame size when they are different,
+//			otherwise only the region that both have is copied
+int copyToSurface(uvc_frame_t *frame, ANativeWindow **window, const bool resize = false) {
 	// ENTER();
 	int result = 0;
 	if (LIKELY(*window)) {
@@ -620,6 +1863,10 @@ int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
 			// transfer from frame data to the Surface
 			copyFrame(src, dest, w, h, src_step, dest_step);
 			ANativeWindow_unlockAndPost(*window);
+			if (UNLIKELY(resize && ((buffer.width != frame->width) || (buffer.height != frame->height)))) {
+				// frame size changed by cropping, next buffer will have the size of the frame
+				ANativeWindow_setBuffersGeometry(*window, frame->width, frame->height, buffer.format);
+			}
 		} else {
 			result = -1;
 		}
@@ -640,6 +1887,12 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
 	}
 	pthread_mutex_unlock(&preview_mutex);
 	if (LIKELY(b)) {
+		// only the preview window follows the size of cropped frames, also resized once after the crop was cleared.
+		// capture window is encoder input and keeps its size
+		crop_rect_t rect;
+		const bool cropped = (window == &mPreviewWindow) && get_output_crop(rect);
+		const bool resize = cropped || ((window == &mPreviewWindow) && mPreviewCropped);
+		mPreviewCropped = cropped;
 		uvc_frame_t *converted;
 		if (convert_func) {
 			converted = get_frame(frame->width * frame->height * pixcelBytes);
@@ -647,7 +1900,7 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
 				b = convert_func(frame, converted);
 				if (!b) {
 					pthread_mutex_lock(&preview_mutex);
-					copyToSurface(converted, window);
+					copyToSurface(converted, window, resize);
 					pthread_mutex_unlock(&preview_mutex);
 				} else {
 					LOGE("failed converting");
@@ -656,7 +1909,7 @@ uvc_frame_t *UVCPreview::draw_preview_one(uvc_frame_t *frame, ANativeWindow **wi
 			}
 		} else {
 			pthread_mutex_lock(&preview_mutex);
-			copyToSurface(frame, window);
+			copyToSurface(frame, window, resize);
 			pthread_mutex_unlock(&preview_mutex);
 		}
 	}
@@ -675,8 +1928,9 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 		if (isRunning() && isCapturing()) {
 			mIsCapturing = false;
 			if (mCaptureWindow) {
-				pthread_cond_signal(&capture_sync);
+				captureQueue.wakeup();
 				pthread_cond_wait(&capture_sync, &capture_mutex);	// wait finishing capturing
+				captureQueue.resetProducerWakeup();
 			}
 		}
 		if (mCaptureWindow != capture_window) {
@@ -706,52 +1960,90 @@ int UVCPreview::setCaptureDisplay(ANativeWindow *capture_window) {
 	RETURN(0, int);
 }
 
-void UVCPreview::addCaptureFrame(uvc_frame_t *frame) {
-	pthread_mutex_lock(&capture_mutex);
+/**
+ * pass decoded frame to all consumers without copying it,
+ * pipeline, capture thread and callback thread take their own reference and
+ * preview window is drawn while they are working on the same frame.
+ * the frame goes back to the pool when the last consumer released it.
+ * @param frame this takes the ownership
+ */
+void UVCPreview::deliver_frame(uvc_frame_t *frame) {
+	FrameRef *ref = FrameRef::wrap(mFramePool, frame);
+	if (UNLIKELY(!ref)) {
+		return;
+	}
+	addCaptureFrame(ref);
+	draw_preview_one(ref->frame(), &mPreviewWindow, uvc_any2rgbx, 4);
+	ref->unref();
+}
+
+/**
+ * queue the frame to pipeline, capture thread and callback thread,
+ * each of them has own queue and policy so that slow one only drops frames for itself
+ * @param ref this adds references for consumers, the caller still owns its reference
+ */
+void UVCPreview::addCaptureFrame(FrameRef *ref) {
 	if (LIKELY(isRunning())) {
-		// keep only latest one
-		if (captureQueu) {
-			recycle_frame(captureQueu);
+		pthread_mutex_lock(&pipeline_mutex);
+		{
+			if (mPipeline) {
+				// the pipeline takes its own reference into its queue and never blocks here
+				mPipeline->queueFrameRef(ref);
+			}
+		}
+		pthread_mutex_unlock(&pipeline_mutex);
+		// reading mCaptureWindow/mFrameCallback without lock only decides whether this frame is passed
+		if (mCaptureWindow) {
+			FrameRef *dropped = offer_frame(captureQueue, mQueuePolicy[QUEUE_CAPTURE],
+				ref->ref(), mCaptureStats.capture_blocked, isRunning());
+			if (dropped) {
+				mCaptureStats.capture_busy++;
+				dropped->unref();
+			}
+		}
+		if (mFrameCallback) {
+			mCallbackStats.preview_frames++;
+			FrameRef *dropped = offer_frame(callbackQueue, mQueuePolicy[QUEUE_CALLBACK],
+				ref->ref(), mCaptureStats.callback_blocked, isRunning());
+			if (dropped) {
+				mCallbackStats.dropped_busy++;
+				dropped->unref();
+			}
 		}
-		captureQueu = frame;
-		pthread_cond_broadcast(&capture_sync);
-	} else { // still need to recycle frame if isRunning is false, otherwise memory leak can occur
-	    // BM added from https://github.com/saki4510t/UVCCamera/issues/259#issuecomment-341611634
-	    recycle_frame(frame);
 	}
-	pthread_mutex_unlock(&capture_mutex);
 }
 
 /**
  * get frame data for capturing, if not exist, block and wait
+ * @return NULL if preview stopped or woken up, the caller should call FrameRef#unref otherwise
  */
-uvc_frame_t *UVCPreview::waitCaptureFrame() {
-	uvc_frame_t *frame = NULL;
-	pthread_mutex_lock(&capture_mutex);
-	{
-		if (!captureQueu) {
-			pthread_cond_wait(&capture_sync, &capture_mutex);
-		}
-		if (LIKELY(isRunning() && captureQueu)) {
-			frame = captureQueu;
-			captureQueu = NULL;
-		}
+FrameRef *UVCPreview::waitCaptureFrame() {
+	FrameRef *ref = captureQueue.wait();
+	if (UNLIKELY(ref && !isRunning())) {
+		ref->unref();
+		ref = NULL;
 	}
-	pthread_mutex_unlock(&capture_mutex);
-	return frame;
+	return ref;
 }
 
 /**
  * clear drame data for capturing
+ * this should be called from capture thread or after the preview thread finished
  */
 void UVCPreview::clearCaptureFrame() {
-	pthread_mutex_lock(&capture_mutex);
-	{
-		if (captureQueu)
-			recycle_frame(captureQueu);
-		captureQueu = NULL;
+	for (FrameRef *ref = captureQueue.get(); ref; ref = captureQueue.get()) {
+		ref->unref();
+	}
+}
+
+/**
+ * clear frame data for frame callback
+ * this should be called from callback thread or after the preview thread finished
+ */
+void UVCPreview::clearCallbackFrame() {
+	for (FrameRef *ref = callbackQueue.get(); ref; ref = callbackQueue.get()) {
+		ref->unref();
 	}
-	pthread_mutex_unlock(&capture_mutex);
 }
 
 //======================================================================
@@ -787,7 +2079,6 @@ void UVCPreview::do_capture(JNIEnv *env) {
 	ENTER();
 
 	clearCaptureFrame();
-	callbackPixelFormatChanged();
 	for (; isRunning() ;) {
 		mIsCapturing = true;
 		if (mCaptureWindow) {
@@ -795,16 +2086,25 @@ void UVCPreview::do_capture(JNIEnv *env) {
 		} else {
 			do_capture_idle_loop(env);
 		}
+		// setCaptureDisplay waits on capture_sync while holding capture_mutex
+		pthread_mutex_lock(&capture_mutex);
 		pthread_cond_broadcast(&capture_sync);
+		pthread_mutex_unlock(&capture_mutex);
 	}	// end of for (; isRunning() ;)
 	EXIT();
 }
 
+/**
+ * wait until capture Surface is set, preview thread passes frames only while capture Surface is set
+ */
 void UVCPreview::do_capture_idle_loop(JNIEnv *env) {
 	ENTER();
 	
 	for (; isRunning() && isCapturing() ;) {
-		do_capture_callback(env, waitCaptureFrame());
+		FrameRef *ref = waitCaptureFrame();
+		if (ref) {
+			ref->unref();
+		}
 	}
 	
 	EXIT();
@@ -816,20 +2116,20 @@ void UVCPreview::do_capture_idle_loop(JNIEnv *env) {
 void UVCPreview::do_capture_surface(JNIEnv *env) {
 	ENTER();
 
-	uvc_frame_t *frame = NULL;
+	FrameRef *ref = NULL;
 	uvc_frame_t *converted = NULL;
 	char *local_picture_path;
 
 	for (; isRunning() && isCapturing() ;) {
-		frame = waitCaptureFrame();
-		if (LIKELY(frame)) {
-			// frame data is always YUYV format.
+		ref = waitCaptureFrame();
+		if (LIKELY(ref)) {
+			// frame is YUYV/NV12/I420/NV21 as it was decoded, uvc_any2rgbx converts any of them
 			if LIKELY(isCapturing()) {
 				if (UNLIKELY(!converted)) {
 					converted = get_frame(previewBytes);
 				}
 				if (LIKELY(converted)) {
-					int b = uvc_any2rgbx(frame, converted);
+					int b = uvc_any2rgbx(ref->frame(), converted);
 					if (!b) {
 						if (LIKELY(mCaptureWindow)) {
 							copyToSurface(converted, &mCaptureWindow);
@@ -837,7 +2137,7 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 					}
 				}
 			}
-			do_capture_callback(env, frame);
+			ref->unref();
 		}
 	}
 	if (converted) {
@@ -851,41 +2151,77 @@ void UVCPreview::do_capture_surface(JNIEnv *env) {
 	EXIT();
 }
 
+//======================================================================
+/*
+ * thread function
+ * @param vptr_args pointer to UVCPreview instance
+ */
+// static
+void *UVCPreview::callback_thread_func(void *vptr_args) {
+
+	ENTER();
+	UVCPreview *preview = reinterpret_cast<UVCPreview *>(vptr_args);
+	if (LIKELY(preview)) {
+		JavaVM *vm = getVM();
+		JNIEnv *env;
+		// attach to JavaVM
+		vm->AttachCurrentThread(&env, NULL);
+		preview->do_callback(env);	// never return until finish previewing
+		// detach from JavaVM
+		vm->DetachCurrentThread();
+		MARK("DetachCurrentThread");
+	}
+	PRE_EXIT();
+	pthread_exit(NULL);
+}
+
+/**
+ * the actual function for frame callback, this runs on its own thread
+ * so that slow callback does not delay capture Surface(encoder)
+ */
+void UVCPreview::do_callback(JNIEnv *env) {
+
+	ENTER();
+
+	clearCallbackFrame();
+	for (; isRunning() ;) {
+		FrameRef *ref = callbackQueue.wait();
+		if (LIKELY(ref)) {
+			if (LIKELY(isRunning())) {
+				do_capture_callback(env, ref->frame());
+			}
+			ref->unref();
+		}
+	}
+	EXIT();
+}
+
 /**
 * call IFrameCallback#onFrame if needs
+* no lock is held while calling Java so slow callback only drops frames for callback
+* and does not block preview thread, setFrameCallback and setCaptureDisplay.
+* the frame is shared with other consumers, FrameCallback converts/copies it into its own buffer
  */
 void UVCPreview::do_capture_callback(JNIEnv *env, uvc_frame_t *frame) {
 	ENTER();
 
 	if (LIKELY(frame)) {
-		uvc_frame_t *callback_frame = frame;
-		if (mFrameCallbackObj) {
-			if (mFrameCallbackFunc) {
-				callback_frame = get_frame(callbackPixelBytes);
-				if (LIKELY(callback_frame)) {
-					int b = mFrameCallbackFunc(frame, callback_frame);
-					recycle_frame(frame);
-					if (UNLIKELY(b)) {
-						LOGW("failed to convert for callback frame");
-						goto SKIP;
-					}
-				} else {
-					LOGW("failed to allocate for callback frame");
-					callback_frame = frame;
-					goto SKIP;
-				}
-			}
-			jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-			pthread_mutex_lock(&capture_mutex); // BM added from https://github.com/saki4510t/UVCCamera/issues/244#issuecomment-397502197
-			if (iframecallback_fields.onFrame != NULL) {
-			    env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
+		FrameCallback *callback = acquireFrameCallback();
+		if (callback) {
+			const uint64_t start = decode_time_ns();
+			const int result = callback->onFrame(env, frame);
+			const uint64_t elapsed = decode_time_ns() - start;
+			if (LIKELY(!result)) {
+				mCallbackStats.delivered++;
+			} else if (result > 0) {
+				mCallbackStats.dropped_no_buffer++;
+			} else {
+				mCallbackStats.errors++;
 			}
-			pthread_mutex_unlock(&capture_mutex);
-			env->ExceptionClear();
-			env->DeleteLocalRef(buf);
+			mCallbackStats.total_ns += elapsed;
+			if (elapsed > mCallbackStats.max_ns) mCallbackStats.max_ns = elapsed;
+			callback->unref(env);
 		}
- SKIP:
-		recycle_frame(callback_frame);
 	}
 	EXIT();
 }
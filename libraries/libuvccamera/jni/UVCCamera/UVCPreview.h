@@ -29,6 +29,14 @@
 #include <pthread.h>
 #include <android/native_window.h>
 #include "objectarray.h"
+#include "spscqueue.h"
+#include "MJPEGDecoderPool.h"
+#include "FramePool.h"
+#include "FrameCallback.h"
+#include "H264Parser.h"
+#include "MJPEGRecorder.h"
+
+class IPipeline;
 
 #pragma interface
 
@@ -39,7 +47,9 @@
 #define DEFAULT_PREVIEW_MODE 0
 #define DEFAULT_BANDWIDTH 1.0f
 
-typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
+#define FRAME_FORMAT_YUYV 0		// same as UVCCamera#FRAME_FORMAT_XXX
+#define FRAME_FORMAT_MJPEG 1
+#define FRAME_FORMAT_H264 2		// frame based H.264, passed through without decoding
 
 #define PIXEL_FORMAT_RAW 0		// same as PIXEL_FORMAT_YUV
 #define PIXEL_FORMAT_YUV 1
@@ -47,13 +57,83 @@ typedef uvc_error_t (*convFunc_t)(uvc_frame_t *in, uvc_frame_t *out);
 #define PIXEL_FORMAT_RGBX 3
 #define PIXEL_FORMAT_YUV20SP 4
 #define PIXEL_FORMAT_NV21 5		// YVU420SemiPlanar
+#define PIXEL_FORMAT_NV12 6		// YUV420SemiPlanar, MJPEG is decoded into this directly
+#define PIXEL_FORMAT_I420 7		// YUV420Planar, MJPEG is decoded into this directly
+
+#define QUEUE_PREVIEW 0			// same as UVCCamera#QUEUE_XXX, libusb callback thread => preview thread
+#define QUEUE_CAPTURE 1			// preview thread => capture thread(capture Surface)
+#define QUEUE_CALLBACK 2		// preview thread => callback thread(frame callback)
+#define QUEUE_NUM 3
+
+#define QUEUE_DROP_OLDEST 0		// same as UVCCamera#QUEUE_XXX, keep latest frames(latest-wins)
+#define QUEUE_DROP_NEWEST 1		// keep queued frames and drop incoming one(oldest-wins)
+#define QUEUE_BLOCK 2			// wait for space until timeout, then drop incoming one
+
+#define MAX_QUEUE_DEPTH 16
+#define MAX_QUEUE_TIMEOUT_MS 1000
+
+// frame delivery statistics of callback thread, each field is written from only one thread
+typedef struct callback_stats {
+	uint64_t start_ns;			// time when preview started
+	uint32_t preview_frames;	// number of frames that preview thread passed to callback thread
+	uint32_t dropped_busy;		// number of frames dropped because callback thread was busy(e.g. slow callback)
+	uint32_t delivered;			// number of frames passed to frame callback
+	uint32_t dropped_no_buffer;	// number of frames dropped because IPooledFrameCallback held all buffers
+	uint32_t errors;			// number of frames failed to convert or callback threw exception
+	uint64_t total_ns;			// sum of time to convert and call frame callback
+	uint64_t max_ns;			// max time to convert and call frame callback
+} callback_stats_t;
+
+// region of interest
+typedef struct crop_rect {
+	int x, y;
+	int width, height;		// 0 if not cropped
+} crop_rect_t;
+
+// frames discarded on native capture path before reaching preview thread and frame pool usage
+typedef struct capture_stats {
+	uint32_t broken;			// frames with unexpected size that libuvc passed
+	uint32_t payload_error;		// frames that had payload errors on USB
+	uint32_t missing_eof;		// frames completed by FID toggle although the camera sets EOF(end of the frame was lost)
+	uint32_t bad_length;		// MJPEG frames too short or too long to be a JPEG of the frame size
+	uint32_t missing_soi;		// MJPEG frames that do not start with SOI marker
+	uint32_t missing_eoi;		// MJPEG frames that do not end with EOI marker(truncated)
+	uint32_t alloc_failed;		// frames dropped because no frame could be allocated
+	uint32_t preview_queue_full;// frames dropped because preview queue was full(see UVCPreview#setQueuePolicy)
+	uint32_t decimated;			// frames dropped before decoding to reduce frame rate to target fps
+	uint32_t capture_busy;		// frames that capture thread skipped because it was still writing to capture Surface
+	uint32_t preview_blocked;	// frames that waited for space in preview queue(QUEUE_BLOCK)
+	uint32_t capture_blocked;	// frames that waited for space in capture queue(QUEUE_BLOCK)
+	uint32_t callback_blocked;	// frames that waited for space in callback queue(QUEUE_BLOCK)
+} capture_stats_t;
+
+// what a queue does when it is full, fields are read by the producer without lock
+typedef struct queue_policy {
+	int policy;					// QUEUE_DROP_OLDEST/QUEUE_DROP_NEWEST/QUEUE_BLOCK
+	int depth;					// max number of frames in the queue
+	int64_t timeout_ns;			// max time to wait for space with QUEUE_BLOCK
+} queue_policy_t;
+
+// stream control that was committed for a request, lets next connection of the same device skip negotiation.
+// this is passed to/from Java as raw bytes, version rejects bytes of a different build of this struct
+typedef struct stream_ctrl_cache {
+	uint32_t version;			// sizeof(stream_ctrl_cache_t)
+	int mode;					// requested frame mode, size and fps range that the control was negotiated for
+	int width, height;
+	int min_fps, max_fps;
+	uvc_stream_ctrl_t ctrl;		// committed control
+} stream_ctrl_cache_t;
 
-// for callback to Java object
-typedef struct {
-	jmethodID onFrame;
-} Fields_iframecallback;
+// stream control negotiation of this connection
+typedef struct ctrl_cache_stats {
+	uint32_t hits;				// previews that started with the cached control
+	uint32_t misses;			// previews that needed full negotiation although the cache was set
+	uint32_t fallbacks;			// cached control was accepted by probe but commit failed, renegotiated
+	uint64_t negotiate_ns;		// time to get stream control of the last preview
+} ctrl_cache_stats_t;
 
 class UVCPreview {
+	friend class MJPEGDecoderPool;
 private:
 	uvc_device_handle_t *mDeviceHandle;
 	ANativeWindow *mPreviewWindow;
@@ -64,12 +144,24 @@ private:
 	int frameWidth, frameHeight;
 	int frameMode;
 	size_t frameBytes;
+	int requestOutputWidth, requestOutputHeight;
+	int mDecodeScale;					// MJPEG frames are decoded at 1/mDecodeScale with DCT scaling
+	int outputWidth, outputHeight;		// size of decoded/converted frames, smaller than frame size when scaled
+	pthread_mutex_t crop_mutex;
+	crop_rect_t mCropRect;				// requested region in frame coordinates, can be changed on every frame
+	bool mPreviewCropped;				// preview window has the size of cropped frames, only accessed from preview thread
+	bool get_output_crop(crop_rect_t &rect);
+	uvc_frame_t *crop_frame(uvc_frame_t *frame);
 	pthread_t preview_thread;
 	pthread_mutex_t preview_mutex;
-	pthread_cond_t preview_sync;
-	ObjectArray<uvc_frame_t *> previewFrames;
+	SpscQueue<uvc_frame_t *> previewFrames;	// libusb callback thread => preview thread
 	int previewFormat;
 	size_t previewBytes;
+	uvc_mjpeg_decoder_t *mDecoder;		// reused for all MJPEG frames, only accessed from preview thread
+	volatile uvc_frame_format mDecodeFormat;	// output format of MJPEG decoder, YUYV/NV12/I420
+	int mDecodeThreads;					// number of MJPEG decoder threads, decode on preview thread if 1
+	MJPEGDecoderPool *mDecoderPool;		// only used when mDecodeThreads > 1
+	decode_stats_t mDecodeStats;		// decode statistics when decoding on preview thread
 //
 	volatile bool mIsCapturing;
 	volatile bool mHasCaptureThread;
@@ -77,39 +169,83 @@ private:
 	pthread_t capture_thread;
 	pthread_mutex_t capture_mutex;
 	pthread_cond_t capture_sync;
-	uvc_frame_t *captureQueu;			// keep latest frame
-	jobject mFrameCallbackObj;
-	convFunc_t mFrameCallbackFunc;
-	Fields_iframecallback iframecallback_fields;
-	int mPixelFormat;
-	size_t callbackPixelBytes;
+	SpscQueue<FrameRef *> captureQueue;	// preview thread => capture thread, see mQueuePolicy
+	volatile bool mHasCallbackThread;
+	pthread_t callback_thread;
+	SpscQueue<FrameRef *> callbackQueue;	// preview thread => callback thread, see mQueuePolicy
+	queue_policy_t mQueuePolicy[QUEUE_NUM];
+	pthread_mutex_t callback_mutex;		// only guards swapping/referencing mFrameCallback, never held while calling Java
+	FrameCallback *mFrameCallback;
+	callback_stats_t mCallbackStats;
+	capture_stats_t mCaptureStats;
+	bool mHeadless;					// start preview without preview window
+// frame decimation, pacer state is only accessed from libuvc callback thread
+	volatile float mTargetFps;		// 0 if decimation is disabled
+	int64_t mSourceIntervalNs;		// frame interval that was negotiated with the camera
+	int64_t mPacerIntervalNs;		// output frame interval that the pacer is running with
+	int64_t mPacerDueNs;			// capture time when next frame should be passed
+	bool pace_frame(uvc_frame_t *frame);
+	bool mSeenEof;					// the camera sets EOF bit, only accessed from libuvc callback thread
+	bool validate_frame(uvc_frame_t *frame);
+// H.264 pass through, parser is only accessed from preview thread
+	jobject mH264CallbackObj;		// global ref of IH264Callback, guarded by callback_mutex
+	jmethodID mOnSpsPps;
+	jmethodID mOnAccessUnit;
+	bool mH264CallbackChanged;		// new callback needs SPS/PPS and starts from next IDR slice
+	H264Parser mH264Parser;
+	uint32_t mH264Sequence;			// sequence number of the last frame that reached the parser
+	void do_passthrough(JNIEnv *env);
+	void passthrough_frame(JNIEnv *env, uvc_frame_t *frame);
+// MJPEG recording without decoding, frames are written from libuvc callback thread
+	pthread_mutex_t recorder_mutex;
+	MJPEGRecorder *mRecorder;		// guarded by recorder_mutex
+	record_stats_t mRecordStats;	// counters of the last recording that was stopped
+// stream control cache, guarded by preview_mutex
+	stream_ctrl_cache_t mCtrlCache;
+	bool mHasCtrlCache;
+	bool mCtrlFromCache;			// control of current preview came from the cache, only accessed from preview thread
+	ctrl_cache_stats_t mCtrlCacheStats;
+	bool try_cached_ctrl(uvc_stream_ctrl_t *ctrl);
+	void update_ctrl_cache(const uvc_stream_ctrl_t *ctrl);
+// frame graph that receives decoded frames, owned by Java side
+	pthread_mutex_t pipeline_mutex;	// held while queueing so that the pipeline is not released under us
+	IPipeline *mPipeline;
+// frame graph that receives compressed frames as the camera sent them, owned by Java side
+	pthread_mutex_t raw_pipeline_mutex;	// only held by libuvc callback thread and #setRawPipeline
+	IPipeline *mRawPipeline;
 // improve performance by reducing memory allocation
-	pthread_mutex_t pool_mutex;
-	ObjectArray<uvc_frame_t *> mFramePool;
+	FramePool *mFramePool;
 	uvc_frame_t *get_frame(size_t data_bytes);
 	void recycle_frame(uvc_frame_t *frame);
-	void init_pool(size_t data_bytes);
-	void clear_pool();
+	void prewarm_pool();
+	void prewarm_raw_pool(size_t data_bytes);
+	volatile bool mRawPrewarmed;
 //
 	void clearDisplay();
 	static void uvc_preview_frame_callback(uvc_frame_t *frame, void *vptr_args);
+	static uvc_frame_t *uvc_preview_frame_obtain(size_t data_bytes, void *vptr_args);
 	void addPreviewFrame(uvc_frame_t *frame);
 	uvc_frame_t *waitPreviewFrame();
 	void clearPreviewFrame();
 	static void *preview_thread_func(void *vptr_args);
 	int prepare_preview(uvc_stream_ctrl_t *ctrl);
 	void do_preview(uvc_stream_ctrl_t *ctrl);
+	uvc_frame_t *decode_mjpeg(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *frame_mjpeg);
 	uvc_frame_t *draw_preview_one(uvc_frame_t *frame, ANativeWindow **window, convFunc_t func, int pixelBytes);
 //
-	void addCaptureFrame(uvc_frame_t *frame);
-	uvc_frame_t *waitCaptureFrame();
+	void deliver_frame(uvc_frame_t *frame);
+	void addCaptureFrame(FrameRef *ref);
+	FrameRef *waitCaptureFrame();
 	void clearCaptureFrame();
+	void clearCallbackFrame();
 	static void *capture_thread_func(void *vptr_args);
 	void do_capture(JNIEnv *env);
 	void do_capture_surface(JNIEnv *env);
 	void do_capture_idle_loop(JNIEnv *env);
+	FrameCallback *acquireFrameCallback();
+	static void *callback_thread_func(void *vptr_args);
+	void do_callback(JNIEnv *env);
 	void do_capture_callback(JNIEnv *env, uvc_frame_t *frame);
-	void callbackPixelFormatChanged();
 public:
 	UVCPreview(uvc_device_handle_t *devh);
 	~UVCPreview();
@@ -117,7 +253,25 @@ public:
 	inline const bool isRunning() const;
 	int setPreviewSize(int width, int height, int min_fps, int max_fps, int mode, float bandwidth = 1.0f);
 	int setPreviewDisplay(ANativeWindow *preview_window);
-	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
+	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format, int num_buffers = 0);
+	int releaseFrame(int slot);
+	int setDecodeThreads(int num_threads);
+	int setOutputSize(int width, int height);
+	int setCropRect(int x, int y, int width, int height);
+	int setHeadless(bool headless);
+	int setTargetFps(float fps);
+	int setQueuePolicy(int queue, int policy, int depth, int timeout_ms);
+	int setH264Callback(JNIEnv *env, jobject h264_callback_obj);
+	int startRecording(const char *path);
+	int stopRecording();
+	int setPipeline(IPipeline *pipeline);
+	int setRawPipeline(IPipeline *pipeline);
+	int setStreamCtrlCache(const void *data, size_t bytes);
+	size_t getStreamCtrlCache(void *data, size_t bytes);
+	char *getDecodeStats();
+	char *getCallbackStats();
+	char *getCaptureStats();
+	int trimMemory(int level);
 	int startPreview();
 	int stopPreview();
 	inline const bool isCapturing() const;
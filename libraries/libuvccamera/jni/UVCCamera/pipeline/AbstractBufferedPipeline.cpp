@@ -13,20 +13,31 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
+#include <string.h>
+
 #include "utilbase.h"
 #include "AbstractBufferedPipeline.h"
 
 /*public*/
-AbstractBufferedPipeline::AbstractBufferedPipeline(const int &_max_buffer_num, const int &_init_pool_num,
-	const size_t &_default_frame_size, const bool &drop_frames_when_buffer_empty)
-:	IPipeline(_default_frame_size),
-	max_buffer_num(_max_buffer_num),
+AbstractBufferedPipeline::AbstractBufferedPipeline(const pipeline_type_t &_type,
+	const int &_max_buffer_num, const int &_init_pool_num, const size_t &_default_frame_size)
+:	IPipeline(_type, _default_frame_size),
+	max_buffer_num(_max_buffer_num > 0 ? _max_buffer_num : 1),
 	init_pool_num(_init_pool_num),
-	drop_frames(drop_frames_when_buffer_empty),
-	total_frame_num(0)
+	mFramePool(NULL),
+	frame_buffers(_max_buffer_num > 0 ? _max_buffer_num : 1),
+	mDropPolicy(PIPELINE_DROP_OLDEST),
+	mMinIntervalNs(0),
+	mPacerDueNs(0),
+	mPacerLastNs(0)
 {
 	ENTER();
 
+	// frames in the queue, one on the handler thread and one that next stage is copying
+	// frames that other stages still reference are recycled when they are released
+	mFramePool = new FramePool(max_buffer_num + 2);
+	pthread_mutex_init(&queue_mutex, NULL);
+
 	EXIT();
 }
 
@@ -34,7 +45,12 @@ AbstractBufferedPipeline::AbstractBufferedPipeline(const int &_max_buffer_num, c
 AbstractBufferedPipeline::~AbstractBufferedPipeline() {
 	ENTER();
 
+	// handler thread should be already stopped by #release because on_stop of subclass can not be called here
 	release();
+	// the pool is deleted after other stages released frames of this stage
+	mFramePool->release();
+	mFramePool = NULL;
+	pthread_mutex_destroy(&queue_mutex);
 	setState(PIPELINE_STATE_UNINITIALIZED);
 
 	EXIT();
@@ -61,21 +77,13 @@ int AbstractBufferedPipeline::start() {
 	if (!isRunning()) {
 		mIsRunning = true;
 		setState(PIPELINE_STATE_STARTING);
-		buffer_mutex.lock();
-		{
-			result = pthread_create(&handler_thread, NULL, handler_thread_func, (void *) this);
-		}
-		buffer_mutex.unlock();
+		memset(&mStats, 0, sizeof(mStats));
+		mStats.start_ns = pipeline_time_ns();
+		result = pthread_create(&handler_thread, NULL, handler_thread_func, (void *) this);
 		if (UNLIKELY(result != EXIT_SUCCESS)) {
 			LOGW("AbstractBufferedPipeline::already running/could not create thread etc.");
 			setState(PIPELINE_STATE_INITIALIZED);
 			mIsRunning = false;
-			buffer_mutex.lock();
-			{
-				pool_sync.broadcast();
-				buffer_sync.broadcast();
-			}
-			buffer_mutex.unlock();
 		}
 	}
 	RETURN(result, int);
@@ -89,11 +97,10 @@ int AbstractBufferedPipeline::stop() {
 	if (LIKELY(b)) {
 		setState(PIPELINE_STATE_STOPPING);
 		mIsRunning = false;
-		pool_sync.broadcast();
-		buffer_sync.broadcast();
+		frame_buffers.wakeup();
 		LOGD("pthread_join:handler_thread");
 		if (pthread_join(handler_thread, NULL) != EXIT_SUCCESS) {
-			LOGW("PublisherPipeline::terminate publisher thread: pthread_join failed");
+			LOGW("AbstractBufferedPipeline::terminate handler thread: pthread_join failed");
 		}
 		setState(PIPELINE_STATE_INITIALIZED);
 		LOGD("handler_thread finished");
@@ -108,19 +115,28 @@ int AbstractBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 	ENTER();
 
 	int ret = UVC_ERROR_OTHER;
-	if (LIKELY(frame)) {
+	if (LIKELY(frame && isRunning())) {
 		// get empty frame from frame pool
 		uvc_frame_t *copy = get_frame(frame->data_bytes);
 		if (UNLIKELY(!copy)) {
-			LOGD("buffer pool is empty and exceeds the limit, drop frame");
+			LOGD("failed to allocate frame, drop frame");
+			mStats.dropped_no_buffer++;
 			RETURN(UVC_ERROR_NO_MEM, int);
 		}
-		// duplicate frame buffer and pass copy to publisher
+		// duplicate frame buffer and pass copy to handler thread
 		ret = uvc_duplicate_frame(frame, copy);
 		if (LIKELY(!ret)) {
-			ret = add_frame(copy);
+			FrameRef *ref = wrap_frame(copy);
+			if (LIKELY(ref)) {
+				ret = add_frame(ref);
+			} else {
+				mStats.dropped_no_buffer++;
+				recycle_frame(copy);
+				ret = UVC_ERROR_NO_MEM;
+			}
 		} else {
 			LOGW("uvc_duplicate_frame failed:%d", ret);
+			mStats.dropped_no_buffer++;
 			recycle_frame(copy);
 		}
 	}
@@ -128,94 +144,62 @@ int AbstractBufferedPipeline::queueFrame(uvc_frame_t *frame) {
 	RETURN(ret, int);
 }
 
+/*public*/
+int AbstractBufferedPipeline::queueFrameRef(FrameRef *ref) {
+	ENTER();
+
+	int ret = UVC_ERROR_OTHER;
+	if (LIKELY(ref && isRunning())) {
+		// share the frame instead of copying it
+		ret = add_frame(ref->ref());
+	}
+
+	RETURN(ret, int);
+}
+
+/**
+ * @param policy what to drop when the queue is full
+ * @param max_fps 0 to pass all frames
+ */
+/*public*/
+int AbstractBufferedPipeline::setQueuePolicy(const pipeline_drop_policy_t &policy, const float &max_fps) {
+	ENTER();
+
+	pthread_mutex_lock(&queue_mutex);
+	{
+		mDropPolicy = policy;
+		mMinIntervalNs = max_fps > 0.0f ? (int64_t)(1000000000.0 / max_fps) : 0;
+		mPacerDueNs = 0;
+	}
+	pthread_mutex_unlock(&queue_mutex);
+
+	RETURN(0, int);
+}
+
 //********************************************************************************
 //
 //********************************************************************************
 /**
  * get uvc_frame_t from frame pool
  * if pool is empty, create new frame
- * this function does not confirm the frame size
- * and you may need to confirm the size
  */
 uvc_frame_t *AbstractBufferedPipeline::get_frame(const size_t &data_bytes) {
-	uvc_frame_t *frame = NULL;
-	Mutex::Autolock lock(pool_mutex);
-
-	if (UNLIKELY(frame_pool.empty() && (total_frame_num < max_buffer_num))) {
-		uint32_t n = total_frame_num * 2;
-		if (n > max_buffer_num) {
-			n = max_buffer_num;
-		}
-		n -= total_frame_num;
-		if (LIKELY(n > 0)) {
-			for (int i = 0; i < n; i++) {
-				frame = uvc_allocate_frame(data_bytes);
-				total_frame_num++;
-			}
-			LOGW("allocate new frame:%d", total_frame_num);
-		} else {
-			LOGW("number of allocated frame exceeds limit");
-		}
-	}
-	if (UNLIKELY(frame_pool.empty() && !drop_frames)) {
-		// if pool is empty and need to block(avoid dropping frames), wait frame recycling.
-		for (; mIsRunning && frame_pool.empty() ; ) {
-			pool_sync.wait(pool_mutex);
-		}
-	}
-	if (!frame_pool.empty()) {
-		frame = frame_pool.front();
-		frame_pool.pop_front();
-	}
-
-	return frame;
+	return mFramePool->obtain(data_bytes);
 }
 
 void AbstractBufferedPipeline::recycle_frame(uvc_frame_t *frame) {
-	ENTER();
-
 	if (LIKELY(frame)) {
-		Mutex::Autolock lock(pool_mutex);
-		if (LIKELY(frame_pool.size() < max_buffer_num)) {
-			frame_pool.push_back(frame);
-			frame = NULL;
-		}
-		if (UNLIKELY(frame)) {
-			// if pool overflowed
-			total_frame_num--;
-			uvc_free_frame(frame);
-		}
-		pool_sync.signal();
+		mFramePool->recycle(frame);
 	}
-
-	EXIT();
 }
 
 void AbstractBufferedPipeline::init_pool(const size_t &data_bytes) {
 	ENTER();
 
-	uvc_frame_t *frame = NULL;
-
-	clear_pool();
-	pool_mutex.lock();
-	{
-
-		size_t frame_sz = data_bytes / 4;	// expects 25%, this will be able to much lower
-		if (!frame_sz) {
-			frame_sz = DEFAULT_FRAME_SZ;
-		}
-		for (uint32_t i = 0; i < init_pool_num; i++) {
-			frame = uvc_allocate_frame(frame_sz);
-			if (LIKELY(frame)) {
-				frame_pool.push_back(frame);
-				total_frame_num++;
-			} else {
-				LOGW("failed to allocate new frame:%d", total_frame_num);
-				break;
-			}
-		}
+	// DEFAULT_FRAME_SZ means the frame size is not known until the first frame comes
+	if (init_pool_num && (data_bytes > DEFAULT_FRAME_SZ)) {
+		mFramePool->prewarm(data_bytes, init_pool_num);
 	}
-	pool_mutex.unlock();
 
 	EXIT();
 }
@@ -223,13 +207,8 @@ void AbstractBufferedPipeline::init_pool(const size_t &data_bytes) {
 void AbstractBufferedPipeline::clear_pool() {
 	ENTER();
 
-	Mutex::Autolock lock(pool_mutex);
+	mFramePool->clear();
 
-	for (auto iter = frame_pool.begin(); iter != frame_pool.end(); iter++) {
-		total_frame_num--;
-		uvc_free_frame(*iter);
-	}
-	frame_pool.clear();
 	EXIT();
 }
 
@@ -237,67 +216,112 @@ void AbstractBufferedPipeline::clear_pool() {
 //
 //********************************************************************************
 
+/**
+ * release all frames in the queue
+ * this should be called while the handler thread is not running
+ */
 void AbstractBufferedPipeline::clear_frames() {
-	Mutex::Autolock lock(buffer_mutex);
+	for (FrameRef *ref = frame_buffers.get(); ref; ref = frame_buffers.get()) {
+		ref->unref();
+	}
+}
 
-	for (auto iter = frame_buffers.begin(); iter != frame_buffers.end(); iter++) {
-		recycle_frame(*iter);
+/**
+ * drop frames evenly on a grid of the min interval, same as UVCPreview#pace_frame
+ * but the source interval is measured from incoming frames because upstream may already drop frames.
+ * must be called with queue_mutex held
+ * @return true if the frame should be queued
+ */
+bool AbstractBufferedPipeline::pace_frame(const uvc_frame_t *frame) {
+	const int64_t interval = mMinIntervalNs;
+	const int64_t ts = frame->capture_time_ns > 0 ? frame->capture_time_ns : (int64_t)pipeline_time_ns();
+	const int64_t source = ts - mPacerLastNs;
+	mPacerLastNs = ts;
+	if (!interval) {
+		return true;
+	}
+	// half of incoming frame interval absorbs jitter of capture time
+	const int64_t slack = (source > 0) && (source < interval) ? source / 2 : 0;
+	if (UNLIKELY(!mPacerDueNs
+		|| (ts < mPacerDueNs - interval - slack)
+		|| (ts > mPacerDueNs + interval))) {
+		// first frame, capture time went backward or upstream stalled, restart the grid
+		mPacerDueNs = ts + interval;
+		return true;
+	}
+	if (ts < mPacerDueNs - slack) {
+		return false;
 	}
-	frame_buffers.clear();
+	mPacerDueNs += interval;
+	return true;
 }
 
-int AbstractBufferedPipeline::add_frame(uvc_frame_t *frame) {
+/**
+ * put the frame into the queue
+ * @param ref this takes the reference of the caller, it is released if the frame is dropped
+ */
+int AbstractBufferedPipeline::add_frame(FrameRef *ref) {
 	ENTER();
 
-	buffer_mutex.lock();
+	int result = 0;
+	FrameRef *removed = NULL;
+	pthread_mutex_lock(&queue_mutex);
 	{
-		// FIXME as current implementation, transferring frame data on my device is slower than that coming from UVC camera... just drop them now
-		if (frame_buffers.size() > max_buffer_num) {
-			// erase old frames
-			int cnt = 0;
-			for (auto iter = frame_buffers.begin();
-				 (iter != frame_buffers.end()) && (cnt < 5); iter++, cnt++) {
-				recycle_frame(*iter);
-				iter = frame_buffers.erase(iter);
+		if (UNLIKELY(!pace_frame(ref->frame()))) {
+			mStats.dropped_paced++;
+			removed = ref;
+			result = 1;
+		} else if (mDropPolicy == PIPELINE_DROP_NEWEST) {
+			// keep queued frames, e.g. a stage that should not skip the frames it already has
+			if (LIKELY(frame_buffers.put(ref))) {
+				mStats.queued++;
+			} else {
+				mStats.dropped_full++;
+				removed = ref;
+				result = 1;
+			}
+		} else {
+			// keep latest frames, a stage that can not catch up drops the oldest ones
+			removed = frame_buffers.replace(ref);
+			mStats.queued++;
+			if (removed) {
+				mStats.dropped_full++;
 			}
-			LOGW("droped frame data");
 		}
-		if (isRunning() && (frame_buffers.size() < max_buffer_num)) {
-			frame_buffers.push_back(frame);
-			frame = NULL;
+		const uint32_t depth = frame_buffers.size();
+		if (depth > mStats.queue_high_water) {
+			mStats.queue_high_water = depth;
 		}
-		buffer_sync.signal();
 	}
-	buffer_mutex.unlock();
-	if (frame) {
-		recycle_frame(frame);
+	pthread_mutex_unlock(&queue_mutex);
+	if (removed) {
+		removed->unref();
 	}
 
-	RETURN(0, int);
+	RETURN(result, int);
 }
 
-uvc_frame_t *AbstractBufferedPipeline::wait_frame() {
-	uvc_frame_t *frame = NULL;
-
-	Mutex::Autolock lock(buffer_mutex);
-
-	if (!frame_buffers.size()) {
-		buffer_sync.wait(buffer_mutex);
+FrameRef *AbstractBufferedPipeline::wait_frame() {
+	FrameRef *ref = frame_buffers.wait();
+	if (UNLIKELY(ref && !isRunning())) {
+		ref->unref();
+		ref = NULL;
 	}
-	if (LIKELY(isRunning() && frame_buffers.size() > 0)) {
-		frame = frame_buffers.front();
-		frame_buffers.pop_front();
-	}
-	return frame;
+	return ref;
 }
 
 uint32_t AbstractBufferedPipeline::get_frame_count() {
-	ENTER();
+	return frame_buffers.size();
+}
 
-	Mutex::Autolock lock(buffer_mutex);
-	uint32_t result = frame_buffers.size();
+/*protected*/
+int AbstractBufferedPipeline::queue_depth() {
+	return frame_buffers.size();
+}
 
-	RETURN(result, uint32_t);
+/*protected*/
+int AbstractBufferedPipeline::queue_capacity() {
+	return frame_buffers.capacity();
 }
 
 //********************************************************************************
@@ -323,16 +347,21 @@ void AbstractBufferedPipeline::do_loop() {
 	on_start();
 	setState(PIPELINE_STATE_RUNNING);
 	for ( ; LIKELY(isRunning()) ; ) {
-		uvc_frame_t *frame = wait_frame();
-		if ((LIKELY(frame))) {
-			try {
-				if (!handle_frame(frame)) {
-					chain_frame(frame);
-				}
-			} catch (...) {
-				LOGE("exception");
+		FrameRef *ref = wait_frame();
+		if ((LIKELY(ref))) {
+			const uint64_t start = pipeline_time_ns();
+			const int result = handle_frame(ref->frame());
+			const uint64_t elapsed = pipeline_time_ns() - start;
+			mStats.handled++;
+			mStats.total_ns += elapsed;
+			if (elapsed > mStats.max_ns) mStats.max_ns = elapsed;
+			if (UNLIKELY(result < 0)) {
+				mStats.errors++;
+			} else if (!result) {
+				// next stage shares this frame
+				chain_frame_ref(ref);
 			}
-			recycle_frame(frame);
+			ref->unref();
 		}
 	}
 	setState(PIPELINE_STATE_STOPPING);
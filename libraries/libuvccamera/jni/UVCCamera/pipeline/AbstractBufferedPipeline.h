@@ -7,11 +7,10 @@
 
 #include <stdlib.h>
 #include <pthread.h>
-#include <list>
-#include "Mutex.h"
-#include "Condition.h"
 
 #include "libUVCCamera.h"
+#include "spscqueue.h"
+#include "FramePool.h"
 #include "IPipeline.h"
 
 #pragma interface
@@ -19,26 +18,33 @@
 #define DEFAULT_INIT_FRAME_POOL_SZ 2
 #define DEFAULT_MAX_FRAME_NUM 8
 
-using namespace android;
-
 class AbstractBufferedPipeline;
 
-class AbstractBufferedPipeline : virtual public IPipeline {
+/**
+ * stage that has its own bounded queue and handler thread.
+ * #queueFrameRef takes a reference of the shared frame and #queueFrame copies the frame into a pooled frame,
+ * then the frame is put into the queue without blocking. when the queue is full the oldest frame
+ * (or the incoming one with PIPELINE_DROP_NEWEST) is dropped so a slow stage never blocks upstream.
+ * frames can also be dropped evenly before queueing to keep max fps of this stage.
+ * the handler thread calls #handle_frame for each frame and passes the same shared frame
+ * to next pipeline if it returns 0.
+ */
+class AbstractBufferedPipeline : public IPipeline {
 private:
 	const uint32_t max_buffer_num;
 	const uint32_t init_pool_num;
-	const bool drop_frames;
-	volatile uint32_t total_frame_num;
-
 // frame buffer pool to improve performance by reducing memory allocation
-	mutable Mutex pool_mutex;
-	Condition pool_sync;
-	std::list<uvc_frame_t *> frame_pool;
-// frame buffers
+	FramePool *mFramePool;
+// frame buffers, queue_mutex serializes producers so that more than one upstream stage can queue frames
 	pthread_t handler_thread;
-	mutable Mutex buffer_mutex;
-	Condition buffer_sync;
-	std::list<uvc_frame_t *> frame_buffers;
+	pthread_mutex_t queue_mutex;
+	SpscQueue<FrameRef *> frame_buffers;
+// queue policy and pacer state, guarded by queue_mutex
+	pipeline_drop_policy_t mDropPolicy;
+	int64_t mMinIntervalNs;			// 0 if pacing is disabled
+	int64_t mPacerDueNs;			// capture time when next frame should be queued
+	int64_t mPacerLastNs;			// capture time of the last incoming frame
+	bool pace_frame(const uvc_frame_t *frame);
 	static void *handler_thread_func(void *vptr_args);
 
 protected:
@@ -47,23 +53,34 @@ protected:
 	void recycle_frame(uvc_frame_t *frame);
 	void init_pool(const size_t &data_bytes);
 	void clear_pool();
+	inline FrameRef *wrap_frame(uvc_frame_t *frame) { return FrameRef::wrap(mFramePool, frame); };
 // frame buffers
 	void clear_frames();
-	int add_frame(uvc_frame_t *frame);
-	uvc_frame_t *wait_frame();
+	int add_frame(FrameRef *ref);
+	FrameRef *wait_frame();
 	uint32_t get_frame_count();
+	virtual int queue_depth();
+	virtual int queue_capacity();
 	virtual void do_loop();
 	virtual void on_start() = 0;
 	virtual void on_stop() = 0;
+	/**
+	 * process one frame on the handler thread, the frame is shared with other stages and must not be modified
+	 * @return 0 to pass the frame to next pipeline, positive value if this stage already passed/consumed it,
+	 * 			negative value if failed
+	 */
 	virtual int handle_frame(uvc_frame_t *frame) = 0;
 public:
-	AbstractBufferedPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &init_pool_num = DEFAULT_INIT_FRAME_POOL_SZ,
-		const size_t &default_frame_size = DEFAULT_FRAME_SZ, const bool &drop_frames_when_buffer_empty = true);
+	AbstractBufferedPipeline(const pipeline_type_t &type,
+		const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &init_pool_num = DEFAULT_INIT_FRAME_POOL_SZ,
+		const size_t &default_frame_size = DEFAULT_FRAME_SZ);
 	virtual ~AbstractBufferedPipeline();
 	virtual int release();
 	virtual int start();
 	virtual int stop();
 	virtual int queueFrame(uvc_frame_t *frame);
+	virtual int queueFrameRef(FrameRef *ref);
+	virtual int setQueuePolicy(const pipeline_drop_policy_t &policy, const float &max_fps);
 };
 
 
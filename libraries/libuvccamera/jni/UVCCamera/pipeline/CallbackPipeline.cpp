@@ -14,7 +14,6 @@
 #endif
 
 #include "utilbase.h"
-#include "common_utils.h"
 #include "libUVCCamera.h"
 
 #include "pipeline_helper.h"
@@ -22,15 +21,14 @@
 #include "CallbackPipeline.h"
 
 #define INIT_FRAME_POOL_SZ 2
-#define MAX_FRAME_NUM 8
 
-CallbackPipeline::CallbackPipeline(const size_t &_data_bytes)
-:	CaptureBasePipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
-	mFrameCallbackFunc(NULL),
-	callbackPixelBytes(0)
+CallbackPipeline::CallbackPipeline(const int &_max_buffer_num)
+:	CaptureBasePipeline(PIPELINE_TYPE_CALLBACK, _max_buffer_num, INIT_FRAME_POOL_SZ, DEFAULT_FRAME_SZ),
+	mFrameCallback(NULL)
 {
 	ENTER();
 
+	pthread_mutex_init(&callback_mutex, NULL);
 	setState(PIPELINE_STATE_INITIALIZED);
 
 	EXIT();
@@ -39,206 +37,84 @@ CallbackPipeline::CallbackPipeline(const size_t &_data_bytes)
 CallbackPipeline::~CallbackPipeline() {
 	ENTER();
 
+	// the handler thread was already stopped by #release
+	if (mFrameCallback) {
+		mFrameCallback->unref(getEnv());
+		mFrameCallback = NULL;
+	}
+	pthread_mutex_destroy(&callback_mutex);
+
 	EXIT();
 }
 
+/**
+ * set IFrameCallback, this can be called while running
+ * @param frame_callback_obj global ref of IFrameCallback, NULL to remove
+ */
 int CallbackPipeline::setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format) {
 
 	ENTER();
-	Mutex::Autolock lock(capture_mutex);
-
-	if (isRunning() && isCapturing()) {
-		mIsCapturing = false;
-		if (mFrameCallbackObj) {
-			capture_sync.signal();
-			capture_sync.wait(capture_mutex);	// wait finishing capturing
-		}
+	FrameCallback *callback = FrameCallback::create(env, frame_callback_obj, pixel_format, 0);
+	FrameCallback *prev;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		prev = mFrameCallback;
+		mFrameCallback = callback;
 	}
-	if (!env->IsSameObject(mFrameCallbackObj, frame_callback_obj))	{
-		iframecallback_fields.onFrame = NULL;
-		if (mFrameCallbackObj) {
-			env->DeleteGlobalRef(mFrameCallbackObj);
-		}
-		mFrameCallbackObj = frame_callback_obj;
-		if (frame_callback_obj) {
-			// get method IDs of Java object for callback
-			jclass clazz = env->GetObjectClass(frame_callback_obj);
-			if (LIKELY(clazz)) {
-				iframecallback_fields.onFrame = env->GetMethodID(clazz,
-					"onFrame",	"(Ljava/nio/ByteBuffer;)V");
-			} else {
-				LOGW("failed to get object class");
-			}
-			env->ExceptionClear();
-			if (!iframecallback_fields.onFrame) {
-				LOGE("Can't find IFrameCallback#onFrame");
-				env->DeleteGlobalRef(frame_callback_obj);
-				mFrameCallbackObj = frame_callback_obj = NULL;
-			}
-		}
-	}
-	if (frame_callback_obj) {
-		mPixelFormat = pixel_format;
+	pthread_mutex_unlock(&callback_mutex);
+	if (prev) {
+		prev->unref(env);
 	}
 	RETURN(0, int);
 }
 
-void CallbackPipeline::callbackPixelFormatChanged(const uint32_t &width, const uint32_t &height) {
-	mFrameCallbackFunc = NULL;
-	const size_t sz = width * height;
-	switch (mPixelFormat) {
-	  case PIXEL_FORMAT_RAW:
-		LOGI("PIXEL_FORMAT_RAW:");
-		callbackPixelBytes = sz * 2;
-		break;
-	  case PIXEL_FORMAT_YUV:
-		LOGI("PIXEL_FORMAT_YUV:");
-		mFrameCallbackFunc = uvc_any2yuyv;
-		callbackPixelBytes = sz * 2;
-		break;
-	  case PIXEL_FORMAT_RGB565:
-		LOGI("PIXEL_FORMAT_RGB565:");
-		mFrameCallbackFunc = uvc_any2rgb565;
-		callbackPixelBytes = sz * 2;
-		break;
-	  case PIXEL_FORMAT_RGBX:
-		LOGI("PIXEL_FORMAT_RGBX:");
-		mFrameCallbackFunc = uvc_any2rgbx;
-		callbackPixelBytes = sz * 4;
-		break;
-	  case PIXEL_FORMAT_YUV20SP:
-		LOGI("PIXEL_FORMAT_YUV20SP:");
-		mFrameCallbackFunc = uvc_any2yuv420SP;
-		callbackPixelBytes = (sz * 3) / 2;
-		break;
-	  case PIXEL_FORMAT_NV21:
-		LOGI("PIXEL_FORMAT_NV21:");
-		mFrameCallbackFunc = uvc_any2iyuv420SP;
-		callbackPixelBytes = (sz * 3) / 2;
-		break;
-	}
-}
-
-void CallbackPipeline::do_capture(JNIEnv *env) {
-	ENTER();
-
-	uvc_frame_t *frame;
-	uvc_frame_t *temp = get_frame(default_frame_size);
-	uvc_frame_t *callback_frame;
-	uint32_t width = 0, height = 0;
-	size_t sz = default_frame_size;
-
-	if (LIKELY(temp)) {
-		for (; isRunning() && isCapturing();) {
-			frame = waitCaptureFrame();
-			if ((LIKELY(frame))) {
-				if (UNLIKELY((width != frame->width) || (height != frame->height))) {
-					width = frame->width;
-					height = frame->height;
-					callbackPixelFormatChanged(width, height);
-					uvc_ensure_frame_size(temp, callbackPixelBytes);
-					sz = callbackPixelBytes;
-				}
-				if (mFrameCallbackObj) {
-					callback_frame = frame;
-					sz = frame->actual_bytes;
-					if (mFrameCallbackFunc) {
-						callback_frame = temp;
-						sz = callbackPixelBytes;
-						int b = mFrameCallbackFunc(frame, temp);
-						if (UNLIKELY(b)) {
-							LOGW("failed to convert to callback frame");
-							goto SKIP;
-						}
-					}
-					jobject buf = env->NewDirectByteBuffer(callback_frame->data, callbackPixelBytes);
-					env->CallVoidMethod(mFrameCallbackObj, iframecallback_fields.onFrame, buf);
-					env->ExceptionClear();
-					env->DeleteLocalRef(buf);
-				}
-SKIP:
-				recycle_frame(frame);
-			}
+/**
+ * get current frame callback with incrementing its reference count
+ * @return NULL if frame callback is not set, the caller should call FrameCallback#unref otherwise
+ */
+FrameCallback *CallbackPipeline::acquireFrameCallback() {
+	FrameCallback *callback;
+	pthread_mutex_lock(&callback_mutex);
+	{
+		callback = mFrameCallback;
+		if (callback) {
+			callback->ref();
 		}
-		recycle_frame(temp);
 	}
-
-	EXIT();
+	pthread_mutex_unlock(&callback_mutex);
+	return callback;
 }
 
-//**********************************************************************
-//
-//**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz) {
-
-	ENTER();
-	CallbackPipeline *pipeline = new CallbackPipeline();
-	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
-	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
-}
-
-static void nativeDestroy(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
+/* override protected */
+void CallbackPipeline::on_stop() {
 	ENTER();
-	setField_long(env, thiz, "mNativePtr", 0);
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		pipeline->release();
-		SAFE_DELETE(pipeline);
-	}
 	EXIT();
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
+/* override protected */
+int CallbackPipeline::handle_frame(uvc_frame_t *frame) {
 	ENTER();
-	jint result = 0;
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
 
-	ENTER();
-	jint result = JNI_ERR;
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(pipeline);
+	int result = 0;
+	FrameCallback *callback = acquireFrameCallback();
+	if (LIKELY(callback)) {
+		// the frame is converted into a buffer of the callback so this stage never modifies it
+		result = callback->onFrame(mEnv, frame) < 0 ? -1 : 0;
+		callback->unref(mEnv);
 	}
 
-	RETURN(result, jint);
+	RETURN(result, int);
 }
 
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jint max_frames) {
 
-	jint result = JNI_ERR;
 	ENTER();
-	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
-	}
-	RETURN(result, jint);
+	CallbackPipeline *pipeline = new CallbackPipeline(max_frames);
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
 
 static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
@@ -248,7 +124,7 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 	ENTER();
 	CallbackPipeline *pipeline = reinterpret_cast<CallbackPipeline *>(id_pipeline);
 	if (LIKELY(pipeline)) {
-		jobject frame_callback_obj = env->NewGlobalRef(jIFrameCallback);
+		jobject frame_callback_obj = jIFrameCallback ? env->NewGlobalRef(jIFrameCallback) : NULL;
 		result = pipeline->setFrameCallback(env, frame_callback_obj, pixel_format);
 	}
 	RETURN(result, jint);
@@ -258,15 +134,7 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"()J", (void *) nativeCreate },
-	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
-
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
-
+	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
 	{ "nativeSetFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;I)I", (void *) nativeSetFrameCallback },
 };
 
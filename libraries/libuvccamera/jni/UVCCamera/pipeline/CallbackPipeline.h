@@ -6,20 +6,22 @@
 #define PUPILMOBILE_CALLBACKPIPELINE_H
 
 #include "libUVCCamera.h"
+#include "FrameCallback.h"
 #include "CaptureBasePipeline.h"
 
-class CallbackPipeline : virtual public CaptureBasePipeline {
+/**
+ * stage that passes frames to IFrameCallback on its own thread
+ */
+class CallbackPipeline : public CaptureBasePipeline {
 private:
-	jobject mFrameCallbackObj;
-	convFunc_t mFrameCallbackFunc;
-	Fields_iframecallback iframecallback_fields;
-	int mPixelFormat;
-	size_t callbackPixelBytes;
-	void callbackPixelFormatChanged(const uint32_t &width, const uint32_t &height);
+	pthread_mutex_t callback_mutex;		// only guards swapping/referencing mFrameCallback
+	FrameCallback *mFrameCallback;
+	FrameCallback *acquireFrameCallback();
 protected:
-	virtual void do_capture(JNIEnv *env);
+	virtual void on_stop();
+	virtual int handle_frame(uvc_frame_t *frame);
 public:
-	CallbackPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ);
+	CallbackPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM);
 	virtual ~CallbackPipeline();
 	int setFrameCallback(JNIEnv *env, jobject frame_callback_obj, int pixel_format);
 };
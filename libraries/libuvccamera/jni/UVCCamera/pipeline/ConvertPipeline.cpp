@@ -14,7 +14,6 @@
 #endif
 
 #include "utilbase.h"
-#include "common_utils.h"
 
 #include "libUVCCamera.h"
 #include "pipeline_helper.h"
@@ -22,11 +21,11 @@
 #include "ConvertPipeline.h"
 
 #define INIT_FRAME_POOL_SZ 2
-#define MAX_FRAME_NUM 8
 
 /* public */
-ConvertPipeline::ConvertPipeline(const size_t &_data_bytes, const int &_target_pixel_format)
-:	AbstractBufferedPipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
+ConvertPipeline::ConvertPipeline(const size_t &_data_bytes, const int &_target_pixel_format,
+	const int &_max_buffer_num)
+:	AbstractBufferedPipeline(PIPELINE_TYPE_CONVERT, _max_buffer_num, INIT_FRAME_POOL_SZ, _data_bytes),
 	target_pixel_format(_target_pixel_format),
 	mFrameConvFunc(NULL)
 {
@@ -48,7 +47,7 @@ ConvertPipeline::~ConvertPipeline() {
 void ConvertPipeline::updateConvFunc() {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
+	// this is only called before the handler thread starts or on the handler thread
 	mFrameConvFunc = NULL;
 	switch (target_pixel_format) {
 		case PIXEL_FORMAT_RAW:
@@ -96,115 +95,49 @@ void ConvertPipeline::on_stop() {
 int ConvertPipeline::handle_frame(uvc_frame_t *frame) {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	if (next_pipeline) {
-		uvc_frame_t *copy = frame;
-		if (mFrameConvFunc) {
-			copy = get_frame(frame->actual_bytes);
-			if (LIKELY(copy)) {
-				const uvc_error_t r = mFrameConvFunc(frame, copy);
-				if (UNLIKELY(r)) {
-					LOGW("failed to convert:%d", r);
-					recycle_frame(copy);
-					copy = frame;
-				}
+	if (!mFrameConvFunc) {
+		// PIXEL_FORMAT_RAW, pass frames as they are
+		RETURN(0, int);
+	}
+	int result = -1;
+	uvc_frame_t *converted = get_frame(frame->width * frame->height * 4);
+	if (LIKELY(converted)) {
+		const uvc_error_t r = mFrameConvFunc(frame, converted);
+		if (LIKELY(!r)) {
+			// downstream stages share the converted frame, it goes back to the pool of this stage
+			FrameRef *ref = wrap_frame(converted);
+			if (LIKELY(ref)) {
+				chain_frame_ref(ref);
+				ref->unref();
+				result = 1;
+			} else {
+				recycle_frame(converted);
 			}
+		} else {
+			LOGW("failed to convert:%d", r);
+			recycle_frame(converted);
 		}
-		next_pipeline->queueFrame(copy);
 	}
 
-	RETURN(1, int);
+	RETURN(result, int);
 }
 
 //**********************************************************************
 //
 //**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz, jint pixel_format) {
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jint pixel_format, jint max_frames) {
 
 	ENTER();
-	ConvertPipeline *pipeline = new ConvertPipeline(DEFAULT_FRAME_SZ, pixel_format);
-	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
+	ConvertPipeline *pipeline = new ConvertPipeline(DEFAULT_FRAME_SZ, pixel_format, max_frames);
 	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
 
-static void nativeDestroy(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	setField_long(env, thiz, "mNativePtr", 0);
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		pipeline->release();
-		SAFE_DELETE(pipeline);
-	}
-	EXIT();
-}
-
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	jint result = 0;
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
-	ENTER();
-	jint result = JNI_ERR;
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	jint result = JNI_ERR;
-	ENTER();
-	ConvertPipeline *pipeline = reinterpret_cast<ConvertPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
-	}
-	RETURN(result, jint);
-}
-
 //**********************************************************************
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
-	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
-
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
-
+	{ "nativeCreate",					"(II)J", (void *) nativeCreate },
 };
 
 int register_convert_pipeline(JNIEnv *env) {
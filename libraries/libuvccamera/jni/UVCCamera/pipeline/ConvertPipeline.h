@@ -6,9 +6,14 @@
 #define PUPILMOBILE_CONVERTPIPELINE_H
 
 #include "libUVCCamera.h"
+#include "UVCPreview.h"
+#include "FrameCallback.h"
 #include "AbstractBufferedPipeline.h"
 
-class ConvertPipeline : virtual public AbstractBufferedPipeline {
+/**
+ * stage that converts frames into target pixel format and passes converted frames to next pipeline
+ */
+class ConvertPipeline : public AbstractBufferedPipeline {
 private:
 	const int target_pixel_format;
 	convFunc_t mFrameConvFunc;
@@ -18,7 +23,8 @@ protected:
 	virtual void on_stop();
 	virtual int handle_frame(uvc_frame_t *frame);
 public:
-	ConvertPipeline(const size_t &_data_bytes, const int &target_pixel_format = PIXEL_FORMAT_RAW);
+	ConvertPipeline(const size_t &_data_bytes, const int &target_pixel_format = PIXEL_FORMAT_RAW,
+		const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM);
 	virtual ~ConvertPipeline();
 };
 
@@ -2,8 +2,20 @@
 // Created by saki on 15/11/25.
 //
 
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <string.h>
+
 #include "utilbase.h"
-#include "common_utils.h"
 #include "libUVCCamera.h"
 
 #include "pipeline_helper.h"
@@ -11,11 +23,13 @@
 #include "DistributePipeline.h"
 
 DistributePipeline::DistributePipeline(const int &_max_buffer_num, const int &init_pool_num,
-		const size_t &default_frame_size, const bool &drop_frames_when_buffer_empty)
-:	AbstractBufferedPipeline(_max_buffer_num, init_pool_num, default_frame_size, drop_frames_when_buffer_empty)
+		const size_t &default_frame_size)
+:	AbstractBufferedPipeline(PIPELINE_TYPE_DISTRIBUTE, _max_buffer_num, init_pool_num, default_frame_size),
+	num_pipelines(0)
 {
 	ENTER();
 
+	memset(pipelines, 0, sizeof(pipelines));
 	setState(PIPELINE_STATE_INITIALIZED);
 
 	EXIT();
@@ -24,9 +38,11 @@ DistributePipeline::DistributePipeline(const int &_max_buffer_num, const int &in
 DistributePipeline::~DistributePipeline() {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	pipelines.clear();
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		num_pipelines = 0;
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	EXIT();
 }
@@ -44,39 +60,74 @@ void DistributePipeline::on_stop() {
 int DistributePipeline::handle_frame(uvc_frame_t *frame) {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
+	// frames are passed in #chain_frame_ref so that all branches share them
+	RETURN(0, int);
+}
+
+/**
+ * pass the shared frame to all branches and next pipeline,
+ * each branch takes its own reference so the frame is recycled after the slowest branch released it
+ */
+/* override protected */
+int DistributePipeline::chain_frame_ref(FrameRef *ref) {
+	ENTER();
 
-	for (auto iter = pipelines.begin(); iter != pipelines.end(); iter++) {
-		(*iter)->queueFrame(frame);
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		for (int i = 0; i < num_pipelines; i++) {
+			pipelines[i]->queueFrameRef(ref);
+		}
+		if (next_pipeline) {
+			next_pipeline->queueFrameRef(ref);
+		}
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	RETURN(0, int);
 }
 
+/**
+ * add a branch
+ * @return 0 if added, -1 if already MAX_DISTRIBUTE_PIPELINES branches were added
+ */
 int DistributePipeline::addPipeline(IPipeline *pipeline) {
 	ENTER();
 
+	int result = 0;
 	if (pipeline) {
-		Mutex::Autolock lock(pipeline_mutex);
-		pipelines.push_back(pipeline);
+		pthread_mutex_lock(&pipeline_mutex);
+		{
+			if (num_pipelines < MAX_DISTRIBUTE_PIPELINES) {
+				pipelines[num_pipelines++] = pipeline;
+			} else {
+				LOGW("too many pipelines");
+				result = -1;
+			}
+		}
+		pthread_mutex_unlock(&pipeline_mutex);
 	}
 
-	RETURN(0, int);
+	RETURN(result, int);
 }
 
 int DistributePipeline::removePipeline(IPipeline *pipeline) {
 	ENTER();
 
 	if (pipeline) {
-		Mutex::Autolock lock(pipeline_mutex);
-
-		for (auto iter = pipelines.begin(); iter != pipelines.end(); ) {
-			if (*iter == pipeline) {
-				iter = pipelines.erase(iter);
-			} else {
-				iter++;
+		pthread_mutex_lock(&pipeline_mutex);
+		{
+			for (int i = 0; i < num_pipelines; ) {
+				if (pipelines[i] == pipeline) {
+					for (int j = i; j < num_pipelines - 1; j++) {
+						pipelines[j] = pipelines[j + 1];
+					}
+					pipelines[--num_pipelines] = NULL;
+				} else {
+					i++;
+				}
 			}
 		}
+		pthread_mutex_unlock(&pipeline_mutex);
 	}
 
 	RETURN(0, int);
@@ -85,53 +136,14 @@ int DistributePipeline::removePipeline(IPipeline *pipeline) {
 //**********************************************************************
 //
 //**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz) {
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jint max_frames) {
 
 	ENTER();
-	DistributePipeline *pipeline = new DistributePipeline();
-	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
+	DistributePipeline *pipeline = new DistributePipeline(max_frames);
 	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
 
-static void nativeDestroy(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	setField_long(env, thiz, "mNativePtr", 0);
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		pipeline->release();
-		SAFE_DELETE(pipeline);
-	}
-	EXIT();
-}
-
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-	jint result = 0;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
-
-	ENTER();
-	jint result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
-	}
-
-	RETURN(result, jint);
-}
-
 static jint nativeAddPipeline(JNIEnv *env, jobject thiz,
 	ID_TYPE id_pipeline, jobject pipeline_obj) {
 
@@ -160,45 +172,13 @@ static jint nativeRemovePipeline(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
-}
-
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	jint result = JNI_ERR;
-	ENTER();
-	DistributePipeline *pipeline = reinterpret_cast<DistributePipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
-	}
-	RETURN(result, jint);
-}
-
 //**********************************************************************
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"()J", (void *) nativeCreate },
-	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
-
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
 	{ "nativeAddPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeAddPipeline },
 	{ "nativeRemovePipeline",			"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeRemovePipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
 };
 
 int register_distribute_pipeline(JNIEnv *env) {
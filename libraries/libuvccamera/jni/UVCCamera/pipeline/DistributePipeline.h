@@ -9,16 +9,24 @@
 
 #pragma interface
 
-class DistributePipeline : virtual public AbstractBufferedPipeline {
+#define MAX_DISTRIBUTE_PIPELINES 8
+
+/**
+ * stage that passes every frame to all added pipelines without copying it,
+ * each of them queues a reference of the frame with its own queue policy so a slow branch only drops its own frames
+ */
+class DistributePipeline : public AbstractBufferedPipeline {
 private:
-	std::list<IPipeline *> pipelines;
+	IPipeline *pipelines[MAX_DISTRIBUTE_PIPELINES];	// guarded by pipeline_mutex
+	int num_pipelines;
 protected:
 	virtual void on_start();
 	virtual void on_stop();
 	virtual int handle_frame(uvc_frame_t *frame);
+	virtual int chain_frame_ref(FrameRef *ref);
 public:
 	DistributePipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM, const int &init_pool_num = DEFAULT_INIT_FRAME_POOL_SZ,
-			const size_t &default_frame_size = DEFAULT_FRAME_SZ, const bool &drop_frames_when_buffer_empty = true);
+			const size_t &default_frame_size = DEFAULT_FRAME_SZ);
 	virtual ~DistributePipeline();
 	virtual int addPipeline(IPipeline *pipeline);
 	virtual int removePipeline(IPipeline *pipeline);
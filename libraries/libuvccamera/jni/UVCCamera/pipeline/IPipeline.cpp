@@ -14,23 +14,33 @@
 #endif
 
 #include <stdlib.h>
+#include <string.h>
 
 #include "utilbase.h"
-#include "common_utils.h"
+
+#include "rapidjson/rapidjson.h"
+#include "rapidjson/stringbuffer.h"
+#include "rapidjson/writer.h"
 
 #include "libUVCCamera.h"
 #include "pipeline_helper.h"
 #include "IPipeline.h"
 
+using namespace rapidjson;
+
 /*public*/
-IPipeline::IPipeline(const size_t &_default_frame_size)
-:	state(PIPELINE_STATE_UNINITIALIZED),
+IPipeline::IPipeline(const pipeline_type_t &_type, const size_t &_default_frame_size)
+:	type(_type),
+	state(PIPELINE_STATE_UNINITIALIZED),
 	mIsRunning(false),
 	default_frame_size(_default_frame_size),
 	next_pipeline(NULL)
 {
 	ENTER();
 
+	pthread_mutex_init(&pipeline_mutex, NULL);
+	memset(&mStats, 0, sizeof(mStats));
+
 	EXIT();
 }
 
@@ -38,6 +48,8 @@ IPipeline::IPipeline(const size_t &_default_frame_size)
 IPipeline::~IPipeline() {
 	ENTER();
 
+	pthread_mutex_destroy(&pipeline_mutex);
+
 	EXIT();
 }
 
@@ -54,10 +66,12 @@ void IPipeline::setState(const pipeline_state_t &new_state) { state = new_state;
 int IPipeline::setPipeline(IPipeline *pipeline) {
 	ENTER();
 
-	Mutex::Autolock lock(pipeline_mutex);
-
-	// XXX do I need to delete next_pipeline if it is not NULL?
-	next_pipeline = pipeline;
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		// next pipeline is owned by Java side, only the link is changed here
+		next_pipeline = pipeline;
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	RETURN(0, int);
 }
@@ -70,12 +84,98 @@ int IPipeline::chain_frame(uvc_frame_t *frame) {
 	ENTER();
 
 	int result = -1;
-	Mutex::Autolock lock(pipeline_mutex);
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		if (next_pipeline) {
+			result = next_pipeline->queueFrame(frame);
+		}
+	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
-	if (next_pipeline) {
-		next_pipeline->queueFrame(frame);
-		result = 0;
+	RETURN(result, int);
+}
+
+/**
+ * pass the shared frame to next_pipeline, next pipeline takes its own reference if it keeps the frame
+ * the caller still owns its reference
+ */
+int IPipeline::chain_frame_ref(FrameRef *ref) {
+	ENTER();
+
+	int result = -1;
+	pthread_mutex_lock(&pipeline_mutex);
+	{
+		if (next_pipeline) {
+			result = next_pipeline->queueFrameRef(ref);
+		}
 	}
+	pthread_mutex_unlock(&pipeline_mutex);
 
 	RETURN(result, int);
 }
+
+/*public*/
+int IPipeline::queueFrameRef(FrameRef *ref) {
+	return LIKELY(ref) ? queueFrame(ref->frame()) : UVC_ERROR_INVALID_PARAM;
+}
+
+static const char *type_name(const pipeline_type_t &type) {
+	switch (type) {
+	case PIPELINE_TYPE_SIMPLE_BUFFERED:	return "simple";
+	case PIPELINE_TYPE_TIME_SHIFT:		return "time_shift";
+	case PIPELINE_TYPE_CALLBACK:		return "callback";
+	case PIPELINE_TYPE_CONVERT:			return "convert";
+	case PIPELINE_TYPE_PREVIEW:			return "preview";
+	case PIPELINE_TYPE_PUBLISHER:		return "publisher";
+	case PIPELINE_TYPE_DISTRIBUTE:		return "distribute";
+	default:							return "unknown";
+	}
+}
+
+/**
+ * get counters of this stage as JSON string
+ * @return the caller should free returned string
+ */
+char *IPipeline::getStats() {
+	ENTER();
+
+	const pipeline_stats_t stats = mStats;
+	const uint64_t elapsed_ns = stats.start_ns ? pipeline_time_ns() - stats.start_ns : 0;
+	StringBuffer buffer;
+	Writer<StringBuffer> writer(buffer);
+
+	writer.StartObject();
+	{
+		writer.String("type");
+		writer.String(type_name(type));
+		writer.String("state");
+		writer.Int(getState());
+		writer.String("queued");
+		writer.Uint(stats.queued);
+		writer.String("dropped_full");
+		writer.Uint(stats.dropped_full);
+		writer.String("dropped_no_buffer");
+		writer.Uint(stats.dropped_no_buffer);
+		writer.String("dropped_paced");
+		writer.Uint(stats.dropped_paced);
+		writer.String("handled");
+		writer.Uint(stats.handled);
+		writer.String("errors");
+		writer.Uint(stats.errors);
+		writer.String("fps");
+		writer.Double(elapsed_ns ? stats.handled * 1000000000.0 / elapsed_ns : 0.0);
+		writer.String("avg_us");
+		writer.Uint64(stats.handled ? stats.total_ns / stats.handled / 1000 : 0);
+		writer.String("max_us");
+		writer.Uint64(stats.max_ns / 1000);
+		writer.String("queue");
+		writer.Int(queue_depth());
+		writer.String("queue_max");
+		writer.Int(queue_capacity());
+		writer.String("queue_high_water");
+		writer.Uint(stats.queue_high_water);
+	}
+	writer.EndObject();
+
+	RETURN(strdup(buffer.GetString()), char *);
+}
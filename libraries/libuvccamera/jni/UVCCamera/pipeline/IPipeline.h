@@ -7,19 +7,18 @@
 
 #include <stdlib.h>
 #include <pthread.h>
-#include "Mutex.h"
+#include <time.h>
 
 #include "libUVCCamera.h"
+#include "FramePool.h"
 
 #pragma interface
 
-using namespace android;
-
 #define DEFAULT_FRAME_SZ 1024
 
 typedef enum pipeline_type {
 	PIPELINE_TYPE_SIMPLE_BUFFERED = 0,
-	PIPELINE_TYPE_SQLITE_BUFFERED = 10,
+	PIPELINE_TYPE_TIME_SHIFT = 10,
 	PIPELINE_TYPE_UVC_CONTROL = 100,
 	PIPELINE_TYPE_CALLBACK = 200,
 	PIPELINE_TYPE_CONVERT = 300,
@@ -37,10 +36,30 @@ typedef enum _pipeline_state {
 	PIPELINE_STATE_STOPPING = 50,
 } pipeline_state_t;
 
-class IPipeline;
+// what a stage does when a frame comes while its queue is full
+typedef enum pipeline_drop_policy {
+	PIPELINE_DROP_OLDEST = 0,	// keep latest frames, drop the oldest one in the queue
+	PIPELINE_DROP_NEWEST = 1,	// keep queued frames, drop the incoming one
+} pipeline_drop_policy_t;
+
+// counters of one stage, queue side fields are written only from the thread that queues frames
+// and handler side fields only from the handler thread of the stage
+typedef struct pipeline_stats {
+	uint64_t start_ns;			// time when the stage started
+	uint32_t queued;			// frames accepted into the queue of this stage
+	uint32_t dropped_full;		// oldest frames dropped because the queue was full(this stage is slower than upstream)
+	uint32_t dropped_no_buffer;	// frames dropped because no frame could be allocated for the copy
+	uint32_t dropped_paced;		// frames dropped to keep max fps of this stage
+	uint32_t queue_high_water;	// max frames that were waiting in the queue
+	uint32_t handled;			// frames this stage processed
+	uint32_t errors;			// frames this stage failed to process
+	uint64_t total_ns;			// sum of time to process frames
+	uint64_t max_ns;			// max time to process a frame
+} pipeline_stats_t;
 
 class IPipeline {
 private:
+	const pipeline_type_t type;
 	volatile pipeline_state_t state;
 	// force inhibiting copy/assignment
 	IPipeline(const IPipeline &src);
@@ -48,27 +67,60 @@ private:
 protected:
 	volatile bool mIsRunning;
 	const size_t default_frame_size;
-	mutable Mutex pipeline_mutex;
+	pthread_mutex_t pipeline_mutex;	// guards next_pipeline
 	IPipeline *next_pipeline;
+	pipeline_stats_t mStats;
 	void setState(const pipeline_state_t &new_state);
 	/**
 	 * if handle_frame return 0, handler_thread call this function
 	 * set frame to next pipeline
-	 * this may block caller thread while the pipeline is full
 	 * @return 0: success queueing, other: failed
 	 */
 	virtual int chain_frame(uvc_frame_t *frame);
+	/**
+	 * pass the shared frame to next pipeline without copying it
+	 * @return 0: success queueing, other: failed
+	 */
+	virtual int chain_frame_ref(FrameRef *ref);
+	virtual int queue_depth() { return 0; };
+	virtual int queue_capacity() { return 0; };
 public:
-	IPipeline(const size_t &default_frame_size = DEFAULT_FRAME_SZ);
+	IPipeline(const pipeline_type_t &type, const size_t &default_frame_size = DEFAULT_FRAME_SZ);
 	virtual ~IPipeline();
+	inline const pipeline_type_t getType() const { return type; };
 	const pipeline_state_t getState() const;
 	const bool isRunning() const;
 	virtual int setPipeline(IPipeline *pipeline);
 	virtual int release() { return 0; };
 	virtual int start() { return 0; };
 	virtual int stop() { return 0; };
+	/**
+	 * pass a frame to this stage, the caller still owns the frame after this returns
+	 * @return 0 if the frame was queued
+	 */
 	virtual int queueFrame(uvc_frame_t *frame) = 0;
+	/**
+	 * pass a shared frame to this stage, a stage that keeps the frame takes its own reference
+	 * instead of copying it. the frame must not be modified.
+	 * the default implementation copies it with #queueFrame
+	 * @return 0 if the frame was queued
+	 */
+	virtual int queueFrameRef(FrameRef *ref);
+	/**
+	 * set how this stage drops frames when it can not catch up
+	 * @param max_fps frames are dropped evenly to this rate before queueing, 0 to pass all frames
+	 * @return 0, UVC_ERROR_NOT_SUPPORTED if this stage does not have its own queue
+	 */
+	virtual int setQueuePolicy(const pipeline_drop_policy_t &policy, const float &max_fps) {
+		return UVC_ERROR_NOT_SUPPORTED;
+	};
+	char *getStats();
 };
 
+static inline uint64_t pipeline_time_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
 
 #endif //PUPILMOBILE_IPIPELINE_H
@@ -13,10 +13,10 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
+#include <string.h>
 #include <android/native_window_jni.h>
 
 #include "utilbase.h"
-#include "common_utils.h"
 
 #include "libUVCCamera.h"
 #include "pipeline_helper.h"
@@ -24,16 +24,18 @@
 #include "PreviewPipeline.h"
 
 #define INIT_FRAME_POOL_SZ 2
-#define MAX_FRAME_NUM 32	// max approx. 1sec
 
-#define CAPTURE_PIXEL_BYTES 2	// RGB565
+#define CAPTURE_PIXEL_BYTES 4	// RGBX
 
-PreviewPipeline::PreviewPipeline(const size_t &_data_bytes)
-:	CaptureBasePipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
-	mCaptureWindow(NULL)
+PreviewPipeline::PreviewPipeline(const int &_max_buffer_num)
+:	AbstractBufferedPipeline(PIPELINE_TYPE_PREVIEW, _max_buffer_num, INIT_FRAME_POOL_SZ, DEFAULT_FRAME_SZ),
+	mCaptureWindow(NULL),
+	frameWidth(0),
+	frameHeight(0)
 {
 	ENTER();
 
+	pthread_mutex_init(&capture_mutex, NULL);
 	setState(PIPELINE_STATE_INITIALIZED);
 
 	EXIT();
@@ -46,7 +48,7 @@ PreviewPipeline::~PreviewPipeline() {
 		ANativeWindow_release(mCaptureWindow);
 	}
 	mCaptureWindow = NULL;
-	clearCaptureFrame();
+	pthread_mutex_destroy(&capture_mutex);
 
 	EXIT();
 }
@@ -115,174 +117,101 @@ static int copyToSurface(uvc_frame_t *frame, ANativeWindow **window) {
 //********************************************************************************
 //
 //********************************************************************************
+/**
+ * set Surface to draw frames, this can be called while running
+ * @param capture_window NULL to remove
+ */
 int PreviewPipeline::setCaptureDisplay(ANativeWindow *capture_window) {
 	ENTER();
 	LOGI("setCaptureDisplay:%p", capture_window);
 
-	Mutex::Autolock lock(capture_mutex);
-
-	if (isRunning() && isCapturing()) {
-		mIsCapturing = false;
-		if (mCaptureWindow) {
-			LOGD("wait for finishing capture loop");
-			capture_sync.broadcast();
-			capture_sync.wait(capture_mutex);	// wait finishing capturing
-		}
-	}
-	if (mCaptureWindow != capture_window) {
-		// release current Surface if already assigned.
-		if (UNLIKELY(mCaptureWindow)) {
-			LOGD("ANativeWindow_release");
-			ANativeWindow_release(mCaptureWindow);
+	pthread_mutex_lock(&capture_mutex);
+	{
+		if (mCaptureWindow != capture_window) {
+			// release current Surface if already assigned.
+			if (UNLIKELY(mCaptureWindow)) {
+				LOGD("ANativeWindow_release");
+				ANativeWindow_release(mCaptureWindow);
+			}
+			mCaptureWindow = capture_window;
+			// geometry of new window should be set on next frame
+			frameWidth = frameHeight = 0;
 		}
-		mCaptureWindow = capture_window;
 	}
+	pthread_mutex_unlock(&capture_mutex);
 
 	RETURN(0, int);
 }
 
-/**
- * the actual function for capturing
- */
-void PreviewPipeline::do_capture(JNIEnv *env) {
-
-//	ENTER();
-
-	uvc_frame_t *frame = NULL;
-	uvc_frame_t *rgb565 = get_frame(default_frame_size);
-
-	if (LIKELY(rgb565)) {
-		for (; isRunning() && isCapturing() ;) {
-			frame = waitCaptureFrame();
-			if (LIKELY(frame)) {
-				if (LIKELY(isCapturing())) {
-					const bool need_update_geometry = (frame->width != frameWidth) || (frame->height != frameHeight);
-					capture_mutex.lock();
-					{
-						ANativeWindow *window = mCaptureWindow;	// local cache
-						if (LIKELY(window)) {
-							if (UNLIKELY(need_update_geometry)) {
-								frameWidth = frame->width;
-								frameHeight = frame->height;
-								LOGD("ANativeWindow_setBuffersGeometry:(%dx%d)", frameWidth, frameHeight);
-								ANativeWindow_setBuffersGeometry(window,
-									frameWidth, frameHeight, WINDOW_FORMAT_RGB_565);
-								// if you use Surface came from MediaCodec#createInputSurface
-								// you could not change window format at least when you use
-								// ANativeWindow_lock / ANativeWindow_unlockAndPost
-								// to write frame data to the Surface...you should use RGBX8888 instead
-								// So we need check here.
-								int32_t window_format = ANativeWindow_getFormat(window);
-								if (window_format != WINDOW_FORMAT_RGB_565) {
-									LOGE("window format mismatch, cancelled movie capturing.");
-									ANativeWindow_release(window);
-									window = mCaptureWindow = NULL;
-									frameWidth = frameHeight = 0;
-								}
-							}
-							if (LIKELY(window)) {
-								int b = uvc_any2rgb565(frame, rgb565);
-								if (LIKELY(!b)) {
-									copyToSurface(rgb565, &window);
-								} else {
-									LOGE("failed to convert frame: err=%d", b);
-								}
-							}
-						}
-					}
-					capture_mutex.unlock();
-				}
-				recycle_frame(frame);
-			}
-		}
-	}
-	if (rgb565) {
-		recycle_frame(rgb565);
-	}
-	capture_mutex.lock();
-	{
-		if (mCaptureWindow) {
-			ANativeWindow_release(mCaptureWindow);
-			mCaptureWindow = NULL;
-		}
-	}
-	capture_mutex.unlock();
-//	EXIT();
-}
-
-//**********************************************************************
-//
-//**********************************************************************
-static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz) {
-
+/* override protected */
+void PreviewPipeline::on_start() {
 	ENTER();
-	PreviewPipeline *pipeline = new PreviewPipeline();
-	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
-	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
-}
 
-static void nativeDestroy(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+	frameWidth = frameHeight = 0;
 
-	ENTER();
-	setField_long(env, thiz, "mNativePtr", 0);
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		pipeline->release();
-		SAFE_DELETE(pipeline);
-	}
 	EXIT();
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
+/* override protected */
+void PreviewPipeline::on_stop() {
 	ENTER();
-	jint result = 0;
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (pipeline) {
-		result = pipeline->getState();
-	}
-	RETURN(result, jint);
+	EXIT();
 }
 
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
+/* override protected */
+int PreviewPipeline::handle_frame(uvc_frame_t *frame) {
+//	ENTER();
 
-	ENTER();
-	jint result = JNI_ERR;
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
+	int result = 0;
+	uvc_frame_t *rgbx = NULL;
+	pthread_mutex_lock(&capture_mutex);
+	{
+		ANativeWindow *window = mCaptureWindow;	// local cache
+		if (LIKELY(window)) {
+			if (UNLIKELY((frame->width != frameWidth) || (frame->height != frameHeight))) {
+				frameWidth = frame->width;
+				frameHeight = frame->height;
+				LOGD("ANativeWindow_setBuffersGeometry:(%dx%d)", frameWidth, frameHeight);
+				ANativeWindow_setBuffersGeometry(window,
+					frameWidth, frameHeight, WINDOW_FORMAT_RGBA_8888);
+				// Surface came from MediaCodec#createInputSurface may not accept the format change,
+				// 4 bytes formats can be written with ANativeWindow_lock / ANativeWindow_unlockAndPost
+				const int32_t window_format = ANativeWindow_getFormat(window);
+				if ((window_format != WINDOW_FORMAT_RGBA_8888) && (window_format != WINDOW_FORMAT_RGBX_8888)) {
+					LOGE("window format mismatch, cancelled capturing.");
+					ANativeWindow_release(window);
+					window = mCaptureWindow = NULL;
+					frameWidth = frameHeight = 0;
+					result = -1;
+				}
+			}
+			if (LIKELY(window)) {
+				rgbx = get_frame(frame->width * frame->height * CAPTURE_PIXEL_BYTES);
+				const int b = LIKELY(rgbx) ? uvc_any2rgbx(frame, rgbx) : UVC_ERROR_NO_MEM;
+				if (LIKELY(!b)) {
+					copyToSurface(rgbx, &window);
+				} else {
+					LOGE("failed to convert frame: err=%d", b);
+					result = -1;
+				}
+			}
+		}
 	}
+	pthread_mutex_unlock(&capture_mutex);
+	recycle_frame(rgbx);
 
-	RETURN(result, jint);
-}
-
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
-
-	ENTER();
-
-	int result = JNI_ERR;
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
-	}
-	RETURN(result, jint);
+	return result; // RETURN(result, int);
 }
 
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jint max_frames) {
 
-	jint result = JNI_ERR;
 	ENTER();
-	PreviewPipeline *pipeline = reinterpret_cast<PreviewPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
-	}
-	RETURN(result, jint);
+	PreviewPipeline *pipeline = new PreviewPipeline(max_frames);
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
 
 static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
@@ -302,17 +231,8 @@ static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 //
 //**********************************************************************
 static JNINativeMethod methods[] = {
-	{ "nativeCreate",					"()J", (void *) nativeCreate },
-	{ "nativeDestroy",					"(J)V", (void *) nativeDestroy },
-
-	{ "nativeGetState",					"(J)I", (void *) nativeGetState },
-	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
-
-	{ "nativeStart",					"(J)I", (void *) nativeStart },
-	{ "nativeStop",						"(J)I", (void *) nativeStop },
-
+	{ "nativeCreate",					"(I)J", (void *) nativeCreate },
 	{ "nativeSetCaptureDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetCaptureDisplay },
-
 };
 
 int register_preview_pipeline(JNIEnv *env) {
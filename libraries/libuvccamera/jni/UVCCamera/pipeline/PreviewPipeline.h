@@ -8,15 +8,24 @@
 #include <android/native_window.h>
 
 #include "libUVCCamera.h"
-#include "CaptureBasePipeline.h"
+#include "AbstractBufferedPipeline.h"
 
-class PreviewPipeline : virtual public CaptureBasePipeline {
+/**
+ * stage that draws frames into a Surface(ANativeWindow) as RGBX,
+ * e.g. SurfaceView/TextureView for preview or input Surface of MediaCodec for encoding
+ */
+class PreviewPipeline : public AbstractBufferedPipeline {
 private:
+	pthread_mutex_t capture_mutex;		// guards mCaptureWindow
 	ANativeWindow *mCaptureWindow;
+	uint32_t frameWidth;
+	uint32_t frameHeight;
 protected:
-	virtual void do_capture(JNIEnv *env);
+	virtual void on_start();
+	virtual void on_stop();
+	virtual int handle_frame(uvc_frame_t *frame);
 public:
-	PreviewPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ);
+	PreviewPipeline(const int &_max_buffer_num = DEFAULT_MAX_FRAME_NUM);
 	virtual ~PreviewPipeline();
 	int setCaptureDisplay(ANativeWindow *capture_window);
 };
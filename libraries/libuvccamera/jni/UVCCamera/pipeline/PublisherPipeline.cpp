@@ -2,8 +2,6 @@
 // Created by saki on 15/10/06.
 //
 
-#define MEAS_TIME 0
-
 #if 1	// set 1 if you don't need debug message
 	#ifndef LOG_NDEBUG
 		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
@@ -15,316 +13,395 @@
 	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
 #endif
 
-#if MEAS_TIME
-#define MEAS_TIME_INIT	nsecs_t _meas_time_ = 0; int _meas_count_ = 0;
-#define MEAS_TIME_START	const nsecs_t _meas_t_ = systemTime();
-#define MEAS_TIME_STOP \
-	_meas_time_ += (systemTime() - _meas_t_); \
-	if UNLIKELY((++_meas_count_ % 100) == 0) { \
-		const float d = _meas_time_ / (1000000.f * _meas_count_); \
-		LOGI("meas time=%5.2f[msec]", d); \
-	}
-#else
-#define MEAS_TIME_INIT
-#define MEAS_TIME_START
-#define MEAS_TIME_STOP
-#endif
-
 #include <stdlib.h>
-#include <linux/time.h>
+#include <string.h>
 #include <unistd.h>
 
 #include "utilbase.h"
-#include "common_utils.h"
 
-#include "libUVCCamera.h"
-#include "endian_unaligned.h"
+#include "rapidjson/rapidjson.h"
+#include "rapidjson/stringbuffer.h"
+#include "rapidjson/writer.h"
 
+#include "libUVCCamera.h"
 #include "pipeline_helper.h"
+#include "IPipeline.h"
+#include "SharedFrameRing.h"
 #include "PublisherPipeline.h"
-#include "pupilmobile_defs.h"
-
-#define INIT_FRAME_POOL_SZ 2
-#define MAX_FRAME_NUM 8
-#define RETRY_INTERVALS_US 25000
-
-/* public */
-PublisherPipeline::PublisherPipeline(const size_t &_data_bytes, const char *addr, const char *_subscription_id)
-:	AbstractBufferedPipeline(MAX_FRAME_NUM, INIT_FRAME_POOL_SZ, _data_bytes),
-	host(addr),
-	subscription_id(_subscription_id),
-	data_bytes(_data_bytes),
-	context(NULL),
-	publisher(NULL)
+
+using namespace rapidjson;
+
+// number of values of info array of FrameSubscriber
+#define SUBSCRIBER_INFO_NUM 9
+
+PublisherPipeline::PublisherPipeline()
+:	IPipeline(PIPELINE_TYPE_PUBLISHER)
 {
 	ENTER();
+	EXIT();
+}
 
-	setState(PIPELINE_STATE_INITIALIZED);
+PublisherPipeline::~PublisherPipeline() {
+	ENTER();
+
+	release();
 
 	EXIT();
 }
 
-/* public */
-PublisherPipeline::PublisherPipeline(const char *addr, const char *_subscription_id)
-:	PublisherPipeline(DEFAULT_FRAME_SZ, addr, _subscription_id)
-{
+/**
+ * create the shared memory ring
+ * @param max_frame_bytes larger frames are not published
+ */
+int PublisherPipeline::open(const char *name, const size_t max_frame_bytes, const uint32_t slots) {
+	ENTER();
+
+	const int result = mRing.create(name, max_frame_bytes, slots);
+	if (LIKELY(!result)) {
+		setState(PIPELINE_STATE_INITIALIZED);
+	}
+
+	RETURN(result, int);
 }
 
-/* public */
-PublisherPipeline::~PublisherPipeline() {
+/*public*/
+int PublisherPipeline::release() {
 	ENTER();
 
-	LOGI("destructor finished");
+	setState(PIPELINE_STATE_RELEASING);
+	stop();
+	// subscribers keep their mapping, they only get SFR_ERROR_CLOSED
+	mRing.close();
+	setState(PIPELINE_STATE_UNINITIALIZED);
 
-	EXIT();
+	RETURN(0, int);
 }
 
 /*public*/
-int PublisherPipeline::queueFrame(uvc_frame_t *frame) {
-//	ENTER();
+int PublisherPipeline::start() {
+	ENTER();
 
-	int result = AbstractBufferedPipeline::queueFrame(frame);
-	chain_frame(frame);
+	int result = EXIT_FAILURE;
+	if (LIKELY(mRing.isOpened() && !isRunning())) {
+		memset(&mStats, 0, sizeof(mStats));
+		mStats.start_ns = pipeline_time_ns();
+		mIsRunning = true;
+		setState(PIPELINE_STATE_RUNNING);
+		result = EXIT_SUCCESS;
+	}
 
-	return result; // 	RETURN(result, int);
+	RETURN(result, int);
+}
+
+/*public*/
+int PublisherPipeline::stop() {
+	ENTER();
+
+	if (isRunning()) {
+		mIsRunning = false;
+		setState(PIPELINE_STATE_INITIALIZED);
+	}
+
+	RETURN(0, int);
 }
 
-//********************************************************************************
-//
-//********************************************************************************
 /**
- * build transfer header.
- * all multi bytes fields are little endian.
+ * publish the frame on the calling thread
  */
-static void build_header(publish_header_t &header, uvc_frame_t *frame) {
-	// build header
-	switch (frame->frame_format) {
-	case UVC_FRAME_FORMAT_YUYV:
-		header.format_le = htole32(VIDEO_FRAME_FORMAT_YUYV);
-		break;
-	case UVC_FRAME_FORMAT_MJPEG:
-		header.format_le = htole32(VIDEO_FRAME_FORMAT_MJPEG);
-		break;
-//	case UVC_FRAME_FORMAT_H264:	// XXX this definition does not exist now
-//		header.format_le = htole32(VIDEO_FRAME_FORMAT_H264);
-//		break;
-	default:
-		header.format_le = htole32(VIDEO_FRAME_FORMAT_UNKNOWN);
+/*private*/
+int PublisherPipeline::write_frame(uvc_frame_t *frame) {
+	ENTER();
+
+	int result = UVC_ERROR_OTHER;
+	if (LIKELY(frame && isRunning())) {
+		const uint64_t start = pipeline_time_ns();
+		result = mRing.publish(frame);
+		const uint64_t elapsed = pipeline_time_ns() - start;
+		mStats.queued++;
+		mStats.handled++;
+		mStats.total_ns += elapsed;
+		if (elapsed > mStats.max_ns) mStats.max_ns = elapsed;
+		if (UNLIKELY(result == SFR_ERROR_NO_SPACE)) {
+			mStats.dropped_no_buffer++;
+		} else if (UNLIKELY(result)) {
+			mStats.errors++;
+		}
 	}
-	header.width_le = htole32(frame->width);
-	header.height_le = htole32(frame->height);
-	header.sequence_le = htole32(frame->sequence);
-//	header.presentation_time_us_le = htole64(systemTime() / 1000);
-	header.presentation_time_us_le = htole64(nsecs_t(frame->capture_time.tv_sec)*1000000LL + nsecs_t(frame->capture_time.tv_usec));
-	header.data_bytes_le = htole32(frame->actual_bytes);
+
+	RETURN(result, int);
 }
 
-/* override protected */
-void PublisherPipeline::on_start() {
+/*public*/
+int PublisherPipeline::queueFrame(uvc_frame_t *frame) {
 	ENTER();
 
-	Mutex::Autolock lock(publisher_mutex);
-
-	context = new zmq::context_t();
-	publisher = new zmq::socket_t(*context, ZMQ_PAIR/*ZMQ_PUB*/);
-	LOGV("set timeout value");
-	publisher->setsockopt(ZMQ_SNDTIMEO, 1000);
-	publisher->setsockopt(ZMQ_LINGER, 100);
-	LOGV("bind");
-	publisher->bind(host.c_str());
+	const int result = write_frame(frame);
+	if (LIKELY(frame && isRunning())) {
+		chain_frame(frame);
+	}
 
-	EXIT();
+	RETURN(result, int);
 }
 
-/* override protected */
-void PublisherPipeline::on_stop() {
+/*public*/
+int PublisherPipeline::queueFrameRef(FrameRef *ref) {
 	ENTER();
 
-	Mutex::Autolock lock(publisher_mutex);
-	LOGI("on_stop:finished");
-	LOGI("stop publisher zmq::socket");
-	if (publisher) {
-		publisher->close();
-		SAFE_DELETE(publisher);
-	}
-	LOGI("stop publisher zmq::context");
-	if (context) {
-		context->close();
-		SAFE_DELETE(context);
+	const int result = write_frame(ref ? ref->frame() : NULL);
+	if (LIKELY(ref && isRunning())) {
+		// this stage does not keep the frame, next stage shares it
+		chain_frame_ref(ref);
 	}
-	LOGI("on_stop:finished");
 
-	EXIT();
+	RETURN(result, int);
 }
 
-/* override protected */
-int PublisherPipeline::handle_frame(uvc_frame_t *frame) {
-//	ENTER();
-
-	// local cache
-	const int sub_sz = subscription_id.size();
-	const char *sub_str = subscription_id.c_str();
-//	LOGD("sub_str=%s,sub_sz=%d", sub_str, sub_sz);
-
-	publish_header_t header;
-	// create payload
-	zmq::message_t payload(frame->actual_bytes + sizeof(publish_header_t));
-	// copy header to payload
-	build_header(header, frame);
-	memcpy(payload.data(), &header, sizeof(publish_header_t));
-	// copy frame data to payload
-	memcpy(((uint8_t *)payload.data()) + sizeof(publish_header_t), frame->data, frame->actual_bytes);
-/*
-* zmq::socket_t#send(backed by zmq_msg_send of libzmq) just add message to the internal queue.
-* and we can't know how many entries we can send without exceeding queue
-* and we also can't know when the queue exceed/overflow and message disappeared.
-* As my current test result, if the subscribing speed is slower than publisher
-* or bandwidth of network is not enough, zmq drops messages periodically without any error.
-* Even worse, queueing to zmq socket always success and no error.
-* As I can see the API and source code of zmq, there are no way to handle this now.
-* Only one way is receive number of subscribed frames from subscriber via other connection
-* and wait for publishing if the difference between number of publishing frames
-* and number of subscribed frames become bigger than the limit.
-* Unfortunately this way only works well if only one subscriber exist.
-* If we actually need to handle this issue, I assume it will be better to use other protocol
-* or make own protocol that supports handshake instead of using zmq.
-*
-* 1280x720p:
-* Nexus7(2013, Android5.1.1) => 11n(2.4GHz) => router => 11n(5Ghz) => Nexus9(Android5.1.1) : OK
-* Nexus7(2013, Android5.1.1) => 11n(2.4GHz) => router => 11n(2.4GHz) => GALAXY S5(Android5.0) : NG, slow, periodically drops frames.
-* Nexus9(Android5.1.1) => 11n(5GHz) => router => 11n(2.4GHz) => GALAXY S5(Android5.0) : OK
-* Nexus9(Android5.1.1) => 11n(5GHz) => router => 11n(2.4GHz) => MemoPad7(Android4.4.2) : NG, sometimes become slow, periodically drops frames.
-* GALAXY S5(Android5.0) => 11n(2.4GHz) => router => 11n(5Ghz) => Nexus9(Android5.1.1) : OK
-* GALAXY S5(Android5.0) => 11n(2.4GHz) => router => 11n(2.4Ghz) => GALAXY note2(Android4.4.2) : NG, slow, periodically drops frames.
-* saki
-*/
-	for ( ; LIKELY(isRunning()) ; ) {
-		try {
-			// set subscribe id
-			if ((LIKELY(publisher->send(sub_str, sub_sz, ZMQ_SNDMORE)))) {
-				// send payload
-				if (LIKELY(publisher->send(payload))) {
-					// success to send
-					break;
-				}
-			}
-			LOGD("failed to send");
-			usleep(RETRY_INTERVALS_US);
-		} catch (zmq::error_t e) {
-			// when error occur other than EAGAIN
-			LOGW("failed to send:%d", e.num());
-			break;
-		} catch (...) {
-			LOGW("publishing error");
-			break;
-		}
+static void write_ring_stats(Writer<StringBuffer> &writer, SharedFrameRing &ring) {
+	sfr_stats_t stats;
+	ring.getStats(stats);
+	writer.StartObject();
+	{
+		writer.String("slots");
+		writer.Uint(ring.slots());
+		writer.String("slot_kb");
+		writer.Uint64(ring.slotBytes() / 1024);
+		writer.String("published");
+		writer.Uint(stats.published);
+		writer.String("published_kb");
+		writer.Uint64(stats.bytes / 1024);
+		writer.String("too_large");
+		writer.Uint(stats.too_large);
+		writer.String("avg_publish_us");
+		writer.Uint64(stats.published ? stats.publish_ns / stats.published / 1000 : 0);
+		writer.String("max_publish_us");
+		writer.Uint64(stats.max_publish_ns / 1000);
+		writer.String("received");
+		writer.Uint(stats.received);
+		writer.String("missed");
+		writer.Uint(stats.missed);
+		writer.String("overwritten");
+		writer.Uint(stats.overwritten);
 	}
+	writer.EndObject();
+}
+
+/**
+ * get counters of the ring as JSON string
+ * @return the caller should free returned string
+ */
+char *PublisherPipeline::getRingStats() {
+	ENTER();
+
+	StringBuffer buffer;
+	Writer<StringBuffer> writer(buffer);
+	write_ring_stats(writer, mRing);
 
-	return 1; // RETURN(1, int);
+	RETURN(strdup(buffer.GetString()), char *);
 }
 
-//********************************************************************************
+//**********************************************************************
 //
-//********************************************************************************
+//**********************************************************************
 static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
-	jstring publisher_addr_str, jstring subscription_id_str) {
+	jstring name_str, jint max_frame_bytes, jint slots) {
 
 	ENTER();
-
-	const char *c_addr = env->GetStringUTFChars(publisher_addr_str, JNI_FALSE);
-	const char *c_sub_id = env->GetStringUTFChars(subscription_id_str, JNI_FALSE);
-	PublisherPipeline *pipeline = new PublisherPipeline(DEFAULT_FRAME_SZ, c_addr, c_sub_id);
-	env->ReleaseStringUTFChars(publisher_addr_str, c_addr);
-	env->ReleaseStringUTFChars(subscription_id_str, c_sub_id);
-	setField_long(env, thiz, "mNativePtr", reinterpret_cast<ID_TYPE>(pipeline));
-
+	PublisherPipeline *pipeline = NULL;
+	const char *c_name = name_str ? env->GetStringUTFChars(name_str, JNI_FALSE) : NULL;
+	if (LIKELY(max_frame_bytes > 0)) {
+		pipeline = new PublisherPipeline();
+		if (UNLIKELY(pipeline->open(c_name, max_frame_bytes, slots))) {
+			SAFE_DELETE(pipeline);
+		}
+	}
+	if (c_name) {
+		env->ReleaseStringUTFChars(name_str, c_name);
+	}
 	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
 }
 
-static void nativeDestroy(JNIEnv *env, jobject thiz,
+static jint nativeGetSubscriberFd(JNIEnv *env, jobject thiz,
 	ID_TYPE id_pipeline) {
 
 	ENTER();
-	setField_long(env, thiz, "mNativePtr", 0);
+	jint result = JNI_ERR;
 	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
 	if (LIKELY(pipeline)) {
-		pipeline->release();
-		SAFE_DELETE(pipeline);
+		result = pipeline->getSubscriberFd();
 	}
-	EXIT();
+	RETURN(result, jint);
 }
 
-static jint nativeGetState(JNIEnv *env, jobject thiz,
+static jstring nativeGetRingStats(JNIEnv *env, jobject thiz,
 	ID_TYPE id_pipeline) {
 
 	ENTER();
-	jint result = 0;
+	jstring result = NULL;
 	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
 	if (LIKELY(pipeline)) {
-		result = pipeline->getState();
+		char *c_str = pipeline->getRingStats();
+		if (LIKELY(c_str)) {
+			result = env->NewStringUTF(c_str);
+			free(c_str);
+		}
 	}
-	RETURN(result, jint);
+	RETURN(result, jstring);
 }
 
-static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline, jobject pipeline_obj) {
+//**********************************************************************
+// subscriber side, FrameSubscriber is used in other process than the publisher
+//**********************************************************************
+static ID_TYPE nativeAttach(JNIEnv *env, jobject thiz,
+	jint fd) {
 
 	ENTER();
-	jint result = JNI_ERR;
-	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-	if (pipeline) {
-		IPipeline *target_pipeline = getPipeline(env, pipeline_obj);
-		result = pipeline->setPipeline(target_pipeline);
+	SharedFrameRing *ring = new SharedFrameRing();
+	if (UNLIKELY(ring->attach(fd))) {
+		SAFE_DELETE(ring);
 	}
+	RETURN(reinterpret_cast<ID_TYPE>(ring), ID_TYPE);
+}
 
-	RETURN(result, jint);
+static void nativeDetach(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring) {
+
+	ENTER();
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	SAFE_DELETE(ring);
+	EXIT();
 }
 
-static jint nativeStart(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+static jint nativeGetSlots(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring) {
+
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	return ring ? ring->slots() : 0;
+}
+
+/**
+ * direct ByteBuffer that wraps the payload of a slot in the read only mapping,
+ * Java side must use it as read only buffer
+ */
+static jobject nativeGetSlotBuffer(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring, jint slot) {
 
 	ENTER();
+	jobject result = NULL;
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	const uint8_t *data = ring ? ring->slotData(slot) : NULL;
+	if (LIKELY(data)) {
+		result = env->NewDirectByteBuffer((void *)data, ring->slotBytes());
+	}
+	RETURN(result, jobject);
+}
 
-	int result = JNI_ERR;
-	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->start();
+static jint nativeWaitFrame(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring, jint timeout_ms) {
+
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	return ring ? ring->waitFrame(timeout_ms) : JNI_ERR;
+}
+
+static void set_info(JNIEnv *env, jlongArray info_array, const sfr_frame_info_t &info) {
+	if (info_array && (env->GetArrayLength(info_array) >= SUBSCRIBER_INFO_NUM)) {
+		const jlong values[SUBSCRIBER_INFO_NUM] = {
+			(jlong)info.frame_number, info.pts_ns, info.sequence, info.bytes,
+			info.width, info.height, info.format, info.slot, info.token };
+		env->SetLongArrayRegion(info_array, 0, SUBSCRIBER_INFO_NUM, values);
 	}
+}
 
-	RETURN(result, jint);
+static jint nativeAcquire(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring, jlongArray info_array) {
+
+	jint result = JNI_ERR;
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	if (LIKELY(ring)) {
+		sfr_frame_info_t info;
+		const uint8_t *data;
+		result = ring->acquire(info, data);
+		if (LIKELY(!result)) {
+			set_info(env, info_array, info);
+		}
+	}
+	return result;
 }
 
-static jint nativeStop(JNIEnv *env, jobject thiz,
-	ID_TYPE id_pipeline) {
+static jboolean nativeValidate(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring, jint slot, jint token) {
 
-	ENTER();
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	if (LIKELY(ring)) {
+		sfr_frame_info_t info;
+		info.slot = slot;
+		info.token = token;
+		return ring->validate(info);
+	}
+	return JNI_FALSE;
+}
+
+static jint nativeRead(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring, jobject byte_buffer, jlongArray info_array) {
 
 	jint result = JNI_ERR;
-	PublisherPipeline *pipeline = reinterpret_cast<PublisherPipeline *>(id_pipeline);
-	if (LIKELY(pipeline)) {
-		result = pipeline->stop();
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	if (LIKELY(ring)) {
+		uint8_t *buf = byte_buffer ? (uint8_t *)env->GetDirectBufferAddress(byte_buffer) : NULL;
+		const jlong capacity = buf ? env->GetDirectBufferCapacity(byte_buffer) : 0;
+		sfr_frame_info_t info;
+		result = ring->read(buf, capacity > 0 ? capacity : 0, info);
+		if ((result >= 0) || (result == SFR_ERROR_NO_SPACE)) {
+			set_info(env, info_array, info);
+		}
 	}
+	return result;
+}
 
-	RETURN(result, jint);
+static jstring nativeGetSubscriberStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_ring) {
+
+	ENTER();
+	jstring result = NULL;
+	SharedFrameRing *ring = reinterpret_cast<SharedFrameRing *>(id_ring);
+	if (LIKELY(ring)) {
+		StringBuffer buffer;
+		Writer<StringBuffer> writer(buffer);
+		write_ring_stats(writer, *ring);
+		result = env->NewStringUTF(buffer.GetString());
+	}
+	RETURN(result, jstring);
 }
 
-//================================================================================
-static JNINativeMethod methods_publisher_pipeline[] = {
-	{ "nativeCreate", 		"(Ljava/lang/String;Ljava/lang/String;)J", (void *) nativeCreate},
-	{ "nativeDestroy",		"(J)V", (void *) nativeDestroy},
-	{ "nativeSetPipeline",	"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeCreate",					"(Ljava/lang/String;II)J", (void *) nativeCreate },
+	{ "nativeGetSubscriberFd",			"(J)I", (void *) nativeGetSubscriberFd },
+	{ "nativeGetRingStats",				"(J)Ljava/lang/String;", (void *) nativeGetRingStats },
+};
 
-	{ "nativeGetState",		"(J)I", (void *) nativeGetState },
-	{ "nativeStart",		"(J)I", (void *) nativeStart },
-	{ "nativeStop",			"(J)I", (void *) nativeStop },
+static JNINativeMethod subscriber_methods[] = {
+	{ "nativeAttach",					"(I)J", (void *) nativeAttach },
+	{ "nativeDetach",					"(J)V", (void *) nativeDetach },
+	{ "nativeGetSlots",					"(J)I", (void *) nativeGetSlots },
+	{ "nativeGetSlotBuffer",			"(JI)Ljava/nio/ByteBuffer;", (void *) nativeGetSlotBuffer },
+	{ "nativeWaitFrame",				"(JI)I", (void *) nativeWaitFrame },
+	{ "nativeAcquire",					"(J[J)I", (void *) nativeAcquire },
+	{ "nativeValidate",					"(JII)Z", (void *) nativeValidate },
+	{ "nativeRead",						"(JLjava/nio/ByteBuffer;[J)I", (void *) nativeRead },
+	{ "nativeGetSubscriberStats",		"(J)Ljava/lang/String;", (void *) nativeGetSubscriberStats },
 };
 
 int register_publisher_pipeline(JNIEnv *env) {
-	LOGV("register PublisherPipeline:");
-	if (registerNativeMethods(env,
-		"com/serenegiant/usb/PublisherPipeline",
-		methods_publisher_pipeline, NUM_ARRAY_ELEMENTS(methods_publisher_pipeline)) < 0) {
+	LOGV("register_publisher_pipeline:");
+	if ((registerNativeMethods(env,
+			"com/serenegiant/usb/PublisherPipeline",
+			methods, NUM_ARRAY_ELEMENTS(methods)) < 0)
+		|| (registerNativeMethods(env,
+			"com/serenegiant/usb/FrameSubscriber",
+			subscriber_methods, NUM_ARRAY_ELEMENTS(subscriber_methods)) < 0)) {
 		return -1;
 	}
-    return 0;
+	return 0;
 }
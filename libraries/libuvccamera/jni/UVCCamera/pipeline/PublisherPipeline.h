@@ -7,33 +7,32 @@
 
 #pragma interface
 
-#include <string>
-#include "Mutex.h"
-#include "Timers.h"
-#include "zmq.hpp"
+#include "libUVCCamera.h"
+#include "SharedFrameRing.h"
+#include "IPipeline.h"
 
-#include "pupilmobile_defs.h"
-#include "AbstractBufferedPipeline.h"
-
-using namespace android;
-
-class PublisherPipeline : virtual public AbstractBufferedPipeline {
+/**
+ * stage that publishes frames to other processes through SharedFrameRing(shared memory),
+ * subscribers get the read only file descriptor from #getSubscriberFd through Binder.
+ * frames are copied into the ring on the calling thread without queueing because publishing is
+ * a single copy same as queueing would be and never waits for subscribers,
+ * then passed to next pipeline if it was set.
+ */
+class PublisherPipeline : public IPipeline {
 private:
-protected:
-	const std::string host;
-	const std::string subscription_id;
-	size_t data_bytes;
-	zmq::context_t *context;
-	zmq::socket_t *publisher;
-	mutable Mutex publisher_mutex;
-	virtual void on_start();
-	virtual void on_stop();
-	virtual int handle_frame(uvc_frame_t *frame);
+	SharedFrameRing mRing;
+	int write_frame(uvc_frame_t *frame);
 public:
-	PublisherPipeline(const size_t &_data_bytes = DEFAULT_FRAME_SZ, const char *addr = NULL, const char *subscription_id = NULL);
-	PublisherPipeline(const char *addr, const char *subscription_id);
+	PublisherPipeline();
 	virtual ~PublisherPipeline();
+	int open(const char *name, const size_t max_frame_bytes, const uint32_t slots);
+	virtual int release();
+	virtual int start();
+	virtual int stop();
 	virtual int queueFrame(uvc_frame_t *frame);
+	virtual int queueFrameRef(FrameRef *ref);
+	inline int getSubscriberFd() { return mRing.dupReadOnlyFd(); };
+	char *getRingStats();
 };
 
 #endif //PUPILMOBILE_PUBLISHER_PIPELINE_H
@@ -0,0 +1,355 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: TimeShiftPipeline.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "utilbase.h"
+
+#include "rapidjson/rapidjson.h"
+#include "rapidjson/stringbuffer.h"
+#include "rapidjson/writer.h"
+
+#include "libUVCCamera.h"
+#include "pipeline_helper.h"
+#include "IPipeline.h"
+#include "TimeShiftPipeline.h"
+
+using namespace rapidjson;
+
+TimeShiftPipeline::TimeShiftPipeline()
+:	IPipeline(PIPELINE_TYPE_TIME_SHIFT)
+{
+	ENTER();
+	EXIT();
+}
+
+TimeShiftPipeline::~TimeShiftPipeline() {
+	ENTER();
+
+	release();
+
+	EXIT();
+}
+
+/**
+ * create and map the ring file
+ * @param max_duration_ns 0 to keep frames until they are overwritten
+ */
+int TimeShiftPipeline::open(const char *path, const uint64_t capacity_bytes, const int64_t max_duration_ns) {
+	ENTER();
+
+	const int result = mBuffer.open(path, capacity_bytes, max_duration_ns);
+	if (LIKELY(!result)) {
+		setState(PIPELINE_STATE_INITIALIZED);
+	}
+
+	RETURN(result, int);
+}
+
+/*public*/
+int TimeShiftPipeline::release() {
+	ENTER();
+
+	setState(PIPELINE_STATE_RELEASING);
+	stop();
+	mBuffer.close();
+	setState(PIPELINE_STATE_UNINITIALIZED);
+
+	RETURN(0, int);
+}
+
+/*public*/
+int TimeShiftPipeline::start() {
+	ENTER();
+
+	int result = EXIT_FAILURE;
+	if (LIKELY(mBuffer.isOpened() && !isRunning())) {
+		memset(&mStats, 0, sizeof(mStats));
+		mStats.start_ns = pipeline_time_ns();
+		mIsRunning = true;
+		setState(PIPELINE_STATE_RUNNING);
+		result = EXIT_SUCCESS;
+	}
+
+	RETURN(result, int);
+}
+
+/*public*/
+int TimeShiftPipeline::stop() {
+	ENTER();
+
+	if (isRunning()) {
+		mIsRunning = false;
+		setState(PIPELINE_STATE_INITIALIZED);
+	}
+
+	RETURN(0, int);
+}
+
+/**
+ * write the frame on the calling thread
+ */
+/*private*/
+int TimeShiftPipeline::write_frame(uvc_frame_t *frame) {
+	ENTER();
+
+	int result = UVC_ERROR_OTHER;
+	if (LIKELY(frame && isRunning())) {
+		const uint64_t start = pipeline_time_ns();
+		result = mBuffer.write(frame);
+		const uint64_t elapsed = pipeline_time_ns() - start;
+		mStats.queued++;
+		mStats.handled++;
+		mStats.total_ns += elapsed;
+		if (elapsed > mStats.max_ns) mStats.max_ns = elapsed;
+		if (UNLIKELY(result)) {
+			mStats.errors++;
+		}
+	}
+
+	RETURN(result, int);
+}
+
+/*public*/
+int TimeShiftPipeline::queueFrame(uvc_frame_t *frame) {
+	ENTER();
+
+	const int result = write_frame(frame);
+	if (LIKELY(frame && isRunning())) {
+		chain_frame(frame);
+	}
+
+	RETURN(result, int);
+}
+
+/*public*/
+int TimeShiftPipeline::queueFrameRef(FrameRef *ref) {
+	ENTER();
+
+	const int result = write_frame(ref ? ref->frame() : NULL);
+	if (LIKELY(ref && isRunning())) {
+		// this stage does not keep the frame, next stage shares it
+		chain_frame_ref(ref);
+	}
+
+	RETURN(result, int);
+}
+
+/**
+ * get state of the ring as JSON string
+ * @return the caller should free returned string
+ */
+char *TimeShiftPipeline::getBufferStats() {
+	ENTER();
+
+	tsb_stats_t stats;
+	tsb_range_t range;
+	mBuffer.getStats(stats);
+	mBuffer.getRange(range);
+	StringBuffer buffer;
+	Writer<StringBuffer> writer(buffer);
+
+	writer.StartObject();
+	{
+		writer.String("frames");
+		writer.Uint(range.frames);
+		writer.String("oldest_id");
+		writer.Int64(range.oldest_id);
+		writer.String("newest_id");
+		writer.Int64(range.newest_id);
+		writer.String("duration_ms");
+		writer.Int64(range.frames ? (range.newest_pts_ns - range.oldest_pts_ns) / 1000000 : 0);
+		writer.String("used_kb");
+		writer.Uint64(range.used_bytes / 1024);
+		writer.String("capacity_kb");
+		writer.Uint64(range.capacity_bytes / 1024);
+		writer.String("written");
+		writer.Uint(stats.frames);
+		writer.String("written_kb");
+		writer.Uint64(stats.bytes / 1024);
+		writer.String("evicted");
+		writer.Uint(stats.evicted);
+		writer.String("wraps");
+		writer.Uint(stats.wraps);
+		writer.String("too_large");
+		writer.Uint(stats.too_large);
+		writer.String("unsupported");
+		writer.Uint(stats.unsupported);
+		writer.String("avg_write_us");
+		writer.Uint64(stats.frames ? stats.write_ns / stats.frames / 1000 : 0);
+		writer.String("max_write_us");
+		writer.Uint64(stats.max_write_ns / 1000);
+		writer.String("reads");
+		writer.Uint(stats.reads);
+		writer.String("read_overwritten");
+		writer.Uint(stats.read_overwritten);
+	}
+	writer.EndObject();
+
+	RETURN(strdup(buffer.GetString()), char *);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static ID_TYPE nativeCreate(JNIEnv *env, jobject thiz,
+	jstring path_str, jlong capacity_bytes, jlong max_duration_ns) {
+
+	ENTER();
+	TimeShiftPipeline *pipeline = NULL;
+	const char *c_path = path_str ? env->GetStringUTFChars(path_str, JNI_FALSE) : NULL;
+	if (LIKELY(c_path)) {
+		pipeline = new TimeShiftPipeline();
+		if (UNLIKELY(pipeline->open(c_path, capacity_bytes, max_duration_ns))) {
+			SAFE_DELETE(pipeline);
+		}
+		env->ReleaseStringUTFChars(path_str, c_path);
+	}
+	RETURN(reinterpret_cast<ID_TYPE>(pipeline), ID_TYPE);
+}
+
+static jlong nativeSeek(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jlong pts_ns, jboolean key_frame) {
+
+	jlong result = -1;
+	TimeShiftPipeline *pipeline = reinterpret_cast<TimeShiftPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		result = pipeline->buffer().seek(pts_ns, key_frame);
+	}
+	return result;
+}
+
+static jint nativeRead(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jlong id, jobject byte_buffer, jlongArray info_array) {
+
+	jint result = JNI_ERR;
+	TimeShiftPipeline *pipeline = reinterpret_cast<TimeShiftPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		uint8_t *buf = byte_buffer ? (uint8_t *)env->GetDirectBufferAddress(byte_buffer) : NULL;
+		const jlong capacity = buf ? env->GetDirectBufferCapacity(byte_buffer) : 0;
+		tsb_frame_info_t info;
+		result = pipeline->buffer().read(id, buf, capacity > 0 ? capacity : 0, info);
+		if (info_array && ((result >= 0) || (result == TSB_ERROR_NO_SPACE))
+			&& (env->GetArrayLength(info_array) >= 5)) {
+
+			const jlong values[] = { info.pts_ns, info.bytes, info.flags, info.sequence, info.format };
+			env->SetLongArrayRegion(info_array, 0, 5, values);
+		}
+	}
+	return result;
+}
+
+static jint nativeGetRange(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jlongArray range_array) {
+
+	jint result = JNI_ERR;
+	TimeShiftPipeline *pipeline = reinterpret_cast<TimeShiftPipeline *>(id_pipeline);
+	if (LIKELY(pipeline && range_array && (env->GetArrayLength(range_array) >= 4))) {
+		tsb_range_t range;
+		pipeline->buffer().getRange(range);
+		const jlong values[] = { range.oldest_id, range.newest_id, range.oldest_pts_ns, range.newest_pts_ns };
+		env->SetLongArrayRegion(range_array, 0, 4, values);
+		result = range.frames;
+	}
+	return result;
+}
+
+static jint nativeExport(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline, jstring path_str, jlong start_pts_ns, jlong end_pts_ns) {
+
+	ENTER();
+	jint result = JNI_ERR;
+	TimeShiftPipeline *pipeline = reinterpret_cast<TimeShiftPipeline *>(id_pipeline);
+	const char *c_path = path_str ? env->GetStringUTFChars(path_str, JNI_FALSE) : NULL;
+	if (LIKELY(pipeline && c_path)) {
+		result = pipeline->buffer().exportTo(c_path, start_pts_ns, end_pts_ns);
+	}
+	if (c_path) {
+		env->ReleaseStringUTFChars(path_str, c_path);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeClear(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	jint result = JNI_ERR;
+	TimeShiftPipeline *pipeline = reinterpret_cast<TimeShiftPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		pipeline->buffer().clear();
+		result = 0;
+	}
+	return result;
+}
+
+static jstring nativeGetBufferStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_pipeline) {
+
+	ENTER();
+	jstring result = NULL;
+	TimeShiftPipeline *pipeline = reinterpret_cast<TimeShiftPipeline *>(id_pipeline);
+	if (LIKELY(pipeline)) {
+		char *c_str = pipeline->getBufferStats();
+		if (LIKELY(c_str)) {
+			result = env->NewStringUTF(c_str);
+			free(c_str);
+		}
+	}
+	RETURN(result, jstring);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeCreate",					"(Ljava/lang/String;JJ)J", (void *) nativeCreate },
+	{ "nativeSeek",						"(JJZ)J", (void *) nativeSeek },
+	{ "nativeRead",						"(JJLjava/nio/ByteBuffer;[J)I", (void *) nativeRead },
+	{ "nativeGetRange",					"(J[J)I", (void *) nativeGetRange },
+	{ "nativeExport",					"(JLjava/lang/String;JJ)I", (void *) nativeExport },
+	{ "nativeClear",					"(J)I", (void *) nativeClear },
+	{ "nativeGetBufferStats",			"(J)Ljava/lang/String;", (void *) nativeGetBufferStats },
+};
+
+int register_time_shift_pipeline(JNIEnv *env) {
+	LOGV("register_time_shift_pipeline:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/TimeShiftPipeline",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+	return 0;
+}
@@ -0,0 +1,56 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: TimeShiftPipeline.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef TIMESHIFTPIPELINE_H_
+#define TIMESHIFTPIPELINE_H_
+
+#include "libUVCCamera.h"
+#include "TimeShiftBuffer.h"
+#include "IPipeline.h"
+
+/**
+ * stage that keeps last N seconds of compressed frames in TimeShiftBuffer(memory mapped ring file),
+ * this should be set with UVCCamera#setRawPipeline so that frames come before decoding.
+ * frames are written on the calling thread without queueing because writing is a single copy
+ * into the mapped ring same as queueing would be, and passed to next pipeline if it was set.
+ * frames are kept after #stop so that they can be read or exported until #release.
+ */
+class TimeShiftPipeline : public IPipeline {
+private:
+	TimeShiftBuffer mBuffer;
+	int write_frame(uvc_frame_t *frame);
+public:
+	TimeShiftPipeline();
+	virtual ~TimeShiftPipeline();
+	int open(const char *path, const uint64_t capacity_bytes, const int64_t max_duration_ns);
+	virtual int release();
+	virtual int start();
+	virtual int stop();
+	virtual int queueFrame(uvc_frame_t *frame);
+	virtual int queueFrameRef(FrameRef *ref);
+	inline TimeShiftBuffer &buffer() { return mBuffer; };
+	char *getBufferStats();
+};
+
+#endif /* TIMESHIFTPIPELINE_H_ */
@@ -2,35 +2,95 @@
 // Created by saki on 15/11/12.
 //
 
+#if 1	// set 1 if you don't need debug message
+	#ifndef LOG_NDEBUG
+		#define	LOG_NDEBUG		// ignore LOGV/LOGD/MARK
+	#endif
+	#undef USE_LOGALL
+#else
+	#define USE_LOGALL
+	#undef LOG_NDEBUG
+	#undef NDEBUG		// depends on definition in Android.mk and Application.mk
+#endif
+
+#include <stdlib.h>
+
 #include "utilbase.h"
-#include "Timers.h"
 #include "SimpleBufferedPipeline.h"
-#include "SQLiteBufferedPipeline.h"
-#include "UVCCameraControl.h"
 #include "CallbackPipeline.h"
 #include "ConvertPipeline.h"
 #include "PreviewPipeline.h"
-#include "PublisherPipeline.h"
 #include "DistributePipeline.h"
+#include "TimeShiftPipeline.h"
+#include "PublisherPipeline.h"
 #include "pipeline_helper.h"
 
+extern int register_simple_buffered_pipeline(JNIEnv *env);
+extern int register_callback_pipeline(JNIEnv *env);
+extern int register_convert_pipeline(JNIEnv *env);
+extern int register_preview_pipeline(JNIEnv *env);
+extern int register_distribute_pipeline(JNIEnv *env);
+extern int register_time_shift_pipeline(JNIEnv *env);
+extern int register_publisher_pipeline(JNIEnv *env);
+
+static jlong getField_long(JNIEnv *env, jobject java_obj, const char *field_name) {
+	jlong result = 0;
+	jclass clazz = env->GetObjectClass(java_obj);
+	jfieldID field = env->GetFieldID(clazz, field_name, "J");
+	if (LIKELY(field)) {
+		result = env->GetLongField(java_obj, field);
+	} else {
+		LOGE("getField_long:field '%s' not found", field_name);
+	}
+#ifdef ANDROID_NDK
+	env->DeleteLocalRef(clazz);
+#endif
+	return result;
+}
+
+static void setField_long(JNIEnv *env, jobject java_obj, const char *field_name, jlong val) {
+	jclass clazz = env->GetObjectClass(java_obj);
+	jfieldID field = env->GetFieldID(clazz, field_name, "J");
+	if (LIKELY(field)) {
+		env->SetLongField(java_obj, field, val);
+	} else {
+		LOGE("setField_long:field '%s' not found", field_name);
+	}
+#ifdef ANDROID_NDK
+	env->DeleteLocalRef(clazz);
+#endif
+}
+
+static jint getField_int(JNIEnv *env, jobject java_obj, const char *field_name) {
+	jint result = 0;
+	jclass clazz = env->GetObjectClass(java_obj);
+	jfieldID field = env->GetFieldID(clazz, field_name, "I");
+	if (LIKELY(field)) {
+		result = env->GetIntField(java_obj, field);
+	} else {
+		LOGE("getField_int:field '%s' not found", field_name);
+	}
+#ifdef ANDROID_NDK
+	env->DeleteLocalRef(clazz);
+#endif
+	return result;
+}
+
 IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 	ENTER();
 
-	if (!pipeline_obj) return NULL;
+	if (!pipeline_obj) RETURN(NULL, IPipeline *);
 	ID_TYPE id_pipeline = getField_long(env, pipeline_obj, "mNativePtr");
 	jint type = getField_int(env, pipeline_obj, "mType");
 	env->ExceptionClear();
 	IPipeline *result = NULL;
+	if (!id_pipeline) RETURN(NULL, IPipeline *);
 	switch (type) {
 		case PIPELINE_TYPE_SIMPLE_BUFFERED:
 			result = reinterpret_cast<SimpleBufferedPipeline *>(id_pipeline);
 			break;
-		case PIPELINE_TYPE_SQLITE_BUFFERED:
-			result = reinterpret_cast<SQLiteBufferedPipeline *>(id_pipeline);
-			break;
-		case PIPELINE_TYPE_UVC_CONTROL:
-			result = reinterpret_cast<UVCCameraControl *>(id_pipeline);
+		case PIPELINE_TYPE_TIME_SHIFT:
+			result = reinterpret_cast<TimeShiftPipeline *>(id_pipeline);
 			break;
 		case PIPELINE_TYPE_CALLBACK:
 			result = reinterpret_cast<CallbackPipeline *>(id_pipeline);
@@ -48,9 +108,135 @@ IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj) {
 			result = reinterpret_cast<DistributePipeline *>(id_pipeline);
 			break;
 		default:
+			LOGW("getPipeline:unknown pipeline type %d", type);
 			result = NULL;
 			break;
 	}
 
 	RETURN(result, IPipeline *);
 }
+
+//**********************************************************************
+// native methods common to all pipelines(com.serenegiant.usb.IPipeline)
+//**********************************************************************
+static void nativeDestroy(JNIEnv *env, jobject thiz) {
+	ENTER();
+
+	IPipeline *pipeline = getPipeline(env, thiz);
+	setField_long(env, thiz, "mNativePtr", 0);
+	if (LIKELY(pipeline)) {
+		pipeline->release();
+		SAFE_DELETE(pipeline);
+	}
+
+	EXIT();
+}
+
+static jint nativeGetState(JNIEnv *env, jobject thiz) {
+	ENTER();
+
+	jint result = PIPELINE_STATE_UNINITIALIZED;
+	IPipeline *pipeline = getPipeline(env, thiz);
+	if (LIKELY(pipeline)) {
+		result = pipeline->getState();
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz, jobject next_obj) {
+	ENTER();
+
+	jint result = JNI_ERR;
+	IPipeline *pipeline = getPipeline(env, thiz);
+	if (LIKELY(pipeline)) {
+		result = pipeline->setPipeline(getPipeline(env, next_obj));
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeStart(JNIEnv *env, jobject thiz) {
+	ENTER();
+
+	jint result = JNI_ERR;
+	IPipeline *pipeline = getPipeline(env, thiz);
+	if (LIKELY(pipeline)) {
+		result = pipeline->start();
+	}
+
+	RETURN(result, jint);
+}
+
+static jint nativeStop(JNIEnv *env, jobject thiz) {
+	ENTER();
+
+	jint result = JNI_ERR;
+	IPipeline *pipeline = getPipeline(env, thiz);
+	if (LIKELY(pipeline)) {
+		result = pipeline->stop();
+	}
+
+	RETURN(result, jint);
+}
+
+static jstring nativeGetStats(JNIEnv *env, jobject thiz) {
+	ENTER();
+
+	jstring result = NULL;
+	IPipeline *pipeline = getPipeline(env, thiz);
+	if (LIKELY(pipeline)) {
+		char *c_str = pipeline->getStats();
+		if (LIKELY(c_str)) {
+			result = env->NewStringUTF(c_str);
+			free(c_str);
+		}
+	}
+
+	RETURN(result, jstring);
+}
+
+static jint nativeSetQueuePolicy(JNIEnv *env, jobject thiz, jint policy, jfloat max_fps) {
+	ENTER();
+
+	jint result = JNI_ERR;
+	IPipeline *pipeline = getPipeline(env, thiz);
+	if (LIKELY(pipeline)) {
+		result = pipeline->setQueuePolicy(
+			policy == PIPELINE_DROP_NEWEST ? PIPELINE_DROP_NEWEST : PIPELINE_DROP_OLDEST, max_fps);
+	}
+
+	RETURN(result, jint);
+}
+
+//**********************************************************************
+//
+//**********************************************************************
+static JNINativeMethod methods[] = {
+	{ "nativeDestroy",			"()V", (void *) nativeDestroy },
+	{ "nativeGetState",			"()I", (void *) nativeGetState },
+	{ "nativeSetPipeline",		"(Lcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+	{ "nativeStart",			"()I", (void *) nativeStart },
+	{ "nativeStop",				"()I", (void *) nativeStop },
+	{ "nativeGetStats",			"()Ljava/lang/String;", (void *) nativeGetStats },
+	{ "nativeSetQueuePolicy",	"(IF)I", (void *) nativeSetQueuePolicy },
+};
+
+int register_pipelines(JNIEnv *env) {
+	LOGV("register_pipelines:");
+	if (registerNativeMethods(env,
+		"com/serenegiant/usb/IPipeline",
+		methods, NUM_ARRAY_ELEMENTS(methods)) < 0) {
+		return -1;
+	}
+	if ((register_simple_buffered_pipeline(env) < 0)
+		|| (register_callback_pipeline(env) < 0)
+		|| (register_convert_pipeline(env) < 0)
+		|| (register_preview_pipeline(env) < 0)
+		|| (register_distribute_pipeline(env) < 0)
+		|| (register_time_shift_pipeline(env) < 0)
+		|| (register_publisher_pipeline(env) < 0)) {
+		return -1;
+	}
+	return 0;
+}
@@ -5,10 +5,23 @@
 #ifndef PUPILMOBILE_PIPELINE_HELPER_H_H
 #define PUPILMOBILE_PIPELINE_HELPER_H_H
 
-#include "common_utils.h"
+#include <jni.h>
 
+#include "localdefines.h"
 #include "IPipeline.h"
 
+// defined in serenegiant_usb_UVCCamera.cpp
+extern jint registerNativeMethods(JNIEnv* env, const char *class_name, JNINativeMethod *methods, int num_methods);
+
+/**
+ * get native pipeline from Java IPipeline object
+ * @return NULL if pipeline_obj is null or already released
+ */
 IPipeline *getPipeline(JNIEnv *env, jobject pipeline_obj);
 
+/**
+ * register native methods of all pipeline classes
+ */
+int register_pipelines(JNIEnv *env);
+
 #endif //PUPILMOBILE_PIPELINE_HELPER_H_H
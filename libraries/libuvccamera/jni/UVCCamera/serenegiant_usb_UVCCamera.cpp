@@ -38,6 +38,8 @@
 
 #include "libUVCCamera.h"
 #include "UVCCamera.h"
+#include "CallbackBufferPool.h"
+#include "pipeline/pipeline_helper.h"
 
 /**
  * set the value into the long field
@@ -276,6 +278,282 @@ static jint nativeSetFrameCallback(JNIEnv *env, jobject thiz,
 	RETURN(result, jint);
 }
 
+static jint nativeSetPooledFrameCallback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIPooledFrameCallback, jint pixel_format, jint num_buffers) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		jobject frame_callback_obj = env->NewGlobalRef(jIPooledFrameCallback);
+		result = camera->setFrameCallback(env, frame_callback_obj, pixel_format, num_buffers < 1 ? 1 : num_buffers);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeReleaseFrame(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint slot) {
+
+	jint result = JNI_ERR;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->releaseFrame(slot);
+	} else {
+		// the consumer can still hold the buffers after the camera was destroyed
+		result = CallbackBufferPool::releaseFrame(env, slot);
+	}
+	return result;
+}
+
+static jint nativeSetHeadless(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jboolean headless) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setHeadless(headless);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetTargetFps(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jfloat fps) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setTargetFps(fps);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetQueuePolicy(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint queue, jint policy, jint depth, jint timeout_ms) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setQueuePolicy(queue, policy, depth, timeout_ms);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetH264Callback(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject jIH264Callback) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		jobject h264_callback_obj = jIH264Callback ? env->NewGlobalRef(jIH264Callback) : NULL;
+		result = camera->setH264Callback(env, h264_callback_obj);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStartMjpegRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jstring path_str) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera && path_str)) {
+		const char *c_path = env->GetStringUTFChars(path_str, JNI_FALSE);
+		result = camera->startRecording(c_path);
+		env->ReleaseStringUTFChars(path_str, c_path);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeStopMjpegRecording(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->stopRecording();
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject pipeline_obj) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setPipeline(getPipeline(env, pipeline_obj));
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetRawPipeline(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jobject pipeline_obj) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setRawPipeline(getPipeline(env, pipeline_obj));
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetStreamCtrlCache(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jbyteArray cache) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		if (cache) {
+			const jsize bytes = env->GetArrayLength(cache);
+			jbyte *data = env->GetByteArrayElements(cache, NULL);
+			if (LIKELY(data)) {
+				result = camera->setStreamCtrlCache(data, bytes);
+				env->ReleaseByteArrayElements(cache, data, JNI_ABORT);
+			}
+		} else {
+			result = camera->setStreamCtrlCache(NULL, 0);
+		}
+	}
+	RETURN(result, jint);
+}
+
+static jbyteArray nativeGetStreamCtrlCache(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	ENTER();
+	jbyteArray result = NULL;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		const size_t bytes = camera->getStreamCtrlCache(NULL, 0);
+		if (bytes) {
+			jbyte *data = (jbyte *)malloc(bytes);
+			if (LIKELY(data) && (camera->getStreamCtrlCache(data, bytes) == bytes)) {
+				result = env->NewByteArray(bytes);
+				if (LIKELY(result)) {
+					env->SetByteArrayRegion(result, 0, bytes, data);
+				}
+			}
+			free(data);
+		}
+	}
+	RETURN(result, jbyteArray);
+}
+
+static jint nativeSetOutputSize(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint width, jint height) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setOutputSize(width, height);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeSetCropRect(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint x, jint y, jint width, jint height) {
+
+	jint result = JNI_ERR;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setCropRect(x, y, width, height);
+	}
+	return result;
+}
+
+static jint nativeSetDecodeThreads(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint num_threads) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setDecodeThreads(num_threads);
+	}
+	RETURN(result, jint);
+}
+
+static jobject nativeGetDecodeStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	ENTER();
+	jstring result = NULL;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		char *c_str = camera->getDecodeStats();
+		if (LIKELY(c_str)) {
+			result = env->NewStringUTF(c_str);
+			free(c_str);
+		}
+	}
+	RETURN(result, jobject);
+}
+
+static jobject nativeGetCallbackStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	ENTER();
+	jstring result = NULL;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		char *c_str = camera->getCallbackStats();
+		if (LIKELY(c_str)) {
+			result = env->NewStringUTF(c_str);
+			free(c_str);
+		}
+	}
+	RETURN(result, jobject);
+}
+
+static jobject nativeGetCaptureStats(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera) {
+
+	ENTER();
+	jstring result = NULL;
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		char *c_str = camera->getCaptureStats();
+		if (LIKELY(c_str)) {
+			result = env->NewStringUTF(c_str);
+			free(c_str);
+		}
+	}
+	RETURN(result, jobject);
+}
+
+static jint nativeSetNumTransferBuffers(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint num_buffers) {
+
+	jint result = JNI_ERR;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->setNumTransferBuffers(num_buffers);
+	}
+	RETURN(result, jint);
+}
+
+static jint nativeTrimMemory(JNIEnv *env, jobject thiz,
+	ID_TYPE id_camera, jint level) {
+
+	jint result = 0;
+	ENTER();
+	UVCCamera *camera = reinterpret_cast<UVCCamera *>(id_camera);
+	if (LIKELY(camera)) {
+		result = camera->trimMemory(level);
+	}
+	RETURN(result, jint);
+}
+
 static jint nativeSetCaptureDisplay(JNIEnv *env, jobject thiz,
 	ID_TYPE id_camera, jobject jSurface) {
 
@@ -2028,6 +2306,26 @@ static JNINativeMethod methods[] = {
 	{ "nativeStopPreview",				"(J)I", (void *) nativeStopPreview },
 	{ "nativeSetPreviewDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetPreviewDisplay },
 	{ "nativeSetFrameCallback",			"(JLcom/serenegiant/usb/IFrameCallback;I)I", (void *) nativeSetFrameCallback },
+	{ "nativeSetPooledFrameCallback",	"(JLcom/serenegiant/usb/IPooledFrameCallback;II)I", (void *) nativeSetPooledFrameCallback },
+	{ "nativeReleaseFrame",				"(JI)I", (void *) nativeReleaseFrame },
+	{ "nativeSetHeadless",				"(JZ)I", (void *) nativeSetHeadless },
+	{ "nativeSetTargetFps",				"(JF)I", (void *) nativeSetTargetFps },
+	{ "nativeSetQueuePolicy",			"(JIIII)I", (void *) nativeSetQueuePolicy },
+	{ "nativeSetH264Callback",			"(JLcom/serenegiant/usb/IH264Callback;)I", (void *) nativeSetH264Callback },
+	{ "nativeStartMjpegRecording",		"(JLjava/lang/String;)I", (void *) nativeStartMjpegRecording },
+	{ "nativeStopMjpegRecording",		"(J)I", (void *) nativeStopMjpegRecording },
+	{ "nativeSetPipeline",				"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetPipeline },
+	{ "nativeSetRawPipeline",			"(JLcom/serenegiant/usb/IPipeline;)I", (void *) nativeSetRawPipeline },
+	{ "nativeSetStreamCtrlCache",		"(J[B)I", (void *) nativeSetStreamCtrlCache },
+	{ "nativeGetStreamCtrlCache",		"(J)[B", (void *) nativeGetStreamCtrlCache },
+	{ "nativeSetOutputSize",			"(JII)I", (void *) nativeSetOutputSize },
+	{ "nativeSetCropRect",				"(JIIII)I", (void *) nativeSetCropRect },
+	{ "nativeSetDecodeThreads",			"(JI)I", (void *) nativeSetDecodeThreads },
+	{ "nativeGetDecodeStats",			"(J)Ljava/lang/String;", (void *) nativeGetDecodeStats },
+	{ "nativeGetCallbackStats",			"(J)Ljava/lang/String;", (void *) nativeGetCallbackStats },
+	{ "nativeGetCaptureStats",			"(J)Ljava/lang/String;", (void *) nativeGetCaptureStats },
+	{ "nativeSetNumTransferBuffers",	"(JI)I", (void *) nativeSetNumTransferBuffers },
+	{ "nativeTrimMemory",				"(JI)I", (void *) nativeTrimMemory },
 
 	{ "nativeSetCaptureDisplay",		"(JLandroid/view/Surface;)I", (void *) nativeSetCaptureDisplay },
 
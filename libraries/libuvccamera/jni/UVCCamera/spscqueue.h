@@ -0,0 +1,284 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: spscqueue.h
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+#ifndef SPSCQUEUE_H_
+#define SPSCQUEUE_H_
+
+#include <stdint.h>
+#include <stdlib.h>
+#include <errno.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
+
+/**
+ * bounded lock-free ring buffer for one producer thread and one consumer thread.
+ * T should be a pointer type, NULL is used as "no element".
+ * The consumer can sleep on the futex word until the producer puts a new element,
+ * the producer only enters the kernel when the consumer is actually sleeping.
+ * the producer can also sleep until the consumer takes an element with #put(obj, timeout_ns).
+ * the limit can be changed with #setLimit up to the ring size that was allocated in the constructor.
+ * this header does not depend on JNI/Android so that it can be built on the host
+ * (see jni/benchmark)
+ */
+template <class T>
+class SpscQueue {
+private:
+	T *m_elements;
+	volatile uint32_t m_limit;		// max number of elements
+	uint32_t m_mask;		// ring size - 1, ring size is power of 2 and >= m_limit
+	// consumer side index, producer also advances this when it replaces the oldest element
+	volatile uint32_t m_head __attribute__((aligned(64)));
+	// producer side index
+	volatile uint32_t m_tail __attribute__((aligned(64)));
+	// futex word, incremented on every put/wakeup
+	volatile int32_t m_event __attribute__((aligned(64)));
+	volatile int32_t m_waiters;
+	// set by #wakeup so that the consumer does not sleep even if it was not waiting yet
+	volatile int32_t m_kicked;
+	// futex word for the producer waiting for space, incremented on every take/wakeup
+	volatile int32_t m_space __attribute__((aligned(64)));
+	volatile int32_t m_space_waiters;
+	// set by #wakeup so that the producer blocking in #put(obj, timeout_ns) gives up,
+	// kept until #resetProducerWakeup so that a wakeup is never lost
+	volatile int32_t m_producer_kicked;
+
+	static inline int futex_wait(volatile int32_t *addr, int32_t val, const struct timespec *timeout) {
+		return syscall(__NR_futex, addr, FUTEX_WAIT_PRIVATE, val, timeout, NULL, 0);
+	}
+
+	static inline int futex_wake(volatile int32_t *addr, int count) {
+		return syscall(__NR_futex, addr, FUTEX_WAKE_PRIVATE, count, NULL, NULL, 0);
+	}
+
+	inline void signal() {
+		__atomic_add_fetch(&m_event, 1, __ATOMIC_SEQ_CST);
+		if (__atomic_load_n(&m_waiters, __ATOMIC_SEQ_CST) > 0) {
+			futex_wake(&m_event, 1);
+		}
+	}
+
+	/**
+	 * take the oldest element, this is also called from producer
+	 * when it replaces the oldest element, so head is advanced with CAS
+	 */
+	inline T take() {
+		uint32_t head = __atomic_load_n(&m_head, __ATOMIC_ACQUIRE);
+		for ( ; ; ) {
+			const uint32_t tail = __atomic_load_n(&m_tail, __ATOMIC_ACQUIRE);
+			if (head == tail) return NULL;
+			T obj = __atomic_load_n(&m_elements[head & m_mask], __ATOMIC_RELAXED);
+			if (__atomic_compare_exchange_n(&m_head, &head, head + 1,
+				false, __ATOMIC_ACQ_REL, __ATOMIC_ACQUIRE)) {
+				__atomic_add_fetch(&m_space, 1, __ATOMIC_SEQ_CST);
+				if (__atomic_load_n(&m_space_waiters, __ATOMIC_SEQ_CST) > 0) {
+					futex_wake(&m_space, 1);
+				}
+				return obj;
+			}
+			// head was updated by other side, retry with new head
+		}
+	}
+
+	static inline int64_t now_ns() {
+		struct timespec ts;
+		clock_gettime(CLOCK_MONOTONIC, &ts);
+		return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+	}
+
+public:
+	/**
+	 * @param limit max number of elements
+	 * @param max_limit max value that #setLimit accepts, same as limit if smaller than it
+	 */
+	SpscQueue(const uint32_t limit, const uint32_t max_limit = 0)
+	:	m_elements(NULL),
+		m_limit(limit > 0 ? limit : 1),
+		m_mask(0),
+		m_head(0),
+		m_tail(0),
+		m_event(0),
+		m_waiters(0),
+		m_kicked(0),
+		m_space(0),
+		m_space_waiters(0),
+		m_producer_kicked(0) {
+
+		uint32_t sz = 1;
+		while ((sz < m_limit) || (sz < max_limit)) sz <<= 1;
+		m_mask = sz - 1;
+		m_elements = new T[sz];
+	}
+
+	~SpscQueue() {
+		delete [] m_elements;
+		m_elements = NULL;
+	}
+
+	inline const uint32_t capacity() const { return m_limit; }
+	inline const uint32_t maxCapacity() const { return m_mask + 1; }
+
+	/**
+	 * change max number of elements, this can be called from any thread.
+	 * if the queue has more elements than new limit, the producer sees the queue is full
+	 * until the consumer took them.
+	 * @return the limit that was applied, clamped to 1..#maxCapacity
+	 */
+	uint32_t setLimit(const uint32_t limit) {
+		const uint32_t l = limit < 1 ? 1 : (limit > m_mask + 1 ? m_mask + 1 : limit);
+		__atomic_store_n(&m_limit, l, __ATOMIC_RELEASE);
+		return l;
+	}
+	inline const int size() const {
+		return (int)(__atomic_load_n(&m_tail, __ATOMIC_ACQUIRE) - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE));
+	}
+	inline const bool isEmpty() const { return size() <= 0; }
+
+	/**
+	 * add element, producer side only
+	 * @return false if the queue is full, the caller still owns obj
+	 */
+	bool put(T obj) {
+		const uint32_t tail = m_tail;
+		if ((tail - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE)) >= m_limit) {
+			return false;
+		}
+		__atomic_store_n(&m_elements[tail & m_mask], obj, __ATOMIC_RELAXED);
+		__atomic_store_n(&m_tail, tail + 1, __ATOMIC_RELEASE);
+		signal();
+		return true;
+	}
+
+	/**
+	 * add element, if the queue is full block until the consumer takes an element,
+	 * #wakeup is called or timeout expired. producer side only
+	 * this does not block after #wakeup until #resetProducerWakeup is called
+	 * @param timeout_ns 0 does not block
+	 * @return false if the queue is still full, the caller still owns obj
+	 */
+	bool put(T obj, const int64_t timeout_ns) {
+		if (put(obj)) return true;
+		if (timeout_ns <= 0) return false;
+		const int64_t deadline = now_ns() + timeout_ns;
+		bool result = false;
+		__atomic_add_fetch(&m_space_waiters, 1, __ATOMIC_SEQ_CST);
+		for ( ; ; ) {
+			const int32_t ev = __atomic_load_n(&m_space, __ATOMIC_SEQ_CST);
+			if (put(obj)) {
+				result = true;
+				break;
+			}
+			const int64_t remaining = deadline - now_ns();
+			if ((remaining <= 0) || __atomic_load_n(&m_producer_kicked, __ATOMIC_SEQ_CST)) {
+				break;
+			}
+			struct timespec ts;
+			ts.tv_sec = remaining / 1000000000LL;
+			ts.tv_nsec = remaining % 1000000000LL;
+			futex_wait(&m_space, ev, &ts);
+		}
+		__atomic_sub_fetch(&m_space_waiters, 1, __ATOMIC_SEQ_CST);
+		return result;
+	}
+
+	/**
+	 * add element, if the queue is full the oldest element is removed to keep latest ones.
+	 * producer side only
+	 * @return removed oldest element or NULL, the caller owns returned element
+	 */
+	T replace(T obj) {
+		T removed = NULL;
+		const uint32_t tail = m_tail;
+		if ((tail - __atomic_load_n(&m_head, __ATOMIC_ACQUIRE)) >= m_limit) {
+			// consumer may take the oldest element at the same time,
+			// in that case take() returns next one or NULL and there is enough space anyway
+			removed = take();
+		}
+		__atomic_store_n(&m_elements[tail & m_mask], obj, __ATOMIC_RELAXED);
+		__atomic_store_n(&m_tail, tail + 1, __ATOMIC_RELEASE);
+		signal();
+		return removed;
+	}
+
+	/**
+	 * remove the oldest element without blocking, consumer side only
+	 * @return NULL if empty
+	 */
+	inline T get() {
+		return take();
+	}
+
+	/**
+	 * remove the oldest element, if empty block until producer put new element,
+	 * #wakeup is called or timeout expired.
+	 * consumer side only
+	 * @param timeout_ns negative value means wait forever
+	 * @return NULL if empty after waking up
+	 */
+	T wait(const int64_t timeout_ns = -1) {
+		T obj = take();
+		if (!obj) {
+			__atomic_add_fetch(&m_waiters, 1, __ATOMIC_SEQ_CST);
+			const int32_t ev = __atomic_load_n(&m_event, __ATOMIC_SEQ_CST);
+			obj = take();
+			if (!obj && !__atomic_exchange_n(&m_kicked, 0, __ATOMIC_SEQ_CST)) {
+				if (timeout_ns >= 0) {
+					struct timespec ts;
+					ts.tv_sec = timeout_ns / 1000000000LL;
+					ts.tv_nsec = timeout_ns % 1000000000LL;
+					futex_wait(&m_event, ev, &ts);
+				} else {
+					futex_wait(&m_event, ev, NULL);
+				}
+				obj = take();
+			}
+			__atomic_sub_fetch(&m_waiters, 1, __ATOMIC_SEQ_CST);
+		}
+		return obj;
+	}
+
+	/**
+	 * wake up the consumer blocking in #wait without adding element
+	 * and the producer blocking in #put(obj, timeout_ns) without waiting for space
+	 */
+	inline void wakeup() {
+		__atomic_store_n(&m_kicked, 1, __ATOMIC_SEQ_CST);
+		__atomic_add_fetch(&m_event, 1, __ATOMIC_SEQ_CST);
+		futex_wake(&m_event, 0x7fffffff);
+		__atomic_store_n(&m_producer_kicked, 1, __ATOMIC_SEQ_CST);
+		__atomic_add_fetch(&m_space, 1, __ATOMIC_SEQ_CST);
+		futex_wake(&m_space, 0x7fffffff);
+	}
+
+	/**
+	 * let #put(obj, timeout_ns) block again after #wakeup,
+	 * call this before the producer starts
+	 */
+	inline void resetProducerWakeup() {
+		__atomic_store_n(&m_producer_kicked, 0, __ATOMIC_SEQ_CST);
+	}
+};
+
+#endif /* SPSCQUEUE_H_ */
@@ -0,0 +1,450 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: buffer_bench.c
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * memory usage of libuvc stream buffers while several cameras stream at the same time
+ * usage: buffer_bench [-n frames] [-c cameras] [-t transfers] [-p payload bytes] [-m dwMaxVideoFrameSize] [-j] [WxH]
+ * -j simulates MJPEG(variable frame size, sometimes larger than dwMaxVideoFrameSize), YUYV otherwise.
+ * this links libuvc/src/stream.c itself and streams from fake bulk devices, the libusb functions below
+ * complete the submitted transfers with generated payloads on one event thread for each camera,
+ * so _uvc_stream_callback/_uvc_process_payload/_uvc_ensure_outbuf/_uvc_swap_buffers and the user callback
+ * thread run as they do on device. frames are passed through frame pool same as UVCPreview
+ * (uvc_start_streaming_pooled) and the callback returns them to the pool.
+ * VmRSS/VmSize are read from /proc/self/status.
+ */
+
+#include <stdio.h>
+#include <stddef.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <pthread.h>
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+
+#define MAX_CAMERAS 4
+#define MAX_POOLED_FRAMES 8
+#define PAYLOAD_HEADER_BYTES 2
+
+typedef struct {
+	int width, height;
+	int mjpeg;
+	int frames;
+	int num_cameras;
+	int num_transfers;
+	size_t payload_bytes;	// dwMaxPayloadTransferSize
+	size_t max_frame_size;	// dwMaxVideoFrameSize
+} bench_param_t;
+
+/** libusb_transfer with the state of the fake device */
+typedef struct {
+	volatile int submitted;
+	volatile int cancelled;
+	struct libusb_transfer transfer;	// must be last, iso packet descriptors follow this
+} fake_transfer_t;
+
+#define FAKE_TRANSFER(t) ((fake_transfer_t *)((uint8_t *)(t) - offsetof(fake_transfer_t, transfer)))
+
+/** descriptors of one camera with one bulk VS interface and one frame size */
+typedef struct {
+	const bench_param_t *param;
+	struct libusb_interface_descriptor altsetting;
+	struct libusb_interface interfaces[2];
+	struct libusb_config_descriptor config;
+	uvc_device_info_t info;
+	uvc_streaming_interface_t stream_if;
+	uvc_format_desc_t format_desc;
+	uvc_frame_desc_t frame_desc;
+	uvc_device_handle_t devh;
+	uvc_stream_ctrl_t ctrl;
+	uint32_t rand_state;
+	// frame pool that the callback returns frames to
+	pthread_mutex_t pool_mutex;
+	uvc_frame_t *pool[MAX_POOLED_FRAMES];
+	int pooled;
+	int allocated;
+	// results
+	volatile int sent;
+	volatile int received;
+	int errors;
+	size_t initial_buf;
+	pthread_t event_thread;
+} fake_camera_t;
+
+//--------------------------------------------------------------------------------
+// fake libusb, only what stream.c uses
+//--------------------------------------------------------------------------------
+struct libusb_transfer *LIBUSB_CALL libusb_alloc_transfer(int iso_packets) {
+	fake_transfer_t *fake = calloc(1, sizeof(fake_transfer_t)
+		+ sizeof(struct libusb_iso_packet_descriptor) * iso_packets);
+	if (!fake) return NULL;
+	fake->transfer.num_iso_packets = iso_packets;
+	return &fake->transfer;
+}
+
+int LIBUSB_CALL libusb_submit_transfer(struct libusb_transfer *transfer) {
+	fake_transfer_t *fake = FAKE_TRANSFER(transfer);
+	__atomic_store_n(&fake->submitted, 1, __ATOMIC_RELEASE);
+	return LIBUSB_SUCCESS;
+}
+
+/** the event thread completes cancelled transfers later, same as libusb */
+int LIBUSB_CALL libusb_cancel_transfer(struct libusb_transfer *transfer) {
+	fake_transfer_t *fake = FAKE_TRANSFER(transfer);
+	if (!__atomic_load_n(&fake->submitted, __ATOMIC_ACQUIRE)) return LIBUSB_ERROR_NOT_FOUND;
+	__atomic_store_n(&fake->cancelled, 1, __ATOMIC_RELEASE);
+	return LIBUSB_SUCCESS;
+}
+
+int LIBUSB_CALL libusb_clear_halt(libusb_device_handle *dev, unsigned char endpoint) {
+	return LIBUSB_SUCCESS;
+}
+
+int LIBUSB_CALL libusb_control_transfer(libusb_device_handle *dev_handle,
+	uint8_t request_type, uint8_t bRequest, uint16_t wValue, uint16_t wIndex,
+	unsigned char *data, uint16_t wLength, unsigned int timeout) {
+
+	// probe/commit of the stream control, the device accepts anything
+	return wLength;
+}
+
+int LIBUSB_CALL libusb_set_interface_alt_setting(libusb_device_handle *dev,
+	int interface_number, int alternate_setting) {
+	return LIBUSB_SUCCESS;
+}
+
+uvc_error_t uvc_claim_if(uvc_device_handle_t *devh, int idx) {
+	return UVC_SUCCESS;
+}
+
+uvc_error_t uvc_release_if(uvc_device_handle_t *devh, int idx) {
+	return UVC_SUCCESS;
+}
+
+uvc_error_t uvc_vs_get_error_code(uvc_device_handle_t *devh,
+	uvc_vs_error_code_control_t *error_code, enum uvc_req_code req_code) {
+	return UVC_ERROR_NOT_SUPPORTED;
+}
+
+//--------------------------------------------------------------------------------
+/**
+ * @return kB of the field in /proc/self/status, -1 if not available
+ */
+static long read_status_kb(const char *field) {
+	char line[256];
+	const size_t len = strlen(field);
+	long result = -1;
+	FILE *fp = fopen("/proc/self/status", "r");
+	if (!fp) return -1;
+	while (fgets(line, sizeof(line), fp)) {
+		if (!strncmp(line, field, len) && (line[len] == ':')) {
+			result = atol(line + len + 1);
+			break;
+		}
+	}
+	fclose(fp);
+	return result;
+}
+
+static void print_mem(const char *stage) {
+	printf("%-10s VmRSS %8ld kB  VmSize %8ld kB\n",
+		stage, read_status_kb("VmRSS"), read_status_kb("VmSize"));
+}
+
+static inline uint32_t xorshift(fake_camera_t *camera) {
+	camera->rand_state ^= camera->rand_state << 13;
+	camera->rand_state ^= camera->rand_state >> 17;
+	camera->rand_state ^= camera->rand_state << 5;
+	return camera->rand_state;
+}
+
+static size_t next_frame_size(fake_camera_t *camera) {
+	const bench_param_t *param = camera->param;
+	const size_t raw = (size_t)param->width * param->height * 2;
+	if (!param->mjpeg) return raw;
+	// MJPEG is usually 1/10-1/5 of raw size, sometimes a detailed scene exceeds dwMaxVideoFrameSize
+	if ((xorshift(camera) % 100) == 0) return param->max_frame_size + param->max_frame_size / 3;
+	return raw / 10 + xorshift(camera) % (raw / 10);
+}
+
+//--------------------------------------------------------------------------------
+// frame pool that is passed to uvc_start_streaming_pooled
+//--------------------------------------------------------------------------------
+static uvc_frame_t *frame_obtain(size_t data_bytes, void *user_ptr) {
+	fake_camera_t *camera = (fake_camera_t *)user_ptr;
+	uvc_frame_t *frame = NULL;
+	pthread_mutex_lock(&camera->pool_mutex);
+	if (camera->pooled > 0) {
+		frame = camera->pool[--camera->pooled];
+	}
+	pthread_mutex_unlock(&camera->pool_mutex);
+	if (!frame) {
+		frame = uvc_allocate_frame(data_bytes);
+		if (frame) __atomic_add_fetch(&camera->allocated, 1, __ATOMIC_RELAXED);
+	}
+	return frame;
+}
+
+static void frame_recycle(fake_camera_t *camera, uvc_frame_t *frame) {
+	pthread_mutex_lock(&camera->pool_mutex);
+	if (camera->pooled < MAX_POOLED_FRAMES) {
+		camera->pool[camera->pooled++] = frame;
+		frame = NULL;
+	}
+	pthread_mutex_unlock(&camera->pool_mutex);
+	if (frame) uvc_free_frame(frame);
+}
+
+/** user callback, the frame is owned by this callback in frame pool mode */
+static void frame_callback(uvc_frame_t *frame, void *user_ptr) {
+	fake_camera_t *camera = (fake_camera_t *)user_ptr;
+	if (frame->frame_flags & UVC_FRAME_FLAG_ERR) camera->errors++;
+	__atomic_add_fetch(&camera->received, 1, __ATOMIC_RELAXED);
+	frame_recycle(camera, frame);
+}
+
+//--------------------------------------------------------------------------------
+// fake device
+//--------------------------------------------------------------------------------
+static const uint8_t guid_yuy2[16] = {
+	'Y', 'U', 'Y', '2', 0x00, 0x00, 0x10, 0x00, 0x80, 0x00, 0x00, 0xaa, 0x00, 0x38, 0x9b, 0x71 };
+
+static void init_camera(fake_camera_t *camera, const bench_param_t *param, const int index) {
+	memset(camera, 0, sizeof(fake_camera_t));
+	camera->param = param;
+	camera->rand_state = 0x12345678 + index;
+	pthread_mutex_init(&camera->pool_mutex, NULL);
+
+	// VS interface 1 with only one altsetting, i.e. bulk transfer
+	camera->altsetting.bInterfaceNumber = 1;
+	camera->interfaces[1].altsetting = &camera->altsetting;
+	camera->interfaces[1].num_altsetting = 1;
+	camera->config.bNumInterfaces = 2;
+	camera->config.interface = camera->interfaces;
+	camera->info.config = &camera->config;
+
+	camera->frame_desc.parent = &camera->format_desc;
+	camera->frame_desc.bFrameIndex = 1;
+	camera->frame_desc.wWidth = param->width;
+	camera->frame_desc.wHeight = param->height;
+	camera->frame_desc.dwMaxVideoFrameBufferSize = param->max_frame_size;
+	camera->format_desc.parent = &camera->stream_if;
+	camera->format_desc.bFormatIndex = 1;
+	if (param->mjpeg) {
+		memcpy(camera->format_desc.fourccFormat, "MJPG", 4);
+	} else {
+		memcpy(camera->format_desc.guidFormat, guid_yuy2, sizeof(guid_yuy2));
+	}
+	DL_APPEND(camera->format_desc.frame_descs, &camera->frame_desc);
+	camera->stream_if.parent = &camera->info;
+	camera->stream_if.bInterfaceNumber = 1;
+	camera->stream_if.bEndpointAddress = 0x81;
+	DL_APPEND(camera->stream_if.format_descs, &camera->format_desc);
+	DL_APPEND(camera->info.stream_ifs, &camera->stream_if);
+
+	camera->devh.info = &camera->info;
+	camera->devh.num_transfer_bufs = param->num_transfers;
+
+	camera->ctrl.bFormatIndex = 1;
+	camera->ctrl.bFrameIndex = 1;
+	camera->ctrl.dwFrameInterval = 333333;
+	camera->ctrl.dwMaxVideoFrameSize = param->max_frame_size;
+	camera->ctrl.dwMaxPayloadTransferSize = param->payload_bytes;
+	camera->ctrl.dwClockFrequency = 48000000;
+	camera->ctrl.bInterfaceNumber = 1;
+}
+
+/**
+ * find the transfer that stream.c submitted
+ * @return NULL if there is no transfer to complete
+ */
+static struct libusb_transfer *next_transfer(uvc_stream_handle_t *strmh, int *transfer_id, const int cancelled) {
+	int i;
+	for (i = 0; i < strmh->num_transfer_bufs; i++) {
+		const int ix = (*transfer_id + i) % strmh->num_transfer_bufs;
+		struct libusb_transfer *transfer = strmh->transfers[ix];
+		if (!transfer) continue;
+		fake_transfer_t *fake = FAKE_TRANSFER(transfer);
+		if (__atomic_load_n(&fake->submitted, __ATOMIC_ACQUIRE)
+			&& (!cancelled || __atomic_load_n(&fake->cancelled, __ATOMIC_ACQUIRE))) {
+
+			*transfer_id = ix + 1;
+			return transfer;
+		}
+	}
+	return NULL;
+}
+
+static int transfers_alive(uvc_stream_handle_t *strmh) {
+	int i;
+	for (i = 0; i < strmh->num_transfer_bufs; i++) {
+		if (strmh->transfers[i]) return 1;
+	}
+	return 0;
+}
+
+/**
+ * event thread of the fake device, sends all frames and then completes cancelled transfers
+ * until uvc_stream_stop deleted all of them
+ */
+static void *event_thread_func(void *arg) {
+	fake_camera_t *camera = (fake_camera_t *)arg;
+	const bench_param_t *param = camera->param;
+	uvc_stream_handle_t *strmh = camera->devh.streams;
+	const size_t max_data = param->payload_bytes - PAYLOAD_HEADER_BYTES;
+	int transfer_id = 0, f;
+
+	for (f = 0; f < param->frames; f++) {
+		size_t remain = next_frame_size(camera);
+		const uint8_t fid = f & 1;
+		while (remain) {
+			struct libusb_transfer *transfer = next_transfer(strmh, &transfer_id, 0);
+			if (!transfer) {
+				usleep(100);
+				continue;
+			}
+			const size_t data_len = remain < max_data ? remain : max_data;
+			remain -= data_len;
+			transfer->buffer[0] = PAYLOAD_HEADER_BYTES;
+			transfer->buffer[1] = fid | (!remain ? UVC_STREAM_EOF : 0);
+			memset(transfer->buffer + PAYLOAD_HEADER_BYTES, f & 0xff, data_len);
+			transfer->actual_length = data_len + PAYLOAD_HEADER_BYTES;
+			transfer->status = LIBUSB_TRANSFER_COMPLETED;
+			__atomic_store_n(&FAKE_TRANSFER(transfer)->submitted, 0, __ATOMIC_RELEASE);
+			transfer->callback(transfer);
+		}
+		__atomic_add_fetch(&camera->sent, 1, __ATOMIC_RELEASE);
+	}
+	// wait for uvc_stream_stop
+	for ( ; transfers_alive(strmh) ; ) {
+		struct libusb_transfer *transfer = next_transfer(strmh, &transfer_id, 1);
+		if (!transfer) {
+			usleep(1000);
+			continue;
+		}
+		transfer->status = LIBUSB_TRANSFER_CANCELLED;
+		transfer->actual_length = 0;
+		__atomic_store_n(&FAKE_TRANSFER(transfer)->submitted, 0, __ATOMIC_RELEASE);
+		transfer->callback(transfer);
+	}
+	return NULL;
+}
+
+static int run(const bench_param_t *param) {
+	fake_camera_t *cameras = calloc(param->num_cameras, sizeof(fake_camera_t));
+	int i, result = 0;
+
+	if (!cameras) return -1;
+	print_mem("start");
+	for (i = 0; i < param->num_cameras; i++) {
+		fake_camera_t *camera = &cameras[i];
+		init_camera(camera, param, i);
+		const uvc_error_t ret = uvc_start_streaming_pooled(&camera->devh, &camera->ctrl,
+			frame_callback, frame_obtain, camera, 0.0f, 0);
+		if (ret) {
+			fprintf(stderr, "camera %d: uvc_start_streaming_pooled failed:%d\n", i, ret);
+			return -1;
+		}
+		camera->initial_buf = camera->devh.streams->size_buf;
+	}
+	print_mem("started");
+
+	for (i = 0; i < param->num_cameras; i++) {
+		pthread_create(&cameras[i].event_thread, NULL, event_thread_func, &cameras[i]);
+	}
+	for (i = 0; i < param->num_cameras; i++) {
+		while (__atomic_load_n(&cameras[i].sent, __ATOMIC_ACQUIRE) < param->frames) {
+			usleep(1000);
+		}
+	}
+	print_mem("streamed");
+	for (i = 0; i < param->num_cameras; i++) {
+		const uvc_stream_handle_t *strmh = cameras[i].devh.streams;
+		printf("camera %d: outbuf %zu -> %zu bytes, holdbuf %zu bytes, %d frames allocated\n",
+			i, cameras[i].initial_buf, strmh->size_buf, strmh->size_hold, cameras[i].allocated);
+	}
+
+	for (i = 0; i < param->num_cameras; i++) {
+		fake_camera_t *camera = &cameras[i];
+		// the event thread completes the cancelled transfers while uvc_stream_stop waits for them
+		uvc_stream_stop(camera->devh.streams);
+		pthread_join(camera->event_thread, NULL);
+		uvc_stream_close(camera->devh.streams);
+		printf("camera %d: sent %d frames, received %d frames, %d with error\n",
+			i, camera->sent, camera->received, camera->errors);
+		if (!camera->received) result = -1;
+		for ( ; camera->pooled > 0 ; ) {
+			uvc_free_frame(camera->pool[--camera->pooled]);
+		}
+		pthread_mutex_destroy(&camera->pool_mutex);
+	}
+	print_mem("closed");
+
+	free(cameras);
+	return result;
+}
+
+int main(int argc, char *argv[]) {
+	bench_param_t param = {
+		.width = 1920, .height = 1080, .mjpeg = 0, .frames = 300, .num_cameras = 2,
+		.num_transfers = LIBUVC_NUM_TRANSFER_BUFS, .payload_bytes = 512 * 1024, .max_frame_size = 0,
+	};
+	int i;
+
+	for (i = 1; i < argc; i++) {
+		if (!strcmp(argv[i], "-n") && (i + 1 < argc)) {
+			param.frames = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-c") && (i + 1 < argc)) {
+			param.num_cameras = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-t") && (i + 1 < argc)) {
+			param.num_transfers = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-p") && (i + 1 < argc)) {
+			param.payload_bytes = strtoul(argv[++i], NULL, 0);
+		} else if (!strcmp(argv[i], "-m") && (i + 1 < argc)) {
+			param.max_frame_size = strtoul(argv[++i], NULL, 0);
+		} else if (!strcmp(argv[i], "-j")) {
+			param.mjpeg = 1;
+		} else if (sscanf(argv[i], "%dx%d", &param.width, &param.height) != 2) {
+			fprintf(stderr, "usage: %s [-n frames] [-c cameras] [-t transfers] [-p payload bytes] [-m dwMaxVideoFrameSize] [-j] [WxH]\n", argv[0]);
+			return 1;
+		}
+	}
+	if ((param.width < 16) || (param.height < 16) || (param.frames < 1)
+		|| (param.payload_bytes <= PAYLOAD_HEADER_BYTES)
+		|| (param.num_cameras < 1) || (param.num_cameras > MAX_CAMERAS)
+		|| (param.num_transfers < 1) || (param.num_transfers > LIBUVC_MAX_TRANSFER_BUFS)) {
+		fprintf(stderr, "invalid parameter\n");
+		return 1;
+	}
+	if (!param.max_frame_size) {
+		// MJPEG cameras usually report about half of the raw frame size
+		param.max_frame_size = (size_t)param.width * param.height * 2 / (param.mjpeg ? 2 : 1);
+	}
+	printf("%d cameras, %dx%d %s, dwMaxVideoFrameSize %zu, %d transfers x %zu bytes, %d frames\n",
+		param.num_cameras, param.width, param.height, param.mjpeg ? "MJPEG" : "YUYV", param.max_frame_size,
+		param.num_transfers, param.payload_bytes, param.frames);
+	fflush(stdout);
+
+	return run(&param) ? 2 : 0;
+}
@@ -0,0 +1,185 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: convert_bench.c
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * pixel format converter benchmark
+ * usage: convert_bench [-n loops] [WxH ...]
+ * every converter is run with all SIMD implementations that this cpu supports,
+ * the output is compared with scalar C version and throughput is shown as MB/s of input frame.
+ * default sizes are 640x480, 1280x720, 1920x1080 and 1000x562(only to check odd width).
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "libuvc/libuvc.h"
+
+#define MAX_SIZES 16
+
+typedef uvc_error_t (*convert_func_t)(uvc_frame_t *in, uvc_frame_t *out);
+
+typedef struct {
+	const char *name;
+	enum uvc_frame_format in_format;
+	convert_func_t func;
+} converter_t;
+
+static const converter_t converters[] = {
+	{ "yuyv2rgbx",		UVC_FRAME_FORMAT_YUYV,	uvc_yuyv2rgbx },
+	{ "uyvy2rgbx",		UVC_FRAME_FORMAT_UYVY,	uvc_uyvy2rgbx },
+	{ "yuyv2rgb565",	UVC_FRAME_FORMAT_YUYV,	uvc_yuyv2rgb565 },
+	{ "yuyv2yuv420SP",	UVC_FRAME_FORMAT_YUYV,	uvc_yuyv2yuv420SP },
+	{ "yuyv2iyuv420SP",	UVC_FRAME_FORMAT_YUYV,	uvc_yuyv2iyuv420SP },
+	{ "yuyv2i420",		UVC_FRAME_FORMAT_YUYV,	uvc_yuyv2i420 },
+	{ "nv12_2rgbx",		UVC_FRAME_FORMAT_NV12,	uvc_nv12_2rgbx },
+	{ "nv21_2rgbx",		UVC_FRAME_FORMAT_NV21,	uvc_nv21_2rgbx },
+	{ "i420_2rgbx",		UVC_FRAME_FORMAT_I420,	uvc_i420_2rgbx },
+};
+
+static const enum uvc_simd_level levels[] = {
+	UVC_SIMD_NONE, UVC_SIMD_SSE2, UVC_SIMD_AVX2, UVC_SIMD_NEON,
+};
+
+static inline double now_ms(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static uint32_t rand_state = 0x12345678;
+
+static inline uint32_t xorshift(void) {
+	rand_state ^= rand_state << 13;
+	rand_state ^= rand_state >> 17;
+	rand_state ^= rand_state << 5;
+	return rand_state;
+}
+
+/**
+ * random pixels so that both saturation ends are hit
+ */
+static uvc_frame_t *create_input(const enum uvc_frame_format format, const int width, const int height) {
+	const int packed = (format == UVC_FRAME_FORMAT_YUYV) || (format == UVC_FRAME_FORMAT_UYVY);
+	const size_t bytes = packed ? width * height * 2 : (width * height * 3) / 2;
+	uvc_frame_t *frame = uvc_allocate_frame(bytes);
+	uint8_t *data = (uint8_t *)frame->data;
+	size_t i;
+	for (i = 0; i < bytes; i++) {
+		data[i] = (uint8_t)xorshift();
+	}
+	frame->width = width;
+	frame->height = height;
+	frame->frame_format = format;
+	frame->step = packed ? width * 2 : width;
+	frame->actual_bytes = bytes;
+	return frame;
+}
+
+static uvc_frame_t *create_output(void) {
+	uvc_frame_t *frame = uvc_allocate_frame(0);
+	frame->library_owns_data = 1;
+	return frame;
+}
+
+/**
+ * @return 0 if the output is same as scalar C version
+ */
+static int run(const converter_t *conv, const int width, const int height, const int loops) {
+	uvc_frame_t *in = create_input(conv->in_format, width, height);
+	uvc_frame_t *ref = create_output();
+	uvc_frame_t *out = create_output();
+	int mismatch = 0;
+	size_t i;
+
+	uvc_simd_set(UVC_SIMD_NONE);
+	conv->func(in, ref);
+	memset(ref->data, 0x5a, ref->data_bytes);	// some converters do not write padding
+	conv->func(in, ref);
+	for (i = 0; i < NUM_ARRAY_ELEMENTS(levels); i++) {
+		const enum uvc_simd_level level = levels[i];
+		if (uvc_simd_set(level) != level) continue;
+		conv->func(in, out);
+		memset(out->data, 0x5a, out->data_bytes);
+		conv->func(in, out);
+		const int same = (out->data_bytes == ref->data_bytes)
+			&& !memcmp(out->data, ref->data, ref->data_bytes);
+		if (!same) mismatch++;
+		const double start = now_ms();
+		int n;
+		for (n = 0; n < loops; n++) {
+			conv->func(in, out);
+		}
+		const double ms = (now_ms() - start) / loops;
+		printf("%-15s %4dx%-4d %-5s %8.3f ms %9.1f MB/s %s\n",
+			conv->name, width, height, uvc_simd_name(level),
+			ms, in->actual_bytes / (ms * 1000.0), same ? "" : "MISMATCH");
+	}
+	uvc_free_frame(in);
+	uvc_free_frame(ref);
+	uvc_free_frame(out);
+	return mismatch;
+}
+
+int main(int argc, char *argv[]) {
+	int loops = 200;
+	int widths[MAX_SIZES], heights[MAX_SIZES];
+	int num_sizes = 0;
+	int i, j;
+
+	for (i = 1; i < argc; i++) {
+		if (!strcmp(argv[i], "-n") && (i + 1 < argc)) {
+			loops = atoi(argv[++i]);
+		} else if ((num_sizes < MAX_SIZES)
+			&& (sscanf(argv[i], "%dx%d", &widths[num_sizes], &heights[num_sizes]) == 2)) {
+			num_sizes++;
+		} else {
+			fprintf(stderr, "usage: %s [-n loops] [WxH ...]\n", argv[0]);
+			return 1;
+		}
+	}
+	if (!num_sizes) {
+		static const int default_sizes[][2] = { { 640, 480 }, { 1280, 720 }, { 1920, 1080 }, { 1000, 562 } };
+		for (i = 0; i < (int)NUM_ARRAY_ELEMENTS(default_sizes); i++) {
+			widths[i] = default_sizes[i][0];
+			heights[i] = default_sizes[i][1];
+		}
+		num_sizes = NUM_ARRAY_ELEMENTS(default_sizes);
+	}
+	if (loops < 1) loops = 1;
+
+	const enum uvc_simd_level detected = uvc_simd_detect();
+	printf("detected:%s, loops:%d\n", uvc_simd_name(detected), loops);
+	int mismatch = 0;
+	for (i = 0; i < num_sizes; i++) {
+		for (j = 0; j < (int)NUM_ARRAY_ELEMENTS(converters); j++) {
+			mismatch += run(&converters[j], widths[i], heights[i], loops);
+		}
+	}
+	uvc_simd_set(detected);
+	if (mismatch) {
+		printf("%d results differ from scalar C version\n", mismatch);
+	}
+	return mismatch ? 2 : 0;
+}
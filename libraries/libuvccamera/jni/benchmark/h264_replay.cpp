@@ -0,0 +1,430 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: h264_replay.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * replay UVC payloads of frame based H.264 through a fake stream and H264Parser(UVCCamera/H264Parser.cpp)
+ * usage: h264_replay [-n frames] [-d drop every N frames] [-w capture to write] [recorded capture]
+ * capture file is a sequence of payloads that the camera sent, each of them is
+ * 4 bytes little endian length followed by the payload with its UVC payload header.
+ * payloads are assembled into frames same as _uvc_process_payload in libuvc/src/stream.c(FID/EOF),
+ * frames are passed to the parser same as UVCPreview::do_passthrough.
+ * without recorded capture, a synthesized stream(AUD/SEI, 3/4 bytes start codes, trailing zeros,
+ * SPS change at the middle) is used and every access unit is compared with the expected one.
+ * -d drops frames between assembling and parsing like a full preview queue.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "H264Parser.h"
+
+#define PAYLOAD_HEADER_BYTES 12
+#define PAYLOAD_DATA_BYTES 3060
+#define MAX_AU_BYTES (512 * 1024)
+#define GOP 30
+
+#define UVC_STREAM_FID 0x01
+#define UVC_STREAM_EOF 0x02
+#define UVC_STREAM_PTS 0x04
+#define UVC_STREAM_SCR 0x08
+#define UVC_STREAM_EOH 0x80
+
+typedef struct replay_buffer {
+	uint8_t *data;
+	size_t bytes;
+	size_t capacity;
+} replay_buffer_t;
+
+typedef struct replay_result {
+	uint32_t frames;			// frames that the fake stream assembled
+	uint32_t dropped;			// frames that were dropped before the parser
+	uint32_t delivered;			// access units that the parser passed
+	uint32_t config_calls;		// number of times that SPS/PPS would be passed to IH264Callback
+	uint32_t checked;			// access units that were compared with expected ones
+	uint32_t mismatch;			// access units that differ from expected ones
+	uint32_t invalid;			// access units that still have SPS/PPS/AUD or do not start with start code
+	uint32_t not_key_after_gap;	// first access unit after start/drop was not a key frame
+	uint64_t bytes;
+	uint64_t parse_ns;
+} replay_result_t;
+
+static uint32_t rand_state = 0x12345678;
+
+static inline uint32_t xorshift(void) {
+	rand_state ^= rand_state << 13;
+	rand_state ^= rand_state >> 17;
+	rand_state ^= rand_state << 5;
+	return rand_state;
+}
+
+static inline int64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static void append(replay_buffer_t *buf, const void *data, const size_t bytes) {
+	if (buf->bytes + bytes > buf->capacity) {
+		size_t capacity = buf->capacity ? buf->capacity * 2 : 65536;
+		while (capacity < buf->bytes + bytes) capacity *= 2;
+		buf->data = (uint8_t *)realloc(buf->data, capacity);
+		if (!buf->data) {
+			fprintf(stderr, "out of memory\n");
+			exit(1);
+		}
+		buf->capacity = capacity;
+	}
+	memcpy(buf->data + buf->bytes, data, bytes);
+	buf->bytes += bytes;
+}
+
+//--------------------------------------------------------------------------------
+// synthesized stream
+
+/**
+ * write one NAL unit with random payload and emulation prevention bytes
+ * @param expected NAL unit is also appended here unless it is SPS/PPS/AUD, can be NULL
+ */
+static void put_nal(replay_buffer_t *au, replay_buffer_t *expected,
+	const int code_bytes, const uint8_t header, const size_t payload_bytes, const uint8_t seed) {
+
+	static const uint8_t start_code[] = { 0, 0, 0, 1 };
+	const size_t head = au->bytes;
+	append(au, start_code + 4 - code_bytes, code_bytes);
+	append(au, &header, 1);
+	int zeros = 0;
+	for (size_t i = 0; i < payload_bytes; i++) {
+		// slices have many zero bytes, make 00 00 0x sequences common
+		uint8_t b = (xorshift() % 6) ? (uint8_t)(xorshift() + seed) : 0;
+		if (i == payload_bytes - 1) {
+			b = 0x80;	// rbsp_stop_one_bit
+		}
+		if ((zeros >= 2) && (b <= 3)) {
+			const uint8_t epb = 3;
+			append(au, &epb, 1);
+			zeros = 0;
+		}
+		append(au, &b, 1);
+		zeros = b ? 0 : zeros + 1;
+	}
+	const int type = header & 0x1f;
+	if (expected && (type != H264_NAL_SPS) && (type != H264_NAL_PPS) && (type != H264_NAL_AUD)) {
+		append(expected, au->data + head, au->bytes - head);
+	}
+}
+
+/**
+ * trailing_zero_8bits, they are not a part of any NAL unit
+ */
+static void put_trailing_zeros(replay_buffer_t *au) {
+	static const uint8_t zeros[] = { 0, 0 };
+	append(au, zeros, 2);
+}
+
+/**
+ * generate one access unit
+ * @param config version of SPS, SPS changes when this changes
+ */
+static void generate_au(const int index, const int config,
+	replay_buffer_t *au, replay_buffer_t *expected) {
+
+	au->bytes = expected->bytes = 0;
+	const bool key = !(index % GOP);
+	if (index % 3 == 0) {
+		put_nal(au, NULL, 4, H264_NAL_AUD, 1, 0);
+	}
+	if (key) {
+		// SPS/PPS are same until config changes
+		const uint32_t state = rand_state;
+		rand_state = 0x9e3779b9u * (uint32_t)config;
+		put_nal(au, NULL, 4, 0x67, 12, (uint8_t)config);	// SPS
+		put_nal(au, NULL, 4, 0x68, 4, 0);					// PPS
+		rand_state = state;
+		put_nal(au, expected, 4, 0x06, 20, 0);				// SEI
+		// IDR in two slices, the second one has 3 bytes start code
+		put_nal(au, expected, 4, 0x65, 20000 + xorshift() % 20000, 0);
+		put_nal(au, expected, 3, 0x65, 10000 + xorshift() % 10000, 0);
+	} else {
+		int code_bytes = (index % 5 == 0) ? 3 : 4;
+		if (index % 7 == 0) {
+			put_nal(au, expected, 4, 0x06, 8, 0);
+			put_trailing_zeros(au);
+			if (code_bytes == 3) {
+				// parser sees 00 00 00 01 because the last trailing zero belongs to the start code
+				const uint8_t zero = 0;
+				append(expected, &zero, 1);
+			}
+		}
+		put_nal(au, expected, code_bytes, 0x41, 2000 + xorshift() % 10000, 0);
+		if (index % 11 == 0) {
+			put_trailing_zeros(au);
+		}
+	}
+}
+
+/**
+ * split one access unit into payloads with UVC payload header
+ */
+static void packetize(replay_buffer_t *payloads, const uint8_t *data, const size_t bytes,
+	const int fid, const uint32_t pts) {
+
+	uint8_t header[PAYLOAD_HEADER_BYTES];
+	for (size_t offset = 0; offset < bytes; ) {
+		const size_t len = bytes - offset > PAYLOAD_DATA_BYTES ? PAYLOAD_DATA_BYTES : bytes - offset;
+		const uint32_t record = PAYLOAD_HEADER_BYTES + len;
+		memset(header, 0, sizeof(header));
+		header[0] = PAYLOAD_HEADER_BYTES;
+		header[1] = UVC_STREAM_EOH | UVC_STREAM_PTS | UVC_STREAM_SCR | (fid ? UVC_STREAM_FID : 0)
+			| (offset + len == bytes ? UVC_STREAM_EOF : 0);
+		memcpy(header + 2, &pts, 4);
+		memcpy(header + 6, &pts, 4);
+		uint8_t len_le[4] = { (uint8_t)record, (uint8_t)(record >> 8), (uint8_t)(record >> 16), (uint8_t)(record >> 24) };
+		append(payloads, len_le, 4);
+		append(payloads, header, sizeof(header));
+		append(payloads, data + offset, len);
+		offset += len;
+	}
+}
+
+//--------------------------------------------------------------------------------
+// fake stream and consumer
+
+typedef struct fake_stream {
+	replay_buffer_t outbuf;
+	int fid;
+	uint32_t seq;
+} fake_stream_t;
+
+/**
+ * check that the access unit starts with start code and has no SPS/PPS/AUD
+ */
+static bool check_au(const uint8_t *data, const size_t bytes) {
+	if ((bytes < 4) || data[0] || data[1] || !((data[2] == 1) || (!data[2] && data[3] == 1))) {
+		return false;
+	}
+	for (size_t i = 0; i + 3 < bytes; i++) {
+		if (!data[i] && !data[i + 1] && (data[i + 2] == 1)) {
+			const int type = data[i + 3] & 0x1f;
+			if ((type == H264_NAL_SPS) || (type == H264_NAL_PPS) || (type == H264_NAL_AUD)) {
+				return false;
+			}
+		}
+	}
+	return true;
+}
+
+typedef struct replay_context {
+	H264Parser *parser;
+	replay_result_t *result;
+	int drop_every;
+	bool has_last;
+	uint32_t last_seq;
+	bool need_key;
+	// expected access units of synthesized stream indexed by frame sequence, NULL for recorded capture
+	replay_buffer_t *expected;
+	int num_expected;
+} replay_context_t;
+
+/**
+ * same as UVCPreview::do_passthrough/passthrough_frame
+ */
+static void on_frame(replay_context_t *ctx, uint8_t *data, const size_t bytes, const uint32_t seq) {
+	replay_result_t *result = ctx->result;
+	result->frames++;
+	if (ctx->drop_every && !((seq + 1) % ctx->drop_every)) {
+		result->dropped++;
+		return;
+	}
+	if (ctx->has_last && (seq != ctx->last_seq + 1)) {
+		ctx->parser->discontinuity();
+		ctx->need_key = true;
+	}
+	ctx->has_last = true;
+	ctx->last_seq = seq;
+	h264_access_unit_t au;
+	const int64_t start = now_ns();
+	const int r = ctx->parser->parse(data, bytes, au);
+	result->parse_ns += now_ns() - start;
+	result->bytes += bytes;
+	if (r) return;
+	result->delivered++;
+	if (au.config_changed) result->config_calls++;
+	if (ctx->need_key && !au.key_frame) result->not_key_after_gap++;
+	ctx->need_key = false;
+	if (!check_au(au.data, au.bytes)) result->invalid++;
+	if (ctx->expected && ((int)seq < ctx->num_expected)) {
+		const replay_buffer_t *expected = &ctx->expected[seq];
+		result->checked++;
+		if ((expected->bytes != au.bytes) || memcmp(expected->data, au.data, au.bytes)) {
+			if (!result->mismatch) {
+				fprintf(stderr, "mismatch at frame %u: %zu bytes, expected %zu bytes\n", seq, au.bytes, expected->bytes);
+			}
+			result->mismatch++;
+		}
+	}
+}
+
+/**
+ * same as _uvc_process_payload, frames are finished with EOF or FID flip
+ */
+static void process_payload(fake_stream_t *strm, replay_context_t *ctx, const uint8_t *payload, const size_t payload_len) {
+	if (!payload_len) return;
+	const size_t header_len = payload[0];
+	if (header_len > payload_len) return;	// bogus packet
+	const uint8_t header_info = header_len >= 2 ? payload[1] : 0;
+	if (header_len >= 2) {
+		if ((strm->fid != (header_info & UVC_STREAM_FID)) && strm->outbuf.bytes) {
+			on_frame(ctx, strm->outbuf.data, strm->outbuf.bytes, strm->seq++);
+			strm->outbuf.bytes = 0;
+		}
+		strm->fid = header_info & UVC_STREAM_FID;
+	}
+	append(&strm->outbuf, payload + header_len, payload_len - header_len);
+	if ((header_info & UVC_STREAM_EOF) && strm->outbuf.bytes) {
+		on_frame(ctx, strm->outbuf.data, strm->outbuf.bytes, strm->seq++);
+		strm->outbuf.bytes = 0;
+	}
+}
+
+static int replay(const replay_buffer_t *capture, replay_context_t *ctx) {
+	fake_stream_t strm;
+	memset(&strm, 0, sizeof(strm));
+	size_t offset = 0;
+	for ( ; offset + 4 <= capture->bytes; ) {
+		const uint8_t *p = capture->data + offset;
+		const size_t len = p[0] | (p[1] << 8) | (p[2] << 16) | ((size_t)p[3] << 24);
+		if (offset + 4 + len > capture->bytes) break;
+		process_payload(&strm, ctx, p + 4, len);
+		offset += 4 + len;
+	}
+	free(strm.outbuf.data);
+	return offset == capture->bytes ? 0 : -1;
+}
+
+static void print_result(const replay_result_t *result, const H264Parser *parser) {
+	const h264_stats_t &stats = parser->stats();
+	printf("frames %u, dropped %u, delivered %u(key %u), skipped %u, discontinuities %u, config %u/%u, errors %u\n",
+		result->frames, result->dropped, result->delivered, stats.key_frames, stats.skipped,
+		stats.discontinuities, result->config_calls, stats.config_changes, stats.errors);
+	printf("checked %u, mismatch %u, invalid %u, not key after gap %u\n",
+		result->checked, result->mismatch, result->invalid, result->not_key_after_gap);
+	if (result->bytes) {
+		printf("parse %.1f us/frame, %.0f MB/s\n",
+			result->parse_ns / 1000.0 / (result->frames - result->dropped),
+			result->bytes * 1000.0 / result->parse_ns);
+	}
+}
+
+static int load_capture(const char *path, replay_buffer_t *capture) {
+	FILE *fp = fopen(path, "rb");
+	if (!fp) {
+		perror(path);
+		return -1;
+	}
+	uint8_t buf[65536];
+	size_t n;
+	while ((n = fread(buf, 1, sizeof(buf), fp)) > 0) {
+		append(capture, buf, n);
+	}
+	fclose(fp);
+	return 0;
+}
+
+int main(int argc, char *argv[]) {
+	int frames = 300;
+	int drop_every = 0;
+	const char *write_path = NULL;
+	const char *read_path = NULL;
+
+	for (int i = 1; i < argc; i++) {
+		if (!strcmp(argv[i], "-n") && (i + 1 < argc)) {
+			frames = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-d") && (i + 1 < argc)) {
+			drop_every = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-w") && (i + 1 < argc)) {
+			write_path = argv[++i];
+		} else {
+			read_path = argv[i];
+		}
+	}
+
+	replay_buffer_t capture;
+	memset(&capture, 0, sizeof(capture));
+	replay_buffer_t *expected = NULL;
+	int num_expected = 0;
+	if (read_path) {
+		if (load_capture(read_path, &capture)) return 1;
+	} else {
+		replay_buffer_t au;
+		memset(&au, 0, sizeof(au));
+		num_expected = frames;
+		expected = (replay_buffer_t *)calloc(frames, sizeof(replay_buffer_t));
+		for (int i = 0; i < frames; i++) {
+			generate_au(i, i < frames / 2 ? 1 : 2, &au, &expected[i]);
+			packetize(&capture, au.data, au.bytes, i & 1, (uint32_t)i * 3003);
+		}
+		free(au.data);
+		if (write_path) {
+			FILE *fp = fopen(write_path, "wb");
+			if (!fp || (fwrite(capture.data, 1, capture.bytes, fp) != capture.bytes)) {
+				perror(write_path);
+				return 1;
+			}
+			fclose(fp);
+			printf("wrote %zu bytes to %s\n", capture.bytes, write_path);
+		}
+	}
+
+	H264Parser parser;
+	replay_result_t result;
+	memset(&result, 0, sizeof(result));
+	replay_context_t ctx;
+	memset(&ctx, 0, sizeof(ctx));
+	ctx.parser = &parser;
+	ctx.result = &result;
+	ctx.drop_every = drop_every;
+	ctx.need_key = true;
+	ctx.expected = expected;
+	ctx.num_expected = num_expected;
+	if (replay(&capture, &ctx)) {
+		fprintf(stderr, "capture has truncated payload at the end\n");
+	}
+	print_result(&result, &parser);
+
+	bool ok = result.delivered && !result.mismatch && !result.invalid && !result.not_key_after_gap;
+	if (expected) {
+		// without drop, every frame from the first IDR should be passed and SPS/PPS are passed twice
+		if (!drop_every) {
+			ok = ok && (result.delivered == (uint32_t)frames) && (result.config_calls == ((frames > GOP) ? 2u : 1u));
+		}
+		for (int i = 0; i < num_expected; i++) {
+			free(expected[i].data);
+		}
+		free(expected);
+	}
+	free(capture.data);
+	printf("%s\n", ok ? "OK" : "NG");
+	return ok ? 0 : 1;
+}
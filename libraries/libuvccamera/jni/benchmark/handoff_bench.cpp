@@ -0,0 +1,314 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: handoff_bench.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * micro benchmark of frame hand-off between two threads
+ * compares the mutex+condvar+array path that UVCPreview used before
+ * with SpscQueue (UVCCamera/spscqueue.h)
+ * then runs SpscQueue with a consumer that is slower than the producer
+ * for each queue policy of UVCPreview#setQueuePolicy (drop oldest, drop newest, block with timeout)
+ * usage: handoff_bench [count] [interval_us] [consumer_us]
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <math.h>
+#include <pthread.h>
+#include <time.h>
+#include "spscqueue.h"
+
+#define QUEUE_SZ 4
+
+typedef struct bench_item {
+	int64_t stamp;
+} bench_item_t;
+
+static inline int64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static void sleep_until(int64_t t) {
+	// nanosleep for coarse part and spin for the rest to keep the interval stable
+	for ( ; ; ) {
+		const int64_t d = t - now_ns();
+		if (d <= 0) break;
+		if (d > 200000) {
+			struct timespec ts = { 0, (long)(d - 100000) };
+			nanosleep(&ts, NULL);
+		}
+	}
+}
+
+//======================================================================
+// same structure as previous UVCPreview#addPreviewFrame/waitPreviewFrame
+class MutexQueue {
+	pthread_mutex_t mutex;
+	pthread_cond_t sync;
+	bench_item_t *items[QUEUE_SZ];
+	int n;
+	bool kicked;
+public:
+	MutexQueue() : n(0), kicked(false) {
+		pthread_mutex_init(&mutex, NULL);
+		pthread_cond_init(&sync, NULL);
+	}
+	~MutexQueue() {
+		pthread_cond_destroy(&sync);
+		pthread_mutex_destroy(&mutex);
+	}
+	bool put(bench_item_t *item) {
+		bool result = false;
+		pthread_mutex_lock(&mutex);
+		if (n < QUEUE_SZ) {
+			items[n++] = item;
+			result = true;
+			pthread_cond_signal(&sync);
+		}
+		pthread_mutex_unlock(&mutex);
+		return result;
+	}
+	bench_item_t *wait() {
+		bench_item_t *item = NULL;
+		pthread_mutex_lock(&mutex);
+		if (!n && !kicked) {
+			pthread_cond_wait(&sync, &mutex);
+		}
+		kicked = false;
+		if (n > 0) {
+			// ObjectArray#remove(0) shifts remaining elements
+			item = items[0];
+			memmove(items, items + 1, sizeof(bench_item_t *) * (n - 1));
+			n--;
+		}
+		pthread_mutex_unlock(&mutex);
+		return item;
+	}
+	void wakeup() {
+		pthread_mutex_lock(&mutex);
+		kicked = true;
+		pthread_cond_broadcast(&sync);
+		pthread_mutex_unlock(&mutex);
+	}
+};
+
+class RingQueue {
+	SpscQueue<bench_item_t *> queue;
+public:
+	RingQueue() : queue(QUEUE_SZ) {}
+	inline bool put(bench_item_t *item) { return queue.put(item); }
+	inline bench_item_t *wait() { return queue.wait(); }
+	inline void wakeup() { queue.wakeup(); }
+};
+
+//======================================================================
+template <class Q>
+struct bench_ctx {
+	Q queue;
+	bool running;
+	int received;
+	int64_t *latencies;
+};
+
+template <class Q>
+static void *consumer_func(void *args) {
+	bench_ctx<Q> *ctx = (bench_ctx<Q> *)args;
+	for ( ; ; ) {
+		bench_item_t *item = ctx->queue.wait();
+		if (item) {
+			ctx->latencies[ctx->received++] = now_ns() - item->stamp;
+		} else if (!__atomic_load_n(&ctx->running, __ATOMIC_ACQUIRE)) {
+			break;
+		}
+	}
+	return NULL;
+}
+
+static int compare_int64(const void *a, const void *b) {
+	const int64_t va = *(const int64_t *)a, vb = *(const int64_t *)b;
+	return va < vb ? -1 : (va > vb ? 1 : 0);
+}
+
+template <class Q>
+static void run(const char *name, const int count, const int interval_us) {
+	bench_ctx<Q> *ctx = new bench_ctx<Q>();
+	bench_item_t *items = new bench_item_t[count];
+	ctx->running = true;
+	ctx->received = 0;
+	ctx->latencies = new int64_t[count];
+
+	pthread_t consumer;
+	pthread_create(&consumer, NULL, consumer_func<Q>, ctx);
+	int dropped = 0;
+	int64_t t = now_ns();
+	for (int i = 0; i < count; i++) {
+		t += interval_us * 1000LL;
+		sleep_until(t);
+		items[i].stamp = now_ns();
+		if (!ctx->queue.put(&items[i])) {
+			dropped++;
+		}
+	}
+	__atomic_store_n(&ctx->running, false, __ATOMIC_RELEASE);
+	ctx->queue.wakeup();
+	pthread_join(consumer, NULL);
+
+	const int n = ctx->received;
+	double sum = 0, sum2 = 0;
+	for (int i = 0; i < n; i++) {
+		sum += ctx->latencies[i];
+	}
+	const double avg = n ? sum / n : 0;
+	for (int i = 0; i < n; i++) {
+		const double d = ctx->latencies[i] - avg;
+		sum2 += d * d;
+	}
+	qsort(ctx->latencies, n, sizeof(int64_t), compare_int64);
+	if (n) {
+		printf("%-12s n=%d dropped=%d min=%.2fus avg=%.2fus p50=%.2fus p99=%.2fus max=%.2fus jitter(stddev)=%.2fus\n",
+			name, n, dropped,
+			ctx->latencies[0] / 1000.0, avg / 1000.0,
+			ctx->latencies[n / 2] / 1000.0, ctx->latencies[(n * 99) / 100] / 1000.0,
+			ctx->latencies[n - 1] / 1000.0, sqrt(sum2 / n) / 1000.0);
+	}
+
+	delete [] ctx->latencies;
+	delete [] items;
+	delete ctx;
+}
+
+//======================================================================
+#define POLICY_DROP_OLDEST 0
+#define POLICY_DROP_NEWEST 1
+#define POLICY_BLOCK 2
+
+typedef struct policy_ctx {
+	SpscQueue<bench_item_t *> *queue;
+	bool running;
+	int consumer_us;
+	int received;
+	int64_t *latencies;
+} policy_ctx_t;
+
+static void *slow_consumer_func(void *args) {
+	policy_ctx_t *ctx = (policy_ctx_t *)args;
+	for ( ; ; ) {
+		bench_item_t *item = ctx->queue->wait();
+		if (item) {
+			// latency until the consumer starts working on the item
+			ctx->latencies[ctx->received++] = now_ns() - item->stamp;
+			sleep_until(now_ns() + ctx->consumer_us * 1000LL);
+		} else if (!__atomic_load_n(&ctx->running, __ATOMIC_ACQUIRE)) {
+			break;
+		}
+	}
+	return NULL;
+}
+
+/**
+ * same as offer_frame in UVCPreview.cpp
+ * @return the item that was dropped or NULL
+ */
+static bench_item_t *offer(SpscQueue<bench_item_t *> &queue, const int policy, const int64_t timeout_ns,
+	bench_item_t *item, int &blocked) {
+
+	switch (policy) {
+	case POLICY_DROP_OLDEST:
+		return queue.replace(item);
+	case POLICY_BLOCK:
+		if (queue.put(item)) return NULL;
+		blocked++;
+		return queue.put(item, timeout_ns) ? NULL : item;
+	default:
+		return queue.put(item) ? NULL : item;
+	}
+}
+
+static void run_policy(const char *name, const int policy, const int depth, const int timeout_us,
+	const int count, const int interval_us, const int consumer_us) {
+
+	policy_ctx_t ctx;
+	bench_item_t *items = new bench_item_t[count];
+	ctx.queue = new SpscQueue<bench_item_t *>(depth);
+	ctx.running = true;
+	ctx.consumer_us = consumer_us;
+	ctx.received = 0;
+	ctx.latencies = new int64_t[count];
+
+	pthread_t consumer;
+	pthread_create(&consumer, NULL, slow_consumer_func, &ctx);
+	int dropped = 0, blocked = 0;
+	int64_t max_put_ns = 0;
+	int64_t t = now_ns();
+	for (int i = 0; i < count; i++) {
+		t += interval_us * 1000LL;
+		sleep_until(t);
+		items[i].stamp = now_ns();
+		const int64_t start = now_ns();
+		if (offer(*ctx.queue, policy, timeout_us * 1000LL, &items[i], blocked)) {
+			dropped++;
+		}
+		const int64_t elapsed = now_ns() - start;
+		if (elapsed > max_put_ns) max_put_ns = elapsed;
+		// blocking delays the producer, next item comes as soon as possible like USB transfers that were queued
+		if (t < now_ns()) t = now_ns();
+	}
+	// let the consumer take the rest
+	while (!ctx.queue->isEmpty()) {
+		sleep_until(now_ns() + consumer_us * 1000LL);
+	}
+	__atomic_store_n(&ctx.running, false, __ATOMIC_RELEASE);
+	ctx.queue->wakeup();
+	pthread_join(consumer, NULL);
+
+	const int n = ctx.received;
+	qsort(ctx.latencies, n, sizeof(int64_t), compare_int64);
+	printf("%-12s depth=%d received=%d dropped=%d blocked=%d max_put=%.2fus latency p50=%.2fus p99=%.2fus max=%.2fus%s\n",
+		name, depth, n, dropped, blocked, max_put_ns / 1000.0,
+		n ? ctx.latencies[n / 2] / 1000.0 : 0.0, n ? ctx.latencies[(n * 99) / 100] / 1000.0 : 0.0,
+		n ? ctx.latencies[n - 1] / 1000.0 : 0.0,
+		n + dropped != count ? " NG(lost)" : "");
+
+	delete [] ctx.latencies;
+	delete ctx.queue;
+	delete [] items;
+}
+
+int main(int argc, char *argv[]) {
+	const int count = argc > 1 ? atoi(argv[1]) : 20000;
+	const int interval_us = argc > 2 ? atoi(argv[2]) : 500;
+	const int consumer_us = argc > 3 ? atoi(argv[3]) : (interval_us * 3) / 2;
+	printf("count=%d, interval=%dus\n", count, interval_us);
+	run<MutexQueue>("mutex+cond", count, interval_us);
+	run<RingQueue>("spsc+futex", count, interval_us);
+	// consumer is slower than the producer, block waits up to 2 consumer periods so it never drops
+	const int policy_count = count / 10 > 0 ? count / 10 : 1;
+	printf("slow consumer=%dus, count=%d\n", consumer_us, policy_count);
+	run_policy("drop_oldest", POLICY_DROP_OLDEST, 1, 0, policy_count, interval_us, consumer_us);
+	run_policy("drop_newest", POLICY_DROP_NEWEST, QUEUE_SZ, 0, policy_count, interval_us, consumer_us);
+	run_policy("block", POLICY_BLOCK, QUEUE_SZ, consumer_us * 2, policy_count, interval_us, consumer_us);
+	return 0;
+}
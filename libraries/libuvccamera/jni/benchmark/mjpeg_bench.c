@@ -0,0 +1,398 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: mjpeg_bench.c
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * MJPEG decode benchmark
+ * usage: mjpeg_bench [-n loops] [-420] [file.jpg ...]
+ * files should be frames recorded from the camera (width must be multiple of 8).
+ * if no file is given, synthetic 1280x720 frames without DHT marker are used like UVC cameras send,
+ * they are 4:2:2 unless -420 is given.
+ * decoding with DCT scaling(uvc_mjpeg_decoder_set_scale) and cropping(uvc_mjpeg_decoder_set_crop)
+ * is measured at the end.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <jpeglib.h>
+#include "libuvc/libuvc.h"
+
+#define MAX_FILES 64
+
+typedef uvc_error_t (*decode_func_t)(uvc_frame_t *in, uvc_frame_t *out);
+typedef uvc_error_t (*decoder_func_t)(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
+
+static uvc_frame_t *frames[MAX_FILES];
+static int num_frames;
+static int v_samp_factor = 1;
+static int decode_scale = 1;	// scale_denom of uvc_mjpeg_decoder_set_scale
+static int crop_x, crop_y, crop_width, crop_height;	// region of uvc_mjpeg_decoder_set_crop
+
+static inline double now_ms(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec * 1000.0 + ts.tv_nsec / 1000000.0;
+}
+
+static uvc_frame_t *create_mjpeg_frame(uint8_t *data, size_t bytes, int width, int height) {
+	uvc_frame_t *frame = uvc_allocate_frame(bytes);
+	memcpy(frame->data, data, bytes);
+	frame->actual_bytes = bytes;
+	frame->width = width;
+	frame->height = height;
+	frame->frame_format = UVC_FRAME_FORMAT_MJPEG;
+	return frame;
+}
+
+static uvc_frame_t *load_file(const char *path) {
+	FILE *f = fopen(path, "rb");
+	if (!f) {
+		fprintf(stderr, "failed to open %s\n", path);
+		return NULL;
+	}
+	fseek(f, 0, SEEK_END);
+	const long bytes = ftell(f);
+	fseek(f, 0, SEEK_SET);
+	uint8_t *data = malloc(bytes);
+	const size_t n = fread(data, 1, bytes, f);
+	fclose(f);
+
+	// read frame size from JPEG header
+	struct jpeg_decompress_struct dinfo;
+	struct jpeg_error_mgr jerr;
+	dinfo.err = jpeg_std_error(&jerr);
+	jpeg_create_decompress(&dinfo);
+	jpeg_mem_src(&dinfo, data, n);
+	jpeg_read_header(&dinfo, TRUE);
+	uvc_frame_t *frame = create_mjpeg_frame(data, n, dinfo.image_width, dinfo.image_height);
+	jpeg_destroy_decompress(&dinfo);
+	free(data);
+	return frame;
+}
+
+/**
+ * generate moving gradient frame and compress it without Huffman tables(DHT)
+ */
+static uvc_frame_t *create_synthetic(int width, int height, int index) {
+	struct jpeg_compress_struct cinfo;
+	struct jpeg_error_mgr jerr;
+	unsigned char *jpeg = NULL;
+	unsigned long jpeg_bytes = 0;
+	int x, y;
+
+	cinfo.err = jpeg_std_error(&jerr);
+	jpeg_create_compress(&cinfo);
+	jpeg_mem_dest(&cinfo, &jpeg, &jpeg_bytes);
+	cinfo.image_width = width;
+	cinfo.image_height = height;
+	cinfo.input_components = 3;
+	cinfo.in_color_space = JCS_RGB;
+	jpeg_set_defaults(&cinfo);
+	jpeg_set_quality(&cinfo, 85, TRUE);
+	// 4:2:2 like most of UVC cameras
+	cinfo.comp_info[0].h_samp_factor = 2;
+	cinfo.comp_info[0].v_samp_factor = v_samp_factor;
+	// UVC MJPEG usually omits DHT marker and expects standard tables
+	for (x = 0; x < 2; x++) {
+		cinfo.dc_huff_tbl_ptrs[x]->sent_table = TRUE;
+		cinfo.ac_huff_tbl_ptrs[x]->sent_table = TRUE;
+	}
+	jpeg_start_compress(&cinfo, FALSE);
+	uint8_t *row = malloc(width * 3);
+	for (y = 0; y < height; y++) {
+		for (x = 0; x < width; x++) {
+			row[x * 3 + 0] = (uint8_t)(x + index * 4);
+			row[x * 3 + 1] = (uint8_t)(y + index * 2);
+			row[x * 3 + 2] = (uint8_t)((x ^ y) + index);
+		}
+		jpeg_write_scanlines(&cinfo, &row, 1);
+	}
+	jpeg_finish_compress(&cinfo);
+	jpeg_destroy_compress(&cinfo);
+	free(row);
+
+	uvc_frame_t *frame = create_mjpeg_frame(jpeg, jpeg_bytes, width, height);
+	free(jpeg);
+	return frame;
+}
+
+static double run_oneshot(const char *name, decode_func_t func, uvc_frame_t *out, int loops) {
+	int i, j, errors = 0;
+	const double start = now_ms();
+	for (i = 0; i < loops; i++) {
+		for (j = 0; j < num_frames; j++) {
+			if (func(frames[j], out)) errors++;
+		}
+	}
+	const double ms = (now_ms() - start) / (loops * num_frames);
+	printf("%-28s %8.3f ms/frame (%6.1f fps) errors=%d\n", name, ms, 1000.0 / ms, errors);
+	return ms;
+}
+
+static double run_decoder(const char *name, decoder_func_t func, uvc_frame_t *out, int loops) {
+	int i, j, errors = 0;
+	uvc_mjpeg_decoder_t *decoder = uvc_mjpeg_decoder_create();
+	uvc_mjpeg_decoder_reset(decoder, frames[0]->width, frames[0]->height);
+	uvc_mjpeg_decoder_set_scale(decoder, decode_scale);
+	uvc_mjpeg_decoder_set_crop(decoder, crop_x, crop_y, crop_width, crop_height);
+	const double start = now_ms();
+	for (i = 0; i < loops; i++) {
+		for (j = 0; j < num_frames; j++) {
+			if (func(decoder, frames[j], out)) errors++;
+		}
+	}
+	const double ms = (now_ms() - start) / (loops * num_frames);
+	uvc_mjpeg_decoder_destroy(decoder);
+	printf("%-28s %8.3f ms/frame (%6.1f fps) errors=%d\n", name, ms, 1000.0 / ms, errors);
+	return ms;
+}
+
+/**
+ * check both paths generate same output for every frame
+ */
+static int verify(decode_func_t func, decoder_func_t decoder_func, size_t pixel_bytes) {
+	int j, mismatch = 0;
+	uvc_mjpeg_decoder_t *decoder = uvc_mjpeg_decoder_create();
+	for (j = 0; j < num_frames; j++) {
+		const size_t bytes = frames[j]->width * frames[j]->height * pixel_bytes;
+		uvc_frame_t *a = uvc_allocate_frame(bytes);
+		uvc_frame_t *b = uvc_allocate_frame(bytes);
+		// uvc_mjpeg2rgbx reads out->step before setting it
+		a->step = frames[j]->width * pixel_bytes;
+		func(frames[j], a);
+		decoder_func(decoder, frames[j], b);
+		if (memcmp(a->data, b->data, bytes)) mismatch++;
+		uvc_free_frame(a);
+		uvc_free_frame(b);
+	}
+	uvc_mjpeg_decoder_destroy(decoder);
+	return mismatch;
+}
+
+/**
+ * YUYV => I420 with same chroma rows as uvc_mjpeg_decode2i420(even rows)
+ */
+static void yuyv2i420(uvc_frame_t *in, uint8_t *out) {
+	const int width = in->width, height = in->height;
+	uint8_t *u = out + width * height;
+	uint8_t *v = u + width * height / 4;
+	int x, y;
+	for (y = 0; y < height; y++) {
+		const uint8_t *yuyv = in->data + width * 2 * y;
+		for (x = 0; x < width; x += 2, yuyv += 4) {
+			out[width * y + x] = yuyv[0];
+			out[width * y + x + 1] = yuyv[2];
+			if (!(y & 1)) {
+				*(u++) = yuyv[1];
+				*(v++) = yuyv[3];
+			}
+		}
+	}
+}
+
+/**
+ * compare NV12/I420 output with YUYV output,
+ * luma should be same, chroma differs a little because YUYV is generated from upsampled chroma
+ */
+static void verify_yuv420(void) {
+	int i, j, y_mismatch = 0, max_diff = 0;
+	uvc_mjpeg_decoder_t *decoder = uvc_mjpeg_decoder_create();
+	uvc_mjpeg_decoder_set_scale(decoder, decode_scale);
+	for (j = 0; j < num_frames; j++) {
+		const int width = frames[j]->width / decode_scale, height = frames[j]->height / decode_scale;
+		const size_t bytes = width * height * 3 / 2;
+		uvc_frame_t *yuyv = uvc_allocate_frame(width * height * 2);
+		uvc_frame_t *i420 = uvc_allocate_frame(bytes);
+		uvc_frame_t *nv12 = uvc_allocate_frame(bytes);
+		uvc_frame_t *nv21 = uvc_allocate_frame(bytes);
+		uint8_t *ref = malloc(bytes);
+		uvc_mjpeg_decode2yuyv(decoder, frames[j], yuyv);
+		uvc_mjpeg_decode2i420(decoder, frames[j], i420);
+		uvc_mjpeg_decode2nv12(decoder, frames[j], nv12);
+		uvc_mjpeg_decode2nv21(decoder, frames[j], nv21);
+		yuyv2i420(yuyv, ref);
+		if (memcmp(ref, i420->data, width * height)
+			|| memcmp(ref, nv12->data, width * height)
+			|| memcmp(ref, nv21->data, width * height)) y_mismatch++;
+		const uint8_t *u = i420->data + width * height;
+		const uint8_t *v = u + width * height / 4;
+		const uint8_t *uv = nv12->data + width * height;
+		const uint8_t *vu = nv21->data + width * height;
+		for (i = 0; i < width * height / 4; i++) {
+			int d = abs(ref[width * height + i] - u[i]);
+			if (d > max_diff) max_diff = d;
+			d = abs(ref[width * height * 5 / 4 + i] - v[i]);
+			if (d > max_diff) max_diff = d;
+			if ((uv[i * 2] != u[i]) || (uv[i * 2 + 1] != v[i])) y_mismatch++;
+			if ((vu[i * 2] != v[i]) || (vu[i * 2 + 1] != u[i])) y_mismatch++;
+		}
+		free(ref);
+		uvc_free_frame(yuyv);
+		uvc_free_frame(i420);
+		uvc_free_frame(nv12);
+		uvc_free_frame(nv21);
+	}
+	uvc_mjpeg_decoder_destroy(decoder);
+	printf("verify nv12/nv21/i420: mismatch=%d, max chroma diff from yuyv=%d\n", y_mismatch, max_diff);
+}
+
+/**
+ * compare cropped output with the region of whole frame output,
+ * luma should be same, chroma at the left edge may differ a little because of fancy upsampling
+ * @return number of frames with different luma
+ */
+static int verify_crop(decoder_func_t func, int x, int y, int width, int height, int *max_diff) {
+	int j, row, col, mismatch = 0;
+	uvc_mjpeg_decoder_t *decoder = uvc_mjpeg_decoder_create();
+	for (j = 0; j < num_frames; j++) {
+		const int full_width = frames[j]->width;
+		uvc_frame_t *full = uvc_allocate_frame(full_width * frames[j]->height * 2);
+		uvc_frame_t *crop = uvc_allocate_frame(width * height * 2);
+		uvc_mjpeg_decoder_set_crop(decoder, 0, 0, 0, 0);
+		func(decoder, frames[j], full);
+		uvc_mjpeg_decoder_set_crop(decoder, x, y, width, height);
+		if (func(decoder, frames[j], crop) || (crop->width != width) || (crop->height != height)) {
+			mismatch++;
+		} else if (full->frame_format == UVC_FRAME_FORMAT_YUYV) {
+			for (row = 0; row < height; row++) {
+				const uint8_t *a = full->data + ((y + row) * full_width + x) * 2;
+				const uint8_t *b = crop->data + row * width * 2;
+				for (col = 0; col < width * 2; col++) {
+					const int d = abs(a[col] - b[col]);
+					if (!(col & 1) && d) mismatch++;
+					if (d > *max_diff) *max_diff = d;
+				}
+			}
+		} else {
+			// luma plane of NV12/I420
+			for (row = 0; row < height; row++) {
+				if (memcmp(full->data + (y + row) * full_width + x, crop->data + row * width, width)) mismatch++;
+			}
+		}
+		uvc_free_frame(full);
+		uvc_free_frame(crop);
+	}
+	uvc_mjpeg_decoder_destroy(decoder);
+	return mismatch;
+}
+
+static uvc_frame_t *yuv420_tmp;
+
+/** YUYV decode and conversion to NV12 like preview thread did before */
+static uvc_error_t decode2yuyv_nv12(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
+	uvc_error_t ret = uvc_mjpeg_decode2yuyv(decoder, in, yuv420_tmp);
+	if (!ret) ret = uvc_yuyv2yuv420SP(yuv420_tmp, out);
+	return ret;
+}
+
+int main(int argc, char *argv[]) {
+	int i, loops = 100;
+
+	for (i = 1; i < argc; i++) {
+		if (!strcmp(argv[i], "-n") && (i + 1 < argc)) {
+			loops = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-420")) {
+			v_samp_factor = 2;
+		} else if (num_frames < MAX_FILES) {
+			uvc_frame_t *frame = load_file(argv[i]);
+			if (frame) frames[num_frames++] = frame;
+		}
+	}
+	if (!num_frames) {
+		for (i = 0; i < 8; i++) {
+			frames[num_frames++] = create_synthetic(1280, 720, i);
+		}
+	}
+	const int width = frames[0]->width, height = frames[0]->height;
+	for (i = 1; i < num_frames; i++) {
+		if ((frames[i]->width != width) || (frames[i]->height != height)) {
+			fprintf(stderr, "all frames should have same size\n");
+			return 1;
+		}
+	}
+	printf("frames=%d(%dx%d), loops=%d\n", num_frames, width, height, loops);
+	printf("verify yuyv: mismatch=%d, rgbx: mismatch=%d\n",
+		verify(uvc_mjpeg2yuyv, uvc_mjpeg_decode2yuyv, 2),
+		verify(uvc_mjpeg2rgbx, uvc_mjpeg_decode2rgbx, 4));
+
+	uvc_frame_t *out = uvc_allocate_frame(width * height * 2);
+	out->step = width * 2;
+	const double a = run_oneshot("uvc_mjpeg2yuyv", uvc_mjpeg2yuyv, out, loops);
+	const double b = run_decoder("uvc_mjpeg_decode2yuyv", uvc_mjpeg_decode2yuyv, out, loops);
+	printf("yuyv speedup: %.1f%%\n", (a / b - 1.0) * 100.0);
+	uvc_free_frame(out);
+
+	out = uvc_allocate_frame(width * height * 4);
+	out->step = width * 4;
+	const double c = run_oneshot("uvc_mjpeg2rgbx", uvc_mjpeg2rgbx, out, loops);
+	const double d = run_decoder("uvc_mjpeg_decode2rgbx", uvc_mjpeg_decode2rgbx, out, loops);
+	printf("rgbx speedup: %.1f%%\n", (c / d - 1.0) * 100.0);
+	uvc_free_frame(out);
+
+	verify_yuv420();
+	yuv420_tmp = uvc_allocate_frame(width * height * 2);
+	yuv420_tmp->step = width * 2;
+	out = uvc_allocate_frame(width * height * 3 / 2);
+	const double e = run_decoder("decode2yuyv+yuyv2yuv420SP", decode2yuyv_nv12, out, loops);
+	const double f = run_decoder("uvc_mjpeg_decode2nv12", uvc_mjpeg_decode2nv12, out, loops);
+	const double g = run_decoder("uvc_mjpeg_decode2i420", uvc_mjpeg_decode2i420, out, loops);
+	printf("nv12 speedup: %.1f%%, i420 speedup: %.1f%%\n", (e / f - 1.0) * 100.0, (e / g - 1.0) * 100.0);
+	uvc_free_frame(out);
+	uvc_free_frame(yuv420_tmp);
+
+	// output frames keep the size for 1/1, decoded frames are smaller
+	out = uvc_allocate_frame(width * height * 4);
+	for (decode_scale = 2; decode_scale <= 8; decode_scale <<= 1) {
+		if ((width % (decode_scale * 16)) || (height % (decode_scale * 2))) continue;
+		printf("DCT scale 1/%d(%dx%d)\n", decode_scale, width / decode_scale, height / decode_scale);
+		verify_yuv420();
+		run_decoder("uvc_mjpeg_decode2yuyv", uvc_mjpeg_decode2yuyv, out, loops);
+		run_decoder("uvc_mjpeg_decode2rgbx", uvc_mjpeg_decode2rgbx, out, loops);
+		const double h = run_decoder("uvc_mjpeg_decode2nv12", uvc_mjpeg_decode2nv12, out, loops);
+		printf("nv12 speedup from 1/1: %.1f%%\n", (f / h - 1.0) * 100.0);
+	}
+	decode_scale = 1;
+
+	// 1/4 area at the center like 2x digital zoom, x is not aligned to iMCU column
+	crop_width = (width / 2) & ~15;
+	crop_height = (height / 2) & ~1;
+	crop_x = ((width - crop_width) / 2 + 2) & ~1;
+	crop_y = ((height - crop_height) / 2) & ~1;
+	int max_diff = 0;
+	const int yuyv_mismatch = verify_crop(uvc_mjpeg_decode2yuyv, crop_x, crop_y, crop_width, crop_height, &max_diff);
+	printf("crop %dx%d at (%d,%d)\n", crop_width, crop_height, crop_x, crop_y);
+	printf("verify crop yuyv: mismatch=%d, max diff=%d, nv12: mismatch=%d\n", yuyv_mismatch, max_diff,
+		verify_crop(uvc_mjpeg_decode2nv12, crop_x, crop_y, crop_width, crop_height, &max_diff));
+	run_decoder("uvc_mjpeg_decode2yuyv", uvc_mjpeg_decode2yuyv, out, loops);
+	run_decoder("uvc_mjpeg_decode2rgbx", uvc_mjpeg_decode2rgbx, out, loops);
+	const double k = run_decoder("uvc_mjpeg_decode2nv12", uvc_mjpeg_decode2nv12, out, loops);
+	printf("nv12 speedup from whole frame: %.1f%%\n", (f / k - 1.0) * 100.0);
+	uvc_free_frame(out);
+
+	for (i = 0; i < num_frames; i++) {
+		uvc_free_frame(frames[i]);
+	}
+	return 0;
+}
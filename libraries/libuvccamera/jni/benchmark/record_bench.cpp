@@ -0,0 +1,239 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: record_bench.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * feed MJPEGRecorder(UVCCamera/MJPEGRecorder.cpp) like libuvc callback thread and check the AVI file
+ * usage: record_bench [-n frames] [-b average frame bytes] [-f fps, 0 for as fast as possible] [-o output.avi]
+ * frames are random bytes between SOI and EOI, their size varies +-25% like MJPEG of a real scene.
+ * reports time that #write took on the calling thread, drops and write throughput of I/O thread,
+ * then reads the file back and compares every frame that idx1 points to with the frame that was passed.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include "MJPEGRecorder.h"
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static inline uint32_t get_u32(const uint8_t *p) {
+	return p[0] | (p[1] << 8) | (p[2] << 16) | ((uint32_t)p[3] << 24);
+}
+
+/**
+ * deterministic frame content so that the file can be verified without keeping all frames
+ */
+static size_t fill_frame(uint8_t *data, const int index, const size_t average_bytes) {
+	uint32_t state = 0x9e3779b9u * (uint32_t)(index + 1);
+	state ^= state >> 16;
+	const size_t bytes = average_bytes * 3 / 4 + (state % (average_bytes / 2 + 1)) + (index & 1);
+	data[0] = 0xff;
+	data[1] = 0xd8;
+	for (size_t i = 2; i < bytes - 2; i++) {
+		state ^= state << 13;
+		state ^= state >> 17;
+		state ^= state << 5;
+		data[i] = (uint8_t)state;
+	}
+	data[bytes - 2] = 0xff;
+	data[bytes - 1] = 0xd9;
+	return bytes;
+}
+
+/**
+ * check RIFF structure and compare frames that idx1 points to
+ * @return number of errors
+ */
+static int verify(const char *path, const int frames, const bool check_content,
+	const size_t average_bytes, uint8_t *expected) {
+
+	FILE *fp = fopen(path, "rb");
+	if (!fp) {
+		perror(path);
+		return 1;
+	}
+	fseek(fp, 0, SEEK_END);
+	const long file_bytes = ftell(fp);
+	fseek(fp, 0, SEEK_SET);
+	uint8_t *file = (uint8_t *)malloc(file_bytes);
+	if (!file || (fread(file, 1, file_bytes, fp) != (size_t)file_bytes)) {
+		fprintf(stderr, "failed to read %s\n", path);
+		fclose(fp);
+		free(file);
+		return 1;
+	}
+	fclose(fp);
+
+	int errors = 0;
+	if (memcmp(file, "RIFF", 4) || (get_u32(file + 4) != (uint32_t)(file_bytes - 8)) || memcmp(file + 8, "AVI ", 4)) {
+		fprintf(stderr, "bad RIFF header\n");
+		errors++;
+	}
+	const uint32_t total_frames = get_u32(file + 48);
+	const uint32_t scale = get_u32(file + 128), rate = get_u32(file + 132);
+	if (memcmp(file + 212, "LIST", 4) || memcmp(file + 220, "movi", 4)) {
+		fprintf(stderr, "no movi at 212\n");
+		errors++;
+	}
+	const size_t movi = 220;
+	const size_t idx1 = 216 + 4 + get_u32(file + 216);
+	if ((idx1 + 8 > (size_t)file_bytes) || memcmp(file + idx1, "idx1", 4)) {
+		fprintf(stderr, "no idx1 after movi\n");
+		errors++;
+		free(file);
+		return errors;
+	}
+	const uint32_t entries = get_u32(file + idx1 + 4) / 16;
+	printf("file %ld bytes, %u frames(avih), %u index entries, %.2f fps\n",
+		file_bytes, total_frames, entries, scale ? (double)rate / scale : 0.0);
+	if ((entries != total_frames) || (entries != (uint32_t)frames)) {
+		fprintf(stderr, "frame count mismatch: passed %d, avih %u, idx1 %u\n", frames, total_frames, entries);
+		errors++;
+	}
+	const uint8_t *entry = file + idx1 + 8;
+	for (uint32_t i = 0; (i < entries) && (errors < 10); i++, entry += 16) {
+		const size_t offset = movi + get_u32(entry + 8);
+		const uint32_t bytes = get_u32(entry + 12);
+		bool ok = (offset + 8 + bytes <= idx1) && !memcmp(file + offset, "00dc", 4)
+			&& (get_u32(file + offset + 4) == bytes) && (file[offset + 8] == 0xff) && (file[offset + 9] == 0xd8);
+		if (ok && check_content) {
+			const size_t expected_bytes = fill_frame(expected, i, average_bytes);
+			ok = (bytes == expected_bytes) && !memcmp(file + offset + 8, expected, bytes);
+		}
+		if (!ok) {
+			fprintf(stderr, "frame %u differs\n", i);
+			errors++;
+		}
+	}
+	free(file);
+	return errors;
+}
+
+int main(int argc, char *argv[]) {
+	int frames = 900;
+	size_t average_bytes = 300 * 1024;	// 1080p MJPEG
+	float fps = 30.0f;
+	const char *path = "/tmp/record_bench.avi";
+
+	for (int i = 1; i < argc; i++) {
+		if (!strcmp(argv[i], "-n") && (i + 1 < argc)) {
+			frames = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-b") && (i + 1 < argc)) {
+			average_bytes = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-f") && (i + 1 < argc)) {
+			fps = atof(argv[++i]);
+		} else if (!strcmp(argv[i], "-o") && (i + 1 < argc)) {
+			path = argv[++i];
+		}
+	}
+	if (average_bytes < 16) average_bytes = 16;
+
+	const size_t max_bytes = average_bytes * 5 / 4 + 2;
+	uvc_frame_t frame;
+	memset(&frame, 0, sizeof(frame));
+	frame.data_bytes = max_bytes;
+	frame.width = 1920;
+	frame.height = 1080;
+	frame.frame_format = UVC_FRAME_FORMAT_MJPEG;
+	// prepare all frames beforehand, generating them must not be counted as write time
+	const int prepared = frames < 64 ? frames : 64;
+	uint8_t **data = (uint8_t **)calloc(prepared, sizeof(uint8_t *));
+	size_t *bytes = (size_t *)calloc(prepared, sizeof(size_t));
+	for (int i = 0; i < prepared; i++) {
+		data[i] = (uint8_t *)malloc(max_bytes);
+		bytes[i] = fill_frame(data[i], i, average_bytes);
+	}
+
+	MJPEGRecorder recorder;
+	if (recorder.start(path, frame.width, frame.height, fps)) {
+		fprintf(stderr, "failed to start recording to %s\n", path);
+		return 1;
+	}
+	const uint64_t interval = fps > 0.0f ? (uint64_t)(1000000000.0 / fps) : 0;
+	const uint64_t start = now_ns();
+	uint64_t total_ns = 0, max_ns = 0;
+	for (int i = 0; i < frames; i++) {
+		if (interval) {
+			const uint64_t due = start + i * interval;
+			const uint64_t now = now_ns();
+			if (due > now) {
+				usleep((due - now) / 1000);
+			}
+		}
+		// reuse prepared frames for long runs, verification regenerates content by index
+		if (i < prepared) {
+			frame.data = data[i];
+			frame.actual_bytes = bytes[i];
+		} else {
+			frame.data = data[i % prepared];
+			frame.actual_bytes = fill_frame(data[i % prepared], i, average_bytes);
+		}
+		frame.capture_time_ns = interval ? start + i * interval : now_ns();
+		const uint64_t t = now_ns();
+		recorder.write(&frame);
+		const uint64_t elapsed = now_ns() - t;
+		total_ns += elapsed;
+		if (elapsed > max_ns) max_ns = elapsed;
+	}
+	const uint64_t t = now_ns();
+	const int result = recorder.stop();
+	const uint64_t stop_ns = now_ns() - t;
+	const uint64_t elapsed = now_ns() - start;
+
+	record_stats_t stats;
+	recorder.getStats(stats);
+	printf("%d frames of %zu bytes average at %.1f fps\n", frames, average_bytes, fps);
+	printf("write on callback thread: avg %.1f us, max %.1f us\n",
+		total_ns / 1000.0 / frames, max_ns / 1000.0);
+	printf("queued %u, dropped_full %u, dropped_stopped %u, ring high water %zu kB\n",
+		stats.frames, stats.dropped_full, stats.dropped_stopped, stats.ring_high_water / 1024);
+	printf("I/O thread: %u writes, %.0f kB/write, avg %.2f ms, max %.2f ms, %.1f MB/s, stop %.1f ms\n",
+		stats.writes, stats.writes ? stats.bytes / 1024.0 / stats.writes : 0.0,
+		stats.writes ? stats.write_ns / 1000000.0 / stats.writes : 0.0, stats.max_write_ns / 1000000.0,
+		stats.bytes * 1000.0 / elapsed, stop_ns / 1000000.0);
+
+	int errors = result ? 1 : 0;
+	if (result) {
+		fprintf(stderr, "stop failed:%d\n", result);
+	} else {
+		uint8_t *expected = (uint8_t *)malloc(max_bytes);
+		// index in the file differs from index of passed frame after a drop, then only structure is checked
+		const bool dropped = stats.dropped_full || stats.dropped_stopped;
+		errors += verify(path, stats.frames, !dropped, average_bytes, expected);
+		free(expected);
+	}
+	for (int i = 0; i < prepared; i++) {
+		free(data[i]);
+	}
+	free(data);
+	free(bytes);
+	printf("%s\n", errors ? "NG" : "OK");
+	return errors ? 1 : 0;
+}
@@ -0,0 +1,283 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: shm_bench.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * publish frames through SharedFrameRing(UVCCamera/SharedFrameRing.cpp) like PublisherPipeline does
+ * on libuvc callback thread, while subscriber processes map the ring read only and check every frame.
+ * usage: shm_bench [-n frames] [-f fps, 0 for as fast as possible] [-s subscribers] [-k slots]
+ *        [-h hold us, time a zero-copy subscriber keeps a frame] [WxH]
+ * the last subscriber copies frames with #read, the others use them in place with #acquire/#validate.
+ * reports time that #publish took on the calling thread, delay until subscribers got the frame,
+ * frames each subscriber received/missed, and frames that were overwritten while they were used.
+ * a frame that passed #validate/#read but has content of another frame is an error.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/wait.h>
+#include "SharedFrameRing.h"
+
+#define STAMP_INTERVAL 4096
+
+typedef struct subscriber_result {
+	uint32_t received;
+	uint32_t missed;
+	uint32_t overwritten;		// frames that #validate reported overwritten
+	uint32_t torn_detected;		// frames with mixed content that #validate rejected
+	uint32_t errors;			// frames with mixed content that passed #validate/#read
+	uint64_t delay_ns;			// sum of delay from publishing to acquiring
+	uint64_t max_delay_ns;
+} subscriber_result_t;
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+/**
+ * write the frame number at every STAMP_INTERVAL bytes and at the end,
+ * so that a frame that has a part of other frame can be found without keeping frames
+ */
+static void stamp_frame(uint8_t *data, const size_t bytes, const uint64_t number) {
+	for (size_t pos = 0; pos + sizeof(number) <= bytes; pos += STAMP_INTERVAL) {
+		memcpy(data + pos, &number, sizeof(number));
+	}
+	memcpy(data + bytes - sizeof(number), &number, sizeof(number));
+}
+
+static bool check_frame(const uint8_t *data, const size_t bytes, const uint64_t number) {
+	uint64_t v;
+	for (size_t pos = 0; pos + sizeof(v) <= bytes; pos += STAMP_INTERVAL) {
+		memcpy(&v, data + pos, sizeof(v));
+		if (v != number) return false;
+	}
+	memcpy(&v, data + bytes - sizeof(v), sizeof(v));
+	return v == number;
+}
+
+static void account_delay(subscriber_result_t &result, const sfr_frame_info_t &info) {
+	// CLOCK_MONOTONIC is same in all processes
+	const int64_t delay = (int64_t)(now_ns() - (uint64_t)info.pts_ns);
+	if (delay > 0) {
+		result.delay_ns += delay;
+		if ((uint64_t)delay > result.max_delay_ns) result.max_delay_ns = delay;
+	}
+}
+
+static void run_subscriber(const int fd, const bool copy, const int hold_us, const size_t frame_bytes,
+	subscriber_result_t &result) {
+
+	SharedFrameRing ring;
+	memset(&result, 0, sizeof(result));
+	if (ring.attach(fd)) {
+		result.errors++;
+		return;
+	}
+	uint8_t *buf = copy ? new uint8_t[frame_bytes] : NULL;
+	for ( ; ; ) {
+		const int r = ring.waitFrame(1000);
+		if (r == SFR_ERROR_CLOSED) break;
+		if (r) continue;
+		sfr_frame_info_t info;
+		if (copy) {
+			const int bytes = ring.read(buf, frame_bytes, info);
+			if (bytes < 0) continue;
+			account_delay(result, info);
+			if (!check_frame(buf, bytes, info.frame_number)) result.errors++;
+		} else {
+			const uint8_t *data;
+			if (ring.acquire(info, data)) continue;
+			account_delay(result, info);
+			if (hold_us) usleep(hold_us);
+			const bool intact = check_frame(data, info.bytes, info.frame_number);
+			const bool valid = ring.validate(info);
+			if (!valid) {
+				result.overwritten++;
+				if (!intact) result.torn_detected++;
+			} else if (!intact) {
+				result.errors++;
+			}
+		}
+	}
+	sfr_stats_t stats;
+	ring.getStats(stats);
+	result.received = stats.received;
+	result.missed = stats.missed;
+	result.overwritten += stats.overwritten;
+	delete[] buf;
+	ring.close();
+}
+
+static int compare_u64(const void *a, const void *b) {
+	const uint64_t x = *(const uint64_t *)a, y = *(const uint64_t *)b;
+	return x < y ? -1 : (x > y ? 1 : 0);
+}
+
+int main(int argc, char *argv[]) {
+	int frames = 600;
+	double fps = 30.0;
+	int subscribers = 4;
+	int slots = 4;
+	int hold_us = 0;
+	int width = 1920, height = 1080;
+	int opt;
+	while ((opt = getopt(argc, argv, "n:f:s:k:h:")) != -1) {
+		switch (opt) {
+		case 'n': frames = atoi(optarg); break;
+		case 'f': fps = atof(optarg); break;
+		case 's': subscribers = atoi(optarg); break;
+		case 'k': slots = atoi(optarg); break;
+		case 'h': hold_us = atoi(optarg); break;
+		default:
+			fprintf(stderr, "usage: %s [-n frames] [-f fps] [-s subscribers] [-k slots] [-h hold us] [WxH]\n", argv[0]);
+			return 1;
+		}
+	}
+	if ((optind < argc) && (sscanf(argv[optind], "%dx%d", &width, &height) != 2)) {
+		fprintf(stderr, "bad size %s\n", argv[optind]);
+		return 1;
+	}
+	if ((frames <= 0) || (subscribers <= 0) || (width <= 0) || (height <= 0)) {
+		fprintf(stderr, "bad arguments\n");
+		return 1;
+	}
+	const size_t frame_bytes = (size_t)width * height * 2;	// YUYV
+
+	SharedFrameRing ring;
+	const uint64_t create_start = now_ns();
+	int result = ring.create("shm_bench", frame_bytes, slots);
+	const uint64_t create_ns = now_ns() - create_start;
+	if (result) {
+		fprintf(stderr, "failed to create ring:%d\n", result);
+		return 1;
+	}
+
+	int pipes[subscribers][2];
+	pid_t pids[subscribers];
+	for (int i = 0; i < subscribers; i++) {
+		if (pipe(pipes[i])) {
+			perror("pipe");
+			return 1;
+		}
+		const int fd = ring.dupReadOnlyFd();
+		if (fd < 0) {
+			fprintf(stderr, "failed to get fd:%d\n", fd);
+			return 1;
+		}
+		pids[i] = fork();
+		if (!pids[i]) {
+			// child only uses the read only fd like a process that received it through Binder,
+			// the inherited publisher must not be closed here because that tells subscribers the end
+			subscriber_result_t r;
+			run_subscriber(fd, i == subscribers - 1, hold_us, frame_bytes, r);
+			if (write(pipes[i][1], &r, sizeof(r)) != sizeof(r)) _exit(1);
+			_exit(0);
+		}
+		close(fd);
+		close(pipes[i][1]);
+	}
+	usleep(100000);	// let subscribers attach
+
+	uint8_t *data = new uint8_t[frame_bytes];
+	srand(1);
+	for (size_t i = 0; i < frame_bytes; i++) data[i] = (uint8_t)rand();
+	uvc_frame_t frame;
+	memset(&frame, 0, sizeof(frame));
+	frame.data = data;
+	frame.data_bytes = frame.actual_bytes = frame_bytes;
+	frame.width = width;
+	frame.height = height;
+	frame.step = width * 2;
+	frame.frame_format = UVC_FRAME_FORMAT_YUYV;
+
+	uint64_t *publish_ns = new uint64_t[frames];
+	const uint64_t interval_ns = fps > 0 ? (uint64_t)(1000000000.0 / fps) : 0;
+	const uint64_t start = now_ns();
+	for (int i = 0; i < frames; i++) {
+		if (interval_ns) {
+			const uint64_t due = start + interval_ns * i;
+			const uint64_t now = now_ns();
+			if (due > now) {
+				struct timespec ts = { (time_t)((due - now) / 1000000000ULL), (long)((due - now) % 1000000000ULL) };
+				nanosleep(&ts, NULL);
+			}
+		}
+		stamp_frame(data, frame_bytes, i);
+		frame.sequence = i;
+		const uint64_t s = now_ns();
+		frame.capture_time_ns = s;
+		result = ring.publish(&frame);
+		publish_ns[i] = now_ns() - s;
+		if (result) {
+			fprintf(stderr, "publish failed:%d\n", result);
+			break;
+		}
+	}
+	const uint64_t total_ns = now_ns() - start;
+	sfr_stats_t stats;
+	ring.getStats(stats);
+	ring.close();
+
+	int errors = result ? 1 : 0;
+	printf("%d frames of %dx%d YUYV(%zu bytes) at %.1f fps, %d slots(create %.1f ms), %d subscribers\n",
+		frames, width, height, frame_bytes, total_ns ? frames * 1000000000.0 / total_ns : 0.0, slots,
+		create_ns / 1000000.0, subscribers);
+	qsort(publish_ns, frames, sizeof(uint64_t), compare_u64);
+	printf("publish on callback thread: avg %.1f us, p99 %.1f us, max %.1f us, %.1f MB/s\n",
+		stats.published ? stats.publish_ns / 1000.0 / stats.published : 0.0,
+		publish_ns[(frames * 99) / 100] / 1000.0, stats.max_publish_ns / 1000.0,
+		stats.publish_ns ? stats.bytes * 1000.0 / stats.publish_ns : 0.0);
+	for (int i = 0; i < subscribers; i++) {
+		subscriber_result_t r;
+		memset(&r, 0, sizeof(r));
+		const ssize_t n = read(pipes[i][0], &r, sizeof(r));
+		close(pipes[i][0]);
+		int status = 0;
+		waitpid(pids[i], &status, 0);
+		if ((n != sizeof(r)) || !WIFEXITED(status) || WEXITSTATUS(status)) {
+			fprintf(stderr, "subscriber %d failed\n", i);
+			errors++;
+			continue;
+		}
+		printf("subscriber %d(%s): received %u, missed %u, overwritten %u(torn %u detected), "
+			"delay avg %.1f us max %.1f us, errors %u\n",
+			i, i == subscribers - 1 ? "copy" : "zero-copy", r.received, r.missed, r.overwritten, r.torn_detected,
+			r.received ? r.delay_ns / 1000.0 / r.received : 0.0, r.max_delay_ns / 1000.0, r.errors);
+		errors += r.errors;
+		// without holding frames and at camera rate every subscriber should get every frame
+		if (!hold_us && interval_ns && (r.received + r.missed < (uint32_t)frames - 1)) {
+			fprintf(stderr, "subscriber %d lost frames\n", i);
+			errors++;
+		}
+	}
+	delete[] publish_ns;
+	delete[] data;
+
+	printf("%s\n", errors ? "NG" : "OK");
+	return errors ? 1 : 0;
+}
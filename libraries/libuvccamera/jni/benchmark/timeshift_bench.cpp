@@ -0,0 +1,379 @@
+/*
+ * UVCCamera
+ * library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ * File name: timeshift_bench.cpp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ * All files in the folder are under this Apache License, Version 2.0.
+ * Files in the jni/libjpeg, jni/libusb, jin/libuvc, jni/rapidjson folder may have a different license, see the respective files.
+*/
+
+/*
+ * feed TimeShiftBuffer(UVCCamera/TimeShiftBuffer.cpp) like libuvc callback thread while another thread
+ * keeps replaying the last seconds, then export the last seconds and compare the file with what was written.
+ * usage: timeshift_bench [-n frames] [-b average frame bytes] [-f fps, 0 for as fast as possible]
+ *        [-r ring MB] [-d max duration sec] [-g H.264 GOP, 0 for MJPEG] [-o ring file]
+ * reports sustained write throughput and time that #write took on the calling thread,
+ * frames the reader copied and verified, and reads that detected the writer overwrote them.
+ * a frame that was read successfully but differs from what was written is an error.
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <pthread.h>
+#include "TimeShiftBuffer.h"
+
+static inline uint64_t now_ns() {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000000ULL + ts.tv_nsec;
+}
+
+static const uint8_t SPS[] = { 0, 0, 0, 1, 0x67, 0x64, 0x00, 0x28, 0xac, 0xd9, 0x40, 0x78, 0x02 };
+static const uint8_t PPS[] = { 0, 0, 0, 1, 0x68, 0xeb, 0xe3, 0xcb };
+
+static inline bool is_key(const int index, const int gop) {
+	return !gop || !(index % gop);
+}
+
+/**
+ * deterministic frame content so that frames can be verified without keeping them,
+ * MJPEG frames are random bytes between SOI and EOI, H.264 key frames have SPS/PPS and IDR slice
+ */
+static size_t fill_frame(uint8_t *data, const int index, const size_t average_bytes, const int gop) {
+	uint32_t state = 0x9e3779b9u * (uint32_t)(index + 1);
+	state ^= state >> 16;
+	size_t bytes = average_bytes * 3 / 4 + (state % (average_bytes / 2 + 1)) + (index & 1);
+	size_t head;
+	if (!gop) {
+		data[0] = 0xff;
+		data[1] = 0xd8;
+		head = 2;
+	} else if (is_key(index, gop)) {
+		memcpy(data, SPS, sizeof(SPS));
+		memcpy(data + sizeof(SPS), PPS, sizeof(PPS));
+		head = sizeof(SPS) + sizeof(PPS);
+		memcpy(data + head, "\x00\x00\x00\x01\x65", 5);
+		head += 5;
+		bytes *= 3;		// key frames are larger
+	} else {
+		memcpy(data, "\x00\x00\x00\x01\x41", 5);
+		head = 5;
+		bytes /= 2;
+	}
+	for (size_t i = head; i < bytes - 2; i++) {
+		state ^= state << 13;
+		state ^= state >> 17;
+		state ^= state << 5;
+		data[i] = (uint8_t)state;
+	}
+	data[bytes - 2] = gop ? 0x80 : 0xff;
+	data[bytes - 1] = gop ? 0x00 : 0xd9;
+	return bytes;
+}
+
+static int compare_u64(const void *a, const void *b) {
+	const uint64_t x = *(const uint64_t *)a, y = *(const uint64_t *)b;
+	return x < y ? -1 : (x > y ? 1 : 0);
+}
+
+typedef struct bench {
+	TimeShiftBuffer *buffer;
+	size_t average_bytes;
+	size_t max_bytes;
+	int gop;
+	int prepared;				// frame i has the content of prepared frame i % prepared
+	int64_t replay_ns;			// reader replays this much from the newest frame
+	volatile bool running;
+	// reader results
+	uint32_t replays;
+	uint32_t verified;
+	uint32_t overwritten;
+	uint32_t not_found;
+	uint32_t not_key;			// replay did not start from a key frame
+	uint32_t errors;
+	uint64_t read_bytes;
+	uint64_t read_ns;
+} bench_t;
+
+static void *reader_func(void *vptr_args) {
+	bench_t *bench = (bench_t *)vptr_args;
+	uint8_t *buf = (uint8_t *)malloc(bench->max_bytes);
+	uint8_t *expected = (uint8_t *)malloc(bench->max_bytes);
+	tsb_frame_info_t info;
+	for ( ; bench->running ; ) {
+		tsb_range_t range;
+		bench->buffer->getRange(range);
+		if (range.newest_id < 0) {
+			usleep(1000);
+			continue;
+		}
+		bench->replays++;
+		int64_t id = bench->buffer->seek(range.newest_pts_ns - bench->replay_ns, true);
+		for (bool first = true; (id >= 0) && (id <= range.newest_id) && bench->running; id++, first = false) {
+			const uint64_t t = now_ns();
+			const int bytes = bench->buffer->read(id, buf, bench->max_bytes, info);
+			bench->read_ns += now_ns() - t;
+			if (bytes == TSB_ERROR_OVERWRITTEN) {
+				bench->overwritten++;
+				break;
+			} else if (bytes < 0) {
+				bench->not_found++;
+				break;
+			}
+			if (first && !(info.flags & TSB_FLAG_KEY_FRAME)) {
+				bench->not_key++;
+			}
+			const size_t expected_bytes = fill_frame(expected, info.sequence % bench->prepared, bench->average_bytes, bench->gop);
+			if (((size_t)bytes != expected_bytes) || memcmp(buf, expected, bytes)
+				|| ((info.flags & TSB_FLAG_KEY_FRAME) != (is_key(info.sequence, bench->gop) ? TSB_FLAG_KEY_FRAME : 0))) {
+
+				if (bench->errors < 10) {
+					fprintf(stderr, "frame id=%lld(sequence %u) differs\n", (long long)id, info.sequence);
+				}
+				bench->errors++;
+			} else {
+				bench->verified++;
+				bench->read_bytes += bytes;
+			}
+		}
+	}
+	free(buf);
+	free(expected);
+	return NULL;
+}
+
+/**
+ * compare exported file with the frames from the key frame at/before start_ns to the newest frame
+ * @return number of errors
+ */
+static int verify_export(const char *path, const int exported, bench_t &bench,
+	const int frames, const int64_t start_ns, const int64_t oldest_ns, const int64_t interval) {
+
+	FILE *fp = fopen(path, "rb");
+	if (!fp) {
+		perror(path);
+		return 1;
+	}
+	fseek(fp, 0, SEEK_END);
+	const long file_bytes = ftell(fp);
+	fseek(fp, 0, SEEK_SET);
+	uint8_t *file = (uint8_t *)malloc(file_bytes + 1);
+	const bool ok = file && (fread(file, 1, file_bytes, fp) == (size_t)file_bytes);
+	fclose(fp);
+	if (!ok) {
+		fprintf(stderr, "failed to read %s\n", path);
+		free(file);
+		return 1;
+	}
+	// export starts from the key frame at/before start_ns, or next one if that was already evicted
+	int first = (int)((start_ns > oldest_ns ? start_ns : oldest_ns) / interval);
+	for ( ; (first > 0) && !is_key(first, bench.gop); first--) {}
+	if ((int64_t)first * interval < oldest_ns) {
+		for (first++; (first < frames) && !is_key(first, bench.gop); first++) {}
+	}
+	uint8_t *expected = (uint8_t *)malloc(bench.max_bytes);
+	long offset = 0;
+	int errors = 0;
+	if (bench.gop) {
+		// SPS/PPS are written before the first key frame even though the key frame has them too
+		if ((file_bytes < (long)(sizeof(SPS) + sizeof(PPS)))
+			|| memcmp(file, SPS, sizeof(SPS)) || memcmp(file + sizeof(SPS), PPS, sizeof(PPS))) {
+			fprintf(stderr, "export does not start with SPS/PPS\n");
+			errors++;
+		}
+		offset = sizeof(SPS) + sizeof(PPS);
+	}
+	for (int i = first; (i < frames) && !errors; i++) {
+		const size_t bytes = fill_frame(expected, i % bench.prepared, bench.average_bytes, bench.gop);
+		if ((offset + (long)bytes > file_bytes) || memcmp(file + offset, expected, bytes)) {
+			fprintf(stderr, "exported frame %d differs\n", i);
+			errors++;
+		}
+		offset += bytes;
+	}
+	if (!errors && ((offset != file_bytes) || (exported != frames - first))) {
+		fprintf(stderr, "export has %d frames/%ld bytes, expected %d frames/%ld bytes\n",
+			exported, file_bytes, frames - first, offset);
+		errors++;
+	}
+	printf("export: %d frames, %ld kB from frame %d\n", exported, file_bytes / 1024, first);
+	free(expected);
+	free(file);
+	return errors;
+}
+
+int main(int argc, char *argv[]) {
+	int frames = 1800;
+	size_t average_bytes = 300 * 1024;	// 1080p MJPEG
+	float fps = 30.0f;
+	int ring_mb = 128;
+	float max_duration = 0.0f;
+	int gop = 0;
+	const char *path = "/tmp/timeshift_bench.ring";
+
+	for (int i = 1; i < argc; i++) {
+		if (!strcmp(argv[i], "-n") && (i + 1 < argc)) {
+			frames = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-b") && (i + 1 < argc)) {
+			average_bytes = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-f") && (i + 1 < argc)) {
+			fps = atof(argv[++i]);
+		} else if (!strcmp(argv[i], "-r") && (i + 1 < argc)) {
+			ring_mb = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-d") && (i + 1 < argc)) {
+			max_duration = atof(argv[++i]);
+		} else if (!strcmp(argv[i], "-g") && (i + 1 < argc)) {
+			gop = atoi(argv[++i]);
+		} else if (!strcmp(argv[i], "-o") && (i + 1 < argc)) {
+			path = argv[++i];
+		}
+	}
+	if (average_bytes < 64) average_bytes = 64;
+	if (gop < 0) gop = 0;
+	if (frames < 1) frames = 1;
+
+	bench_t bench;
+	memset(&bench, 0, sizeof(bench));
+	bench.average_bytes = average_bytes;
+	bench.max_bytes = average_bytes * 4 + 64;
+	bench.gop = gop;
+	bench.replay_ns = 2000000000LL;
+	// capture time advances at nominal frame rate even if frames are written as fast as possible
+	const int64_t interval = (int64_t)(1000000000.0 / (fps > 0.0f ? fps : 30.0f));
+
+	uvc_frame_t frame;
+	memset(&frame, 0, sizeof(frame));
+	frame.data_bytes = bench.max_bytes;
+	frame.width = 1920;
+	frame.height = 1080;
+	frame.frame_format = gop ? UVC_FRAME_FORMAT_H264 : UVC_FRAME_FORMAT_MJPEG;
+	// prepare frames beforehand, generating them must not be counted as write time.
+	// number of prepared frames is a multiple of GOP so that key frames stay at the same position
+	const int prepared = gop ? gop * ((64 + gop - 1) / gop) : 64;
+	bench.prepared = prepared;
+	uint8_t **data = (uint8_t **)calloc(prepared, sizeof(uint8_t *));
+	size_t *bytes = (size_t *)calloc(prepared, sizeof(size_t));
+	for (int i = 0; i < prepared; i++) {
+		data[i] = (uint8_t *)malloc(bench.max_bytes);
+		bytes[i] = fill_frame(data[i], i, average_bytes, gop);
+	}
+
+	TimeShiftBuffer buffer;
+	uint64_t t = now_ns();
+	if (buffer.open(path, (uint64_t)ring_mb * 1024 * 1024, (int64_t)(max_duration * 1000000000.0))) {
+		fprintf(stderr, "failed to open %s\n", path);
+		return 1;
+	}
+	const uint64_t open_ns = now_ns() - t;
+	bench.buffer = &buffer;
+	bench.running = true;
+	pthread_t reader;
+	pthread_create(&reader, NULL, reader_func, &bench);
+
+	const uint64_t pace = fps > 0.0f ? (uint64_t)interval : 0;
+	uint64_t *latency = (uint64_t *)calloc(frames, sizeof(uint64_t));
+	uint64_t total_ns = 0, max_ns = 0, written_bytes = 0;
+	const uint64_t start = now_ns();
+	for (int i = 0; i < frames; i++) {
+		if (pace) {
+			const uint64_t due = start + i * pace;
+			const uint64_t now = now_ns();
+			if (due > now) {
+				usleep((due - now) / 1000);
+			}
+		}
+		const int slot = i % prepared;
+		frame.data = data[slot];
+		frame.actual_bytes = bytes[slot];
+		frame.sequence = i;
+		frame.capture_time_ns = (int64_t)i * interval;
+		t = now_ns();
+		buffer.write(&frame);
+		const uint64_t elapsed = now_ns() - t;
+		latency[i] = elapsed;
+		total_ns += elapsed;
+		written_bytes += frame.actual_bytes;
+		if (elapsed > max_ns) max_ns = elapsed;
+	}
+	const uint64_t elapsed = now_ns() - start;
+	bench.running = false;
+	pthread_join(reader, NULL);
+
+	uint64_t p99 = 0;
+	{
+		uint64_t *sorted = (uint64_t *)malloc(frames * sizeof(uint64_t));
+		memcpy(sorted, latency, frames * sizeof(uint64_t));
+		qsort(sorted, frames, sizeof(uint64_t), compare_u64);
+		p99 = sorted[(frames * 99) / 100 < frames ? (frames * 99) / 100 : frames - 1];
+		free(sorted);
+	}
+
+	tsb_stats_t stats;
+	buffer.getStats(stats);
+	tsb_range_t range;
+	buffer.getRange(range);
+	printf("%d %s frames of %zu bytes average at %.1f fps, ring %d MB(open %.1f ms)\n",
+		frames, gop ? "H.264" : "MJPEG", average_bytes, fps, ring_mb, open_ns / 1000000.0);
+	printf("write on callback thread: avg %.1f us, p99 %.1f us, max %.1f us, %.1f MB/s sustained\n",
+		total_ns / 1000.0 / frames, p99 / 1000.0, max_ns / 1000.0, written_bytes * 1000.0 / elapsed);
+	printf("write throughput while copying: %.1f MB/s\n", total_ns ? written_bytes * 1000.0 / total_ns : 0.0);
+	printf("written %u, too_large %u, evicted %u, wraps %u\n",
+		stats.frames, stats.too_large, stats.evicted, stats.wraps);
+	printf("buffer: %u frames, %.2f sec, %llu of %llu kB\n", range.frames,
+		(range.newest_pts_ns - range.oldest_pts_ns) / 1000000000.0,
+		(unsigned long long)range.used_bytes / 1024, (unsigned long long)range.capacity_bytes / 1024);
+	printf("reader: %u replays, %u frames verified(%.1f MB/s), %u overwritten, %u not found, %u not key, %u errors\n",
+		bench.replays, bench.verified, bench.read_ns ? bench.read_bytes * 1000.0 / bench.read_ns : 0.0,
+		bench.overwritten, bench.not_found, bench.not_key, bench.errors);
+
+	int errors = bench.errors + bench.not_key;
+	if (stats.frames != (uint32_t)frames) {
+		fprintf(stderr, "only %u of %d frames were written\n", stats.frames, frames);
+		errors++;
+	}
+	// export last 2 seconds
+	char export_path[1024];
+	snprintf(export_path, sizeof(export_path), "%s.%s", path, gop ? "h264" : "mjpeg");
+	const int64_t export_start = range.newest_pts_ns - 2000000000LL;
+	t = now_ns();
+	const int exported = buffer.exportTo(export_path, export_start, range.newest_pts_ns);
+	const uint64_t export_ns = now_ns() - t;
+	if (exported < 0) {
+		fprintf(stderr, "export failed:%d\n", exported);
+		errors++;
+	} else {
+		printf("export took %.1f ms\n", export_ns / 1000000.0);
+		errors += verify_export(export_path, exported, bench, frames,
+			export_start, range.oldest_pts_ns, interval);
+	}
+	buffer.close();
+	unlink(export_path);
+	unlink(path);
+
+	for (int i = 0; i < prepared; i++) {
+		free(data[i]);
+	}
+	free(data);
+	free(bytes);
+	free(latency);
+	printf("%s\n", errors ? "NG" : "OK");
+	return errors ? 1 : 0;
+}
@@ -67,6 +67,7 @@ LOCAL_SRC_FILES := \
 	src/diag.c \
 	src/frame.c \
 	src/frame-mjpeg.c \
+	src/frame-simd.c \
 	src/init.c \
 	src/stream.c
 
@@ -105,6 +105,14 @@ enum uvc_frame_format {
 	UVC_FRAME_FORMAT_MJPEG,
 	UVC_FRAME_FORMAT_GRAY8,
 	UVC_FRAME_FORMAT_BY8,
+	/** planar YUV420, Y plane followed by interleaved UV plane, only used as output of conversion */
+	UVC_FRAME_FORMAT_NV12,
+	/** planar YUV420, Y, U and V planes, only used as output of conversion */
+	UVC_FRAME_FORMAT_I420,
+	/** planar YUV420, Y plane followed by interleaved VU plane, only used as output of conversion */
+	UVC_FRAME_FORMAT_NV21,
+	/** H.264 elementary stream(Annex B) of frame based format, passed through without decoding */
+	UVC_FRAME_FORMAT_H264,
 	/** Number of formats understood */
 	UVC_FRAME_FORMAT_COUNT,
 };
@@ -482,13 +490,39 @@ typedef struct uvc_frame {
 	 * Set this field to zero if you are supplying the buffer.
 	 */
 	uint8_t library_owns_data;
+	/** Presentation time stamp from payload header in device clock(dwClockFrequency), 0 if not sent */
+	uint32_t pts;
+	/** Source time clock of SCR from payload header in device clock, 0 if not sent */
+	uint32_t scr;
+	/** Capture time in CLOCK_MONOTONIC nanoseconds, PTS mapped from device clock with SCR if available,
+	 * otherwise the time when the host received end of the frame.
+	 * capture_time is same value as timeval */
+	int64_t capture_time_ns;
+	/** UVC_FRAME_FLAG_XXX, how the frame was completed */
+	uint8_t frame_flags;
 } uvc_frame_t;
 
+/** the last payload of the frame had EOF bit, the frame was completed by FID toggle if not set */
+#define UVC_FRAME_FLAG_EOF 0x01
+/** some payloads of the frame had errors or were lost, actual_bytes is 0.
+ * such frames are only passed to the streams that were started with uvc_start_streaming_pooled,
+ * other streams drop them */
+#define UVC_FRAME_FLAG_ERR 0x02
+
 /** A callback function to handle incoming assembled UVC frames
  * @ingroup streaming
  */
 typedef void(uvc_frame_callback_t)(struct uvc_frame *frame, void *user_ptr);
 
+/** A callback function to supply frames that the stream assembles payloads into directly,
+ * see uvc_stream_set_frame_pool. the frame should be allocated with uvc_allocate_frame
+ * (library_owns_data must be set because the stream may realloc its data).
+ * @param data_bytes hint of required size, the stream grows the frame if it is smaller
+ * @return NULL if no frame is available, the incoming frame is dropped then
+ * @ingroup streaming
+ */
+typedef struct uvc_frame *(uvc_frame_obtain_t)(size_t data_bytes, void *user_ptr);	// XXX added saki
+
 /** Streaming mode, includes all information needed to select stream
  * @ingroup streaming
  */
@@ -588,6 +622,10 @@ uvc_error_t uvc_start_streaming_bandwidth(uvc_device_handle_t *devh,
 		float bandwidth,
 		uint8_t flags);	// XXX added saki
 
+uvc_error_t uvc_start_streaming_pooled(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, uvc_frame_obtain_t *obtain,
+		void *user_ptr, float bandwidth, uint8_t flags);	// XXX added saki
+
 uvc_error_t uvc_start_iso_streaming(uvc_device_handle_t *devh,
 		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, void *user_ptr);
 
@@ -607,6 +645,9 @@ uvc_error_t uvc_stream_get_frame(uvc_stream_handle_t *strmh,
 		uvc_frame_t **frame, int32_t timeout_us);
 uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh);
 void uvc_stream_close(uvc_stream_handle_t *strmh);
+uvc_error_t uvc_set_num_transfer_bufs(uvc_device_handle_t *devh, int num);	// XXX added saki
+uvc_error_t uvc_stream_set_num_transfer_bufs(uvc_stream_handle_t *strmh, int num);	// XXX added saki
+uvc_error_t uvc_stream_set_frame_pool(uvc_stream_handle_t *strmh, uvc_frame_obtain_t *obtain, void *user_ptr);	// XXX added saki
 
 // Generic Controls
 int uvc_get_ctrl_len(uvc_device_handle_t *devh, uint8_t unit, uint8_t ctrl);
@@ -801,6 +842,19 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+/** persistent MJPEG decoder, reuse one instance for all frames of a stream */
+struct uvc_mjpeg_decoder;
+typedef struct uvc_mjpeg_decoder uvc_mjpeg_decoder_t;
+uvc_mjpeg_decoder_t *uvc_mjpeg_decoder_create(void);
+void uvc_mjpeg_decoder_destroy(uvc_mjpeg_decoder_t *decoder);
+uvc_error_t uvc_mjpeg_decoder_reset(uvc_mjpeg_decoder_t *decoder, int width, int height);
+uvc_error_t uvc_mjpeg_decoder_set_scale(uvc_mjpeg_decoder_t *decoder, int scale_denom);
+uvc_error_t uvc_mjpeg_decoder_set_crop(uvc_mjpeg_decoder_t *decoder, int x, int y, int width, int height);
+uvc_error_t uvc_mjpeg_decode2yuyv(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_mjpeg_decode2rgbx(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_mjpeg_decode2nv12(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_mjpeg_decode2i420(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_mjpeg_decode2nv21(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out);
 #endif
 
 uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out);		// XXX
@@ -812,10 +866,14 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 uvc_error_t uvc_any2rgbx(uvc_frame_t *in, uvc_frame_t *out);		// XXX
+uvc_error_t uvc_nv12_2rgbx(uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_i420_2rgbx(uvc_frame_t *in, uvc_frame_t *out);
+uvc_error_t uvc_nv21_2rgbx(uvc_frame_t *in, uvc_frame_t *out);
 
 uvc_error_t uvc_yuyv2yuv420P(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_any2yuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
+uvc_error_t uvc_yuyv2i420(uvc_frame_t *in, uvc_frame_t *out);
 
 uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
 uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out);	// XXX
@@ -825,6 +883,18 @@ uvc_error_t uvc_any2yuyv(uvc_frame_t *in, uvc_frame_t *out);		// XXX
 
 uvc_error_t uvc_ensure_frame_size(uvc_frame_t *frame, size_t need_bytes); // XXX
 
+/** SIMD implementation of pixel format converters, selected at runtime */
+enum uvc_simd_level {
+	UVC_SIMD_NONE = 0,	// scalar C
+	UVC_SIMD_SSE2,
+	UVC_SIMD_AVX2,
+	UVC_SIMD_NEON,
+};
+enum uvc_simd_level uvc_simd_detect(void);
+enum uvc_simd_level uvc_simd_get(void);
+enum uvc_simd_level uvc_simd_set(enum uvc_simd_level level);
+const char *uvc_simd_name(enum uvc_simd_level level);
+
 //**********************************************************************
 // added for diagnostic
 // t_saki@serenegiant.com
@@ -246,10 +246,26 @@ typedef struct uvc_device_info {
   scheduled (if we have root).
   We could/should change this to allow reduce it to, say, 5 by default
   and then allow the user to change the number of buffers as required.
+  XXX the number of buffers can be changed with uvc_set_num_transfer_bufs
+  or uvc_stream_set_num_transfer_bufs, this is the default value.
  */
 #define LIBUVC_NUM_TRANSFER_BUFS 10
+#define LIBUVC_MAX_TRANSFER_BUFS 32
 
+/** upper limit of the frame buffers(outbuf/holdbuf), they grow on demand up to this size */
 #define LIBUVC_XFER_BUF_SIZE	( 16 * 1024 * 1024 )
+/** lower limit of the initial frame buffer size, used when the device reports too small dwMaxVideoFrameSize */
+#define LIBUVC_XFER_BUF_MIN_SIZE	( 64 * 1024 )
+
+/** mapping from device clock(SCR/PTS) to CLOCK_MONOTONIC, see _uvc_clock_update */
+struct uvc_clock_sync {
+  uint32_t freq;		// dwClockFrequency, 0 if the device does not tell
+  uint8_t valid;
+  uint32_t last_stc;	// last source time clock(32bit counter)
+  uint64_t stc_ext;		// last_stc extended to 64bit
+  int64_t offset_ns;	// estimated CLOCK_MONOTONIC - device time
+  int64_t last_host_ns;	// host time of last sample
+};
 
 struct uvc_stream_handle {
   struct uvc_device_handle *devh;
@@ -264,21 +280,31 @@ struct uvc_stream_handle {
   /* listeners may only access hold*, and only when holding a 
    * lock on cb_mutex (probably signaled with cb_cond) */
   uint8_t bfh_err, hold_bfh_err;	// XXX added to keep UVC_STREAM_ERR
+  uint8_t got_eof, hold_eof;	// the frame was completed by EOF bit, not by FID toggle
   uint8_t fid;
   uint32_t seq, hold_seq;
   uint32_t pts, hold_pts;
   uint32_t last_scr, hold_last_scr;
+  int64_t xfer_time_ns;	// CLOCK_MONOTONIC time when current transfer completed
+  int64_t last_scr_time_ns, hold_scr_time_ns;	// host time when last_scr was received
+  int64_t hold_time_ns;	// host time when hold buffer was completed
+  struct uvc_clock_sync clock;
   size_t got_bytes, hold_bytes;
-  size_t size_buf;	// XXX add for boundary check
+  size_t size_buf;	// XXX add for boundary check, capacity of outbuf
+  size_t size_hold;	// capacity of holdbuf
   uint8_t *outbuf, *holdbuf;
+  /** frames that own outbuf/holdbuf when frame_obtain is set, NULL otherwise */
+  struct uvc_frame *outframe, *holdframe;
+  uvc_frame_obtain_t *frame_obtain;
   pthread_mutex_t cb_mutex;
   pthread_cond_t cb_cond;
   pthread_t cb_thread;
   uint32_t last_polled_seq;
   uvc_frame_callback_t *user_cb;
   void *user_ptr;
-  struct libusb_transfer *transfers[LIBUVC_NUM_TRANSFER_BUFS];
-  uint8_t *transfer_bufs[LIBUVC_NUM_TRANSFER_BUFS];
+  int num_transfer_bufs;	// [1, LIBUVC_MAX_TRANSFER_BUFS]
+  struct libusb_transfer *transfers[LIBUVC_MAX_TRANSFER_BUFS];
+  uint8_t *transfer_bufs[LIBUVC_MAX_TRANSFER_BUFS];
   struct uvc_frame frame;
   enum uvc_frame_format frame_format;
 };
@@ -307,6 +333,7 @@ struct uvc_device_handle {
   /** Whether the camera is an iSight that sends one header per frame */
   uint8_t is_isight;
   uint8_t reset_on_release_if;	// XXX whether interface alt setting needs to reset to 0.
+  int num_transfer_bufs;	// number of transfer buffers for streams opened after this, 0 means default
 };
 
 /** Context within which we communicate with devices */
@@ -327,6 +354,21 @@ uvc_error_t uvc_query_stream_ctrl(
     uint8_t probe,
     enum uvc_req_code req);
 
+/** row converters of frame.c, implemented in frame-simd.c, pixels should be even */
+typedef struct uvc_convert_funcs {
+	void (*yuyv2rgbx)(const uint8_t *src, uint8_t *dst, int pixels);
+	void (*uyvy2rgbx)(const uint8_t *src, uint8_t *dst, int pixels);
+	void (*yuyv2rgb565)(const uint8_t *src, uint8_t *dst, int pixels);
+	/** luma and chroma of even row, vu=1 for NV21 */
+	void (*yuyv2yuv420sp)(const uint8_t *src, uint8_t *y, uint8_t *uv, int pixels, const int vu);
+	void (*yuyv2i420)(const uint8_t *src, uint8_t *y, uint8_t *u, uint8_t *v, int pixels);
+	/** luma only for odd row */
+	void (*yuyv2y)(const uint8_t *src, uint8_t *y, int pixels);
+	void (*nv2rgbx)(const uint8_t *py, const uint8_t *puv, uint8_t *dst, int pixels, const int vu);
+	void (*i420_2rgbx)(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, uint8_t *dst, int pixels);
+} uvc_convert_funcs_t;
+const uvc_convert_funcs_t *uvc_convert_funcs(void);
+
 void uvc_start_handler_thread(uvc_context_t *ctx);
 uvc_error_t uvc_claim_if(uvc_device_handle_t *devh, int idx);
 uvc_error_t uvc_release_if(uvc_device_handle_t *devh, int idx);
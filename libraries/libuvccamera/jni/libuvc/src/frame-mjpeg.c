@@ -189,6 +189,9 @@ uvc_error_t uvc_mjpeg2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 3;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -259,6 +262,9 @@ uvc_error_t uvc_mjpeg2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 3;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -333,6 +339,9 @@ uvc_error_t uvc_mjpeg2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 2;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -410,6 +419,9 @@ uvc_error_t uvc_mjpeg2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 4;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	dinfo.err = jpeg_std_error(&jerr.super);
@@ -484,6 +496,9 @@ uvc_error_t uvc_mjpeg2yuyv(uvc_frame_t *in, uvc_frame_t *out) {
 	out->step = in->width * 2;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	struct jpeg_decompress_struct dinfo;
@@ -550,3 +565,696 @@ fail:
 	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER+1;
 }
 
+
+/*
+ * persistent MJPEG decoder
+ * uvc_mjpeg2XXX functions create and destroy jpeg_decompress_struct for every frame,
+ * uvc_mjpeg_decoder_t keeps it for all frames of a stream.
+ * The Huffman tables inserted for the first frame stay in the decompressor
+ * and are reused while following frames do not have DHT marker.
+ */
+struct uvc_mjpeg_decoder {
+	struct jpeg_decompress_struct dinfo;
+	struct error_mgr jerr;
+	int width, height;
+	// DCT scaling 1/scale_denom, 1, 2, 4 or 8
+	int scale_denom;
+	// region to decode in scaled coordinates, crop_width is 0 if whole frame is decoded
+	int crop_x, crop_y, crop_width, crop_height;
+	// state of current frame, whether the frame is cropped and
+	// number of pixels to skip at head of each scanline(jpeg_crop_scanline aligns left edge to iMCU)
+	int cropping, crop_skip;
+	// full size of current frame after scaling
+	int scaled_width, scaled_height;
+	// scanline buffer for uvc_mjpeg_decode2yuyv(YCbCr) and cropped uvc_mjpeg_decode2rgbx(RGBX)
+	uint8_t *buffer;
+	size_t buffer_bytes;
+	JSAMPROW rows[MAX_READLINE];
+	// scratch rows for jpeg_read_raw_data, used for padding/discarded rows
+	uint8_t *raw_buffer;
+	size_t raw_buffer_bytes;
+};
+
+/** @brief Create persistent MJPEG decoder
+ * @ingroup frame
+ *
+ * @return New decoder, or NULL on error
+ */
+uvc_mjpeg_decoder_t *uvc_mjpeg_decoder_create(void) {
+	uvc_mjpeg_decoder_t *decoder = calloc(1, sizeof(uvc_mjpeg_decoder_t));
+	if (UNLIKELY(!decoder))
+		return NULL;
+
+	decoder->dinfo.err = jpeg_std_error(&decoder->jerr.super);
+	decoder->jerr.super.error_exit = _error_exit;
+	if (setjmp(decoder->jerr.jmp)) {
+		free(decoder);
+		return NULL;
+	}
+	jpeg_create_decompress(&decoder->dinfo);
+	decoder->scale_denom = 1;
+
+	return decoder;
+}
+
+/** @brief Release decoder and its buffers
+ * @ingroup frame
+ */
+void uvc_mjpeg_decoder_destroy(uvc_mjpeg_decoder_t *decoder) {
+	if (LIKELY(decoder)) {
+		jpeg_destroy_decompress(&decoder->dinfo);
+		if (decoder->buffer)
+			free(decoder->buffer);
+		if (decoder->raw_buffer)
+			free(decoder->raw_buffer);
+		free(decoder);
+	}
+}
+
+/** @brief Prepare decoder for frame size, call this when the negotiated frame size changed
+ * @ingroup frame
+ *
+ * Frame size change is also detected in uvc_mjpeg_decode2XXX.
+ */
+uvc_error_t uvc_mjpeg_decoder_reset(uvc_mjpeg_decoder_t *decoder, int width, int height) {
+	int i;
+
+	if (UNLIKELY(!decoder || (width <= 0) || (height <= 0)))
+		return UVC_ERROR_INVALID_PARAM;
+
+	const size_t row_stride = width * 4;	// YCbCr or RGBX
+	const size_t need_bytes = row_stride * MAX_READLINE;
+	if (decoder->buffer_bytes != need_bytes) {
+		uint8_t *buffer = realloc(decoder->buffer, need_bytes);
+		if (UNLIKELY(!buffer))
+			return UVC_ERROR_NO_MEM;
+		decoder->buffer = buffer;
+		decoder->buffer_bytes = need_bytes;
+	}
+	for (i = 0; i < MAX_READLINE; i++)
+		decoder->rows[i] = decoder->buffer + row_stride * i;
+	decoder->width = width;
+	decoder->height = height;
+	// discard the state of previous image if exists, this keeps Huffman tables
+	jpeg_abort_decompress(&decoder->dinfo);
+
+	return UVC_SUCCESS;
+}
+
+/** @brief Set DCT scaling of decoded frames
+ * @ingroup frame
+ *
+ * libjpeg skips higher frequency coefficients and decodes smaller image directly,
+ * this is much faster than decoding whole image and downscaling it.
+ * Decoded frames are ceil(width / scale_denom) x ceil(height / scale_denom).
+ * The scale is kept by uvc_mjpeg_decoder_reset.
+ * @param scale_denom 1(no scaling), 2, 4 or 8
+ */
+uvc_error_t uvc_mjpeg_decoder_set_scale(uvc_mjpeg_decoder_t *decoder, int scale_denom) {
+	if (UNLIKELY(!decoder))
+		return UVC_ERROR_INVALID_PARAM;
+	switch (scale_denom) {
+	case 1:
+	case 2:
+	case 4:
+	case 8:
+		decoder->scale_denom = scale_denom;
+		return UVC_SUCCESS;
+	default:
+		return UVC_ERROR_INVALID_PARAM;
+	}
+}
+
+/** @brief Set region of the frame to decode
+ * @ingroup frame
+ *
+ * Only rows and iMCU columns that contain the region are decoded
+ * with jpeg_skip_scanlines/jpeg_crop_scanline and decoded frames have the size of the region.
+ * The region is in the coordinates after DCT scaling(uvc_mjpeg_decoder_set_scale)
+ * and is ignored for frames that are smaller than the region.
+ * This can be changed between frames.
+ * 4:2:x frames are decoded into NV12/I420/NV21 without jpeg_read_raw_data while cropping.
+ * @param x, y top left of the region, should be even
+ * @param width width of the region, should be multiple of 16, 0 to decode whole frame
+ * @param height height of the region, should be even, 0 to decode whole frame
+ */
+uvc_error_t uvc_mjpeg_decoder_set_crop(uvc_mjpeg_decoder_t *decoder, int x, int y, int width, int height) {
+	if (UNLIKELY(!decoder || (x < 0) || (y < 0) || (width < 0) || (height < 0)))
+		return UVC_ERROR_INVALID_PARAM;
+	if (!width || !height) {
+		decoder->crop_x = decoder->crop_y = decoder->crop_width = decoder->crop_height = 0;
+		return UVC_SUCCESS;
+	}
+	if (UNLIKELY((x & 1) || (y & 1) || (width & 15) || (height & 1)))
+		return UVC_ERROR_INVALID_PARAM;
+	decoder->crop_x = x;
+	decoder->crop_y = y;
+	decoder->crop_width = width;
+	decoder->crop_height = height;
+	return UVC_SUCCESS;
+}
+
+/**
+ * size of decoded frame with DCT scaling(same as jpeg_calc_output_dimensions) and cropping
+ * @return 1 if the frame is cropped
+ */
+static inline int decoder_output_size(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in,
+	int *width, int *height) {
+
+	const int denom = decoder ? decoder->scale_denom : 1;
+	*width = (in->width + denom - 1) / denom;
+	*height = (in->height + denom - 1) / denom;
+	if (decoder && decoder->crop_width
+		&& (decoder->crop_x + decoder->crop_width <= *width)
+		&& (decoder->crop_y + decoder->crop_height <= *height)
+		&& ((decoder->crop_width < *width) || (decoder->crop_height < *height))) {
+
+		*width = decoder->crop_width;
+		*height = decoder->crop_height;
+		return 1;
+	}
+	return 0;
+}
+
+/**
+ * set up output frame and read JPEG header with the persistent decompressor
+ * this should be called after setjmp
+ * @param step bytes of each row of the output frame (of Y plane for planar formats)
+ */
+static inline void decoder_read_header(uvc_mjpeg_decoder_t *decoder,
+	uvc_frame_t *in, uvc_frame_t *out,
+	enum uvc_frame_format format, int step) {
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+	int width, height;
+
+	decoder->cropping = decoder_output_size(decoder, in, &width, &height);
+	decoder->crop_skip = 0;
+	decoder->scaled_width = (in->width + decoder->scale_denom - 1) / decoder->scale_denom;
+	decoder->scaled_height = (in->height + decoder->scale_denom - 1) / decoder->scale_denom;
+	out->width = width;
+	out->height = height;
+	out->frame_format = format;
+	out->step = step;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
+	out->source = in->source;
+
+	jpeg_mem_src(dinfo, in->data, in->actual_bytes);
+	jpeg_read_header(dinfo, TRUE);
+
+	if (dinfo->dc_huff_tbl_ptrs[0] == NULL) {
+		/* This frame is missing the Huffman tables: fill in the standard ones */
+		insert_huff_tables(dinfo);
+	}
+
+	dinfo->dct_method = JDCT_IFAST;
+	// jpeg_read_header resets scaling to 1/1
+	dinfo->scale_num = 1;
+	dinfo->scale_denom = decoder->scale_denom;
+}
+
+/**
+ * start decompressor, check output size and set up cropping
+ * this should be called after decoder_read_header
+ */
+static inline uvc_error_t decoder_start(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *out) {
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+
+	jpeg_start_decompress(dinfo);
+
+	if (UNLIKELY((dinfo->output_width != decoder->scaled_width)
+		|| (dinfo->output_height != decoder->scaled_height))) {
+		jpeg_abort_decompress(dinfo);
+		return UVC_ERROR_OTHER;
+	}
+	if (decoder->cropping) {
+		JDIMENSION xoffset = decoder->crop_x;
+		JDIMENSION width = decoder->crop_width;
+		// xoffset is aligned down to iMCU column, extra columns on the left are skipped while copying
+		jpeg_crop_scanline(dinfo, &xoffset, &width);
+		decoder->crop_skip = decoder->crop_x - xoffset;
+		if (decoder->crop_y)
+			jpeg_skip_scanlines(dinfo, decoder->crop_y);
+	}
+	return UVC_SUCCESS;
+}
+
+/**
+ * finish decompressor after reading all rows of the output frame
+ */
+static inline void decoder_finish(uvc_mjpeg_decoder_t *decoder) {
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+
+	if (dinfo->output_scanline < dinfo->output_height) {
+		// rows below the cropped region are never decoded, this keeps Huffman tables
+		jpeg_abort_decompress(dinfo);
+	} else {
+		jpeg_finish_decompress(dinfo);
+	}
+}
+
+static inline uvc_error_t decoder_check(uvc_mjpeg_decoder_t *decoder,
+	uvc_frame_t *in, uvc_frame_t *out, size_t need_bytes) {
+
+	if (UNLIKELY(!out))
+		return UVC_ERROR_INVALID_PARAM;
+	out->actual_bytes = 0;	// XXX
+	if (UNLIKELY(!decoder || !in || in->frame_format != UVC_FRAME_FORMAT_MJPEG))
+		return UVC_ERROR_INVALID_PARAM;
+
+	if (UNLIKELY((in->width != decoder->width) || (in->height != decoder->height))) {
+		const uvc_error_t ret = uvc_mjpeg_decoder_reset(decoder, in->width, in->height);
+		if (UNLIKELY(ret))
+			return ret;
+	}
+
+	if (uvc_ensure_frame_size(out, need_bytes) < 0)
+		return UVC_ERROR_NO_MEM;
+
+	return UVC_SUCCESS;
+}
+
+/** @brief Convert an MJPEG frame to YUYV with persistent decoder
+ * @ingroup frame
+ *
+ * @param decoder decoder created by uvc_mjpeg_decoder_create
+ * @param in MJPEG frame
+ * @param out YUYV frame
+ */
+uvc_error_t uvc_mjpeg_decode2yuyv(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
+	int width, height;
+	decoder_output_size(decoder, in, &width, &height);
+	uvc_error_t ret = decoder_check(decoder, in, out, width * height * 2);
+	if (UNLIKELY(ret))
+		return ret;
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+	volatile size_t lines_read = 0;
+	int i, j;
+	int num_scanlines;
+	register uint8_t *yuyv, *ycbcr;
+
+	if (setjmp(decoder->jerr.jmp)) {
+		goto fail;
+	}
+
+	decoder_read_header(decoder, in, out, UVC_FRAME_FORMAT_YUYV, width * 2);
+	dinfo->out_color_space = JCS_YCbCr;
+	ret = decoder_start(decoder, out);
+	if (UNLIKELY(ret))
+		return ret;
+
+	const int row_stride = out->width * 3;
+	const int skip = decoder->crop_skip * 3;
+	JSAMPARRAY buffer = decoder->rows;
+	// local copy
+	uint8_t *data = out->data;
+	const int out_step = out->step;
+
+	for (; lines_read < out->height ;) {
+		// convert lines of mjpeg data to YCbCr
+		num_scanlines = jpeg_read_scanlines(dinfo, buffer, MIN(MAX_READLINE, out->height - lines_read));
+		if (UNLIKELY(!num_scanlines))
+			break;
+		// convert YCbCr to yuyv(YUV422)
+		for (j = 0; j < num_scanlines; j++) {
+			yuyv = data + (lines_read + j) * out_step;
+			ycbcr = buffer[j] + skip;
+			for (i = 0; i < row_stride; i += 24) {	// step by YCbCr x 8 pixels = 3 x 8 bytes
+				YCbCr_YUYV_2(ycbcr + i, yuyv);
+				YCbCr_YUYV_2(ycbcr + i + 6, yuyv);
+				YCbCr_YUYV_2(ycbcr + i + 12, yuyv);
+				YCbCr_YUYV_2(ycbcr + i + 18, yuyv);
+			}
+		}
+		lines_read += num_scanlines;
+	}
+	out->actual_bytes = width * height * 2;	// XXX
+
+	decoder_finish(decoder);
+	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;
+
+fail:
+	// keep decompressor for next frame
+	jpeg_abort_decompress(dinfo);
+	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER+1;
+}
+
+/** @brief Convert an MJPEG frame to RGBX with persistent decoder
+ * @ingroup frame
+ *
+ * @param decoder decoder created by uvc_mjpeg_decoder_create
+ * @param in MJPEG frame
+ * @param out RGBX frame
+ */
+uvc_error_t uvc_mjpeg_decode2rgbx(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
+	int width, height;
+	decoder_output_size(decoder, in, &width, &height);
+	uvc_error_t ret = decoder_check(decoder, in, out, width * height * 4);
+	if (UNLIKELY(ret))
+		return ret;
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+	volatile size_t lines_read = 0;
+	int num_scanlines, i;
+	unsigned char *buffer[MAX_READLINE];
+
+	if (setjmp(decoder->jerr.jmp)) {
+		goto fail;
+	}
+
+	decoder_read_header(decoder, in, out, UVC_FRAME_FORMAT_RGBX, width * 4);
+	dinfo->out_color_space = JCS_EXT_RGBA;
+	ret = decoder_start(decoder, out);
+	if (UNLIKELY(ret))
+		return ret;
+
+	// local copy
+	uint8_t *data = out->data;
+	const int out_step = out->step;
+	const int skip = decoder->crop_skip * 4;
+
+	for (; lines_read < out->height ;) {
+		const int max_lines = MIN(MAX_READLINE, out->height - lines_read);
+		if (!skip) {
+			// decode into the frame directly
+			buffer[0] = data + (lines_read) * out_step;
+			for (i = 1; i < max_lines; i++)
+				buffer[i] = buffer[i-1] + out_step;
+			num_scanlines = jpeg_read_scanlines(dinfo, buffer, max_lines);
+		} else {
+			// cropped scanlines are wider than the frame
+			num_scanlines = jpeg_read_scanlines(dinfo, decoder->rows, max_lines);
+			for (i = 0; i < num_scanlines; i++)
+				memcpy(data + (lines_read + i) * out_step, decoder->rows[i] + skip, width * 4);
+		}
+		if (UNLIKELY(!num_scanlines))
+			break;
+		lines_read += num_scanlines;
+	}
+	out->actual_bytes = width * height * 4;	// XXX
+
+	decoder_finish(decoder);
+	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;	// XXX
+
+fail:
+	// keep decompressor for next frame
+	jpeg_abort_decompress(dinfo);
+	return UVC_ERROR_OTHER+1;
+}
+
+#define INTERLEAVE_UV 1
+#define INTERLEAVE_VU 2
+
+/**
+ * whether the frame can be decoded with jpeg_read_raw_data,
+ * Y should have 2x horizontal sampling of Cb/Cr(4:2:2 or 4:2:0)
+ */
+static inline int decoder_can_read_raw(j_decompress_ptr dinfo) {
+	return (dinfo->num_components == 3)
+		&& (dinfo->jpeg_color_space == JCS_YCbCr)
+		&& (dinfo->comp_info[0].h_samp_factor == 2)
+		&& (dinfo->comp_info[0].v_samp_factor <= 2)
+		&& (dinfo->comp_info[1].h_samp_factor == 1)
+		&& (dinfo->comp_info[1].v_samp_factor == 1)
+		&& (dinfo->comp_info[2].h_samp_factor == 1)
+		&& (dinfo->comp_info[2].v_samp_factor == 1);
+}
+
+static inline uvc_error_t decoder_ensure_raw_buffer(uvc_mjpeg_decoder_t *decoder, size_t need_bytes) {
+	if (decoder->raw_buffer_bytes < need_bytes) {
+		uint8_t *buffer = realloc(decoder->raw_buffer, need_bytes);
+		if (UNLIKELY(!buffer))
+			return UVC_ERROR_NO_MEM;
+		decoder->raw_buffer = buffer;
+		decoder->raw_buffer_bytes = need_bytes;
+	}
+	return UVC_SUCCESS;
+}
+
+/**
+ * decode into Y plane and U/V(Cb/Cr) planes with jpeg_read_raw_data.
+ * rows inside the output frame are written directly,
+ * padding rows/columns of the DCT blocks and chroma rows that are not needed
+ * for 4:2:0 go into scratch rows.
+ * with DCT scaling libjpeg may decode chroma at higher resolution than 4:2:0 needs
+ * (e.g. 1/2 scaled 4:2:0 has chroma of same size as luma), extra chroma rows are skipped
+ * and horizontal pairs are averaged then.
+ * @param u, v destination of U/V plane, when interleaved is not zero
+ * 		U/V are decoded into scratch rows and then interleaved into u(UV plane of NV12/VU plane of NV21)
+ * @param interleaved 0: separated U/V planes(I420), INTERLEAVE_UV: NV12, INTERLEAVE_VU: NV21
+ */
+static uvc_error_t decoder_read_raw(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *out,
+	uint8_t *y, uint8_t *u, uint8_t *v, const int interleaved) {
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+	const int width = out->width;
+	const int height = out->height;
+	const int cwidth = width >> 1;
+	const int cheight = height >> 1;
+	const int block_size = dinfo->min_DCT_scaled_size;
+	const int c_block_size = dinfo->comp_info[1].DCT_scaled_size;	// larger than block_size with some DCT scaling
+	const int v_samp = dinfo->comp_info[0].v_samp_factor;	// 1: 4:2:2, 2: 4:2:0
+	const int y_lines = v_samp * block_size;				// luma lines per iMCU row
+	const int c_lines = c_block_size;						// chroma lines per iMCU row
+	// luma lines per decoded chroma line, 1: chroma has same height as luma, 2: 4:2:0
+	const int v_sub = y_lines / c_lines;
+	// luma columns per decoded chroma column, 1: chroma has same width as luma, 2: 4:2:x
+	const int h_sub = (2 * block_size) / c_block_size;
+	const int y_stride = dinfo->comp_info[0].width_in_blocks * block_size;
+	const int c_stride = dinfo->comp_info[1].width_in_blocks * c_block_size;
+	// rows can be written into the frame directly only when padded width fits the frame
+	const int y_direct = y_stride <= width;
+	const int c_direct = !interleaved && (h_sub == 2) && (c_stride <= cwidth);
+	JSAMPROW y_rows[2 * DCTSIZE * 2], u_rows[DCTSIZE * 2], v_rows[DCTSIZE * 2];
+	JSAMPARRAY planes[3] = { y_rows, u_rows, v_rows };
+	int i, j, row, line = 0;
+
+	if (UNLIKELY((y_lines > NUM_ARRAY_ELEMENTS(y_rows)) || (c_lines > NUM_ARRAY_ELEMENTS(u_rows))
+		|| (v_sub < 1) || (v_sub > 2) || (h_sub < 1) || (h_sub > 2)))
+		return UVC_ERROR_NOT_SUPPORTED;
+	if (UNLIKELY(decoder_ensure_raw_buffer(decoder, y_stride * y_lines + c_stride * c_lines * 2)))
+		return UVC_ERROR_NO_MEM;
+
+	uint8_t *y_scratch = decoder->raw_buffer;
+	uint8_t *u_scratch = y_scratch + y_stride * y_lines;
+	uint8_t *v_scratch = u_scratch + c_stride * c_lines;
+
+	for (; dinfo->output_scanline < dinfo->output_height ;) {
+		// luma rows of this iMCU row
+		for (i = 0; i < y_lines; i++) {
+			row = line + i;
+			y_rows[i] = (y_direct && (row < height)) ? y + row * width : y_scratch + i * y_stride;
+		}
+		// chroma rows of this iMCU row
+		for (i = 0; i < c_lines; i++) {
+			// when chroma has same height as luma(4:2:2) only even chroma rows are used for 4:2:0 output
+			row = v_sub == 2 ? (line >> 1) + i : (((line + i) & 1) ? -1 : (line + i) >> 1);
+			if (c_direct && (row >= 0) && (row < cheight)) {
+				u_rows[i] = u + row * cwidth;
+				v_rows[i] = v + row * cwidth;
+			} else {
+				u_rows[i] = u_scratch + i * c_stride;
+				v_rows[i] = v_scratch + i * c_stride;
+			}
+		}
+		const int lines = jpeg_read_raw_data(dinfo, planes, y_lines);
+		if (UNLIKELY(!lines))
+			break;
+		// copy rows that were decoded into scratch rows
+		if (!y_direct) {
+			for (i = 0; (i < y_lines) && (line + i < height); i++) {
+				memcpy(y + (line + i) * width, y_rows[i], width);
+			}
+		}
+		if (!c_direct) {
+			for (i = 0; i < c_lines; i++) {
+				row = v_sub == 2 ? (line >> 1) + i : (((line + i) & 1) ? -1 : (line + i) >> 1);
+				if ((row < 0) || (row >= cheight))
+					continue;
+				if (h_sub == 1) {
+					// average horizontal pairs like decoder_read_ycbcr
+					const uint8_t *su = u_rows[i];
+					const uint8_t *sv = v_rows[i];
+					if (interleaved) {
+						uint8_t *uv = u + row * width;
+						const uint8_t *pu = interleaved == INTERLEAVE_VU ? sv : su;
+						const uint8_t *pv = interleaved == INTERLEAVE_VU ? su : sv;
+						for (j = 0; j < cwidth; j++, pu += 2, pv += 2) {
+							*(uv++) = (pu[0] + pu[1]) >> 1;
+							*(uv++) = (pv[0] + pv[1]) >> 1;
+						}
+					} else {
+						uint8_t *du = u + row * cwidth;
+						uint8_t *dv = v + row * cwidth;
+						for (j = 0; j < cwidth; j++) {
+							du[j] = (su[j * 2] + su[j * 2 + 1]) >> 1;
+							dv[j] = (sv[j * 2] + sv[j * 2 + 1]) >> 1;
+						}
+					}
+				} else if (interleaved) {
+					uint8_t *uv = u + row * width;
+					const uint8_t *pu = interleaved == INTERLEAVE_VU ? v_rows[i] : u_rows[i];
+					const uint8_t *pv = interleaved == INTERLEAVE_VU ? u_rows[i] : v_rows[i];
+					for (j = 0; j < cwidth; j++) {
+						*(uv++) = pu[j];
+						*(uv++) = pv[j];
+					}
+				} else {
+					memcpy(u + row * cwidth, u_rows[i], cwidth);
+					memcpy(v + row * cwidth, v_rows[i], cwidth);
+				}
+			}
+		}
+		line += lines;
+	}
+
+	return line >= height ? UVC_SUCCESS : UVC_ERROR_OTHER;
+}
+
+/**
+ * decode into YCbCr scanlines and write Y/U/V planes,
+ * used when the sampling factors are not supported by decoder_read_raw(e.g. 4:4:4)
+ */
+static uvc_error_t decoder_read_ycbcr(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *out,
+	uint8_t *y, uint8_t *u, uint8_t *v, const int interleaved) {
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+	const int width = out->width;
+	const int cwidth = width >> 1;
+	JSAMPARRAY buffer = decoder->rows;
+	const int skip = decoder->crop_skip * 3;
+	size_t lines_read = 0;
+	int i, j, num_scanlines;
+
+	for (; lines_read < out->height ;) {
+		num_scanlines = jpeg_read_scanlines(dinfo, buffer, MIN(MAX_READLINE, out->height - lines_read));
+		if (UNLIKELY(!num_scanlines))
+			break;
+		for (j = 0; j < num_scanlines; j++) {
+			const int row = lines_read + j;
+			const uint8_t *ycbcr = buffer[j] + skip;
+			uint8_t *py = y + row * width;
+			for (i = 0; i < width; i++) {
+				py[i] = ycbcr[i * 3];
+			}
+			if (!(row & 1)) {
+				// chroma of even rows, average 2 horizontal pixels like YCbCr_YUYV_2
+				const int crow = row >> 1;
+				if (interleaved) {
+					uint8_t *uv = u + crow * width;
+					const int first = interleaved == INTERLEAVE_VU ? 2 : 1;
+					const int second = 3 - first;
+					for (i = 0; i < cwidth; i++, ycbcr += 6) {
+						*(uv++) = (ycbcr[first] + ycbcr[first + 3]) >> 1;
+						*(uv++) = (ycbcr[second] + ycbcr[second + 3]) >> 1;
+					}
+				} else {
+					uint8_t *pu = u + crow * cwidth;
+					uint8_t *pv = v + crow * cwidth;
+					for (i = 0; i < cwidth; i++, ycbcr += 6) {
+						pu[i] = (ycbcr[1] + ycbcr[4]) >> 1;
+						pv[i] = (ycbcr[2] + ycbcr[5]) >> 1;
+					}
+				}
+			}
+		}
+		lines_read += num_scanlines;
+	}
+
+	return lines_read == out->height ? UVC_SUCCESS : UVC_ERROR_OTHER;
+}
+
+static uvc_error_t decoder_decode_yuv420(uvc_mjpeg_decoder_t *decoder,
+	uvc_frame_t *in, uvc_frame_t *out, const int interleaved) {
+
+	int width, height;
+	decoder_output_size(decoder, in, &width, &height);
+	if (UNLIKELY((width & 1) || (height & 1)))
+		return UVC_ERROR_INVALID_PARAM;
+	uvc_error_t ret = decoder_check(decoder, in, out, (width * height * 3) / 2);
+	if (UNLIKELY(ret))
+		return ret;
+
+	j_decompress_ptr dinfo = &decoder->dinfo;
+
+	if (setjmp(decoder->jerr.jmp)) {
+		goto fail;
+	}
+
+	decoder_read_header(decoder, in, out,
+		interleaved == INTERLEAVE_VU ? UVC_FRAME_FORMAT_NV21
+			: (interleaved ? UVC_FRAME_FORMAT_NV12 : UVC_FRAME_FORMAT_I420), width);
+	// jpeg_crop_scanline/jpeg_skip_scanlines can not be used with jpeg_read_raw_data
+	const int raw = !decoder->cropping && decoder_can_read_raw(dinfo);
+	dinfo->out_color_space = JCS_YCbCr;
+	dinfo->raw_data_out = raw ? TRUE : FALSE;
+	ret = decoder_start(decoder, out);
+	if (UNLIKELY(ret))
+		return ret;
+
+	uint8_t *y = out->data;
+	uint8_t *u = y + width * height;
+	uint8_t *v = u + (width * height) / 4;
+	if (raw) {
+		ret = decoder_read_raw(decoder, out, y, u, v, interleaved);
+	} else {
+		ret = decoder_read_ycbcr(decoder, out, y, u, v, interleaved);
+	}
+	if (LIKELY(!ret)) {
+		out->actual_bytes = (width * height * 3) / 2;	// XXX
+		decoder_finish(decoder);
+	} else {
+		jpeg_abort_decompress(dinfo);
+	}
+	return ret;
+
+fail:
+	// keep decompressor for next frame
+	jpeg_abort_decompress(dinfo);
+	return UVC_ERROR_OTHER+1;
+}
+
+/** @brief Convert an MJPEG frame to NV12(Y plane + interleaved UV plane) with persistent decoder
+ * @ingroup frame
+ *
+ * 4:2:2 and 4:2:0 frames are decoded with jpeg_read_raw_data
+ * without color conversion and upsampling.
+ * @param decoder decoder created by uvc_mjpeg_decoder_create
+ * @param in MJPEG frame
+ * @param out NV12 frame
+ */
+uvc_error_t uvc_mjpeg_decode2nv12(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
+	return decoder_decode_yuv420(decoder, in, out, INTERLEAVE_UV);
+}
+
+/** @brief Convert an MJPEG frame to I420(Y, U and V planes) with persistent decoder
+ * @ingroup frame
+ *
+ * 4:2:2 and 4:2:0 frames are decoded with jpeg_read_raw_data
+ * without color conversion and upsampling.
+ * @param decoder decoder created by uvc_mjpeg_decoder_create
+ * @param in MJPEG frame
+ * @param out I420 frame
+ */
+uvc_error_t uvc_mjpeg_decode2i420(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
+	return decoder_decode_yuv420(decoder, in, out, 0);
+}
+
+/** @brief Convert an MJPEG frame to NV21(Y plane + interleaved VU plane) with persistent decoder
+ * @ingroup frame
+ *
+ * same as uvc_mjpeg_decode2nv12 except the order of chroma samples.
+ * @param decoder decoder created by uvc_mjpeg_decoder_create
+ * @param in MJPEG frame
+ * @param out NV21 frame
+ */
+uvc_error_t uvc_mjpeg_decode2nv21(uvc_mjpeg_decoder_t *decoder, uvc_frame_t *in, uvc_frame_t *out) {
+	return decoder_decode_yuv420(decoder, in, out, INTERLEAVE_VU);
+}
@@ -0,0 +1,805 @@
+/*********************************************************************
+ * SIMD implementation of pixel format converters
+ * Copyright (C) 2014-2017 saki@serenegiant All rights reserved.
+ *********************************************************************/
+/*********************************************************************
+ * Software License Agreement (BSD License)
+ *
+ *  Copyright (C) 2010-2012 Ken Tossell
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *   * Neither the name of the author nor other contributors may be
+ *     used to endorse or promote products derived from this software
+ *     without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+/**
+ * row converters used by frame.c.
+ * all implementations use same integer arithmetic as the scalar C version
+ * (coefficients x 2^14 and arithmetic shift), so the results are bit-exact.
+ * the implementation is selected at runtime with cpu features
+ * and can be changed with #uvc_simd_set for testing/benchmark.
+ */
+#include "libuvc/libuvc.h"
+#include "libuvc/libuvc_internal.h"
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+	#define USE_NEON 1
+	#include <arm_neon.h>
+	#if defined(__arm__)
+		#include <sys/auxv.h>
+		#ifndef HWCAP_NEON
+			#define HWCAP_NEON (1 << 12)
+		#endif
+	#endif
+#endif
+
+#if defined(__SSE2__)
+	#define USE_SSE2 1
+	#include <emmintrin.h>
+	#if defined(__GNUC__) && (defined(__clang__) || (__GNUC__ >= 5))
+		// AVX2 functions are compiled with target attribute and only used when cpu supports it
+		#define USE_AVX2 1
+		#include <immintrin.h>
+		#define AVX2_FUNC __attribute__((target("avx2")))
+	#endif
+#endif
+
+static inline unsigned char sat(int i) {
+	return (unsigned char) (i >= 255 ? 255 : (i < 0 ? 0 : i));
+}
+
+//======================================================================
+// scalar C, same as IYUYV2RGBX_2 etc. in frame.c
+//======================================================================
+#define YUV2RGB_COEF(u, v, r, g, b) \
+	const int r = (22987 * ((v) - 128)) >> 14; \
+	const int g = (-5636 * ((u) - 128) - 11698 * ((v) - 128)) >> 14; \
+	const int b = (29049 * ((u) - 128)) >> 14;
+
+static inline void yuv2rgbx_2(const int y0, const int y1, const int u, const int v, uint8_t *prgbx) {
+	YUV2RGB_COEF(u, v, r, g, b);
+	prgbx[0] = sat(y0 + r);
+	prgbx[1] = sat(y0 + g);
+	prgbx[2] = sat(y0 + b);
+	prgbx[3] = 0xff;
+	prgbx[4] = sat(y1 + r);
+	prgbx[5] = sat(y1 + g);
+	prgbx[6] = sat(y1 + b);
+	prgbx[7] = 0xff;
+}
+
+static inline void yuv2rgb565_2(const int y0, const int y1, const int u, const int v, uint8_t *prgb565) {
+	YUV2RGB_COEF(u, v, r, g, b);
+	const uint8_t r0 = sat(y0 + r), g0 = sat(y0 + g), b0 = sat(y0 + b);
+	const uint8_t r1 = sat(y1 + r), g1 = sat(y1 + g), b1 = sat(y1 + b);
+	prgb565[0] = ((g0 << 3) & 0b11100000) | ((b0 >> 3) & 0b00011111);	// low byte
+	prgb565[1] = ((r0 & 0b11111000) | ((g0 >> 5) & 0b00000111));		// high byte
+	prgb565[2] = ((g1 << 3) & 0b11100000) | ((b1 >> 3) & 0b00011111);
+	prgb565[3] = ((r1 & 0b11111000) | ((g1 >> 5) & 0b00000111));
+}
+
+static void yuyv2rgbx_c(const uint8_t *src, uint8_t *dst, int pixels) {
+	for (; pixels > 1; pixels -= 2) {
+		yuv2rgbx_2(src[0], src[2], src[1], src[3], dst);
+		src += 4;
+		dst += 8;
+	}
+}
+
+static void uyvy2rgbx_c(const uint8_t *src, uint8_t *dst, int pixels) {
+	for (; pixels > 1; pixels -= 2) {
+		yuv2rgbx_2(src[1], src[3], src[0], src[2], dst);
+		src += 4;
+		dst += 8;
+	}
+}
+
+static void yuyv2rgb565_c(const uint8_t *src, uint8_t *dst, int pixels) {
+	for (; pixels > 1; pixels -= 2) {
+		yuv2rgb565_2(src[0], src[2], src[1], src[3], dst);
+		src += 4;
+		dst += 4;
+	}
+}
+
+static void yuyv2yuv420sp_c(const uint8_t *src, uint8_t *y, uint8_t *uv, int pixels, const int vu) {
+	const int first = vu ? 3 : 1;
+	const int second = vu ? 1 : 3;
+	for (; pixels > 1; pixels -= 2) {
+		y[0] = src[0];
+		y[1] = src[2];
+		uv[0] = src[first];
+		uv[1] = src[second];
+		src += 4;
+		y += 2;
+		uv += 2;
+	}
+}
+
+static void yuyv2i420_c(const uint8_t *src, uint8_t *y, uint8_t *u, uint8_t *v, int pixels) {
+	for (; pixels > 1; pixels -= 2) {
+		y[0] = src[0];
+		y[1] = src[2];
+		*(u++) = src[1];
+		*(v++) = src[3];
+		src += 4;
+		y += 2;
+	}
+}
+
+static void yuyv2y_c(const uint8_t *src, uint8_t *y, int pixels) {
+	for (; pixels > 1; pixels -= 2) {
+		y[0] = src[0];
+		y[1] = src[2];
+		src += 4;
+		y += 2;
+	}
+}
+
+static void nv2rgbx_c(const uint8_t *py, const uint8_t *puv, uint8_t *dst, int pixels, const int vu) {
+	const int iu = vu ? 1 : 0;
+	const int iv = vu ? 0 : 1;
+	for (; pixels > 1; pixels -= 2) {
+		yuv2rgbx_2(py[0], py[1], puv[iu], puv[iv], dst);
+		py += 2;
+		puv += 2;
+		dst += 8;
+	}
+}
+
+static void i420_2rgbx_c(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, uint8_t *dst, int pixels) {
+	for (; pixels > 1; pixels -= 2) {
+		yuv2rgbx_2(py[0], py[1], *(pu++), *(pv++), dst);
+		py += 2;
+		dst += 8;
+	}
+}
+
+static const uvc_convert_funcs_t convert_funcs_c = {
+	.yuyv2rgbx = yuyv2rgbx_c,
+	.uyvy2rgbx = uyvy2rgbx_c,
+	.yuyv2rgb565 = yuyv2rgb565_c,
+	.yuyv2yuv420sp = yuyv2yuv420sp_c,
+	.yuyv2i420 = yuyv2i420_c,
+	.yuyv2y = yuyv2y_c,
+	.nv2rgbx = nv2rgbx_c,
+	.i420_2rgbx = i420_2rgbx_c,
+};
+
+#if USE_SSE2
+//======================================================================
+// SSE2, 16 pixels per loop
+//======================================================================
+/**
+ * r/g/b offset of 8 pixel pairs
+ * @param c_lo signed chroma of pixel pair 0-3 as 16bit, U0 V0 U1 V1 U2 V2 U3 V3
+ * @param c_hi signed chroma of pixel pair 4-7
+ * @param coef coefficients for U and V, same value as scalar version
+ */
+static inline __m128i sse2_chroma(const __m128i c_lo, const __m128i c_hi, const __m128i coef) {
+	return _mm_packs_epi32(
+		_mm_srai_epi32(_mm_madd_epi16(c_lo, coef), 14),
+		_mm_srai_epi32(_mm_madd_epi16(c_hi, coef), 14));
+}
+
+/**
+ * @param y_lo luma of pixel 0-7 as 16bit
+ * @param y_hi luma of pixel 8-15 as 16bit
+ * @param c_lo, c_hi chroma(-128) of pixel pair 0-7 as 16bit
+ */
+static inline void sse2_yuv2rgb(const __m128i y_lo, const __m128i y_hi,
+	const __m128i c_lo, const __m128i c_hi, __m128i *r, __m128i *g, __m128i *b) {
+
+	const __m128i cr = sse2_chroma(c_lo, c_hi, _mm_set_epi16(22987, 0, 22987, 0, 22987, 0, 22987, 0));
+	const __m128i cg = sse2_chroma(c_lo, c_hi, _mm_set_epi16(-11698, -5636, -11698, -5636, -11698, -5636, -11698, -5636));
+	const __m128i cb = sse2_chroma(c_lo, c_hi, _mm_set_epi16(0, 29049, 0, 29049, 0, 29049, 0, 29049));
+	// each chroma value is shared by 2 pixels, packus saturates same as sat()
+	*r = _mm_packus_epi16(_mm_add_epi16(y_lo, _mm_unpacklo_epi16(cr, cr)), _mm_add_epi16(y_hi, _mm_unpackhi_epi16(cr, cr)));
+	*g = _mm_packus_epi16(_mm_add_epi16(y_lo, _mm_unpacklo_epi16(cg, cg)), _mm_add_epi16(y_hi, _mm_unpackhi_epi16(cg, cg)));
+	*b = _mm_packus_epi16(_mm_add_epi16(y_lo, _mm_unpacklo_epi16(cb, cb)), _mm_add_epi16(y_hi, _mm_unpackhi_epi16(cb, cb)));
+}
+
+static inline void sse2_store_rgbx(uint8_t *dst, const __m128i r, const __m128i g, const __m128i b) {
+	const __m128i x = _mm_set1_epi8((char)0xff);
+	const __m128i rg_lo = _mm_unpacklo_epi8(r, g);
+	const __m128i rg_hi = _mm_unpackhi_epi8(r, g);
+	const __m128i bx_lo = _mm_unpacklo_epi8(b, x);
+	const __m128i bx_hi = _mm_unpackhi_epi8(b, x);
+	_mm_storeu_si128((__m128i *)(dst +  0), _mm_unpacklo_epi16(rg_lo, bx_lo));
+	_mm_storeu_si128((__m128i *)(dst + 16), _mm_unpackhi_epi16(rg_lo, bx_lo));
+	_mm_storeu_si128((__m128i *)(dst + 32), _mm_unpacklo_epi16(rg_hi, bx_hi));
+	_mm_storeu_si128((__m128i *)(dst + 48), _mm_unpackhi_epi16(rg_hi, bx_hi));
+}
+
+static inline __m128i sse2_pack565(const __m128i r, const __m128i g, const __m128i b) {
+	return _mm_or_si128(_mm_or_si128(
+		_mm_slli_epi16(_mm_and_si128(r, _mm_set1_epi16(0xf8)), 8),
+		_mm_slli_epi16(_mm_and_si128(g, _mm_set1_epi16(0xfc)), 3)),
+		_mm_srli_epi16(b, 3));
+}
+
+static inline void sse2_store_rgb565(uint8_t *dst, const __m128i r, const __m128i g, const __m128i b) {
+	const __m128i zero = _mm_setzero_si128();
+	_mm_storeu_si128((__m128i *)(dst +  0), sse2_pack565(
+		_mm_unpacklo_epi8(r, zero), _mm_unpacklo_epi8(g, zero), _mm_unpacklo_epi8(b, zero)));
+	_mm_storeu_si128((__m128i *)(dst + 16), sse2_pack565(
+		_mm_unpackhi_epi8(r, zero), _mm_unpackhi_epi8(g, zero), _mm_unpackhi_epi8(b, zero)));
+}
+
+/**
+ * YUYV/UYVY => RGBX8888/RGB565
+ * @param uyvy 0: YUYV, 1: UYVY
+ * @param rgb565 0: RGBX8888, 1: RGB565
+ */
+static inline int sse2_packed422_2rgb(const uint8_t *src, uint8_t *dst, int pixels,
+	const int uyvy, const int rgb565) {
+
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	const __m128i c128 = _mm_set1_epi16(128);
+	const int n = pixels & ~15;
+	for (; pixels >= 16; pixels -= 16) {
+		const __m128i a = _mm_loadu_si128((const __m128i *)src);
+		const __m128i b = _mm_loadu_si128((const __m128i *)(src + 16));
+		__m128i y_lo, y_hi, c_lo, c_hi, r, g, bl;
+		if (uyvy) {
+			y_lo = _mm_srli_epi16(a, 8);
+			y_hi = _mm_srli_epi16(b, 8);
+			c_lo = _mm_and_si128(a, mask);
+			c_hi = _mm_and_si128(b, mask);
+		} else {
+			y_lo = _mm_and_si128(a, mask);
+			y_hi = _mm_and_si128(b, mask);
+			c_lo = _mm_srli_epi16(a, 8);
+			c_hi = _mm_srli_epi16(b, 8);
+		}
+		sse2_yuv2rgb(y_lo, y_hi, _mm_sub_epi16(c_lo, c128), _mm_sub_epi16(c_hi, c128), &r, &g, &bl);
+		if (rgb565) {
+			sse2_store_rgb565(dst, r, g, bl);
+			dst += 32;
+		} else {
+			sse2_store_rgbx(dst, r, g, bl);
+			dst += 64;
+		}
+		src += 32;
+	}
+	return n;
+}
+
+static void yuyv2rgbx_sse2(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = sse2_packed422_2rgb(src, dst, pixels, 0, 0);
+	yuyv2rgbx_c(src + n * 2, dst + n * 4, pixels - n);
+}
+
+static void uyvy2rgbx_sse2(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = sse2_packed422_2rgb(src, dst, pixels, 1, 0);
+	uyvy2rgbx_c(src + n * 2, dst + n * 4, pixels - n);
+}
+
+static void yuyv2rgb565_sse2(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = sse2_packed422_2rgb(src, dst, pixels, 0, 1);
+	yuyv2rgb565_c(src + n * 2, dst + n * 2, pixels - n);
+}
+
+static void yuyv2yuv420sp_sse2(const uint8_t *src, uint8_t *y, uint8_t *uv, int pixels, const int vu) {
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	for (; pixels >= 16; pixels -= 16) {
+		const __m128i a = _mm_loadu_si128((const __m128i *)src);
+		const __m128i b = _mm_loadu_si128((const __m128i *)(src + 16));
+		__m128i c = _mm_packus_epi16(_mm_srli_epi16(a, 8), _mm_srli_epi16(b, 8));
+		if (vu) {
+			c = _mm_or_si128(_mm_slli_epi16(c, 8), _mm_srli_epi16(c, 8));
+		}
+		_mm_storeu_si128((__m128i *)y, _mm_packus_epi16(_mm_and_si128(a, mask), _mm_and_si128(b, mask)));
+		_mm_storeu_si128((__m128i *)uv, c);
+		src += 32;
+		y += 16;
+		uv += 16;
+	}
+	yuyv2yuv420sp_c(src, y, uv, pixels, vu);
+}
+
+static void yuyv2i420_sse2(const uint8_t *src, uint8_t *y, uint8_t *u, uint8_t *v, int pixels) {
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	for (; pixels >= 16; pixels -= 16) {
+		const __m128i a = _mm_loadu_si128((const __m128i *)src);
+		const __m128i b = _mm_loadu_si128((const __m128i *)(src + 16));
+		const __m128i c = _mm_packus_epi16(_mm_srli_epi16(a, 8), _mm_srli_epi16(b, 8));
+		const __m128i cu = _mm_and_si128(c, mask);
+		const __m128i cv = _mm_srli_epi16(c, 8);
+		_mm_storeu_si128((__m128i *)y, _mm_packus_epi16(_mm_and_si128(a, mask), _mm_and_si128(b, mask)));
+		_mm_storel_epi64((__m128i *)u, _mm_packus_epi16(cu, cu));
+		_mm_storel_epi64((__m128i *)v, _mm_packus_epi16(cv, cv));
+		src += 32;
+		y += 16;
+		u += 8;
+		v += 8;
+	}
+	yuyv2i420_c(src, y, u, v, pixels);
+}
+
+static void yuyv2y_sse2(const uint8_t *src, uint8_t *y, int pixels) {
+	const __m128i mask = _mm_set1_epi16(0x00ff);
+	for (; pixels >= 16; pixels -= 16) {
+		const __m128i a = _mm_loadu_si128((const __m128i *)src);
+		const __m128i b = _mm_loadu_si128((const __m128i *)(src + 16));
+		_mm_storeu_si128((__m128i *)y, _mm_packus_epi16(_mm_and_si128(a, mask), _mm_and_si128(b, mask)));
+		src += 32;
+		y += 16;
+	}
+	yuyv2y_c(src, y, pixels);
+}
+
+/**
+ * @param y 16 luma
+ * @param uv 8 pixel pairs of interleaved chroma, U0 V0 U1 V1...
+ */
+static inline void sse2_yuv420_2rgbx(const __m128i y, const __m128i uv, uint8_t *dst) {
+	const __m128i zero = _mm_setzero_si128();
+	const __m128i c128 = _mm_set1_epi16(128);
+	__m128i r, g, b;
+	sse2_yuv2rgb(_mm_unpacklo_epi8(y, zero), _mm_unpackhi_epi8(y, zero),
+		_mm_sub_epi16(_mm_unpacklo_epi8(uv, zero), c128),
+		_mm_sub_epi16(_mm_unpackhi_epi8(uv, zero), c128), &r, &g, &b);
+	sse2_store_rgbx(dst, r, g, b);
+}
+
+static void nv2rgbx_sse2(const uint8_t *py, const uint8_t *puv, uint8_t *dst, int pixels, const int vu) {
+	for (; pixels >= 16; pixels -= 16) {
+		__m128i uv = _mm_loadu_si128((const __m128i *)puv);
+		if (vu) {
+			uv = _mm_or_si128(_mm_slli_epi16(uv, 8), _mm_srli_epi16(uv, 8));
+		}
+		sse2_yuv420_2rgbx(_mm_loadu_si128((const __m128i *)py), uv, dst);
+		py += 16;
+		puv += 16;
+		dst += 64;
+	}
+	nv2rgbx_c(py, puv, dst, pixels, vu);
+}
+
+static void i420_2rgbx_sse2(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, uint8_t *dst, int pixels) {
+	for (; pixels >= 16; pixels -= 16) {
+		const __m128i uv = _mm_unpacklo_epi8(
+			_mm_loadl_epi64((const __m128i *)pu), _mm_loadl_epi64((const __m128i *)pv));
+		sse2_yuv420_2rgbx(_mm_loadu_si128((const __m128i *)py), uv, dst);
+		py += 16;
+		pu += 8;
+		pv += 8;
+		dst += 64;
+	}
+	i420_2rgbx_c(py, pu, pv, dst, pixels);
+}
+
+static const uvc_convert_funcs_t convert_funcs_sse2 = {
+	.yuyv2rgbx = yuyv2rgbx_sse2,
+	.uyvy2rgbx = uyvy2rgbx_sse2,
+	.yuyv2rgb565 = yuyv2rgb565_sse2,
+	.yuyv2yuv420sp = yuyv2yuv420sp_sse2,
+	.yuyv2i420 = yuyv2i420_sse2,
+	.yuyv2y = yuyv2y_sse2,
+	.nv2rgbx = nv2rgbx_sse2,
+	.i420_2rgbx = i420_2rgbx_sse2,
+};
+#endif // USE_SSE2
+
+#if USE_AVX2
+//======================================================================
+// AVX2, 32 pixels per loop, only for YUYV/UYVY => RGB that is the most expensive
+// pack/unpack of AVX2 work on each 128bit lane, so pixel 0-15 are processed on lower lane
+// and pixel 16-31 are processed on upper lane in same way as SSE2
+//======================================================================
+AVX2_FUNC static inline __m256i avx2_chroma(const __m256i c_lo, const __m256i c_hi, const __m256i coef) {
+	return _mm256_packs_epi32(
+		_mm256_srai_epi32(_mm256_madd_epi16(c_lo, coef), 14),
+		_mm256_srai_epi32(_mm256_madd_epi16(c_hi, coef), 14));
+}
+
+AVX2_FUNC static inline __m256i avx2_add_chroma(const __m256i y_lo, const __m256i y_hi, const __m256i c) {
+	return _mm256_packus_epi16(
+		_mm256_add_epi16(y_lo, _mm256_unpacklo_epi16(c, c)),
+		_mm256_add_epi16(y_hi, _mm256_unpackhi_epi16(c, c)));
+}
+
+AVX2_FUNC static inline __m256i avx2_load2(const uint8_t *lo, const uint8_t *hi) {
+	return _mm256_inserti128_si256(
+		_mm256_castsi128_si256(_mm_loadu_si128((const __m128i *)lo)),
+		_mm_loadu_si128((const __m128i *)hi), 1);
+}
+
+AVX2_FUNC static inline void avx2_store2(uint8_t *lo, uint8_t *hi, const __m256i v) {
+	_mm_storeu_si128((__m128i *)lo, _mm256_castsi256_si128(v));
+	_mm_storeu_si128((__m128i *)hi, _mm256_extracti128_si256(v, 1));
+}
+
+AVX2_FUNC static inline __m256i avx2_pack565(const __m256i r, const __m256i g, const __m256i b) {
+	return _mm256_or_si256(_mm256_or_si256(
+		_mm256_slli_epi16(_mm256_and_si256(r, _mm256_set1_epi16(0xf8)), 8),
+		_mm256_slli_epi16(_mm256_and_si256(g, _mm256_set1_epi16(0xfc)), 3)),
+		_mm256_srli_epi16(b, 3));
+}
+
+AVX2_FUNC static inline int avx2_packed422_2rgb(const uint8_t *src, uint8_t *dst, int pixels,
+	const int uyvy, const int rgb565) {
+
+	const __m256i mask = _mm256_set1_epi16(0x00ff);
+	const __m256i c128 = _mm256_set1_epi16(128);
+	const __m256i coef_r = _mm256_set1_epi32(22987 << 16);
+	const __m256i coef_g = _mm256_set1_epi32((int)(((uint32_t)(uint16_t)-11698 << 16) | (uint16_t)-5636));
+	const __m256i coef_b = _mm256_set1_epi32(29049);
+	const __m256i zero = _mm256_setzero_si256();
+	const int n = pixels & ~31;
+	for (; pixels >= 32; pixels -= 32) {
+		const __m256i a = avx2_load2(src, src + 32);
+		const __m256i b = avx2_load2(src + 16, src + 48);
+		__m256i y_lo, y_hi, c_lo, c_hi;
+		if (uyvy) {
+			y_lo = _mm256_srli_epi16(a, 8);
+			y_hi = _mm256_srli_epi16(b, 8);
+			c_lo = _mm256_and_si256(a, mask);
+			c_hi = _mm256_and_si256(b, mask);
+		} else {
+			y_lo = _mm256_and_si256(a, mask);
+			y_hi = _mm256_and_si256(b, mask);
+			c_lo = _mm256_srli_epi16(a, 8);
+			c_hi = _mm256_srli_epi16(b, 8);
+		}
+		c_lo = _mm256_sub_epi16(c_lo, c128);
+		c_hi = _mm256_sub_epi16(c_hi, c128);
+		const __m256i r = avx2_add_chroma(y_lo, y_hi, avx2_chroma(c_lo, c_hi, coef_r));
+		const __m256i g = avx2_add_chroma(y_lo, y_hi, avx2_chroma(c_lo, c_hi, coef_g));
+		const __m256i bl = avx2_add_chroma(y_lo, y_hi, avx2_chroma(c_lo, c_hi, coef_b));
+		if (rgb565) {
+			avx2_store2(dst, dst + 32, avx2_pack565(
+				_mm256_unpacklo_epi8(r, zero), _mm256_unpacklo_epi8(g, zero), _mm256_unpacklo_epi8(bl, zero)));
+			avx2_store2(dst + 16, dst + 48, avx2_pack565(
+				_mm256_unpackhi_epi8(r, zero), _mm256_unpackhi_epi8(g, zero), _mm256_unpackhi_epi8(bl, zero)));
+			dst += 64;
+		} else {
+			const __m256i x = _mm256_set1_epi8((char)0xff);
+			const __m256i rg_lo = _mm256_unpacklo_epi8(r, g);
+			const __m256i rg_hi = _mm256_unpackhi_epi8(r, g);
+			const __m256i bx_lo = _mm256_unpacklo_epi8(bl, x);
+			const __m256i bx_hi = _mm256_unpackhi_epi8(bl, x);
+			avx2_store2(dst +  0, dst +  64, _mm256_unpacklo_epi16(rg_lo, bx_lo));
+			avx2_store2(dst + 16, dst +  80, _mm256_unpackhi_epi16(rg_lo, bx_lo));
+			avx2_store2(dst + 32, dst +  96, _mm256_unpacklo_epi16(rg_hi, bx_hi));
+			avx2_store2(dst + 48, dst + 112, _mm256_unpackhi_epi16(rg_hi, bx_hi));
+			dst += 128;
+		}
+		src += 64;
+	}
+	return n;
+}
+
+AVX2_FUNC static void yuyv2rgbx_avx2(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = avx2_packed422_2rgb(src, dst, pixels, 0, 0);
+	yuyv2rgbx_sse2(src + n * 2, dst + n * 4, pixels - n);
+}
+
+AVX2_FUNC static void uyvy2rgbx_avx2(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = avx2_packed422_2rgb(src, dst, pixels, 1, 0);
+	uyvy2rgbx_sse2(src + n * 2, dst + n * 4, pixels - n);
+}
+
+AVX2_FUNC static void yuyv2rgb565_avx2(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = avx2_packed422_2rgb(src, dst, pixels, 0, 1);
+	yuyv2rgb565_sse2(src + n * 2, dst + n * 2, pixels - n);
+}
+
+static const uvc_convert_funcs_t convert_funcs_avx2 = {
+	.yuyv2rgbx = yuyv2rgbx_avx2,
+	.uyvy2rgbx = uyvy2rgbx_avx2,
+	.yuyv2rgb565 = yuyv2rgb565_avx2,
+	.yuyv2yuv420sp = yuyv2yuv420sp_sse2,
+	.yuyv2i420 = yuyv2i420_sse2,
+	.yuyv2y = yuyv2y_sse2,
+	.nv2rgbx = nv2rgbx_sse2,
+	.i420_2rgbx = i420_2rgbx_sse2,
+};
+#endif // USE_AVX2
+
+#if USE_NEON
+//======================================================================
+// NEON, 16 or 32 pixels per loop
+//======================================================================
+/**
+ * @param y0 luma of even pixels
+ * @param y1 luma of odd pixels
+ * @param u, v chroma of 8 pixel pairs
+ * @param r, g, b 16 pixels in order
+ */
+static inline void neon_yuv2rgb(const uint8x8_t y0, const uint8x8_t y1, const uint8x8_t u, const uint8x8_t v,
+	uint8x16_t *r, uint8x16_t *g, uint8x16_t *b) {
+
+	const int16x8_t du = vreinterpretq_s16_u16(vsubl_u8(u, vdup_n_u8(128)));
+	const int16x8_t dv = vreinterpretq_s16_u16(vsubl_u8(v, vdup_n_u8(128)));
+	// 32bit multiply and arithmetic shift, same as scalar version
+	const int16x8_t cr = vcombine_s16(
+		vshrn_n_s32(vmull_n_s16(vget_low_s16(dv), 22987), 14),
+		vshrn_n_s32(vmull_n_s16(vget_high_s16(dv), 22987), 14));
+	const int16x8_t cg = vcombine_s16(
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(vget_low_s16(du), -5636), vget_low_s16(dv), -11698), 14),
+		vshrn_n_s32(vmlal_n_s16(vmull_n_s16(vget_high_s16(du), -5636), vget_high_s16(dv), -11698), 14));
+	const int16x8_t cb = vcombine_s16(
+		vshrn_n_s32(vmull_n_s16(vget_low_s16(du), 29049), 14),
+		vshrn_n_s32(vmull_n_s16(vget_high_s16(du), 29049), 14));
+	const int16x8_t sy0 = vreinterpretq_s16_u16(vmovl_u8(y0));
+	const int16x8_t sy1 = vreinterpretq_s16_u16(vmovl_u8(y1));
+	// vqmovun saturates same as sat(), then interleave even/odd pixels
+	uint8x8x2_t t;
+	t = vzip_u8(vqmovun_s16(vaddq_s16(sy0, cr)), vqmovun_s16(vaddq_s16(sy1, cr)));
+	*r = vcombine_u8(t.val[0], t.val[1]);
+	t = vzip_u8(vqmovun_s16(vaddq_s16(sy0, cg)), vqmovun_s16(vaddq_s16(sy1, cg)));
+	*g = vcombine_u8(t.val[0], t.val[1]);
+	t = vzip_u8(vqmovun_s16(vaddq_s16(sy0, cb)), vqmovun_s16(vaddq_s16(sy1, cb)));
+	*b = vcombine_u8(t.val[0], t.val[1]);
+}
+
+static inline void neon_store_rgbx(uint8_t *dst, const uint8x16_t r, const uint8x16_t g, const uint8x16_t b) {
+	uint8x16x4_t rgbx;
+	rgbx.val[0] = r;
+	rgbx.val[1] = g;
+	rgbx.val[2] = b;
+	rgbx.val[3] = vdupq_n_u8(0xff);
+	vst4q_u8(dst, rgbx);
+}
+
+static inline uint8x16_t neon_pack565(const uint8x8_t r, const uint8x8_t g, const uint8x8_t b) {
+	uint16x8_t v = vshll_n_u8(r, 8);
+	v = vsriq_n_u16(v, vshll_n_u8(g, 8), 5);
+	v = vsriq_n_u16(v, vshll_n_u8(b, 8), 11);
+	return vreinterpretq_u8_u16(v);
+}
+
+static inline void neon_store_rgb565(uint8_t *dst, const uint8x16_t r, const uint8x16_t g, const uint8x16_t b) {
+	vst1q_u8(dst, neon_pack565(vget_low_u8(r), vget_low_u8(g), vget_low_u8(b)));
+	vst1q_u8(dst + 16, neon_pack565(vget_high_u8(r), vget_high_u8(g), vget_high_u8(b)));
+}
+
+static inline int neon_packed422_2rgb(const uint8_t *src, uint8_t *dst, int pixels,
+	const int uyvy, const int rgb565) {
+
+	const int iy0 = uyvy ? 1 : 0, iu = uyvy ? 0 : 1, iy1 = uyvy ? 3 : 2, iv = uyvy ? 2 : 3;
+	const int n = pixels & ~31;
+	uint8x16_t r, g, b;
+	for (; pixels >= 32; pixels -= 32) {
+		const uint8x16x4_t p = vld4q_u8(src);
+		neon_yuv2rgb(vget_low_u8(p.val[iy0]), vget_low_u8(p.val[iy1]),
+			vget_low_u8(p.val[iu]), vget_low_u8(p.val[iv]), &r, &g, &b);
+		if (rgb565) {
+			neon_store_rgb565(dst, r, g, b);
+			dst += 32;
+		} else {
+			neon_store_rgbx(dst, r, g, b);
+			dst += 64;
+		}
+		neon_yuv2rgb(vget_high_u8(p.val[iy0]), vget_high_u8(p.val[iy1]),
+			vget_high_u8(p.val[iu]), vget_high_u8(p.val[iv]), &r, &g, &b);
+		if (rgb565) {
+			neon_store_rgb565(dst, r, g, b);
+			dst += 32;
+		} else {
+			neon_store_rgbx(dst, r, g, b);
+			dst += 64;
+		}
+		src += 64;
+	}
+	return n;
+}
+
+static void yuyv2rgbx_neon(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = neon_packed422_2rgb(src, dst, pixels, 0, 0);
+	yuyv2rgbx_c(src + n * 2, dst + n * 4, pixels - n);
+}
+
+static void uyvy2rgbx_neon(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = neon_packed422_2rgb(src, dst, pixels, 1, 0);
+	uyvy2rgbx_c(src + n * 2, dst + n * 4, pixels - n);
+}
+
+static void yuyv2rgb565_neon(const uint8_t *src, uint8_t *dst, int pixels) {
+	const int n = neon_packed422_2rgb(src, dst, pixels, 0, 1);
+	yuyv2rgb565_c(src + n * 2, dst + n * 2, pixels - n);
+}
+
+static void yuyv2yuv420sp_neon(const uint8_t *src, uint8_t *y, uint8_t *uv, int pixels, const int vu) {
+	for (; pixels >= 16; pixels -= 16) {
+		const uint8x16x2_t p = vld2q_u8(src);
+		vst1q_u8(y, p.val[0]);
+		vst1q_u8(uv, vu ? vrev16q_u8(p.val[1]) : p.val[1]);
+		src += 32;
+		y += 16;
+		uv += 16;
+	}
+	yuyv2yuv420sp_c(src, y, uv, pixels, vu);
+}
+
+static void yuyv2i420_neon(const uint8_t *src, uint8_t *y, uint8_t *u, uint8_t *v, int pixels) {
+	for (; pixels >= 32; pixels -= 32) {
+		const uint8x16x4_t p = vld4q_u8(src);
+		uint8x16x2_t yy;
+		yy.val[0] = p.val[0];
+		yy.val[1] = p.val[2];
+		vst2q_u8(y, yy);
+		vst1q_u8(u, p.val[1]);
+		vst1q_u8(v, p.val[3]);
+		src += 64;
+		y += 32;
+		u += 16;
+		v += 16;
+	}
+	yuyv2i420_c(src, y, u, v, pixels);
+}
+
+static void yuyv2y_neon(const uint8_t *src, uint8_t *y, int pixels) {
+	for (; pixels >= 16; pixels -= 16) {
+		vst1q_u8(y, vld2q_u8(src).val[0]);
+		src += 32;
+		y += 16;
+	}
+	yuyv2y_c(src, y, pixels);
+}
+
+static void nv2rgbx_neon(const uint8_t *py, const uint8_t *puv, uint8_t *dst, int pixels, const int vu) {
+	const int iu = vu ? 1 : 0, iv = vu ? 0 : 1;
+	uint8x16_t r, g, b;
+	for (; pixels >= 16; pixels -= 16) {
+		const uint8x8x2_t y = vld2_u8(py);
+		const uint8x8x2_t uv = vld2_u8(puv);
+		neon_yuv2rgb(y.val[0], y.val[1], uv.val[iu], uv.val[iv], &r, &g, &b);
+		neon_store_rgbx(dst, r, g, b);
+		py += 16;
+		puv += 16;
+		dst += 64;
+	}
+	nv2rgbx_c(py, puv, dst, pixels, vu);
+}
+
+static void i420_2rgbx_neon(const uint8_t *py, const uint8_t *pu, const uint8_t *pv, uint8_t *dst, int pixels) {
+	uint8x16_t r, g, b;
+	for (; pixels >= 16; pixels -= 16) {
+		const uint8x8x2_t y = vld2_u8(py);
+		neon_yuv2rgb(y.val[0], y.val[1], vld1_u8(pu), vld1_u8(pv), &r, &g, &b);
+		neon_store_rgbx(dst, r, g, b);
+		py += 16;
+		pu += 8;
+		pv += 8;
+		dst += 64;
+	}
+	i420_2rgbx_c(py, pu, pv, dst, pixels);
+}
+
+static const uvc_convert_funcs_t convert_funcs_neon = {
+	.yuyv2rgbx = yuyv2rgbx_neon,
+	.uyvy2rgbx = uyvy2rgbx_neon,
+	.yuyv2rgb565 = yuyv2rgb565_neon,
+	.yuyv2yuv420sp = yuyv2yuv420sp_neon,
+	.yuyv2i420 = yuyv2i420_neon,
+	.yuyv2y = yuyv2y_neon,
+	.nv2rgbx = nv2rgbx_neon,
+	.i420_2rgbx = i420_2rgbx_neon,
+};
+#endif // USE_NEON
+
+//======================================================================
+// runtime selection
+//======================================================================
+static pthread_once_t simd_once = PTHREAD_ONCE_INIT;
+static enum uvc_simd_level simd_supported = UVC_SIMD_NONE;	// best level that cpu supports
+static volatile enum uvc_simd_level simd_level = UVC_SIMD_NONE;
+static const uvc_convert_funcs_t *volatile convert_funcs = &convert_funcs_c;
+
+static const uvc_convert_funcs_t *simd_funcs(const enum uvc_simd_level level) {
+	switch (level) {
+#if USE_SSE2
+	case UVC_SIMD_SSE2:
+		return &convert_funcs_sse2;
+#endif
+#if USE_AVX2
+	case UVC_SIMD_AVX2:
+		return &convert_funcs_avx2;
+#endif
+#if USE_NEON
+	case UVC_SIMD_NEON:
+		return &convert_funcs_neon;
+#endif
+	default:
+		return &convert_funcs_c;
+	}
+}
+
+static void simd_init(void) {
+	enum uvc_simd_level level = UVC_SIMD_NONE;
+#if USE_NEON
+	#if defined(__arm__)
+	if (getauxval(AT_HWCAP) & HWCAP_NEON)
+	#endif
+		level = UVC_SIMD_NEON;
+#endif
+#if USE_SSE2
+	level = UVC_SIMD_SSE2;
+	#if USE_AVX2
+	__builtin_cpu_init();
+	if (__builtin_cpu_supports("avx2"))
+		level = UVC_SIMD_AVX2;
+	#endif
+#endif
+	simd_supported = simd_level = level;
+	convert_funcs = simd_funcs(level);
+	LOGI("pixel format converter:%s", uvc_simd_name(level));
+}
+
+/** @internal
+ * @brief row converters that are selected for this cpu
+ */
+const uvc_convert_funcs_t *uvc_convert_funcs(void) {
+	pthread_once(&simd_once, simd_init);
+	return convert_funcs;
+}
+
+/** @brief best SIMD implementation of pixel format converters that this cpu supports
+ * @ingroup frame
+ */
+enum uvc_simd_level uvc_simd_detect(void) {
+	pthread_once(&simd_once, simd_init);
+	return simd_supported;
+}
+
+/** @brief SIMD implementation of pixel format converters that is currently used
+ * @ingroup frame
+ */
+enum uvc_simd_level uvc_simd_get(void) {
+	pthread_once(&simd_once, simd_init);
+	return simd_level;
+}
+
+/** @brief change SIMD implementation of pixel format converters, mainly for testing and benchmark
+ * @ingroup frame
+ * @param level UVC_SIMD_NONE to use scalar C version
+ * @return level that is actually used, current level is kept if the level is not supported
+ */
+enum uvc_simd_level uvc_simd_set(enum uvc_simd_level level) {
+	pthread_once(&simd_once, simd_init);
+	int supported = (level == UVC_SIMD_NONE) || (level == simd_supported);
+#if USE_AVX2
+	supported |= (level == UVC_SIMD_SSE2);	// AVX2 capable cpu always supports SSE2
+#endif
+	if (supported) {
+		simd_level = level;
+		convert_funcs = simd_funcs(level);
+	}
+	return simd_level;
+}
+
+const char *uvc_simd_name(enum uvc_simd_level level) {
+	switch (level) {
+	case UVC_SIMD_NONE:	return "none";
+	case UVC_SIMD_SSE2:	return "SSE2";
+	case UVC_SIMD_AVX2:	return "AVX2";
+	case UVC_SIMD_NEON:	return "NEON";
+	default:			return "unknown";
+	}
+}
@@ -118,6 +118,14 @@ static inline unsigned char sat(int i) {
 	return (unsigned char) (i >= 255 ? 255 : (i < 0 ? 0 : i));
 }
 
+/**
+ * number of blocks that fit between p and end,
+ * same as the count of loop `for (; p <= end; p += bytes)`
+ */
+static inline int num_blocks(const uint8_t *p, const uint8_t *end, const int bytes) {
+	return p <= end ? (int)((end - p) / bytes) + 1 : 0;
+}
+
 /** @brief Duplicate a frame, preserving color format
  * @ingroup frame
  *
@@ -135,6 +143,9 @@ uvc_error_t uvc_duplicate_frame(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->step;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 	out->actual_bytes = in->actual_bytes;	// XXX
 
@@ -241,6 +252,9 @@ uvc_error_t uvc_rgb2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -323,6 +337,9 @@ uvc_error_t uvc_rgb2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *prgb = in->data;
@@ -426,6 +443,9 @@ uvc_error_t uvc_yuyv2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -490,6 +510,9 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -497,45 +520,29 @@ uvc_error_t uvc_yuyv2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 	uint8_t *prgb565 = out->data;
 	const uint8_t *prgb565_end = prgb565 + out->data_bytes - PIXEL8_RGB565;
 
-	uint8_t tmp[PIXEL8_RGB];	// for temporary rgb888 data(8pixel)
+	const uvc_convert_funcs_t *funcs = uvc_convert_funcs();
+	int blocks;	// number of 8 pixels
 
 #if USE_STRIDE
 	if (in->step && out->step && (in->step != out->step)) {
 		const int hh = in->height < out->height ? in->height : out->height;
 		const int ww = in->width < out->width ? in->width : out->width;
-		int h, w;
+		int h;
 		for (h = 0; h < hh; h++) {
-			w = 0;
 			pyuv = in->data + in->step * h;
 			prgb565 = out->data + out->step * h;
-			for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
-				IYUYV2RGB_8(pyuv, tmp, 0, 0);
-				RGB2RGB565_8(tmp, prgb565, 0, 0);
-
-				prgb565 += PIXEL8_YUYV;
-				pyuv += PIXEL8_RGB565;
-				w += 8;
-			}
+			blocks = MIN((ww + 7) / 8, MIN(num_blocks(prgb565, prgb565_end, PIXEL8_RGB565), num_blocks(pyuv, pyuv_end, PIXEL8_YUYV)));
+			funcs->yuyv2rgb565(pyuv, prgb565, blocks * 8);
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
-		for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
-			IYUYV2RGB_8(pyuv, tmp, 0, 0);
-			RGB2RGB565_8(tmp, prgb565, 0, 0);
-
-			prgb565 += PIXEL8_YUYV;
-			pyuv += PIXEL8_RGB565;
-		}
+		blocks = MIN(num_blocks(prgb565, prgb565_end, PIXEL8_RGB565), num_blocks(pyuv, pyuv_end, PIXEL8_YUYV));
+		funcs->yuyv2rgb565(pyuv, prgb565, blocks * 8);
 	}
 #else
 	// YUYV => RGB565
-	for (; (prgb565 <= prgb565_end) && (pyuv <= pyuv_end) ;) {
-		IYUYV2RGB_8(pyuv, tmp, 0, 0);
-		RGB2RGB565_8(tmp, prgb565, 0, 0);
-
-		prgb565 += PIXEL8_YUYV;
-		pyuv += PIXEL8_RGB565;
-	}
+	blocks = MIN(num_blocks(prgb565, prgb565_end, PIXEL8_RGB565), num_blocks(pyuv, pyuv_end, PIXEL8_YUYV));
+	funcs->yuyv2rgb565(pyuv, prgb565, blocks * 8);
 #endif
 	return UVC_SUCCESS;
 }
@@ -586,6 +593,9 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -594,39 +604,27 @@ uvc_error_t uvc_yuyv2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	const uint8_t *prgbx_end = prgbx + out->data_bytes - PIXEL8_RGBX;
 
 	// YUYV => RGBX8888
+	const uvc_convert_funcs_t *funcs = uvc_convert_funcs();
+	int blocks;	// number of 8 pixels
 #if USE_STRIDE
 	if (in->step && out->step && (in->step != out->step)) {
 		const int hh = in->height < out->height ? in->height : out->height;
 		const int ww = in->width < out->width ? in->width : out->width;
-		int h, w;
+		int h;
 		for (h = 0; h < hh; h++) {
-			w = 0;
 			pyuv = in->data + in->step * h;
 			prgbx = out->data + out->step * h;
-			for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
-				IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-
-				prgbx += PIXEL8_RGBX;
-				pyuv += PIXEL8_YUYV;
-				w += 8;
-			}
+			blocks = MIN((ww + 7) / 8, MIN(num_blocks(prgbx, prgbx_end, PIXEL8_RGBX), num_blocks(pyuv, pyuv_end, PIXEL8_YUYV)));
+			funcs->yuyv2rgbx(pyuv, prgbx, blocks * 8);
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
-		for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
-			IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-
-			prgbx += PIXEL8_RGBX;
-			pyuv += PIXEL8_YUYV;
-		}
+		blocks = MIN(num_blocks(prgbx, prgbx_end, PIXEL8_RGBX), num_blocks(pyuv, pyuv_end, PIXEL8_YUYV));
+		funcs->yuyv2rgbx(pyuv, prgbx, blocks * 8);
 	}
 #else
-	for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
-		IYUYV2RGBX_8(pyuv, prgbx, 0, 0);
-
-		prgbx += PIXEL8_RGBX;
-		pyuv += PIXEL8_YUYV;
-	}
+	blocks = MIN(num_blocks(prgbx, prgbx_end, PIXEL8_RGBX), num_blocks(pyuv, pyuv_end, PIXEL8_YUYV));
+	funcs->yuyv2rgbx(pyuv, prgbx, blocks * 8);
 #endif
 	return UVC_SUCCESS;
 }
@@ -676,6 +674,9 @@ uvc_error_t uvc_yuyv2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -765,6 +766,9 @@ uvc_error_t uvc_uyvy2rgb(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -829,6 +833,9 @@ uvc_error_t uvc_uyvy2rgb565(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGB565;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -925,6 +932,9 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_RGBX;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -933,39 +943,27 @@ uvc_error_t uvc_uyvy2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 	const uint8_t *prgbx_end = prgbx + out->data_bytes - PIXEL8_RGBX;
 
 	// UYVY => RGBX8888
+	const uvc_convert_funcs_t *funcs = uvc_convert_funcs();
+	int blocks;	// number of 8 pixels
 #if USE_STRIDE
 	if (in->step && out->step && (in->step != out->step)) {
 		const int hh = in->height < out->height ? in->height : out->height;
 		const int ww = in->width < out->width ? in->width : out->width;
-		int h, w;
+		int h;
 		for (h = 0; h < hh; h++) {
-			w = 0;
 			pyuv = in->data + in->step * h;
 			prgbx = out->data + out->step * h;
-			for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) && (w < ww) ;) {
-				IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
-
-				prgbx += PIXEL8_RGBX;
-				pyuv += PIXEL8_UYVY;
-				w += 8;
-			}
+			blocks = MIN((ww + 7) / 8, MIN(num_blocks(prgbx, prgbx_end, PIXEL8_RGBX), num_blocks(pyuv, pyuv_end, PIXEL8_UYVY)));
+			funcs->uyvy2rgbx(pyuv, prgbx, blocks * 8);
 		}
 	} else {
 		// compressed format? XXX if only one of the frame in / out has step, this may lead to crash...
-		for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
-			IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
-
-			prgbx += PIXEL8_RGBX;
-			pyuv += PIXEL8_UYVY;
-		}
+		blocks = MIN(num_blocks(prgbx, prgbx_end, PIXEL8_RGBX), num_blocks(pyuv, pyuv_end, PIXEL8_UYVY));
+		funcs->uyvy2rgbx(pyuv, prgbx, blocks * 8);
 	}
 #else
-	for (; (prgbx <= prgbx_end) && (pyuv <= pyuv_end) ;) {
-		IUYVY2RGBX_8(pyuv, prgbx, 0, 0);
-
-		prgbx += PIXEL8_RGBX;
-		pyuv += PIXEL8_UYVY;
-	}
+	blocks = MIN(num_blocks(prgbx, prgbx_end, PIXEL8_RGBX), num_blocks(pyuv, pyuv_end, PIXEL8_UYVY));
+	funcs->uyvy2rgbx(pyuv, prgbx, blocks * 8);
 #endif
 	return UVC_SUCCESS;
 }
@@ -1014,6 +1012,9 @@ uvc_error_t uvc_uyvy2bgr(uvc_frame_t *in, uvc_frame_t *out) {
 		out->step = in->width * PIXEL_BGR;
 	out->sequence = in->sequence;
 	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
 	out->source = in->source;
 
 	uint8_t *pyuv = in->data;
@@ -1166,26 +1167,15 @@ uvc_error_t uvc_yuyv2yuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
-	int h, w;
+	const uvc_convert_funcs_t *funcs = uvc_convert_funcs();
+	const int pixels = (width + 3) & ~3;	// 4 pixels per loop on original implementation
+	int h;
 	for (h = 0; h < hh - 1; h += 2) {
 		uint8_t *y0 = dest + width * h;
-		uint8_t *y1 = y0 + width;
 		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
-			*(y0++) = yuv[0];	// y
-			*(y0++) = yuv[2];	// y'
-			*(y0++) = yuv[4];	// y''
-			*(y0++) = yuv[6];	// y'''
-			*(uv++) = yuv[1];	// u
-			*(uv++) = yuv[3];	// v
-			*(uv++) = yuv[5];	// u
-			*(uv++) = yuv[7];	// v
-			*(y1++) = yuv[src_width+0];	// y on next low
-			*(y1++) = yuv[src_width+2];	// y' on next low
-			*(y1++) = yuv[src_width+4];	// y''  on next low
-			*(y1++) = yuv[src_width+6];	// y'''  on next low
-			yuv += 8;	// (1pixel=2bytes)x4pixels=8bytes
-		}
+		funcs->yuyv2yuv420sp(yuv, y0, uv, pixels, 0);
+		funcs->yuyv2y(yuv + src_width, y0 + width, pixels);	// y on next low
+		uv += pixels;
 	}
 	
 	RETURN(UVC_SUCCESS, uvc_error_t);
@@ -1211,31 +1201,153 @@ uvc_error_t uvc_yuyv2iyuv420SP(uvc_frame_t *in, uvc_frame_t *out) {
 
 	const uint32_t hh = src_height < dest_height ? src_height : dest_height;
 	uint8_t *uv = dest + dest_width * dest_height;
-	int h, w;
+	const uvc_convert_funcs_t *funcs = uvc_convert_funcs();
+	const int pixels = (width + 3) & ~3;	// 4 pixels per loop on original implementation
+	int h;
 	for (h = 0; h < hh - 1; h += 2) {
 		uint8_t *y0 = dest + width * h;
-		uint8_t *y1 = y0 + width;
 		const uint8_t *yuv = src + src_width * h;
-		for (w = 0; w < width; w += 4) {
-			*(y0++) = yuv[0];	// y
-			*(y0++) = yuv[2];	// y'
-			*(y0++) = yuv[4];	// y''
-			*(y0++) = yuv[6];	// y'''
-			*(uv++) = yuv[3];	// v
-			*(uv++) = yuv[1];	// u
-			*(uv++) = yuv[7];	// v
-			*(uv++) = yuv[5];	// u
-			*(y1++) = yuv[src_width+0];	// y on next low
-			*(y1++) = yuv[src_width+2];	// y' on next low
-			*(y1++) = yuv[src_width+4];	// y''  on next low
-			*(y1++) = yuv[src_width+6];	// y'''  on next low
-			yuv += 8;	// (1pixel=2bytes)x4pixels=8bytes
-		}
+		funcs->yuyv2yuv420sp(yuv, y0, uv, pixels, 1);
+		funcs->yuyv2y(yuv + src_width, y0 + width, pixels);	// y on next low
+		uv += pixels;
 	}
 	
 	RETURN(UVC_SUCCESS, uvc_error_t);
 }
 
+/** @brief Convert a frame from YUYV to I420(Y, U and V planes)
+ * @ingroup frame
+ * chroma of odd rows are discarded
+ * @param in YUYV frame
+ * @param out I420 frame
+ */
+uvc_error_t uvc_yuyv2i420(uvc_frame_t *in, uvc_frame_t *out) {
+	ENTER();
+
+	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_YUYV))
+		RETURN(UVC_ERROR_INVALID_PARAM, uvc_error_t);
+
+	if (UNLIKELY(uvc_ensure_frame_size(out, (in->width * in->height * 3) / 2) < 0))
+		RETURN(UVC_ERROR_NO_MEM, uvc_error_t);
+
+	const uint8_t *src = in->data;
+	uint8_t *dest = out->data;
+	const int32_t width = in->width;
+	const int32_t src_width = in->step ? in->step : in->width * PIXEL_YUYV;
+	const int32_t dest_width = out->width = out->step = in->width;
+	const int32_t dest_height = out->height = in->height;
+	out->frame_format = UVC_FRAME_FORMAT_I420;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
+	out->source = in->source;
+
+	uint8_t *u = dest + dest_width * dest_height;
+	uint8_t *v = u + (dest_width * dest_height) / 4;
+	const uvc_convert_funcs_t *funcs = uvc_convert_funcs();
+	const int pixels = (width + 1) & ~1;
+	int h;
+	for (h = 0; h < dest_height - 1; h += 2) {
+		uint8_t *y0 = dest + width * h;
+		const uint8_t *yuv = src + src_width * h;
+		funcs->yuyv2i420(yuv, y0, u, v, pixels);
+		funcs->yuyv2y(yuv + src_width, y0 + width, pixels);	// y on next low
+		u += pixels >> 1;
+		v += pixels >> 1;
+	}
+
+	RETURN(UVC_SUCCESS, uvc_error_t);
+}
+
+/**
+ * YUV420(NV12/I420) => RGBX8888, same coefficients as IYUYV2RGBX_2
+ * @param uv_pixel_bytes 2 for interleaved UV plane(NV12), 1 for separated U/V planes(I420)
+ */
+static uvc_error_t yuv420_2rgbx(uvc_frame_t *in, uvc_frame_t *out,
+	const uint8_t *pu, const uint8_t *pv, const int uv_step, const int uv_pixel_bytes) {
+
+	if (UNLIKELY(uvc_ensure_frame_size(out, in->width * in->height * PIXEL_RGBX) < 0))
+		return UVC_ERROR_NO_MEM;
+
+	out->width = in->width;
+	out->height = in->height;
+	out->frame_format = UVC_FRAME_FORMAT_RGBX;
+	if (out->library_owns_data)
+		out->step = in->width * PIXEL_RGBX;
+	out->sequence = in->sequence;
+	out->capture_time = in->capture_time;
+	out->capture_time_ns = in->capture_time_ns;
+	out->pts = in->pts;
+	out->scr = in->scr;
+	out->source = in->source;
+
+	const int width = in->width;
+	const int height = in->height < out->height ? in->height : out->height;
+	const int y_step = in->step ? in->step : in->width;
+	const int rgbx_step = out->step ? out->step : out->width * PIXEL_RGBX;
+	const uvc_convert_funcs_t *funcs = uvc_convert_funcs();
+	const int pixels = width & ~1;
+	int h;
+	for (h = 0; h < height; h++) {
+		const uint8_t *py = in->data + y_step * h;
+		const uint8_t *u = pu + uv_step * (h >> 1);
+		const uint8_t *v = pv + uv_step * (h >> 1);
+		uint8_t *prgbx = out->data + rgbx_step * h;
+		if (uv_pixel_bytes == 2) {
+			// NV12 if u is before v, NV21 if v is before u
+			funcs->nv2rgbx(py, u < v ? u : v, prgbx, pixels, v < u);
+		} else {
+			funcs->i420_2rgbx(py, u, v, prgbx, pixels);
+		}
+	}
+	return UVC_SUCCESS;
+}
+
+/** @brief Convert a frame from NV12 to RGBX8888
+ * @ingroup frame
+ * @param in NV12 frame
+ * @param out RGBX8888 frame
+ */
+uvc_error_t uvc_nv12_2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
+	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_NV12))
+		return UVC_ERROR_INVALID_PARAM;
+
+	const int y_step = in->step ? in->step : in->width;
+	const uint8_t *uv = in->data + y_step * in->height;
+	return yuv420_2rgbx(in, out, uv, uv + 1, y_step, 2);
+}
+
+/** @brief Convert a frame from NV21 to RGBX8888
+ * @ingroup frame
+ * @param in NV21 frame
+ * @param out RGBX8888 frame
+ */
+uvc_error_t uvc_nv21_2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
+	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_NV21))
+		return UVC_ERROR_INVALID_PARAM;
+
+	const int y_step = in->step ? in->step : in->width;
+	const uint8_t *vu = in->data + y_step * in->height;
+	return yuv420_2rgbx(in, out, vu + 1, vu, y_step, 2);
+}
+
+/** @brief Convert a frame from I420 to RGBX8888
+ * @ingroup frame
+ * @param in I420 frame
+ * @param out RGBX8888 frame
+ */
+uvc_error_t uvc_i420_2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
+	if (UNLIKELY(in->frame_format != UVC_FRAME_FORMAT_I420))
+		return UVC_ERROR_INVALID_PARAM;
+
+	const int y_step = in->step ? in->step : in->width;
+	const uint8_t *u = in->data + y_step * in->height;
+	const uint8_t *v = u + (y_step >> 1) * (in->height >> 1);
+	return yuv420_2rgbx(in, out, u, v, y_step >> 1, 1);
+}
+
 /** @brief Convert a frame to RGB565
  * @ingroup frame
  *
@@ -1331,6 +1443,12 @@ uvc_error_t uvc_any2rgbx(uvc_frame_t *in, uvc_frame_t *out) {
 		return uvc_duplicate_frame(in, out);
 	case UVC_FRAME_FORMAT_RGB:
 		return uvc_rgb2rgbx(in, out);
+	case UVC_FRAME_FORMAT_NV12:
+		return uvc_nv12_2rgbx(in, out);
+	case UVC_FRAME_FORMAT_I420:
+		return uvc_i420_2rgbx(in, out);
+	case UVC_FRAME_FORMAT_NV21:
+		return uvc_nv21_2rgbx(in, out);
 	default:
 		return UVC_ERROR_NOT_SUPPORTED;
 	}
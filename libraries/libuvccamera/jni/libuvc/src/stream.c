@@ -58,6 +58,8 @@
 #endif
 
 #include <assert.h>		// XXX add assert for debugging
+#include <stdlib.h>
+#include <time.h>
 
 #include "libuvc/libuvc.h"
 #include "libuvc/libuvc_internal.h"
@@ -68,6 +70,7 @@ uvc_frame_desc_t *uvc_find_frame_desc(uvc_device_handle_t *devh,
 		uint16_t format_id, uint16_t frame_id);
 static void *_uvc_user_caller(void *arg);
 static void _uvc_populate_frame(uvc_stream_handle_t *strmh);
+static void _uvc_populate_frame_info(uvc_stream_handle_t *strmh, uvc_frame_t *frame);
 
 struct format_table_entry {
 	enum uvc_frame_format format;
@@ -108,9 +111,11 @@ struct format_table_entry *_get_format_entry(enum uvc_frame_format format) {
     	{'B', 'Y', '8', ' ', 0x00, 0x00, 0x10, 0x00, 0x80, 0x00, 0x00, 0xaa, 0x00, 0x38, 0x9b, 0x71})
 
 	ABS_FMT(UVC_FRAME_FORMAT_COMPRESSED,
-		{UVC_FRAME_FORMAT_MJPEG})
+		{UVC_FRAME_FORMAT_MJPEG, UVC_FRAME_FORMAT_H264})
 	FMT(UVC_FRAME_FORMAT_MJPEG,
 		{'M', 'J', 'P', 'G'})
+	FMT(UVC_FRAME_FORMAT_H264,
+		{'H', '2', '6', '4', 0x00, 0x00, 0x10, 0x00, 0x80, 0x00, 0x00, 0xaa, 0x00, 0x38, 0x9b, 0x71})
 
 	default:
 		return NULL;
@@ -273,6 +278,10 @@ uvc_error_t uvc_query_stream_ctrl(uvc_device_handle_t *devh,
 
 			if (frame_desc) {
 				ctrl->dwMaxVideoFrameSize = frame_desc->dwMaxVideoFrameBufferSize;
+				// frame based(e.g. H.264) frame descriptor does not have dwMaxVideoFrameBufferSize
+				if (!ctrl->dwMaxVideoFrameSize) {
+					ctrl->dwMaxVideoFrameSize = frame_desc->wWidth * frame_desc->wHeight * 2;
+				}
 			}
 		}
 	}
@@ -596,21 +605,141 @@ uvc_error_t uvc_probe_stream_ctrl(uvc_device_handle_t *devh,
 	return UVC_SUCCESS;
 }
 
+#define UVC_CLOCK_DRIFT_PPM 200						// max drift between device clock and host clock to follow
+#define UVC_CLOCK_RESYNC_NS 100000000LL				// restart mapping if device/host elapsed time differ more
+#define UVC_CLOCK_MAX_LATENCY_NS 1000000000LL		// mapped capture time older than this is ignored
+
+static inline int64_t _uvc_monotonic_ns(void) {
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (int64_t)ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+/** @internal
+ * @brief convert device clock ticks into nanoseconds without overflow
+ */
+static inline int64_t _uvc_ticks_to_ns(const int64_t ticks, const uint32_t freq) {
+	if (ticks < 0) return -_uvc_ticks_to_ns(-ticks, freq);
+	return (ticks / freq) * 1000000000LL + ((ticks % freq) * 1000000000LL) / freq;
+}
+
+/** @internal
+ * @brief update mapping from device clock to CLOCK_MONOTONIC with one SCR sample
+ * The host receives SCR always later than the device sampled it by USB latency and jitter,
+ * so the offset(host - device) is estimated as lower envelope of the samples.
+ * The envelope rises by UVC_CLOCK_DRIFT_PPM of elapsed time so that it follows
+ * clock drift in both directions.
+ * must be called with stream cb lock held!
+ * @param stc source time clock of SCR
+ * @param host_ns CLOCK_MONOTONIC time when SCR was received
+ */
+static void _uvc_clock_update(struct uvc_clock_sync *clock, const uint32_t stc, const int64_t host_ns) {
+	if (UNLIKELY(!clock->freq)) return;
+	if (LIKELY(clock->valid)) {
+		const int32_t delta = (int32_t)(stc - clock->last_stc);	// unwrap 32bit counter
+		const int64_t host_elapsed = host_ns - clock->last_host_ns;
+		if (UNLIKELY(delta < 0)) return;	// stale SCR
+		const int64_t device_elapsed = _uvc_ticks_to_ns(delta, clock->freq);
+		if (UNLIKELY(llabs(device_elapsed - host_elapsed) > UVC_CLOCK_RESYNC_NS)) {
+			// device clock was reset or SCR was lost for a long time
+			clock->valid = 0;
+		} else {
+			clock->stc_ext += delta;
+		}
+	}
+	if (UNLIKELY(!clock->valid)) {
+		clock->stc_ext = stc;
+	}
+	clock->last_stc = stc;
+	const int64_t offset = host_ns - _uvc_ticks_to_ns(clock->stc_ext, clock->freq);
+	if (LIKELY(clock->valid)) {
+		const int64_t elapsed = host_ns - clock->last_host_ns;
+		const int64_t envelope = clock->offset_ns + (elapsed > 0 ? (elapsed * UVC_CLOCK_DRIFT_PPM) / 1000000 : 0);
+		clock->offset_ns = offset < envelope ? offset : envelope;
+	} else {
+		clock->offset_ns = offset;
+		clock->valid = 1;
+	}
+	clock->last_host_ns = host_ns;
+}
+
+/** @internal
+ * @brief convert device time(e.g. PTS) into CLOCK_MONOTONIC
+ * must be called with stream cb lock held!
+ * @return 0 if the mapping is not available yet
+ */
+static int64_t _uvc_clock_to_host_ns(const struct uvc_clock_sync *clock, const uint32_t device_time) {
+	if (UNLIKELY(!clock->valid)) return 0;
+	// device_time is near the last SCR, use signed difference to unwrap
+	const int64_t ticks = (int64_t)clock->stc_ext + (int32_t)(device_time - clock->last_stc);
+	return _uvc_ticks_to_ns(ticks, clock->freq) + clock->offset_ns;
+}
+
+/** @internal
+ * @brief make sure outbuf can hold required bytes, grow it when a frame exceeds current size.
+ * outbuf is only accessed from the transfer callback so this does not need cb_mutex
+ * @return 0 if outbuf has enough space, otherwise UVC_ERROR_NO_MEM
+ */
+static uvc_error_t _uvc_ensure_outbuf(uvc_stream_handle_t *strmh, const size_t required) {
+	if (LIKELY(required < strmh->size_buf)) return UVC_SUCCESS;
+	if (UNLIKELY(required >= LIBUVC_XFER_BUF_SIZE)) return UVC_ERROR_NO_MEM;
+	// grow with some margin so that slightly larger frames(e.g. MJPEG) do not realloc every time
+	size_t new_size = strmh->size_buf + (strmh->size_buf >> 1);
+	if (new_size <= required) new_size = required + (required >> 2);
+	if (new_size > LIBUVC_XFER_BUF_SIZE) new_size = LIBUVC_XFER_BUF_SIZE;
+	uint8_t *buf = realloc(strmh->outbuf, new_size);
+	if (UNLIKELY(!buf)) return UVC_ERROR_NO_MEM;
+	MARK("outbuf grown:%zu->%zu", strmh->size_buf, new_size);
+	strmh->outbuf = buf;
+	strmh->size_buf = new_size;
+	if (strmh->outframe) {
+		strmh->outframe->data = buf;
+		strmh->outframe->data_bytes = new_size;
+	}
+	return UVC_SUCCESS;
+}
+
+/** @internal
+ * @brief make sure the frame from uvc_frame_obtain_t has at least data_bytes
+ * @return 0 if the frame can be used as outbuf/holdbuf
+ */
+static uvc_error_t _uvc_prepare_pool_frame(uvc_frame_t *frame, const size_t data_bytes) {
+	if (UNLIKELY(!frame->library_owns_data)) return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY(!frame->data || (frame->data_bytes < data_bytes))) {
+		void *data = realloc(frame->data, data_bytes);
+		if (UNLIKELY(!data)) return UVC_ERROR_NO_MEM;
+		frame->data = data;
+		frame->data_bytes = data_bytes;
+	}
+	return UVC_SUCCESS;
+}
+
 /** @internal
  * @brief Swap the working buffer with the presented buffer and notify consumers
  */
 static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	uint8_t *tmp_buf;
+	size_t tmp_size;
+	uvc_frame_t *tmp_frame;
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
 		/* swap the buffers */
 		tmp_buf = strmh->holdbuf;
+		tmp_size = strmh->size_hold;
+		tmp_frame = strmh->holdframe;
 		strmh->hold_bfh_err = strmh->bfh_err;	// XXX
+		strmh->hold_eof = strmh->got_eof;
 		strmh->hold_bytes = strmh->got_bytes;
 		strmh->holdbuf = strmh->outbuf;
+		strmh->size_hold = strmh->size_buf;
+		strmh->holdframe = strmh->outframe;
 		strmh->outbuf = tmp_buf;
+		strmh->size_buf = tmp_size;
+		strmh->outframe = tmp_frame;
 		strmh->hold_last_scr = strmh->last_scr;
+		strmh->hold_scr_time_ns = strmh->last_scr_time_ns;
+		strmh->hold_time_ns = strmh->xfer_time_ns;
 		strmh->hold_pts = strmh->pts;
 		strmh->hold_seq = strmh->seq;
 
@@ -621,8 +750,10 @@ static void _uvc_swap_buffers(uvc_stream_handle_t *strmh) {
 	strmh->seq++;
 	strmh->got_bytes = 0;
 	strmh->last_scr = 0;
+	strmh->last_scr_time_ns = 0;
 	strmh->pts = 0;
 	strmh->bfh_err = 0;	// XXX
+	strmh->got_eof = 0;
 }
 
 static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
@@ -636,7 +767,7 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 	pthread_mutex_lock(&strmh->cb_mutex);	// XXX crash while calling uvc_stop_streaming
 	{
 		// Mark transfer as deleted.
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < strmh->num_transfer_bufs; i++) {
 			if (strmh->transfers[i] == transfer) {
 				libusb_cancel_transfer(strmh->transfers[i]);	// XXX 20141112追加
 				UVC_DEBUG("Freeing transfer %d (%p)", i, transfer);
@@ -646,7 +777,7 @@ static void _uvc_delete_transfer(struct libusb_transfer *transfer) {
 				break;
 			}
 		}
-		if (UNLIKELY(i == LIBUVC_NUM_TRANSFER_BUFS)) {
+		if (UNLIKELY(i == strmh->num_transfer_bufs)) {
 			UVC_DEBUG("transfer %p not found; not freeing!", transfer);
 		}
 
@@ -757,6 +888,7 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 			// XXX saki some camera may send broken packet or failed to receive all data
 			if (LIKELY(variable_offset + 4 <= header_len)) {
 				strmh->last_scr = DW_TO_INT(payload + variable_offset);
+				strmh->last_scr_time_ns = strmh->xfer_time_ns;
 				variable_offset += 4;
 			} else {
 				MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
@@ -766,7 +898,7 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 	}
 
 	if (LIKELY(data_len > 0)) {
-		if (LIKELY(strmh->got_bytes + data_len < strmh->size_buf)) {
+		if (LIKELY(!_uvc_ensure_outbuf(strmh, strmh->got_bytes + data_len))) {
 			memcpy(strmh->outbuf + strmh->got_bytes, payload + header_len, data_len);
 			strmh->got_bytes += data_len;
 		} else {
@@ -775,6 +907,7 @@ static void _uvc_process_payload(uvc_stream_handle_t *strmh, const uint8_t *payl
 
 		if (header_info & UVC_STREAM_EOF/*(1 << 1)*/) {
 			// The EOF bit is set, so publish the complete frame
+			strmh->got_eof = 1;
 			_uvc_swap_buffers(strmh);
 		}
 	}
@@ -899,6 +1032,7 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 					// XXX saki some camera may send broken packet or failed to receive all data
 					if (LIKELY(header_len >= 10)) {
 						strmh->last_scr = DW_TO_INT(pktbuf + 6);
+						strmh->last_scr_time_ns = strmh->xfer_time_ns;
 					} else {
 						MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 						strmh->last_scr = 0;
@@ -929,15 +1063,18 @@ static inline void _uvc_process_payload_iso(uvc_stream_handle_t *strmh, struct l
 			// from "if (pkt->actual_length - header_len > 0)"
 			if (LIKELY(pkt->actual_length > header_len)) {
 				const size_t odd_bytes = pkt->actual_length - header_len;
-				assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
-				assert(strmh->outbuf);
-				assert(pktbuf);
-				memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-				strmh->got_bytes += odd_bytes;
+				if (LIKELY(!_uvc_ensure_outbuf(strmh, strmh->got_bytes + odd_bytes))) {
+					assert(pktbuf);
+					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+					strmh->got_bytes += odd_bytes;
+				} else {
+					strmh->bfh_err |= UVC_STREAM_ERR;
+				}
 			}
 #ifdef USE_EOF
 			if ((pktbuf[1] & UVC_STREAM_EOF) && strmh->got_bytes != 0) {
 				/* The EOF bit is set, so publish the complete frame */
+				strmh->got_eof = 1;
 				_uvc_swap_buffers(strmh);
 			}
 #endif
@@ -973,6 +1110,8 @@ static void _uvc_stream_callback(struct libusb_transfer *transfer) {
 #endif
 	switch (transfer->status) {
 	case LIBUSB_TRANSFER_COMPLETED:
+		// all packets of this transfer share the completion time, used as host time of SCR and frame
+		strmh->xfer_time_ns = _uvc_monotonic_ns();
 		if (!transfer->num_iso_packets) {
 			/* This is a bulk mode transfer, so it just has one payload transfer */
 			_uvc_process_payload(strmh, transfer->buffer, transfer->actual_length);
@@ -1121,6 +1260,7 @@ static void _uvc_iso_callback(struct libusb_transfer *transfer) {
 						// XXX saki some camera may send broken packet or failed to receive all data
 						if (LIKELY(header_len >= 10)) {
 							strmh->last_scr = DW_TO_INT(pktbuf + 6);
+							strmh->last_scr_time_ns = strmh->xfer_time_ns;
 						} else {
 							MARK("bogus packet: header info has UVC_STREAM_SCR, but no data");
 							strmh->last_scr = 0;
@@ -1151,11 +1291,13 @@ static void _uvc_iso_callback(struct libusb_transfer *transfer) {
 				// from "if (pkt->actual_length - header_len > 0)"
 				if (LIKELY(pkt->actual_length > header_len)) {
 					const size_t odd_bytes = pkt->actual_length - header_len;
-					assert(strmh->got_bytes + odd_bytes < strmh->size_buf);
-					assert(strmh->outbuf);
-					assert(pktbuf);
-					memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
-					strmh->got_bytes += odd_bytes;
+					if (LIKELY(!_uvc_ensure_outbuf(strmh, strmh->got_bytes + odd_bytes))) {
+						assert(pktbuf);
+						memcpy(strmh->outbuf + strmh->got_bytes, pktbuf + header_len, odd_bytes);
+						strmh->got_bytes += odd_bytes;
+					} else {
+						strmh->bfh_err |= UVC_STREAM_ERR;
+					}
 				}
 #ifdef USE_EOF
 				if ((pktbuf[1] & STREAM_HEADER_BFH_EOF) && strmh->got_bytes != 0) {
@@ -1243,6 +1385,40 @@ uvc_error_t uvc_start_streaming_bandwidth(uvc_device_handle_t *devh,
 	return UVC_SUCCESS;
 }
 
+/** Begin streaming video from the camera into the frames that the user supplies.
+ * @ingroup streaming
+ *
+ * same as uvc_start_streaming_bandwidth except that the payloads are assembled into
+ * the frames that obtain returns and the callback takes ownership of the frame,
+ * see uvc_stream_set_frame_pool. frames with payload errors are also passed
+ * with UVC_FRAME_FLAG_ERR in frame_flags, the callback should check it.
+ * @param obtain function to supply frames, called on the callback thread
+ */
+uvc_error_t uvc_start_streaming_pooled(uvc_device_handle_t *devh,
+		uvc_stream_ctrl_t *ctrl, uvc_frame_callback_t *cb, uvc_frame_obtain_t *obtain,
+		void *user_ptr, float bandwidth_factor, uint8_t flags) {
+	uvc_error_t ret;
+	uvc_stream_handle_t *strmh;
+
+	if (UNLIKELY(!cb || !obtain))
+		return UVC_ERROR_INVALID_PARAM;
+
+	ret = uvc_stream_open_ctrl(devh, &strmh, ctrl);
+	if (UNLIKELY(ret != UVC_SUCCESS))
+		return ret;
+
+	ret = uvc_stream_set_frame_pool(strmh, obtain, user_ptr);
+	if (LIKELY(ret == UVC_SUCCESS)) {
+		ret = uvc_stream_start_bandwidth(strmh, cb, user_ptr, bandwidth_factor, flags);
+	}
+	if (UNLIKELY(ret != UVC_SUCCESS)) {
+		uvc_stream_close(strmh);
+		return ret;
+	}
+
+	return UVC_SUCCESS;
+}
+
 /** Begin streaming video from the camera into the callback function.
  * @ingroup streaming
  *
@@ -1333,10 +1509,21 @@ uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh,
 
 	// Set up the streaming status and data space
 	strmh->running = 0;
-	/** @todo take only what we need */
-	strmh->outbuf = malloc(LIBUVC_XFER_BUF_SIZE);
-	strmh->holdbuf = malloc(LIBUVC_XFER_BUF_SIZE);
-	strmh->size_buf = LIBUVC_XFER_BUF_SIZE;	// xxx for boundary check
+	strmh->num_transfer_bufs = devh->num_transfer_bufs > 0
+		? devh->num_transfer_bufs : LIBUVC_NUM_TRANSFER_BUFS;
+	// XXX allocate only what the negotiated format needs, outbuf grows in _uvc_ensure_outbuf
+	// when the device sends larger frame than dwMaxVideoFrameSize(some MJPEG cameras do)
+	size_t buf_size = strmh->cur_ctrl.dwMaxVideoFrameSize + (strmh->cur_ctrl.dwMaxVideoFrameSize >> 3);
+	if (buf_size < LIBUVC_XFER_BUF_MIN_SIZE) buf_size = LIBUVC_XFER_BUF_MIN_SIZE;
+	if (buf_size > LIBUVC_XFER_BUF_SIZE) buf_size = LIBUVC_XFER_BUF_SIZE;
+	strmh->outbuf = malloc(buf_size);
+	strmh->holdbuf = malloc(buf_size);
+	if (UNLIKELY(!strmh->outbuf || !strmh->holdbuf)) {
+		uvc_release_if(strmh->devh, strmh->stream_if->bInterfaceNumber);
+		ret = UVC_ERROR_NO_MEM;
+		goto fail;
+	}
+	strmh->size_buf = strmh->size_hold = buf_size;	// xxx for boundary check
 
 	pthread_mutex_init(&strmh->cb_mutex, NULL);
 	pthread_cond_init(&strmh->cb_cond, NULL);
@@ -1349,12 +1536,91 @@ uvc_error_t uvc_stream_open_ctrl(uvc_device_handle_t *devh,
 	return UVC_SUCCESS;
 
 fail:
-	if (strmh)
+	if (strmh) {
+		free(strmh->outbuf);
+		free(strmh->holdbuf);
 		free(strmh);
+	}
 	UVC_EXIT(ret);
 	return ret;
 }
 
+/** @brief set the number of transfer buffers for the streams that will be opened on the device
+ * @ingroup streaming
+ *
+ * more buffers tolerate longer scheduling delay of the event thread but use more memory
+ * @param devh UVC device
+ * @param num [1, LIBUVC_MAX_TRANSFER_BUFS], 0 to use the default(LIBUVC_NUM_TRANSFER_BUFS)
+ */
+uvc_error_t uvc_set_num_transfer_bufs(uvc_device_handle_t *devh, int num) {
+	if (UNLIKELY(!devh || (num < 0) || (num > LIBUVC_MAX_TRANSFER_BUFS)))
+		return UVC_ERROR_INVALID_PARAM;
+	devh->num_transfer_bufs = num;
+	return UVC_SUCCESS;
+}
+
+/** @brief set the number of transfer buffers of the stream, takes effect on next uvc_stream_start
+ * @ingroup streaming
+ *
+ * @param strmh UVC stream
+ * @param num [1, LIBUVC_MAX_TRANSFER_BUFS], 0 to use the default(LIBUVC_NUM_TRANSFER_BUFS)
+ * @return UVC_ERROR_BUSY if the stream is running
+ */
+uvc_error_t uvc_stream_set_num_transfer_bufs(uvc_stream_handle_t *strmh, int num) {
+	if (UNLIKELY(!strmh || (num < 0) || (num > LIBUVC_MAX_TRANSFER_BUFS)))
+		return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY(strmh->running))
+		return UVC_ERROR_BUSY;
+	strmh->num_transfer_bufs = num ? num : LIBUVC_NUM_TRANSFER_BUFS;
+	return UVC_SUCCESS;
+}
+
+/** @brief assemble payloads into the frames that obtain supplies instead of internal buffers
+ * @ingroup streaming
+ *
+ * the frame that holds a completed frame is passed to the callback as is(without copy)
+ * and the callback takes its ownership, it should be freed/recycled by the user.
+ * obtain is called on the callback thread to replace the frame that was passed.
+ * uvc_stream_get_frame still copies the frame.
+ * @param strmh UVC stream, must not be running
+ * @param obtain function to supply frames
+ * @param user_ptr passed to obtain, this should be same as the one for uvc_stream_start
+ * @return UVC_ERROR_BUSY if the stream is running
+ */
+uvc_error_t uvc_stream_set_frame_pool(uvc_stream_handle_t *strmh, uvc_frame_obtain_t *obtain, void *user_ptr) {
+	uvc_frame_t *outframe, *holdframe;
+
+	if (UNLIKELY(!strmh || !obtain))
+		return UVC_ERROR_INVALID_PARAM;
+	if (UNLIKELY(strmh->running))
+		return UVC_ERROR_BUSY;
+	strmh->user_ptr = user_ptr;
+	if (strmh->outframe)	// already set, just change the function
+		goto done;
+
+	outframe = obtain(strmh->size_buf, user_ptr);
+	holdframe = obtain(strmh->size_hold, user_ptr);
+	if (UNLIKELY(!outframe || !holdframe
+		|| _uvc_prepare_pool_frame(outframe, strmh->size_buf)
+		|| _uvc_prepare_pool_frame(holdframe, strmh->size_hold))) {
+
+		if (outframe) uvc_free_frame(outframe);
+		if (holdframe) uvc_free_frame(holdframe);
+		return UVC_ERROR_NO_MEM;
+	}
+	free(strmh->outbuf);
+	free(strmh->holdbuf);
+	strmh->outframe = outframe;
+	strmh->outbuf = outframe->data;
+	strmh->size_buf = outframe->data_bytes;
+	strmh->holdframe = holdframe;
+	strmh->holdbuf = holdframe->data;
+	strmh->size_hold = holdframe->data_bytes;
+done:
+	strmh->frame_obtain = obtain;
+	return UVC_SUCCESS;
+}
+
 /** Begin streaming video from the stream into the callback function.
  * @ingroup streaming
  *
@@ -1406,7 +1672,12 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	strmh->fid = 0;
 	strmh->pts = 0;
 	strmh->last_scr = 0;
+	strmh->last_scr_time_ns = 0;
+	strmh->xfer_time_ns = 0;
 	strmh->bfh_err = 0;	// XXX
+	strmh->got_eof = 0;
+	memset(&strmh->clock, 0, sizeof(strmh->clock));
+	strmh->clock.freq = ctrl->dwClockFrequency;
 
 	frame_desc = uvc_find_frame_desc_stream(strmh, ctrl->bFormatIndex, ctrl->bFrameIndex);
 	if (UNLIKELY(!frame_desc)) {
@@ -1422,7 +1693,9 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		LOGE("unlnown frame format");
 		goto fail;
 	}
-	const uint32_t dwMaxVideoFrameSize = ctrl->dwMaxVideoFrameSize <= frame_desc->dwMaxVideoFrameBufferSize
+	// dwMaxVideoFrameBufferSize is zero for frame based formats
+	const uint32_t dwMaxVideoFrameSize = (!frame_desc->dwMaxVideoFrameBufferSize
+		|| (ctrl->dwMaxVideoFrameSize <= frame_desc->dwMaxVideoFrameBufferSize))
 		? ctrl->dwMaxVideoFrameSize : frame_desc->dwMaxVideoFrameBufferSize;
 
 	// Get the interface that provides the chosen format and frame configuration
@@ -1547,7 +1820,7 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 
 		/* Set up the transfers */
 		MARK("Set up the transfers");
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
+		for (transfer_id = 0; transfer_id < strmh->num_transfer_bufs; ++transfer_id) {
 			transfer = libusb_alloc_transfer(packets_per_transfer);
 			strmh->transfers[transfer_id] = transfer;
 			strmh->transfer_bufs[transfer_id] = malloc(total_transfer_size);
@@ -1563,7 +1836,7 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 	} else {
 		MARK("bulk transfer mode");
 		/** prepare for bulk transfer */
-		for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; ++transfer_id) {
+		for (transfer_id = 0; transfer_id < strmh->num_transfer_bufs; ++transfer_id) {
 			transfer = libusb_alloc_transfer(0);
 			strmh->transfers[transfer_id] = transfer;
 			strmh->transfer_bufs[transfer_id] = malloc(strmh->cur_ctrl.dwMaxPayloadTransferSize);
@@ -1586,7 +1859,7 @@ uvc_error_t uvc_stream_start_bandwidth(uvc_stream_handle_t *strmh,
 		pthread_create(&strmh->cb_thread, NULL, _uvc_user_caller, (void*) strmh);
 	}
 	MARK("submit transfers");
-	for (transfer_id = 0; transfer_id < LIBUVC_NUM_TRANSFER_BUFS; transfer_id++) {
+	for (transfer_id = 0; transfer_id < strmh->num_transfer_bufs; transfer_id++) {
 		ret = libusb_submit_transfer(strmh->transfers[transfer_id]);
 		if (UNLIKELY(ret != UVC_SUCCESS)) {
 			UVC_DEBUG("libusb_submit_transfer failed");
@@ -1633,8 +1906,20 @@ static void *_uvc_user_caller(void *arg) {
 	uvc_stream_handle_t *strmh = (uvc_stream_handle_t *) arg;
 
 	uint32_t last_seq = 0;
+	uvc_frame_t *frame, *spare = NULL;
 
 	for (; 1 ;) {
+		if (strmh->holdframe && !spare) {
+			// get the frame that replaces the hold buffer before locking,
+			// the hold buffer size is only a hint so reading it without lock is fine
+			const size_t data_bytes = strmh->size_hold;
+			spare = strmh->frame_obtain(data_bytes, strmh->user_ptr);
+			if (UNLIKELY(spare && _uvc_prepare_pool_frame(spare, data_bytes))) {
+				uvc_free_frame(spare);
+				spare = NULL;
+			}
+		}
+		frame = NULL;
 		pthread_mutex_lock(&strmh->cb_mutex);
 		{
 			for (; strmh->running && (last_seq == strmh->hold_seq) ;) {
@@ -1647,15 +1932,32 @@ static void *_uvc_user_caller(void *arg) {
 			}
 
 			last_seq = strmh->hold_seq;
-			if (LIKELY(!strmh->hold_bfh_err))	// XXX
+			if (strmh->holdframe) {
+				// hand the hold buffer itself to the user, drop the frame if there is no replacement.
+				// frames with payload errors are passed with UVC_FRAME_FLAG_ERR so that the user can count them
+				if (LIKELY(spare)) {
+					frame = strmh->holdframe;
+					_uvc_populate_frame_info(strmh, frame);
+					strmh->holdframe = spare;
+					strmh->holdbuf = spare->data;
+					strmh->size_hold = spare->data_bytes;
+					strmh->hold_bytes = 0;
+					spare = NULL;
+				}
+			} else if (LIKELY(!strmh->hold_bfh_err)) {	// XXX
 				_uvc_populate_frame(strmh);
+				frame = &strmh->frame;
+			}
 		}
 		pthread_mutex_unlock(&strmh->cb_mutex);
 
-		if (LIKELY(!strmh->hold_bfh_err))	// XXX
-			strmh->user_cb(&strmh->frame, strmh->user_ptr);	// call user callback function
+		if (LIKELY(frame))
+			strmh->user_cb(frame, strmh->user_ptr);	// call user callback function
 	}
 
+	if (spare)
+		uvc_free_frame(spare);
+
 	return NULL; // return value ignored
 }
 
@@ -1664,8 +1966,23 @@ static void *_uvc_user_caller(void *arg) {
  * must be called with stream cb lock held!
  */
 void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
-	size_t alloc_size = strmh->cur_ctrl.dwMaxVideoFrameSize;
 	uvc_frame_t *frame = &strmh->frame;
+
+	_uvc_populate_frame_info(strmh, frame);
+
+	/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
+	if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
+		frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
+		frame->data_bytes = strmh->hold_bytes;
+	}
+	memcpy(frame->data, strmh->holdbuf, strmh->hold_bytes/*frame->data_bytes*/);	// XXX
+}
+
+/** @internal
+ * @brief Populate the fields except the image data of the frame
+ * must be called with stream cb lock held!
+ */
+static void _uvc_populate_frame_info(uvc_stream_handle_t *strmh, uvc_frame_t *frame) {
 	uvc_frame_desc_t *frame_desc;
 
 	/** @todo this stuff that hits the main config cache should really happen
@@ -1682,6 +1999,8 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 	frame->height = frame_desc->wHeight;
 	// XXX set actual_bytes to zero when erro bits is on
 	frame->actual_bytes = LIKELY(!strmh->hold_bfh_err) ? strmh->hold_bytes : 0;
+	frame->frame_flags = (strmh->hold_eof ? UVC_FRAME_FLAG_EOF : 0)
+		| (strmh->hold_bfh_err ? UVC_FRAME_FLAG_ERR : 0);
 
 	switch (frame->frame_format) {
 	case UVC_FRAME_FORMAT_YUYV:
@@ -1695,14 +2014,23 @@ void _uvc_populate_frame(uvc_stream_handle_t *strmh) {
 		break;
 	}
 
-	/* copy the image data from the hold buffer to the frame (unnecessary extra buf?) */
-	if (UNLIKELY(frame->data_bytes < strmh->hold_bytes)) {
-		frame->data = realloc(frame->data, strmh->hold_bytes);	// TODO add error handling when failed realloc
-		frame->data_bytes = strmh->hold_bytes;
+	frame->sequence = strmh->hold_seq;
+	frame->pts = strmh->hold_pts;
+	frame->scr = strmh->hold_last_scr;
+	if (strmh->hold_last_scr && strmh->hold_scr_time_ns) {
+		_uvc_clock_update(&strmh->clock, strmh->hold_last_scr, strmh->hold_scr_time_ns);
 	}
-	memcpy(frame->data, strmh->holdbuf, strmh->hold_bytes/*frame->data_bytes*/);	// XXX
+	int64_t capture_ns = strmh->hold_pts ? _uvc_clock_to_host_ns(&strmh->clock, strmh->hold_pts) : 0;
+	// PTS is the time when the device started capturing so it should be a little before the arrival,
+	// some devices send PTS/SCR in a different clock, fall back to arrival time then
+	if (!capture_ns || (capture_ns > strmh->hold_time_ns)
+		|| (capture_ns < strmh->hold_time_ns - UVC_CLOCK_MAX_LATENCY_NS)) {
 
-	/** @todo set the frame time */
+		capture_ns = strmh->hold_time_ns;
+	}
+	frame->capture_time_ns = capture_ns;
+	frame->capture_time.tv_sec = capture_ns / 1000000000LL;
+	frame->capture_time.tv_usec = (capture_ns % 1000000000LL) / 1000;
 }
 
 /** Poll for a frame
@@ -1811,7 +2139,7 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 	pthread_mutex_lock(&strmh->cb_mutex);
 	{
-		for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+		for (i = 0; i < strmh->num_transfer_bufs; i++) {
 			if (strmh->transfers[i]) {
 				int res = libusb_cancel_transfer(strmh->transfers[i]);
 				if ((res < 0) && (res != LIBUSB_ERROR_NOT_FOUND)) {
@@ -1829,11 +2157,11 @@ uvc_error_t uvc_stream_stop(uvc_stream_handle_t *strmh) {
 
 		/* Wait for transfers to complete/cancel */
 		for (; 1 ;) {
-			for (i = 0; i < LIBUVC_NUM_TRANSFER_BUFS; i++) {
+			for (i = 0; i < strmh->num_transfer_bufs; i++) {
 				if (strmh->transfers[i] != NULL)
 					break;
 			}
-			if (i == LIBUVC_NUM_TRANSFER_BUFS)
+			if (i == strmh->num_transfer_bufs)
 				break;
 			pthread_cond_wait(&strmh->cb_cond, &strmh->cb_mutex);
 		}
@@ -1874,6 +2202,17 @@ void uvc_stream_close(uvc_stream_handle_t *strmh) {
 		strmh->frame.data = NULL;
 	}
 
+	if (strmh->outframe) {
+		// outbuf/holdbuf are owned by the frames from uvc_frame_obtain_t
+		uvc_free_frame(strmh->outframe);
+		strmh->outframe = NULL;
+		strmh->outbuf = NULL;
+	}
+	if (strmh->holdframe) {
+		uvc_free_frame(strmh->holdframe);
+		strmh->holdframe = NULL;
+		strmh->holdbuf = NULL;
+	}
 	if (strmh->outbuf) {
 		free(strmh->outbuf);
 		strmh->outbuf = NULL;
@@ -0,0 +1,115 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * stage that passes each frame to all branches, each branch has its own queue,
+ * so a slow branch only drops its own frames. up to 8 branches can be added.
+ */
+public class DistributePipeline extends IPipeline {
+	private final List<IPipeline> mPipelines = new ArrayList<IPipeline>();
+
+	/**
+	 * @param maxFrames max number of frames that this stage can hold
+	 */
+	public DistributePipeline(final int maxFrames) {
+		super(PIPELINE_TYPE_DISTRIBUTE);
+		mNativePtr = nativeCreate(maxFrames);
+	}
+
+	@Override
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			// remove links before the branches can be released
+			for (final IPipeline pipeline: mPipelines) {
+				nativeRemovePipeline(mNativePtr, pipeline);
+			}
+		}
+		mPipelines.clear();
+		super.release();
+	}
+
+	/**
+	 * start this stage, all branches and following stages
+	 */
+	@Override
+	public synchronized int start() {
+		for (final IPipeline pipeline: mPipelines) {
+			pipeline.start();
+		}
+		return super.start();
+	}
+
+	/**
+	 * stop this stage, all branches and following stages
+	 */
+	@Override
+	public synchronized int stop() {
+		final int result = super.stop();
+		for (final IPipeline pipeline: mPipelines) {
+			pipeline.stop();
+		}
+		return result;
+	}
+
+	/**
+	 * add branch
+	 * @param pipeline
+	 * @return 0 if success, negative value if too many branches
+	 */
+	public synchronized int addPipeline(final IPipeline pipeline) {
+		int result = -1;
+		if ((mNativePtr != 0) && (pipeline != null) && !mPipelines.contains(pipeline)) {
+			result = nativeAddPipeline(mNativePtr, pipeline);
+			if (result == 0) {
+				mPipelines.add(pipeline);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * remove branch, the removed branch can be released after this returns
+	 * @param pipeline
+	 * @return 0 if success
+	 */
+	public synchronized int removePipeline(final IPipeline pipeline) {
+		int result = -1;
+		if ((mNativePtr != 0) && mPipelines.remove(pipeline)) {
+			result = nativeRemovePipeline(mNativePtr, pipeline);
+		}
+		return result;
+	}
+
+	public synchronized List<IPipeline> getPipelines() {
+		return new ArrayList<IPipeline>(mPipelines);
+	}
+
+	private static final native long nativeCreate(final int maxFrames);
+	private static final native int nativeAddPipeline(final long id_pipeline, final IPipeline pipeline);
+	private static final native int nativeRemovePipeline(final long id_pipeline, final IPipeline pipeline);
+}
@@ -0,0 +1,177 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * read frames that PublisherPipeline in other process publishes through shared memory.
+ * #acquireFrame returns the latest frame without copying it, any number of subscribers can
+ * read same frame at full camera rate. the publisher never waits for subscribers, so a frame that
+ * is kept while more than slots - 1 newer frames are published is overwritten,
+ * call #isValid after using it to know whether it was intact, or use #readFrame to copy it.
+ * an instance should be used from one thread.
+ */
+public class FrameSubscriber {
+	public static final int ERROR_NO_FRAME = -1;
+	public static final int ERROR_OVERWRITTEN = -2;
+	public static final int ERROR_NO_SPACE = -3;
+	public static final int ERROR_CLOSED = -4;
+
+	public static final int INFO_FRAME_NUMBER = 0;
+	public static final int INFO_PTS_NS = 1;
+	public static final int INFO_SEQUENCE = 2;
+	public static final int INFO_BYTES = 3;
+	public static final int INFO_WIDTH = 4;
+	public static final int INFO_HEIGHT = 5;
+	public static final int INFO_FORMAT = 6;
+	public static final int INFO_SLOT = 7;
+	public static final int INFO_TOKEN = 8;
+	public static final int INFO_LENGTH = 9;
+
+	private static boolean isLoaded;
+	static {
+		if (!isLoaded) {
+			System.loadLibrary("jpeg-turbo");
+			System.loadLibrary("usb100");
+			System.loadLibrary("uvc");
+			System.loadLibrary("UVCCamera");
+			isLoaded = true;
+		}
+	}
+
+	private long mNativePtr;
+	private ByteBuffer[] mSlots;
+
+	/**
+	 * map the shared memory
+	 * @param fd file descriptor that came from PublisherPipeline#getSubscriberFd,
+	 * 			the caller still owns it and can close it after this returns
+	 * @throws IOException fd is not the shared memory of PublisherPipeline
+	 */
+	public FrameSubscriber(final ParcelFileDescriptor fd) throws IOException {
+		mNativePtr = nativeAttach(fd.getFd());
+		if (mNativePtr == 0) {
+			throw new IOException("failed to map shared memory");
+		}
+		// buffers are created once because they wrap the mapping of each slot
+		final int n = nativeGetSlots(mNativePtr);
+		mSlots = new ByteBuffer[n];
+		for (int i = 0; i < n; i++) {
+			mSlots[i] = nativeGetSlotBuffer(mNativePtr, i).asReadOnlyBuffer();
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * unmap the shared memory, ByteBuffers that #acquireFrame returned must not be used after this
+	 */
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDetach(mNativePtr);
+			mNativePtr = 0;
+			mSlots = null;
+		}
+	}
+
+	/**
+	 * wait until a frame newer than the one acquired last is published
+	 * @param timeoutMs 0 to return immediately
+	 * #release from other thread waits until this returns, so keep timeoutMs short
+	 * @return 0 if a new frame is available, ERROR_NO_FRAME on timeout, ERROR_CLOSED if the publisher was released
+	 */
+	public synchronized int waitFrame(final int timeoutMs) {
+		return mNativePtr != 0 ? nativeWaitFrame(mNativePtr, timeoutMs) : ERROR_CLOSED;
+	}
+
+	/**
+	 * get the latest frame without copying it. the returned buffer is read only and shared between calls,
+	 * position is 0 and limit is the size of the frame. check #isValid after using it
+	 * @param info array of at least INFO_LENGTH elements that receives INFO_XXX of the frame
+	 * @return null if no frame was published yet or the publisher kept overwriting it
+	 */
+	public synchronized ByteBuffer acquireFrame(final long[] info) {
+		if ((mNativePtr == 0) || (nativeAcquire(mNativePtr, info) != 0)) {
+			return null;
+		}
+		final ByteBuffer buffer = mSlots[(int)info[INFO_SLOT]];
+		buffer.clear();
+		buffer.limit((int)info[INFO_BYTES]);
+		return buffer;
+	}
+
+	/**
+	 * check whether the frame that #acquireFrame returned was not overwritten
+	 * @param info the info array that #acquireFrame set
+	 * @return true if everything that was read from the frame before this call is intact
+	 */
+	public synchronized boolean isValid(final long[] info) {
+		return (mNativePtr != 0) && nativeValidate(mNativePtr, (int)info[INFO_SLOT], (int)info[INFO_TOKEN]);
+	}
+
+	/**
+	 * copy the latest frame into direct ByteBuffer, position is set to 0 and limit to the size of the frame
+	 * @param info null or array of at least INFO_LENGTH elements that receives INFO_XXX of the frame,
+	 * 			this is set also for ERROR_NO_SPACE so that the caller can retry with a larger buffer
+	 * @return bytes of the frame or ERROR_XXX
+	 */
+	public synchronized int readFrame(final ByteBuffer buffer, final long[] info) {
+		if (mNativePtr == 0) return ERROR_CLOSED;
+		final int result = nativeRead(mNativePtr, buffer, info);
+		if (result >= 0) {
+			buffer.clear();
+			buffer.limit(result);
+		}
+		return result;
+	}
+
+	/**
+	 * get counters of this subscriber as JSON string, received/missed/overwritten are for this subscriber
+	 * @return null if already released
+	 */
+	public synchronized String getStats() {
+		return mNativePtr != 0 ? nativeGetSubscriberStats(mNativePtr) : null;
+	}
+
+	private static final native long nativeAttach(final int fd);
+	private static final native void nativeDetach(final long id_ring);
+	private static final native int nativeGetSlots(final long id_ring);
+	private static final native ByteBuffer nativeGetSlotBuffer(final long id_ring, final int slot);
+	private static final native int nativeWaitFrame(final long id_ring, final int timeoutMs);
+	private static final native int nativeAcquire(final long id_ring, final long[] info);
+	private static final native boolean nativeValidate(final long id_ring, final int slot, final int token);
+	private static final native int nativeRead(final long id_ring, final ByteBuffer buffer, final long[] info);
+	private static final native String nativeGetSubscriberStats(final long id_ring);
+}
@@ -42,4 +42,16 @@ public interface IFrameCallback {
 	 * @param frame this is direct ByteBuffer from JNI layer and you should handle it's byte order and limitation.
 	 */
 	public void onFrame(ByteBuffer frame);
+
+	/**
+	 * This method is what native library actually calls, override this instead of #onFrame(ByteBuffer)
+	 * if you need the capture time of the frame.
+	 * @param frame same as #onFrame(ByteBuffer)
+	 * @param timestampNs capture time in same clock as System#nanoTime(CLOCK_MONOTONIC),
+	 * PTS of the camera that is mapped with its SCR if the camera sends them,
+	 * otherwise the time when the frame was received.
+	 */
+	public default void onFrame(ByteBuffer frame, long timestampNs) {
+		onFrame(frame);
+	}
 }
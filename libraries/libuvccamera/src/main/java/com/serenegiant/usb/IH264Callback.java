@@ -0,0 +1,52 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Callback interface for UVCCamera class
+ * Receives H.264 that the camera encoded by itself when the preview is started with
+ * UVCCamera#FRAME_FORMAT_H264, you can use this callback interface with UVCCamera#setH264Callback.
+ * Frames are never decoded in this mode, so preview surface, capture surface and IFrameCallback get nothing.
+ * Both methods are called from native library via JNI on the preview thread, in stream order.
+ * ByteBuffers wrap native memory directly and they are valid only until the method returns
+ * same as output buffers of MediaCodec, copy them if you need them later.
+ */
+public interface IH264Callback {
+	/**
+	 * called before the first access unit and whenever the camera changed SPS/PPS
+	 * @param sps SPS with 4 bytes start code, same as csd-0 of MediaCodec
+	 * @param pps PPS with 4 bytes start code, same as csd-1 of MediaCodec
+	 */
+	public void onSpsPps(ByteBuffer sps, ByteBuffer pps);
+
+	/**
+	 * called for each access unit. The first one is always a key frame and access units are skipped
+	 * until next key frame when frames were lost on USB or in native code.
+	 * @param frame NAL units(Annex B) of one access unit without SPS/PPS/AUD
+	 * @param timestampNs capture time in same clock as System#nanoTime, see IFrameCallback#onFrame(ByteBuffer, long)
+	 * @param keyFrame true if the access unit has IDR slice
+	 */
+	public void onAccessUnit(ByteBuffer frame, long timestampNs, boolean keyFrame);
+}
@@ -0,0 +1,179 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * base class of native frame pipeline stages.
+ * each stage has its own bounded queue and thread, decoded frames from the camera are shared
+ * with the other stages by reference without copying, and the oldest one is dropped when the stage
+ * can not catch up(see #setQueuePolicy), so a slow stage never blocks the camera nor the other stages. stages are chained with #setPipeline and the first stage
+ * is set to the camera with UVCCamera#setPipeline.
+ * the stage that is set to the camera or to other stage should not be released
+ * until it is removed from them.
+ */
+public abstract class IPipeline {
+	public static final int PIPELINE_TYPE_SIMPLE_BUFFERED = 0;
+	public static final int PIPELINE_TYPE_TIME_SHIFT = 10;
+	public static final int PIPELINE_TYPE_CALLBACK = 200;
+	public static final int PIPELINE_TYPE_CONVERT = 300;
+	public static final int PIPELINE_TYPE_PREVIEW = 400;
+	public static final int PIPELINE_TYPE_PUBLISHER = 500;
+	public static final int PIPELINE_TYPE_DISTRIBUTE = 600;
+
+	public static final int STATE_UNINITIALIZED = 0;
+	public static final int STATE_RELEASING = 10;
+	public static final int STATE_INITIALIZED = 20;
+	public static final int STATE_STARTING = 30;
+	public static final int STATE_RUNNING = 40;
+	public static final int STATE_STOPPING = 50;
+
+	/** keep latest frames, drop the oldest frame in the queue when it is full */
+	public static final int DROP_OLDEST = 0;
+	/** keep queued frames, drop the incoming frame when the queue is full */
+	public static final int DROP_NEWEST = 1;
+
+	private static boolean isLoaded;
+	static {
+		if (!isLoaded) {
+			System.loadLibrary("jpeg-turbo");
+			System.loadLibrary("usb100");
+			System.loadLibrary("uvc");
+			System.loadLibrary("UVCCamera");
+			isLoaded = true;
+		}
+	}
+
+	// these fields from here are accessed from native code and do not change name and remove
+	protected long mNativePtr;
+	protected final int mType;
+	// until here
+	private IPipeline mNext;
+
+	protected IPipeline(final int type) {
+		mType = type;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	/**
+	 * stop and release native resources, this does not release next pipeline
+	 */
+	public synchronized void release() {
+		if (mNativePtr != 0) {
+			nativeDestroy();
+		}
+		mNext = null;
+	}
+
+	/**
+	 * start this stage and following stages
+	 * @return 0 if success
+	 */
+	public synchronized int start() {
+		if (mNativePtr == 0) return -1;
+		// following stages should be ready before frames come
+		if (mNext != null) {
+			mNext.start();
+		}
+		return nativeStart();
+	}
+
+	/**
+	 * stop this stage and following stages
+	 * @return 0 if success
+	 */
+	public synchronized int stop() {
+		if (mNativePtr == 0) return -1;
+		final int result = nativeStop();
+		if (mNext != null) {
+			mNext.stop();
+		}
+		return result;
+	}
+
+	/**
+	 * set next stage that receives frames this stage processed
+	 * @param next null to remove
+	 */
+	public synchronized void setPipeline(final IPipeline next) {
+		if (mNativePtr != 0) {
+			nativeSetPipeline(next);
+			mNext = next;
+		}
+	}
+
+	public synchronized IPipeline getPipeline() {
+		return mNext;
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * @return one of STATE_XXX
+	 */
+	public synchronized int getState() {
+		return mNativePtr != 0 ? nativeGetState() : STATE_UNINITIALIZED;
+	}
+
+	/**
+	 * get counters of this stage as JSON string like
+	 * {"type":"preview","state":40,"queued":300,"dropped_full":2,"dropped_no_buffer":0,"dropped_paced":0,
+	 * "handled":298,"errors":0,"fps":29.8,"avg_us":3100,"max_us":9000,"queue":0,"queue_max":4,"queue_high_water":4}
+	 * dropped_full is frames dropped because this stage is slower than the stage before it.
+	 * counters are reset on every #start
+	 * @return null if already released
+	 */
+	public synchronized String getStats() {
+		return mNativePtr != 0 ? nativeGetStats() : null;
+	}
+
+	/**
+	 * set what this stage drops when it can not catch up and the max frame rate it accepts,
+	 * frames over the rate are dropped before queueing(counted as dropped_paced in #getStats).
+	 * other stages and the camera keep their own rate.
+	 * @param policy DROP_OLDEST or DROP_NEWEST
+	 * @param maxFps 0 to accept all frames
+	 * @return 0 if success, negative value if this stage does not have queue
+	 */
+	public synchronized int setQueuePolicy(final int policy, final float maxFps) {
+		return mNativePtr != 0 ? nativeSetQueuePolicy(policy, maxFps) : -1;
+	}
+
+	private final native void nativeDestroy();
+	private final native int nativeGetState();
+	private final native int nativeSetPipeline(final IPipeline next);
+	private final native int nativeStart();
+	private final native int nativeStop();
+	private final native String nativeGetStats();
+	private final native int nativeSetQueuePolicy(final int policy, final float maxFps);
+}
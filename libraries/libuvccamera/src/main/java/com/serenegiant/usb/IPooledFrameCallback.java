@@ -0,0 +1,53 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.nio.ByteBuffer;
+/**
+ * Callback interface for UVCCamera class
+ * Same as IFrameCallback but the ByteBuffer can be kept after #onFrame returns,
+ * you can use this callback interface with UVCCamera#setPooledFrameCallback
+ */
+public interface IPooledFrameCallback {
+	/**
+	 * This method is called from native library via JNI on the same thread as UVCCamera#startCapture.
+	 * The ByteBuffer is one of the buffers that were allocated with UVCCamera#setPooledFrameCallback
+	 * and it is not overwritten until you call UVCCamera#releaseFrame with the slot.
+	 * Frames are dropped while all buffers are held, so release them as soon as possible.
+	 * The ByteBuffer stays valid until you release it even if the callback is changed or the camera is destroyed,
+	 * don't access it after calling UVCCamera#releaseFrame.
+	 * @param frame this is direct ByteBuffer from JNI layer and you should handle it's byte order and limitation.
+	 * @param slot opaque handle of the buffer to pass to UVCCamera#releaseFrame, this is not an index
+	 */
+	public void onFrame(ByteBuffer frame, int slot);
+
+	/**
+	 * This method is what native library actually calls, override this instead of #onFrame(ByteBuffer, int)
+	 * if you need the capture time of the frame.
+	 * @param timestampNs capture time in same clock as System#nanoTime, see IFrameCallback#onFrame(ByteBuffer, long)
+	 */
+	public default void onFrame(ByteBuffer frame, int slot, long timestampNs) {
+		onFrame(frame, slot);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+
+/**
+ * stage that publishes frames to other processes through shared memory(memfd, or ashmem on old Android).
+ * send the file descriptor from #getSubscriberFd to other process through Binder, e.g. as a field of
+ * Parcelable or an argument of AIDL method, and read frames there with FrameSubscriber.
+ * publishing never waits for subscribers, a subscriber that is slower than the camera skips to the latest frame.
+ * frames that are larger than maxFrameBytes are not published.
+ */
+public class PublisherPipeline extends IPipeline {
+	public static final int DEFAULT_SLOTS = 4;
+
+	/**
+	 * @param name name of the shared memory, only for debugging
+	 * @param maxFrameBytes max bytes of a frame, e.g. width * height * 2 for YUYV
+	 * @param slots number of frames in shared memory, a subscriber can use a frame without copying
+	 * 			while slots - 1 newer frames are published
+	 * @throws IOException the shared memory could not be created
+	 */
+	public PublisherPipeline(final String name, final int maxFrameBytes, final int slots) throws IOException {
+		super(PIPELINE_TYPE_PUBLISHER);
+		mNativePtr = nativeCreate(name, maxFrameBytes, slots);
+		if (mNativePtr == 0) {
+			throw new IOException("failed to create shared memory:" + name);
+		}
+	}
+
+	public PublisherPipeline(final String name, final int maxFrameBytes) throws IOException {
+		this(name, maxFrameBytes, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * get new read only file descriptor of the shared memory for a subscriber,
+	 * the caller should close it after sending to other process
+	 * @throws IOException already released
+	 */
+	public synchronized ParcelFileDescriptor getSubscriberFd() throws IOException {
+		final int fd = mNativePtr != 0 ? nativeGetSubscriberFd(mNativePtr) : -1;
+		if (fd < 0) {
+			throw new IOException("failed to get file descriptor:" + fd);
+		}
+		return ParcelFileDescriptor.adoptFd(fd);
+	}
+
+	/**
+	 * get counters of shared memory as JSON string like
+	 * {"slots":4,"slot_kb":4050,"published":1800,"published_kb":7290000,"too_large":0,
+	 * "avg_publish_us":800,"max_publish_us":3500,"received":0,"missed":0,"overwritten":0}
+	 * @return null if already released
+	 */
+	public synchronized String getRingStats() {
+		return mNativePtr != 0 ? nativeGetRingStats(mNativePtr) : null;
+	}
+
+	private static final native long nativeCreate(final String name, final int maxFrameBytes, final int slots);
+	private static final native int nativeGetSubscriberFd(final long id_pipeline);
+	private static final native String nativeGetRingStats(final long id_pipeline);
+}
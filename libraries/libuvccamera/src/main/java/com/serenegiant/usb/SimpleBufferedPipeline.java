@@ -0,0 +1,41 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+/**
+ * stage that only buffers frames and passes them to next stage on its own thread,
+ * this decouples a slow stage from the stages before it
+ */
+public class SimpleBufferedPipeline extends IPipeline {
+
+	/**
+	 * @param maxFrames max number of frames that this stage can hold
+	 */
+	public SimpleBufferedPipeline(final int maxFrames) {
+		super(PIPELINE_TYPE_SIMPLE_BUFFERED);
+		mNativePtr = nativeCreate(maxFrames);
+	}
+
+	private static final native long nativeCreate(final int maxFrames);
+}
@@ -0,0 +1,142 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.usb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * time-shift buffer that keeps last seconds of MJPEG/H.264 frames in a fixed size ring file
+ * that is mapped into memory, e.g. for instant replay or saving what happened before a trigger.
+ * set this with UVCCamera#setRawPipeline so that frames come as the camera sent them.
+ * frames are identified by id that increases by one for each frame,
+ * capture time is in CLOCK_MONOTONIC(same clock as System#nanoTime).
+ * reading and exporting never block the camera, a frame that the camera overwrote while reading
+ * is reported as ERROR_OVERWRITTEN. frames are kept after #stop until #release.
+ */
+public class TimeShiftPipeline extends IPipeline {
+	public static final int FLAG_KEY_FRAME = 0x0001;
+
+	public static final int ERROR_NOT_FOUND = -1;
+	public static final int ERROR_OVERWRITTEN = -2;
+	public static final int ERROR_NO_SPACE = -3;
+
+	public static final int INFO_PTS_NS = 0;
+	public static final int INFO_BYTES = 1;
+	public static final int INFO_FLAGS = 2;
+	public static final int INFO_SEQUENCE = 3;
+	public static final int INFO_FORMAT = 4;
+	public static final int INFO_LENGTH = 5;
+
+	/**
+	 * @param path ring file, existing file is overwritten. the file is not deleted on #release
+	 * @param capacityBytes size of the ring, e.g. 300kB * 30fps * 10 seconds for 10 seconds of 1080p MJPEG
+	 * @param maxDurationMs frames older than newest frame by this are removed even if the ring has space,
+	 * 			0 to keep frames until they are overwritten
+	 * @throws IOException the file could not be created or allocated
+	 */
+	public TimeShiftPipeline(final String path, final long capacityBytes, final long maxDurationMs) throws IOException {
+		super(PIPELINE_TYPE_TIME_SHIFT);
+		mNativePtr = nativeCreate(path, capacityBytes, maxDurationMs * 1000000L);
+		if (mNativePtr == 0) {
+			throw new IOException("failed to create time-shift buffer:" + path);
+		}
+	}
+
+	/**
+	 * find the last frame captured at or before ptsNs, the oldest frame if ptsNs is older than all frames
+	 * @param ptsNs capture time in System#nanoTime
+	 * @param keyFrame find the key frame that decoding can start from instead
+	 * @return id of the frame, -1 if not found
+	 */
+	public synchronized long seek(final long ptsNs, final boolean keyFrame) {
+		return mNativePtr != 0 ? nativeSeek(mNativePtr, ptsNs, keyFrame) : -1;
+	}
+
+	/**
+	 * copy a frame into direct ByteBuffer, position is set to 0 and limit to the size of the frame
+	 * @param id
+	 * @param buffer direct ByteBuffer
+	 * @param info null or array of at least INFO_LENGTH elements that receives INFO_XXX of the frame,
+	 * 			this is set also for ERROR_NO_SPACE so that the caller can retry with a larger buffer
+	 * @return bytes of the frame or ERROR_XXX
+	 */
+	public synchronized int read(final long id, final ByteBuffer buffer, final long[] info) {
+		if (mNativePtr == 0) return ERROR_NOT_FOUND;
+		final int result = nativeRead(mNativePtr, id, buffer, info);
+		if (result >= 0) {
+			buffer.clear();
+			buffer.limit(result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param range array of at least 4 elements that receives id of the oldest/newest frames
+	 * 			and capture time of them
+	 * @return number of frames in the buffer
+	 */
+	public synchronized int getRange(final long[] range) {
+		return mNativePtr != 0 ? nativeGetRange(mNativePtr, range) : 0;
+	}
+
+	/**
+	 * write frames captured between startNs and endNs into a file, concatenated JPEGs for MJPEG
+	 * or Annex B byte stream starting with SPS/PPS and a key frame for H.264.
+	 * only frames that are in the buffer when this is called are written, this can be called while
+	 * the camera is running but takes time, do not call this on UI thread.
+	 * @return number of frames written, negative value if failed
+	 */
+	public synchronized int export(final String path, final long startNs, final long endNs) {
+		return mNativePtr != 0 ? nativeExport(mNativePtr, path, startNs, endNs) : ERROR_NOT_FOUND;
+	}
+
+	/**
+	 * remove all frames from the buffer
+	 */
+	public synchronized void clear() {
+		if (mNativePtr != 0) {
+			nativeClear(mNativePtr);
+		}
+	}
+
+	/**
+	 * get state of the ring as JSON string like
+	 * {"frames":300,"oldest_id":1200,"newest_id":1499,"duration_ms":9966,"used_kb":90000,"capacity_kb":98304,
+	 * "written":1500,"written_kb":450000,"evicted":1200,"wraps":4,"too_large":0,"unsupported":0,
+	 * "avg_write_us":90,"max_write_us":2000,"reads":0,"read_overwritten":0}
+	 * @return null if already released
+	 */
+	public synchronized String getBufferStats() {
+		return mNativePtr != 0 ? nativeGetBufferStats(mNativePtr) : null;
+	}
+
+	private static final native long nativeCreate(final String path, final long capacityBytes, final long maxDurationNs);
+	private static final native long nativeSeek(final long id_pipeline, final long ptsNs, final boolean keyFrame);
+	private static final native int nativeRead(final long id_pipeline, final long id, final ByteBuffer buffer, final long[] info);
+	private static final native int nativeGetRange(final long id_pipeline, final long[] range);
+	private static final native int nativeExport(final long id_pipeline, final String path, final long startNs, final long endNs);
+	private static final native int nativeClear(final long id_pipeline);
+	private static final native String nativeGetBufferStats(final long id_pipeline);
+}
@@ -24,7 +24,9 @@
 package com.serenegiant.usb;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -53,6 +55,8 @@ public class UVCCamera {
 
 	public static final int FRAME_FORMAT_YUYV = 0;
 	public static final int FRAME_FORMAT_MJPEG = 1;
+	/** frame based H.264 that the camera encodes by itself, this is passed to IH264Callback without decoding */
+	public static final int FRAME_FORMAT_H264 = 2;
 
 	public static final int PIXEL_FORMAT_RAW = 0;
 	public static final int PIXEL_FORMAT_YUV = 1;
@@ -60,6 +64,26 @@ public class UVCCamera {
 	public static final int PIXEL_FORMAT_RGBX = 3;
 	public static final int PIXEL_FORMAT_YUV420SP = 4;
 	public static final int PIXEL_FORMAT_NV21 = 5;		// = YVU420SemiPlanar
+	/** YUV420SemiPlanar, MJPEG frames are decoded into this format directly without YUYV intermediate */
+	public static final int PIXEL_FORMAT_NV12 = 6;
+	/** YUV420Planar(Y, U, V planes), MJPEG frames are decoded into this format directly without YUYV intermediate */
+	public static final int PIXEL_FORMAT_I420 = 7;
+
+	/** frames from USB waiting for decoding/drawing on preview thread, default is QUEUE_DROP_NEWEST with 4 frames */
+	public static final int QUEUE_PREVIEW = 0;
+	/** decoded frames waiting for capture Surface(e.g. encoder), default is QUEUE_DROP_OLDEST with 1 frame */
+	public static final int QUEUE_CAPTURE = 1;
+	/** decoded frames waiting for frame callback, default is QUEUE_DROP_OLDEST with 1 frame */
+	public static final int QUEUE_CALLBACK = 2;
+
+	/** keep latest frames and drop the oldest one when the queue is full(latest-wins), for lowest latency */
+	public static final int QUEUE_DROP_OLDEST = 0;
+	/** keep queued frames and drop incoming one when the queue is full(oldest-wins) */
+	public static final int QUEUE_DROP_NEWEST = 1;
+	/** wait for space until timeout when the queue is full, then drop incoming one, for recording */
+	public static final int QUEUE_BLOCK = 2;
+	public static final int MAX_QUEUE_DEPTH = 16;
+	public static final int MAX_QUEUE_TIMEOUT_MS = 1000;
 
 	//--------------------------------------------------------------------------------
     public static final int	CTRL_SCANNING		= 0x00000001;	// D0:  Scanning Mode
@@ -124,6 +148,30 @@ public class UVCCamera {
 		}
 	}
 
+	/**
+	 * what was read from or negotiated with a camera on previous connection,
+	 * supported size JSON and the stream control that was committed last time
+	 */
+	private static final class DeviceCache {
+		private String supportedSize;
+		private byte[] streamCtrl;
+	}
+	/**
+	 * key is UsbControlBlock#getDeviceKeyNameWithSerial, cameras of the same model without serial number
+	 * share one entry, that is harmless because cached stream control is validated by the camera on every use
+	 */
+	private static final Map<String, DeviceCache> sDeviceCache = new HashMap<String, DeviceCache>();
+
+	/**
+	 * discard supported sizes and stream controls that were cached for reconnecting,
+	 * next #open of each camera reads descriptors and negotiates again
+	 */
+	public static void clearDeviceCache() {
+		synchronized (sDeviceCache) {
+			sDeviceCache.clear();
+		}
+	}
+
 	private UsbControlBlock mCtrlBlock;
     protected long mControlSupports;			// カメラコントロールでサポートしている機能フラグ
     protected long mProcSupports;				// プロセッシングユニットでサポートしている機能フラグ
@@ -132,6 +180,8 @@ public class UVCCamera {
 	protected float mCurrentBandwidthFactor = DEFAULT_BANDWIDTH;
     protected String mSupportedSize;
     protected List<Size> mCurrentSizeList;
+    protected IPipeline mPipeline;
+    protected IPipeline mRawPipeline;
 	// these fields from here are accessed from native code and do not change name and remove
     protected long mNativePtr;
     protected int mScanningModeMin, mScanningModeMax, mScanningModeDef;
@@ -203,6 +253,20 @@ public class UVCCamera {
 		if (result != 0) {
 			throw new UnsupportedOperationException("open failed:result=" + result);
 		}
+		// reconnecting camera uses what was cached on previous connection,
+		// cached stream control is probed on startPreview and full negotiation runs only if the camera rejects it
+		final DeviceCache cache;
+		synchronized (sDeviceCache) {
+			cache = sDeviceCache.get(mCtrlBlock.getDeviceKeyNameWithSerial());
+		}
+		if (cache != null) {
+			if (TextUtils.isEmpty(mSupportedSize)) {
+				mSupportedSize = cache.supportedSize;
+			}
+			if (cache.streamCtrl != null) {
+				nativeSetStreamCtrlCache(mNativePtr, cache.streamCtrl);
+			}
+		}
     	if (mNativePtr != 0 && TextUtils.isEmpty(mSupportedSize)) {
     		mSupportedSize = nativeGetSupportedSize(mNativePtr);
     	}
@@ -235,6 +299,9 @@ public class UVCCamera {
      */
     public synchronized void close() {
     	stopPreview();
+    	updateDeviceCache();
+    	setPipeline(null);
+    	setRawPipeline(null);
     	if (mNativePtr != 0) {
     		nativeRelease(mNativePtr);
 //    		mNativePtr = 0;	// nativeDestroyを呼ぶのでここでクリアしちゃダメ
@@ -251,6 +318,34 @@ public class UVCCamera {
     	if (DEBUG) Log.v(TAG, "close:finished");
     }
 
+	/**
+	 * keep supported sizes and the stream control that was committed on this connection for next #open
+	 */
+	private void updateDeviceCache() {
+		if ((mNativePtr == 0) || (mCtrlBlock == null)) return;
+		final byte[] streamCtrl = nativeGetStreamCtrlCache(mNativePtr);
+		if (TextUtils.isEmpty(mSupportedSize) && (streamCtrl == null)) return;
+		try {
+			final String key = mCtrlBlock.getDeviceKeyNameWithSerial();
+			synchronized (sDeviceCache) {
+				DeviceCache cache = sDeviceCache.get(key);
+				if (cache == null) {
+					cache = new DeviceCache();
+					sDeviceCache.put(key, cache);
+				}
+				if (!TextUtils.isEmpty(mSupportedSize)) {
+					cache.supportedSize = mSupportedSize;
+				}
+				if (streamCtrl != null) {
+					cache.streamCtrl = streamCtrl;
+				}
+			}
+		} catch (final Exception e) {
+			// the device may have been detached already
+			Log.w(TAG, e);
+		}
+	}
+
 	public UsbDevice getDevice() {
 		return mCtrlBlock != null ? mCtrlBlock.getDevice() : null;
 	}
@@ -316,7 +411,7 @@ public class UVCCamera {
 	 * @param height
 	 * @param min_fps
 	 * @param max_fps
-	 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+	 * @param frameFormat FRAME_FORMAT_YUYV(0), FRAME_FORMAT_MJPEG(1) or FRAME_FORMAT_H264(2)
 	 * @param bandwidthFactor
 	 */
 	public void setPreviewSize(final int width, final int height, final int min_fps, final int max_fps, final int frameFormat, final float bandwidthFactor) {
@@ -334,7 +429,8 @@ public class UVCCamera {
 	}
 
 	public List<Size> getSupportedSizeList() {
-		final int type = (mCurrentFrameFormat > 0) ? 6 : 4;
+		// bDescriptorSubtype of format descriptor
+		final int type = (mCurrentFrameFormat == FRAME_FORMAT_H264) ? 16 : (mCurrentFrameFormat > 0) ? 6 : 4;
 		return getSupportedSize(type, mSupportedSize);
 	}
 
@@ -408,6 +504,393 @@ public class UVCCamera {
     	}
     }
 
+    /**
+     * set frame callback that can hold the ByteBuffer after IPooledFrameCallback#onFrame returns.
+     * frames are written into numBuffers buffers that are allocated once and reused,
+     * frames are dropped while all of them are held by the callback.
+     * this replaces the callback that was set with #setFrameCallback.
+     * @param callback
+     * @param pixelFormat
+     * @param numBuffers [1, 16]
+     */
+    public void setPooledFrameCallback(final IPooledFrameCallback callback, final int pixelFormat, final int numBuffers) {
+    	if (mNativePtr != 0) {
+    		if (callback != null) {
+    			nativeSetPooledFrameCallback(mNativePtr, callback, pixelFormat, numBuffers);
+    		} else {
+    			nativeSetFrameCallback(mNativePtr, null, pixelFormat);
+    		}
+    	}
+    }
+
+    /**
+     * return the buffer that was passed to IPooledFrameCallback#onFrame,
+     * buffers can be released even after the callback was changed or this camera was destroyed
+     * @param slot handle that was passed to IPooledFrameCallback#onFrame
+     * @return 0 if the buffer was released
+     */
+    public int releaseFrame(final int slot) {
+    	return nativeReleaseFrame(mNativePtr, slot);
+    }
+
+    /**
+     * set the first stage of native frame pipeline, decoded frames are passed to it in addition to
+     * the preview/frame callback. each stage copies frames into its own queue and never blocks the camera,
+     * see PipelineBuilder. the pipeline is not started nor released here, the caller should start it and
+     * should release it after removing it with setPipeline(null) or #close.
+     * use with #setHeadless if you do not need the preview surface.
+     * @param pipeline null to remove
+     */
+    public synchronized void setPipeline(final IPipeline pipeline) {
+    	if (mNativePtr != 0) {
+    		nativeSetPipeline(mNativePtr, pipeline);
+    	}
+    	mPipeline = pipeline;
+    }
+
+    public synchronized IPipeline getPipeline() {
+    	return mPipeline;
+    }
+
+    /**
+     * set the first stage of native frame pipeline that receives MJPEG/H.264 frames as the camera sent them,
+     * before #setTargetFps decimation and decoding, e.g. TimeShiftPipeline.
+     * frames are passed on the thread that receives them from USB, so the stage should not block.
+     * the pipeline is not started nor released here, same as #setPipeline
+     * @param pipeline null to remove
+     */
+    public synchronized void setRawPipeline(final IPipeline pipeline) {
+    	if (mNativePtr != 0) {
+    		nativeSetRawPipeline(mNativePtr, pipeline);
+    	}
+    	mRawPipeline = pipeline;
+    }
+
+    public synchronized IPipeline getRawPipeline() {
+    	return mRawPipeline;
+    }
+
+    /**
+     * get counters of all stages of current pipelines as JSON array string, stages are listed
+     * from the first stage of #setRawPipeline and then #setPipeline in depth first order, see IPipeline#getStats
+     * @return null if no pipeline is set
+     */
+    public synchronized String getPipelineStats() {
+    	if ((mPipeline == null) && (mRawPipeline == null)) return null;
+    	final JSONArray result = new JSONArray();
+    	addPipelineStats(result, mRawPipeline);
+    	addPipelineStats(result, mPipeline);
+    	return result.toString();
+    }
+
+    private static void addPipelineStats(final JSONArray result, final IPipeline pipeline) {
+    	for (IPipeline p = pipeline; p != null; p = p.getPipeline()) {
+    		final String stats = p.getStats();
+    		if (stats != null) {
+    			try {
+    				result.put(new JSONObject(stats));
+    			} catch (final JSONException e) {
+    				Log.w(TAG, e);
+    			}
+    		}
+    		if (p instanceof DistributePipeline) {
+    			for (final IPipeline branch: ((DistributePipeline)p).getPipelines()) {
+    				addPipelineStats(result, branch);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * helper to build native frame pipeline that fans out camera frames to surfaces and callbacks
+     * e.g. preview, encoder and analysis at the same time without blocking each other.
+     * <pre>
+     * final IPipeline pipeline = new UVCCamera.PipelineBuilder()
+     *     .queueSize(2)
+     *     .addSurface(previewSurface)
+     *     .addSurface(encoderSurface)
+     *     .addCallback(callback, UVCCamera.PIXEL_FORMAT_NV21)
+     *     .build();
+     * camera.setPipeline(pipeline);
+     * pipeline.start();
+     * </pre>
+     */
+    public static class PipelineBuilder {
+    	private int mQueueSize = 4;
+    	private final List<IPipeline> mStages = new ArrayList<IPipeline>();
+
+    	/**
+    	 * max number of frames each stage added after this can hold,
+    	 * oldest frame is dropped when a stage can not catch up
+    	 */
+    	public PipelineBuilder queueSize(final int queueSize) {
+    		mQueueSize = queueSize > 0 ? queueSize : 1;
+    		return this;
+    	}
+
+    	/**
+    	 * add stage that draws frames into the surface
+    	 */
+    	public PipelineBuilder addSurface(final Surface surface) {
+    		final PreviewPipeline pipeline = new PreviewPipeline(mQueueSize);
+    		pipeline.setSurface(surface);
+    		mStages.add(pipeline);
+    		return this;
+    	}
+
+    	/**
+    	 * add stage that passes frames to the callback on its own thread
+    	 * @param pixelFormat one of PIXEL_FORMAT_XXX
+    	 */
+    	public PipelineBuilder addCallback(final IFrameCallback callback, final int pixelFormat) {
+    		final FrameCallbackPipeline pipeline = new FrameCallbackPipeline(mQueueSize);
+    		pipeline.setFrameCallback(callback, pixelFormat);
+    		mStages.add(pipeline);
+    		return this;
+    	}
+
+    	/**
+    	 * add stage(or chain of stages) that the caller created
+    	 */
+    	public PipelineBuilder addPipeline(final IPipeline pipeline) {
+    		if (pipeline != null) {
+    			mStages.add(pipeline);
+    		}
+    		return this;
+    	}
+
+    	/**
+    	 * @return the stage itself if only one stage was added, DistributePipeline that has all stages otherwise
+    	 * @throws IllegalStateException no stage was added or too many stages were added
+    	 */
+    	public IPipeline build() {
+    		if (mStages.isEmpty()) {
+    			throw new IllegalStateException("no stage was added");
+    		}
+    		if (mStages.size() == 1) {
+    			return mStages.get(0);
+    		}
+    		final DistributePipeline result = new DistributePipeline(mQueueSize);
+    		for (final IPipeline pipeline: mStages) {
+    			if (result.addPipeline(pipeline) != 0) {
+    				result.release();
+    				throw new IllegalStateException("too many stages");
+    			}
+    		}
+    		return result;
+    	}
+    }
+
+    /**
+     * set headless mode, this is applied on next #startPreview.
+     * in headless mode preview can start without preview surface and frames are passed to
+     * #setFrameCallback/#startCapture only, RGBX conversion for preview is skipped completely.
+     * with PIXEL_FORMAT_YUV420SP/NV12/I420 MJPEG frames are decoded into the callback format directly.
+     * @param headless
+     */
+    public synchronized void setHeadless(final boolean headless) {
+    	if (mNativePtr != 0) {
+    		nativeSetHeadless(mNativePtr, headless);
+    	}
+    }
+
+    /**
+     * set frame rate that frames are decimated to in native code right after USB transfer,
+     * dropped frames are never decoded nor converted. frames are passed on an even cadence
+     * based on their capture time (e.g. 30fps to 20fps passes 2 of every 3 frames).
+     * this can be called while previewing and has no effect if the camera is not faster than fps.
+     * number of decimated frames is "decimated" in #getCaptureStats
+     * @param fps 0 to pass all frames
+     */
+    public synchronized void setTargetFps(final float fps) {
+    	if (mNativePtr != 0) {
+    		nativeSetTargetFps(mNativePtr, fps);
+    	}
+    }
+
+    /**
+     * set depth of one of the queues between native threads and what it does when it is full,
+     * this can be called while previewing but the frame pool is sized for the depth on next #startPreview.
+     * QUEUE_BLOCK makes the thread before the queue wait: USB thread for QUEUE_PREVIEW(that may lose frames
+     * on USB while it waits), preview thread for QUEUE_CAPTURE/QUEUE_CALLBACK(that delays preview and the other one).
+     * QUEUE_PREVIEW is not used while MJPEG frames are decoded on multiple threads(#setDecodeThreads).
+     * frames dropped are "preview_queue_full", "capture_busy" and "callback_busy" in #getCaptureStats,
+     * and frames that waited are "xxx_blocked" in its "queues".
+     * e.g. lossless recording: setQueuePolicy(QUEUE_CAPTURE, QUEUE_BLOCK, 4, 100),
+     * live monitoring: setQueuePolicy(QUEUE_PREVIEW, QUEUE_DROP_OLDEST, 1, 0)
+     * @param queue QUEUE_PREVIEW, QUEUE_CAPTURE or QUEUE_CALLBACK
+     * @param policy QUEUE_DROP_OLDEST, QUEUE_DROP_NEWEST or QUEUE_BLOCK
+     * @param depth max number of frames in the queue, 1..MAX_QUEUE_DEPTH
+     * @param timeoutMs max time to wait for space with QUEUE_BLOCK, 0..MAX_QUEUE_TIMEOUT_MS
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    public synchronized void setQueuePolicy(final int queue, final int policy, final int depth, final int timeoutMs) {
+    	if ((queue < QUEUE_PREVIEW) || (queue > QUEUE_CALLBACK)
+    		|| (policy < QUEUE_DROP_OLDEST) || (policy > QUEUE_BLOCK)
+    		|| (depth < 1) || (depth > MAX_QUEUE_DEPTH)
+    		|| (timeoutMs < 0) || (timeoutMs > MAX_QUEUE_TIMEOUT_MS)) {
+    		throw new IllegalArgumentException("invalid queue policy");
+    	}
+    	if (mNativePtr != 0) {
+    		nativeSetQueuePolicy(mNativePtr, queue, policy, depth, timeoutMs);
+    	}
+    }
+
+    /**
+     * set callback that receives H.264 access units when the preview is started with FRAME_FORMAT_H264,
+     * there is no decoding, no preview and no frame callback in that mode and preview can start without surface.
+     * new callback receives SPS/PPS first and access units from next key frame.
+     * access units are never decimated with #setTargetFps because following frames refer to them.
+     * @param callback null to clear
+     */
+    public synchronized void setH264Callback(final IH264Callback callback) {
+    	if (mNativePtr != 0) {
+    		nativeSetH264Callback(mNativePtr, callback);
+    	}
+    }
+
+    /**
+     * start writing MJPEG frames into AVI file as the camera sent them, frames are never decoded nor encoded for this.
+     * this can be called only while previewing with FRAME_FORMAT_MJPEG and can run with preview, frame callback
+     * and H.264 encoding. frames are copied on USB callback thread and written on a dedicated native thread,
+     * frames are dropped instead of blocking the camera when storage is too slow, see "record" in #getCaptureStats.
+     * frames are recorded before #setTargetFps decimates them. the file is limited to 2GB(AVI 1.0).
+     * recording stops with #stopMjpegRecording or #stopPreview.
+     * @param path file to create, existing file is overwritten
+     * @return true if recording started
+     */
+    public synchronized boolean startMjpegRecording(final String path) {
+    	return (mNativePtr != 0) && (path != null) && (nativeStartMjpegRecording(mNativePtr, path) == 0);
+    }
+
+    /**
+     * stop recording that was started with #startMjpegRecording,
+     * this blocks until all queued frames and index are written into the file
+     * @return false if any write failed, true if the file was finished or not recording
+     */
+    public synchronized boolean stopMjpegRecording() {
+    	return (mNativePtr == 0) || (nativeStopMjpegRecording(mNativePtr) == 0);
+    }
+
+    /**
+     * set size of frames that preview/capture surface and frame callback receive, this is applied on next #startPreview.
+     * when the size is 1/2, 1/4 or 1/8 of the preview size or smaller, MJPEG frames are decoded into
+     * reduced size directly with DCT scaling of libjpeg, that is much faster than decoding at full size and
+     * scaling down on GPU. the largest scale that is not smaller than this size is used, so frames may be larger
+     * than this size. YUYV frames are never scaled. actual scale is "decode_scale" in #getCaptureStats
+     * @param width 0 to decode at preview size
+     * @param height 0 to decode at preview size
+     */
+    public synchronized void setOutputSize(final int width, final int height) {
+    	if (mNativePtr != 0) {
+    		nativeSetOutputSize(mNativePtr, width, height);
+    	}
+    }
+
+    /**
+     * set region of interest for digital zoom/pan on cameras without CTRL_ZOOM_ABS.
+     * only this region is decoded(MJPEG) or copied(YUYV) and converted, preview/capture surface
+     * and frame callback receive frames of the size of the region.
+     * this can be called on every frame for smooth pan/zoom, the region is applied from next frame.
+     * the region is adjusted to even x/y, width of multiple of 16 and even height
+     * (after scaling of #setOutputSize) and moved inside of the frame.
+     * @param x left of the region in preview size coordinates
+     * @param y top of the region in preview size coordinates
+     * @param width 0 to decode whole frame
+     * @param height 0 to decode whole frame
+     */
+    public synchronized void setCropRect(final int x, final int y, final int width, final int height) {
+    	if (mNativePtr != 0) {
+    		nativeSetCropRect(mNativePtr, x, y, width, height);
+    	}
+    }
+
+    /**
+     * set number of threads to decode MJPEG frames, this is applied on next #startPreview.
+     * decoding on multiple threads helps to keep frame rate of high resolution/high frame rate MJPEG cameras
+     * but it also increases memory usage and latency a little.
+     * @param numThreads [1, 8], MJPEG frames are decoded on the preview thread if 1(default)
+     */
+    public synchronized void setDecodeThreads(final int numThreads) {
+    	if (mNativePtr != 0) {
+    		nativeSetDecodeThreads(mNativePtr, numThreads);
+    	}
+    }
+
+    /**
+     * set number of USB transfer buffers that are queued to the camera, this is applied on next #startPreview.
+     * more buffers tolerate longer scheduling delay of the USB event thread on slow devices,
+     * fewer buffers reduce memory usage (each buffer holds one bulk payload or one isochronous transfer).
+     * @param numBuffers [1, 32], 0 to use the default(10)
+     */
+    public synchronized void setNumTransferBuffers(final int numBuffers) {
+    	if (mNativePtr != 0) {
+    		nativeSetNumTransferBuffers(mNativePtr, numBuffers);
+    	}
+    }
+
+    /**
+     * get per-thread MJPEG decode statistics of current/last preview as JSON string like
+     * {"threads":2,"dropped":0,"workers":[{"index":0,"frames":300,"errors":0,"avg_us":8200,"max_us":15000,"last_us":8100},...]}
+     * @return null if the camera is not opened
+     */
+    public synchronized String getDecodeStats() {
+    	return mNativePtr != 0 ? nativeGetDecodeStats(mNativePtr) : null;
+    }
+
+    /**
+     * get frame callback statistics of current/last preview as JSON string like
+     * {"elapsed_ms":10000,"preview_frames":300,"preview_fps":30.0,"delivered":100,"dropped_busy":200,
+     * "dropped_no_buffer":0,"errors":0,"avg_us":95000,"max_us":101000}
+     * dropped_busy counts frames that were not passed to the callback because it was still running,
+     * preview_fps does not depend on the time that the callback takes.
+     * @return null if the camera is not opened
+     */
+    public synchronized String getCallbackStats() {
+    	return mNativePtr != 0 ? nativeGetCallbackStats(mNativePtr) : null;
+    }
+
+    /**
+     * get all counters of native capture path of current/last preview as JSON string like
+     * {"elapsed_ms":10000,"running":true,"target_fps":0.0,"decode_scale":1,
+     * "ctrl_cache":{"hits":1,"misses":0,"fallbacks":0,"negotiate_ms":4.2},
+     * "drops":{"broken":0,"payload_error":0,"missing_eof":0,"bad_length":0,"missing_soi":0,"missing_eoi":2,
+     *   "alloc_failed":0,"preview_queue_full":0,"decimated":0,"decoder_busy":0,
+     *   "decode_failed":0,"capture_busy":0,"callback_busy":3,"callback_no_buffer":0},
+     * "queues":{"preview":0,"preview_max":4,"decoder_in_flight":0,"preview_blocked":0,
+     *   "capture":1,"capture_max":1,"capture_blocked":0,"callback":0,"callback_max":1,"callback_blocked":0,
+     *   "frame_pool":5,"frame_pool_max":6},
+     * "pool":{"hits":900,"misses":6,"freed":0,
+     *   "buckets":[{"bytes":4147200,"pooled":4,"in_use":3,"high_water":5,"hits":600,"misses":2,"freed":0},...]},
+     * "decode":{"frames":300,"errors":0,"avg_us":8200,"max_us":15000},
+     * "callback":{"preview_frames":300,"preview_fps":30.0,"delivered":297,...},
+     * "h264":{"access_units":0,...},
+     * "record":{"running":true,"frames":300,"dropped_full":0,"dropped_stopped":0,"bytes":92160000,
+     *   "ring_max_kb":1400,"writes":85,"avg_write_us":1100,"max_write_us":26000,"error":0}}
+     * payload_error..missing_eoi are frames that were dropped before decoding because they were broken on USB
+     * (e.g. lost isochronous packets), such frames never reach decoder, preview, recording nor callbacks.
+     * decoded frames are shared by preview, capture Surface, frame callback and pipeline without copying,
+     * capture_busy/callback_busy are frames that capture Surface/frame callback skipped because it was slower than the camera.
+     * counters are reset on every #startPreview except "ctrl_cache", that counts for this connection
+     * how many previews started with the stream control cached on previous connection(hits) and
+     * how many had to negotiate again(misses, fallbacks), "negotiate_ms" is for the last preview.
+     * @return null if the camera is not opened
+     */
+    public synchronized String getCaptureStats() {
+    	return mNativePtr != 0 ? nativeGetCaptureStats(mNativePtr) : null;
+    }
+
+    /**
+     * release native frame buffers that are cached for the preview, call this from ComponentCallbacks2#onTrimMemory.
+     * while previewing, only the frames that were not needed since last call are released,
+     * all cached frames are released if the preview is stopped or level is TRIM_MEMORY_COMPLETE.
+     * @param level level that ComponentCallbacks2#onTrimMemory received
+     * @return released memory in kB
+     */
+    public synchronized int trimMemory(final int level) {
+    	return mNativePtr != 0 ? nativeTrimMemory(mNativePtr, level) : 0;
+    }
+
     /**
      * start preview
      */
@@ -422,6 +905,7 @@ public class UVCCamera {
      */
     public synchronized void stopPreview() {
     	setFrameCallback(null, 0);
+    	setH264Callback(null);
     	if (mCtrlBlock != null) {
     		nativeStopPreview(mNativePtr);
     	}
@@ -1041,6 +1525,26 @@ public class UVCCamera {
     private static final native int nativeStopPreview(final long id_camera);
     private static final native int nativeSetPreviewDisplay(final long id_camera, final Surface surface);
     private static final native int nativeSetFrameCallback(final long mNativePtr, final IFrameCallback callback, final int pixelFormat);
+    private static final native int nativeSetPooledFrameCallback(final long mNativePtr, final IPooledFrameCallback callback, final int pixelFormat, final int numBuffers);
+    private static final native int nativeReleaseFrame(final long mNativePtr, final int slot);
+    private static final native int nativeSetHeadless(final long id_camera, final boolean headless);
+    private static final native int nativeSetTargetFps(final long id_camera, final float fps);
+    private static final native int nativeSetQueuePolicy(final long id_camera, final int queue, final int policy, final int depth, final int timeoutMs);
+    private static final native int nativeSetH264Callback(final long id_camera, final IH264Callback callback);
+    private static final native int nativeStartMjpegRecording(final long id_camera, final String path);
+    private static final native int nativeStopMjpegRecording(final long id_camera);
+    private static final native int nativeSetPipeline(final long id_camera, final IPipeline pipeline);
+    private static final native int nativeSetRawPipeline(final long id_camera, final IPipeline pipeline);
+    private static final native int nativeSetStreamCtrlCache(final long id_camera, final byte[] cache);
+    private static final native byte[] nativeGetStreamCtrlCache(final long id_camera);
+    private static final native int nativeSetOutputSize(final long id_camera, final int width, final int height);
+    private static final native int nativeSetCropRect(final long id_camera, final int x, final int y, final int width, final int height);
+    private static final native int nativeSetDecodeThreads(final long id_camera, final int numThreads);
+    private static final native String nativeGetDecodeStats(final long id_camera);
+    private static final native String nativeGetCallbackStats(final long id_camera);
+    private static final native String nativeGetCaptureStats(final long id_camera);
+    private static final native int nativeSetNumTransferBuffers(final long id_camera, final int numBuffers);
+    private static final native int nativeTrimMemory(final long id_camera, final int level);
 
 //**********************************************************************
     /**
@@ -0,0 +1,82 @@
+package dev.alejandrorosas.streamlib;
+
+/**
+ * Capture times of the frames that the video encoder took, used to replace the presentation time
+ * that VideoEncoder takes from System#nanoTime when it dequeues a frame.
+ * Camera capture times and System#nanoTime are both CLOCK_MONOTONIC, so the encoder output can be
+ * moved back to the capture time on the same timeline as audio.
+ * <p>
+ * The capture time travels with the queued frame and is recorded here only when the encoder takes it,
+ * so frames that VideoEncoder discards from its input queue never get here. The encoder sets the
+ * presentation time of a frame after it took the frame and before it takes the next one, so each output
+ * drops the entries that were taken before the previous output was dequeued. A frame that was taken but
+ * did not come out of the encoder shifts at most one output.
+ * The base should be taken before the encoder starts, dequeue times computed from it are never later than
+ * the actual ones, so an entry of the current output is never dropped.
+ */
+class CaptureTimestamps {
+
+    private static final int CAPACITY = 128;
+
+    private final long[] takenUs = new long[CAPACITY];
+    private final long[] capturedUs = new long[CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private long baseUs = 0;
+    private long lastDequeuedUs = Long.MIN_VALUE;
+    private long lastPtsUs = -1;
+
+    /**
+     * @param baseUs System#nanoTime / 1000 when the encoder was (re)started, same base as VideoEncoder uses
+     */
+    public synchronized void start(long baseUs) {
+        this.baseUs = baseUs;
+        head = size = 0;
+        lastDequeuedUs = Long.MIN_VALUE;
+        lastPtsUs = -1;
+    }
+
+    /**
+     * Called from encoder thread when it takes a frame from its input queue.
+     *
+     * @param timestampNs capture time from IFrameCallback#onFrame(ByteBuffer, long)
+     */
+    public synchronized void taken(long timestampNs) {
+        if (size == CAPACITY) {
+            // encoder does not produce output, drop the oldest
+            head = (head + 1) % CAPACITY;
+            size--;
+        }
+        final int tail = (head + size) % CAPACITY;
+        takenUs[tail] = System.nanoTime() / 1000;
+        capturedUs[tail] = timestampNs / 1000;
+        size++;
+    }
+
+    /**
+     * Called from encoder thread for each encoded frame.
+     *
+     * @param encoderPtsUs presentation time that VideoEncoder set
+     * @return capture time of the frame relative to the base, encoderPtsUs if unknown
+     */
+    public synchronized long toPresentationTimeUs(long encoderPtsUs) {
+        final long dequeuedUs = encoderPtsUs + baseUs;
+        // frames taken before the previous output was dequeued never came out of the encoder
+        while (size > 0 && takenUs[head] < lastDequeuedUs) {
+            head = (head + 1) % CAPACITY;
+            size--;
+        }
+        lastDequeuedUs = dequeuedUs;
+        long ptsUs = encoderPtsUs;
+        if (size > 0) {
+            ptsUs = capturedUs[head] - baseUs;
+            head = (head + 1) % CAPACITY;
+            size--;
+        }
+        if (ptsUs <= lastPtsUs) {
+            ptsUs = lastPtsUs + 1;
+        }
+        lastPtsUs = ptsUs;
+        return ptsUs;
+    }
+}
@@ -0,0 +1,114 @@
+package dev.alejandrorosas.streamlib;
+
+import android.graphics.ImageFormat;
+
+import com.pedro.encoder.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * NV21 buffers of the frames that are queued to VideoEncoder in headless mode.
+ * <p>
+ * VideoEncoder keeps queued frames (up to 80) and converts them later on its own thread, so a buffer can be
+ * reused only after the encoder is done with it. The encoder takes frames in the order they were queued and
+ * calls {@link Frame#getBuffer()} when it starts converting one, so once a frame was taken every frame queued
+ * before it was already converted or discarded by the encoder. A buffer is never overwritten while its frame
+ * may still be queued, a new buffer is allocated when all of them are in flight.
+ */
+class EncoderFramePool {
+
+    private static final int MAX_FREE = 8;
+
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    private final ArrayDeque<PooledFrame> inFlight = new ArrayDeque<>();
+    private final CaptureTimestamps timestamps;
+    private long sequence = 0;
+
+    /**
+     * @param timestamps capture time of each frame is recorded here when the encoder takes the frame
+     */
+    EncoderFramePool(CaptureTimestamps timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Called from frame callback thread, copies the frame into a free buffer.
+     *
+     * @param src NV21 frame, its position is moved to the limit
+     * @param timestampNs capture time of the frame
+     * @param width width of the encoder
+     * @param height height of the encoder
+     * @return frame to pass to VideoEncoder#inputYUVData, null if the size of the frame is not the encoder size
+     */
+    public synchronized Frame obtain(ByteBuffer src, long timestampNs, int width, int height) {
+        final int size = src.remaining();
+        if (size != width * height * 3 / 2) {
+            // the encoder would read past the end or encode garbage
+            src.position(src.limit());
+            return null;
+        }
+        byte[] buffer = null;
+        while (buffer == null && !free.isEmpty()) {
+            buffer = free.pollFirst();
+            if (buffer.length != size) {
+                // frame size changed, old buffers are never used again
+                buffer = null;
+            }
+        }
+        if (buffer == null) {
+            buffer = new byte[size];
+        }
+        src.get(buffer);
+        final PooledFrame frame = new PooledFrame(buffer, sequence++, timestampNs);
+        inFlight.addLast(frame);
+        return frame;
+    }
+
+    /**
+     * Forget all frames, called when the encoder (re)starts with an empty queue.
+     * Buffers of frames that were in flight are left to GC because the old encoder may still hold them.
+     */
+    public synchronized void clear() {
+        inFlight.clear();
+        free.clear();
+    }
+
+    /**
+     * Called from encoder thread when it takes the frame.
+     */
+    private synchronized void onTaken(PooledFrame frame) {
+        if (frame.taken) {
+            return;
+        }
+        frame.taken = true;
+        timestamps.taken(frame.timestampNs);
+        // frames queued before this one are no longer used, this one is free after next frame was taken
+        while (!inFlight.isEmpty() && inFlight.peekFirst().sequence < frame.sequence) {
+            final byte[] buffer = inFlight.pollFirst().buffer;
+            if (free.size() < MAX_FREE) {
+                free.addLast(buffer);
+            }
+        }
+    }
+
+    private class PooledFrame extends Frame {
+        private final byte[] buffer;
+        private final long sequence;
+        private final long timestampNs;
+        private boolean taken = false;
+
+        PooledFrame(byte[] buffer, long sequence, long timestampNs) {
+            super(buffer, 0, false, ImageFormat.NV21);
+            this.buffer = buffer;
+            this.sequence = sequence;
+            this.timestampNs = timestampNs;
+        }
+
+        @Override
+        public byte[] getBuffer() {
+            onTaken(this);
+            return super.getBuffer();
+        }
+    }
+}
@@ -29,6 +29,11 @@ public class RtmpUSB extends USBBase {
         rtmpClient = new RtmpClient(connectChecker);
     }
 
+    public RtmpUSB(Context context, ConnectCheckerRtmp connectChecker, boolean headless) {
+        super(context, headless);
+        rtmpClient = new RtmpClient(connectChecker);
+    }
+
     @Override
     public void setAuthorization(String user, String password) {
         rtmpClient.setAuthorization(user, password);
@@ -9,7 +9,9 @@ import android.content.Intent
 import android.hardware.usb.UsbDevice
 import android.os.Binder
 import android.os.Build
+import android.os.Handler
 import android.os.IBinder
+import android.os.Looper
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import com.pedro.rtmp.utils.ConnectCheckerRtmp
@@ -30,11 +32,37 @@ class StreamService : Service() {
     var cameraWidth = 1280
     var cameraHeight = 960
 
+    /**
+     * Encode without GL thread and preview when no view is attached, most units run unattended with the screen off.
+     * Takes effect on next prepare, a view attached while streaming headless is used from the next prepare.
+     */
+    var headlessWithoutView = true
+
+    /**
+     * Interval to log native capture counters (frame drops per reason, queue depths, pool usage) while the camera is open, 0 disables it.
+     */
+    var captureStatsIntervalMs = 10_000L
+
+    /**
+     * Receives the same JSON as [UVCCamera.getCaptureStats] on the main thread every [captureStatsIntervalMs], e.g. to alert on drops.
+     */
+    var onCaptureStats: ((String) -> Unit)? = null
+
     private var endpoint: String? = null
     private var rtmpUSB: RtmpUSB? = null
     private var uvcCamera: UVCCamera? = null
     private var usbMonitor: USBMonitor? = null
     private val notificationManager: NotificationManager by lazy { getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager }
+    private val statsHandler = Handler(Looper.getMainLooper())
+    private val captureStatsTask = object : Runnable {
+        override fun run() {
+            uvcCamera?.captureStats?.let {
+                Log.i(TAG, "capture stats: $it")
+                onCaptureStats?.invoke(it)
+            }
+            if (captureStatsIntervalMs > 0) statsHandler.postDelayed(this, captureStatsIntervalMs)
+        }
+    }
 
     override fun onCreate() {
         super.onCreate()
@@ -67,16 +95,33 @@ class StreamService : Service() {
         super.onDestroy()
         Log.e(TAG, "RTP service destroy")
         stopStream()
+        stopCaptureStats()
         usbMonitor?.unregister()
         uvcCamera?.destroy()
     }
 
+    override fun onTrimMemory(level: Int) {
+        super.onTrimMemory(level)
+        uvcCamera?.trimMemory(level)?.let {
+            if (it > 0) Log.i(TAG, "released $it kB of native frame buffers, level=$level")
+        }
+    }
+
+    private fun startCaptureStats() {
+        statsHandler.removeCallbacks(captureStatsTask)
+        if (captureStatsIntervalMs > 0) statsHandler.postDelayed(captureStatsTask, captureStatsIntervalMs)
+    }
+
+    private fun stopCaptureStats() {
+        statsHandler.removeCallbacks(captureStatsTask)
+    }
+
     private fun prepareStreamRtp() {
         stopStream()
         stopPreview()
 
         rtmpUSB = if (openGlView == null) {
-            RtmpUSB(this, connectCheckerRtmp)
+            RtmpUSB(this, connectCheckerRtmp, headlessWithoutView)
         } else {
             RtmpUSB(openGlView, connectCheckerRtmp)
         }
@@ -95,7 +140,15 @@ class StreamService : Service() {
 
     fun setView(view: OpenGlView) {
         openGlView = view
-        rtmpUSB?.replaceView(openGlView, uvcCamera)
+        if (rtmpUSB?.isHeadless == true) {
+            // headless instance has no GL thread to switch, recreate it unless streaming
+            if (rtmpUSB?.isStreaming == false && rtmpUSB?.isRecording == false && uvcCamera != null) {
+                prepareStreamRtp()
+                startPreview()
+            }
+        } else {
+            rtmpUSB?.replaceView(openGlView, uvcCamera)
+        }
     }
 
     fun setView(context: Context) {
@@ -183,9 +236,11 @@ class StreamService : Service() {
             prepareStreamRtp()
             rtmpUSB!!.startPreview(uvcCamera, cameraWidth, cameraHeight)
             endpoint?.let { startStreamRtp(it) }
+            startCaptureStats()
         }
 
         override fun onDisconnect(device: UsbDevice?, ctrlBlock: USBMonitor.UsbControlBlock?) {
+            stopCaptureStats()
             stopStream(false)
         }
 
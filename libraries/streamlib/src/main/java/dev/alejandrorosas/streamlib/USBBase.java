@@ -22,6 +22,8 @@ import com.pedro.rtplibrary.view.GlInterface;
 import com.pedro.rtplibrary.view.LightOpenGlView;
 import com.pedro.rtplibrary.view.OffScreenGlThread;
 import com.pedro.rtplibrary.view.OpenGlView;
+import com.serenegiant.usb.IFrameCallback;
+import com.serenegiant.usb.IH264Callback;
 import com.serenegiant.usb.UVCCamera;
 
 import java.io.IOException;
@@ -60,8 +62,22 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
     private boolean onPreview = false;
     private MediaFormat videoFormat;
     private MediaFormat audioFormat;
+    //headless
+    private final boolean headless;
+    private final CaptureTimestamps captureTimestamps = new CaptureTimestamps();
+    private final EncoderFramePool encoderFrames = new EncoderFramePool(captureTimestamps);
+    // camera that feeds the encoders, frames are decimated to encoder fps in native code
+    private UVCCamera encodingCamera;
+    //H264 pass through
+    private boolean passThrough = false;
+    private int passThroughWidth;
+    private int passThroughHeight;
+    private long passThroughBaseUs;
+    private long lastPassThroughPtsUs;
+    private final MediaCodec.BufferInfo passThroughInfo = new MediaCodec.BufferInfo();
 
     public USBBase(OpenGlView openGlView) {
+        headless = false;
         context = openGlView.getContext();
         this.glInterface = openGlView;
         this.glInterface.init();
@@ -69,6 +85,7 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
     }
 
     public USBBase(LightOpenGlView lightOpenGlView) {
+        headless = false;
         context = lightOpenGlView.getContext();
         this.glInterface = lightOpenGlView;
         this.glInterface.init();
@@ -76,9 +93,25 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
     }
 
     public USBBase(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param headless true to encode without any preview. There is no GL thread and no RGBX
+     *                 conversion in native code, decoded frames are passed to the encoder as NV21
+     *                 with {@link #inputYUVData(Frame)}. Preview methods are ignored in this mode.
+     *                 Rotation is not supported in this mode, frames are encoded as the camera sends them.
+     *                 Frames are decoded at the size of the encoder if the camera can scale to it
+     *                 (see {@link UVCCamera#setOutputSize(int, int)}), frames of any other size are dropped,
+     *                 so the preview size of the camera should match the size given to prepareVideo.
+     */
+    public USBBase(Context context, boolean headless) {
         this.context = context;
-        glInterface = new OffScreenGlThread(context);
-        glInterface.init();
+        this.headless = headless;
+        if (!headless) {
+            glInterface = new OffScreenGlThread(context);
+            glInterface.init();
+        }
         init();
     }
 
@@ -105,7 +138,7 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
      * @param bitrate  H264 in kb.
      * @param rotation could be 90, 180, 270 or 0. You should use CameraHelper.getCameraOrientation
      *                 with SurfaceView or TextureView and 0 with OpenGlView or LightOpenGlView. NOTE: Rotation with
-     *                 encoder is silence ignored in some devices.
+     *                 encoder is silence ignored in some devices. Ignored in headless mode.
      * @return true if success, false if you get a error (Normally because the encoder selected
      * doesn't support any configuration seated or your device hasn't a H264 encoder).
      */
@@ -114,7 +147,10 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
             stopPreview(uvcCamera);
             onPreview = true;
         }
-        return videoEncoder.prepareVideoEncoder(width, height, fps, bitrate, rotation, iFrameInterval, FormatVideoEncoder.SURFACE);
+        passThrough = false;
+        // NV21 frames from the camera are never rotated in headless mode
+        return videoEncoder.prepareVideoEncoder(width, height, fps, bitrate, headless ? 0 : rotation, iFrameInterval,
+            headless ? FormatVideoEncoder.YUV420Dynamical : FormatVideoEncoder.SURFACE);
     }
 
     /**
@@ -124,6 +160,35 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
         return prepareVideo(width, height, fps, bitrate, 2, rotation, uvcCamera);
     }
 
+    /**
+     * Call this instead of @prepareVideo to stream and record H264 that the camera encodes by itself.
+     * Access units from the camera go to the stream and MP4 as they are, there is no decoding,
+     * no GL and no video encoder. Bitrate, key frame interval and rotation are what the camera uses.
+     *
+     * @param width  resolution in px that the camera supports with UVCCamera#FRAME_FORMAT_H264.
+     * @param height resolution in px that the camera supports with UVCCamera#FRAME_FORMAT_H264.
+     * @param fps    max frames per second of the camera.
+     * @return true if success, false if the camera doesn't support H264 with the resolution.
+     */
+    public boolean prepareVideoPassThrough(int width, int height, int fps, UVCCamera uvcCamera) {
+        if (onPreview) {
+            stopPreview(uvcCamera);
+            onPreview = true;
+        }
+        try {
+            uvcCamera.setPreviewSize(width, height, UVCCamera.DEFAULT_PREVIEW_MIN_FPS, fps,
+                UVCCamera.FRAME_FORMAT_H264, UVCCamera.DEFAULT_BANDWIDTH);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "H264 is not supported: " + width + "x" + height, e);
+            passThrough = false;
+            return false;
+        }
+        passThrough = true;
+        passThroughWidth = width;
+        passThroughHeight = height;
+        return true;
+    }
+
     protected abstract void prepareAudioRtp(boolean isStereo, int sampleRate);
 
     /**
@@ -176,6 +241,8 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
         recording = true;
         if (!streaming) {
             startEncoders(uvcCamera);
+        } else if (passThrough) {
+            resyncPassThrough(uvcCamera);
         } else if (videoEncoder.isRunning()) {
             resetVideoEncoder();
         }
@@ -201,6 +268,28 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
         }
     }
 
+    /**
+     * Start record MJPEG frames of the camera into AVI file as they are, without decode or re-encode.
+     * It runs alongside stream and MP4 record, frames are written on a native I/O thread.
+     * Need be called after startStream or startPreview with MJPEG preview, because they restart the camera
+     * preview and that finishes the file. Not available with H264 pass through.
+     *
+     * @param path where file will be saved.
+     * @return true if record started, false if the camera is not previewing MJPEG or file can't be created.
+     */
+    public boolean startRecordMjpeg(UVCCamera uvcCamera, final String path) {
+        return uvcCamera.startMjpegRecording(path);
+    }
+
+    /**
+     * Stop record AVI started with @startRecordMjpeg. Blocks until all frames and index are written.
+     *
+     * @return false if write failed, e.g. storage is full.
+     */
+    public boolean stopRecordMjpeg(UVCCamera uvcCamera) {
+        return uvcCamera.stopMjpegRecording();
+    }
+
     /**
      * Start camera preview. Ignored, if stream or preview is started.
      *
@@ -208,7 +297,7 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
      * @param height of preview in px.
      */
     public void startPreview(final UVCCamera uvcCamera, int width, int height) {
-        if (!isStreaming() && !onPreview && !(glInterface instanceof OffScreenGlThread)) {
+        if (!isStreaming() && !onPreview && !headless && !(glInterface instanceof OffScreenGlThread)) {
             glInterface.setEncoderSize(width, height);
             glInterface.setRotation(0);
             glInterface.start();
@@ -226,7 +315,7 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
      * @stopStream to release camera properly if you will close activity.
      */
     public void stopPreview(UVCCamera uvcCamera) {
-        if (!isStreaming() && onPreview && !(glInterface instanceof OffScreenGlThread)) {
+        if (!isStreaming() && onPreview && !headless && !(glInterface instanceof OffScreenGlThread)) {
             if (glInterface != null) {
                 glInterface.stop();
             }
@@ -253,6 +342,8 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
         streaming = true;
         if (!recording) {
             startEncoders(uvcCamera);
+        } else if (passThrough) {
+            resyncPassThrough(uvcCamera);
         } else {
             resetVideoEncoder();
         }
@@ -261,10 +352,26 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
     }
 
     private void startEncoders(UVCCamera uvcCamera) {
+        // before the encoder starts, see CaptureTimestamps
+        captureTimestamps.start(System.nanoTime() / 1000);
+        encoderFrames.clear();
+        if (passThrough) {
+            audioEncoder.start();
+            microphoneManager.start();
+            startPassThrough(uvcCamera);
+            return;
+        }
+        // drop surplus frames before they are decoded when the camera is faster than the encoder
+        encodingCamera = uvcCamera;
+        uvcCamera.setTargetFps(videoEncoder.getFps());
         videoEncoder.start();
         audioEncoder.start();
         microphoneManager.start();
 
+        if (headless) {
+            startHeadless(uvcCamera);
+            return;
+        }
         uvcCamera.stopPreview();
         glInterface.stop();
         glInterface.setEncoderSize(videoEncoder.getWidth(), videoEncoder.getHeight());
@@ -280,6 +387,99 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
         onPreview = true;
     }
 
+    /**
+     * start camera without preview surface, NV21 frames from frame callback go to the encoder
+     */
+    private void startHeadless(UVCCamera uvcCamera) {
+        uvcCamera.stopPreview();
+        uvcCamera.setHeadless(true);
+        // frames go to the encoder without scaling, so decode them at the size of the encoder
+        uvcCamera.setOutputSize(videoEncoder.getWidth(), videoEncoder.getHeight());
+        headlessSizeLogged = false;
+        uvcCamera.startPreview();
+        // UVCCamera#stopPreview clears frame callback, so this should be set after startPreview
+        uvcCamera.setFrameCallback(headlessFrameCallback, UVCCamera.PIXEL_FORMAT_YUV420SP);
+        onPreview = true;
+    }
+
+    private volatile boolean headlessSizeLogged;
+
+    private final IFrameCallback headlessFrameCallback = new IFrameCallback() {
+        @Override
+        public void onFrame(ByteBuffer frame, long timestampNs) {
+            // VideoEncoder queues the frame and converts it later, the buffer is reused only after that
+            // and the capture time is recorded when the encoder takes it
+            final Frame yuv = encoderFrames.obtain(frame, timestampNs, videoEncoder.getWidth(), videoEncoder.getHeight());
+            if (yuv != null) {
+                inputYUVData(yuv);
+            } else if (!headlessSizeLogged) {
+                headlessSizeLogged = true;
+                Log.e(TAG, "Frame size does not match encoder size "
+                    + videoEncoder.getWidth() + "x" + videoEncoder.getHeight() + ", frames are dropped");
+            }
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            onFrame(frame, System.nanoTime());
+        }
+    };
+
+    /**
+     * start camera in H264 mode, access units from IH264Callback go to the stream and MP4
+     */
+    private void startPassThrough(UVCCamera uvcCamera) {
+        // same base as AudioEncoder that was started just before
+        passThroughBaseUs = System.nanoTime() / 1000;
+        lastPassThroughPtsUs = -1;
+        uvcCamera.stopPreview();
+        uvcCamera.startPreview();
+        // UVCCamera#stopPreview clears H264 callback, so this should be set after startPreview
+        uvcCamera.setH264Callback(h264Callback);
+        onPreview = true;
+    }
+
+    /**
+     * setting the callback again makes native code pass SPS/PPS again and restart from next key frame,
+     * so that new stream or MP4 gets codec config and starts with a key frame
+     */
+    private void resyncPassThrough(UVCCamera uvcCamera) {
+        uvcCamera.setH264Callback(h264Callback);
+    }
+
+    private final IH264Callback h264Callback = new IH264Callback() {
+        @Override
+        public void onSpsPps(ByteBuffer sps, ByteBuffer pps) {
+            // the buffers are valid only in this call but MediaFormat and the stream keep them
+            final ByteBuffer spsCopy = copyOf(sps);
+            final ByteBuffer ppsCopy = copyOf(pps);
+            final MediaFormat format = MediaFormat.createVideoFormat("video/avc", passThroughWidth, passThroughHeight);
+            format.setByteBuffer("csd-0", spsCopy.duplicate());
+            format.setByteBuffer("csd-1", ppsCopy.duplicate());
+            onVideoFormat(format);
+            onSpsPpsVps(spsCopy, ppsCopy, null);
+        }
+
+        @Override
+        public void onAccessUnit(ByteBuffer frame, long timestampNs, boolean keyFrame) {
+            long ptsUs = timestampNs / 1000 - passThroughBaseUs;
+            if (ptsUs <= lastPassThroughPtsUs) {
+                ptsUs = lastPassThroughPtsUs + 1;
+            }
+            lastPassThroughPtsUs = ptsUs;
+            passThroughInfo.set(frame.position(), frame.remaining(), ptsUs,
+                keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            getVideoData(frame, passThroughInfo);
+        }
+    };
+
+    private static ByteBuffer copyOf(ByteBuffer src) {
+        final ByteBuffer dst = ByteBuffer.allocate(src.remaining());
+        dst.put(src.duplicate());
+        dst.flip();
+        return dst;
+    }
+
     private void resetVideoEncoder() {
         if (glInterface != null) {
             glInterface.removeMediaCodecSurface();
@@ -322,14 +522,25 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
         }
         if (!recording) {
             microphoneManager.stop();
-            if (glInterface != null) {
+            uvcCamera.setTargetFps(0);
+            encodingCamera = null;
+            if (passThrough) {
+                uvcCamera.stopPreview();
+                onPreview = false;
+            } else if (glInterface != null) {
                 glInterface.removeMediaCodecSurface();
                 if (glInterface instanceof OffScreenGlThread) {
                     glInterface.stop();
                     uvcCamera.stopPreview();
                 }
+            } else if (headless) {
+                uvcCamera.stopPreview();
+                uvcCamera.setHeadless(false);
+                onPreview = false;
+            }
+            if (!passThrough) {
+                videoEncoder.stop();
             }
-            videoEncoder.stop();
             audioEncoder.stop();
             videoFormat = null;
             audioFormat = null;
@@ -373,15 +584,15 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
     }
 
     public int getResolutionValue() {
-        return videoEncoder.getWidth() * videoEncoder.getHeight();
+        return getStreamWidth() * getStreamHeight();
     }
 
     public int getStreamWidth() {
-        return videoEncoder.getWidth();
+        return passThrough ? passThroughWidth : videoEncoder.getWidth();
     }
 
     public int getStreamHeight() {
-        return videoEncoder.getHeight();
+        return passThrough ? passThroughHeight : videoEncoder.getHeight();
     }
 
     public GlInterface getGlInterface() {
@@ -409,6 +620,9 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
      */
     public void setLimitFPSOnFly(int fps) {
         videoEncoder.setFps(fps);
+        if (encodingCamera != null) {
+            encodingCamera.setTargetFps(fps);
+        }
     }
 
     /**
@@ -438,6 +652,24 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
         return recording;
     }
 
+    /**
+     * Get H264 pass through state.
+     *
+     * @return true if H264 from the camera is streamed without encoding.
+     */
+    public boolean isPassThrough() {
+        return passThrough;
+    }
+
+    /**
+     * Get headless state.
+     *
+     * @return true if encoding without preview.
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
     protected abstract void getAacDataRtp(ByteBuffer aacBuffer, MediaCodec.BufferInfo info);
 
     @Override
@@ -463,6 +695,10 @@ public abstract class USBBase implements GetAacData, GetCameraData, GetVideoData
 
     @Override
     public void getVideoData(ByteBuffer h264Buffer, MediaCodec.BufferInfo info) {
+        if (headless && !passThrough && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            // use camera capture time instead of the time when the encoder took the frame
+            info.presentationTimeUs = captureTimestamps.toPresentationTimeUs(info.presentationTimeUs);
+        }
         if (recording) {
             if (info.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME
                 && !canRecord